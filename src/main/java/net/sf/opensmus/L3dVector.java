@@ -69,6 +69,15 @@ public class L3dVector extends LValue {
         setType(LValue.vt_3dVector);
     }
 
+    /**
+     * Returns one component of the vector
+     *
+     * @param index 0 for x, 1 for y, 2 for z
+     */
+    public float getComponent(int index) {
+        return Float.intBitsToFloat(ConversionUtils.byteArrayToInt(m_bytes, index * 4));
+    }
+
     /**
      * Reserved for internal use of OpenSMUS.
      */
@@ -56,7 +56,7 @@ public class LSymbol extends LString {
      */
     @Override
     public void dump() {
-        MUSLog.Log("Symbol> " + toString(), MUSLog.kDeb);
+        MUSLog.Log(MUSLog.kDeb, "Symbol> {}", this);
     }
 
      @Override
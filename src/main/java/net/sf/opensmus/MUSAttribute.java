@@ -36,6 +36,13 @@ public class MUSAttribute {
 
     private LSymbol m_name;
     private LValue m_value;
+    private int m_version = 0;
+
+    // Cache for getTime(), the date part only changes once per second
+    private static final java.text.SimpleDateFormat TIME_FORMAT = new java.text.SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+    private static long m_timesecond = -1;
+    private static String m_timeprefix;
+    private static long m_lasttime = 0;
 
     /**
      * Constructor
@@ -59,6 +66,17 @@ public class MUSAttribute {
         return m_value;
     }
 
+    /**
+     * Version of the last change, set by the owner of the attribute
+     */
+    public int getVersion() {
+        return m_version;
+    }
+
+    public void setVersion(int version) {
+        m_version = version;
+    }
+
     /**
      * Get the attribute name as an LSymbol
      */
@@ -70,12 +88,22 @@ public class MUSAttribute {
      * Static utility function.
      * Reserved for internal use of OpenSMUS.
      */
-    public static LValue getTime() {
+    public static synchronized LValue getTime() {
+
+        // Milliseconds, never the same or lower than the last value so each update gets a different time.
+        // A burst of updates may run a few milliseconds ahead of the clock.
+        long now = Math.max(System.currentTimeMillis(), m_lasttime + 1);
+        m_lasttime = now;
+
+        long second = now / 1000;
+        if (second != m_timesecond) {
+            m_timeprefix = TIME_FORMAT.format(new java.util.Date(second * 1000));
+            m_timesecond = second;
+        }
 
-        java.text.SimpleDateFormat formatter = new java.text.SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSSSSS");
-        java.util.Date currentTime = new java.util.Date();
-        String dateString = formatter.format(currentTime);
-        return new LString(dateString);
+        // Same format as SimpleDateFormat "SSSSSS": the milliseconds padded to six digits, e.g. .000123
+        String millis = Long.toString(now % 1000);
+        return new LString(m_timeprefix + ".000000".substring(0, 7 - millis.length()) + millis);
     }
 
     /**
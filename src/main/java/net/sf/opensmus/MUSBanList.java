@@ -0,0 +1,250 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * In-memory copy of the ban list. An entry is a user name, an ip address or an address range in
+ * CIDR notation like "10.1.0.0/16". Names are looked up in a hash map, addresses walk a binary
+ * prefix trie so a range bans every address inside it. Entries are ordered by expiry time as well,
+ * so expired entries can be taken out without looking at the others.
+ * <p/>
+ * Entries are stored in upper case. Times are in milliseconds like System.currentTimeMillis().
+ */
+public class MUSBanList {
+
+    private static final class Node {
+        final Node[] m_child = new Node[2];
+        long m_expires = 0; // 0 if no range ends at this node
+    }
+
+    // Entry to expiry time
+    private final LinkedHashMap<String, Long> m_entries = new LinkedHashMap<String, Long>();
+    private final TreeMap<Long, Set<String>> m_expiries = new TreeMap<Long, Set<String>>();
+    private final Node m_ipv4 = new Node();
+    private final Node m_ipv6 = new Node();
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    public synchronized void add(String inentry, long expires) {
+        String entry = inentry.toUpperCase();
+        remove(entry);
+
+        m_entries.put(entry, expires);
+        Set<String> at = m_expiries.get(expires);
+        if (at == null) {
+            at = new HashSet<String>();
+            m_expiries.put(expires, at);
+        }
+        at.add(entry);
+
+        Node node = rangeNode(entry, true, null);
+        if (node != null)
+            node.m_expires = expires;
+    }
+
+    public synchronized boolean remove(String inentry) {
+        String entry = inentry.toUpperCase();
+        Long expires = m_entries.remove(entry);
+        if (expires == null)
+            return false;
+
+        Set<String> at = m_expiries.get(expires);
+        if (at != null) {
+            at.remove(entry);
+            if (at.isEmpty()) m_expiries.remove(expires);
+        }
+
+        ArrayList<Node> path = new ArrayList<Node>();
+        Node node = rangeNode(entry, false, path);
+        if (node != null) {
+            node.m_expires = 0;
+            // Take out the nodes that no longer lead to a range, bottom up
+            for (int i = path.size() - 1; i >= 0; i--) {
+                Node child = (i + 1 < path.size()) ? path.get(i + 1) : node;
+                if (child.m_expires != 0 || child.m_child[0] != null || child.m_child[1] != null)
+                    break;
+                Node parent = path.get(i);
+                parent.m_child[(parent.m_child[0] == child) ? 0 : 1] = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the expiry time of a ban in effect for the entry, or 0 if there is none.
+     * An ip address entry is also banned by any range containing it.
+     */
+    public synchronized long getExpiry(String inentry, long now) {
+        String entry = inentry.toUpperCase();
+        Long expires = m_entries.get(entry);
+        if (expires != null && expires > now)
+            return expires;
+
+        byte[] address = parseAddress(entry);
+        if (address != null)
+            return lookup(address, now);
+        return 0;
+    }
+
+    public boolean isBanned(InetAddress address, long now) {
+        return getExpiry(address, now) != 0;
+    }
+
+    public synchronized long getExpiry(InetAddress address, long now) {
+        return lookup(address.getAddress(), now);
+    }
+
+    // Removes the entries expired at the given time and returns them
+    public synchronized List<String> takeExpired(long now) {
+        ArrayList<String> expired = new ArrayList<String>();
+        while (!m_expiries.isEmpty() && m_expiries.firstKey() <= now) {
+            expired.addAll(m_expiries.firstEntry().getValue());
+            for (String entry : m_expiries.firstEntry().getValue().toArray(new String[0])) {
+                remove(entry);
+            }
+        }
+        return expired;
+    }
+
+    // Copy of all entries with their expiry time, in the order they were added
+    public synchronized Map<String, Long> getEntries() {
+        return new LinkedHashMap<String, Long>(m_entries);
+    }
+
+    private long lookup(byte[] address, long now) {
+        Node node = (address.length == 4) ? m_ipv4 : m_ipv6;
+        int bits = address.length * 8;
+        for (int b = 0; ; b++) {
+            if (node.m_expires > now)
+                return node.m_expires;
+            if (b == bits)
+                return 0;
+            node = node.m_child[(address[b >> 3] >> (7 - (b & 7))) & 1];
+            if (node == null)
+                return 0;
+        }
+    }
+
+    // Number of trie nodes below the roots, for the tests
+    synchronized int getNodeCount() {
+        return countNodes(m_ipv4) + countNodes(m_ipv6) - 2;
+    }
+
+    private static int countNodes(Node node) {
+        if (node == null)
+            return 0;
+        return 1 + countNodes(node.m_child[0]) + countNodes(node.m_child[1]);
+    }
+
+    // Trie node of an address or range entry, null if the entry is a name.
+    // The nodes above it are added to the path if one is given.
+    private Node rangeNode(String entry, boolean create, List<Node> path) {
+        int slash = entry.indexOf('/');
+        byte[] address = parseAddress((slash == -1) ? entry : entry.substring(0, slash));
+        if (address == null)
+            return null;
+
+        int bits = address.length * 8;
+        int prefix = bits;
+        if (slash != -1) {
+            try {
+                prefix = Integer.parseInt(entry.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (prefix < 0 || prefix > bits)
+                return null;
+        }
+
+        Node node = (address.length == 4) ? m_ipv4 : m_ipv6;
+        for (int b = 0; b < prefix; b++) {
+            int bit = (address[b >> 3] >> (7 - (b & 7))) & 1;
+            if (path != null)
+                path.add(node);
+            if (node.m_child[bit] == null) {
+                if (!create) return null;
+                node.m_child[bit] = new Node();
+            }
+            node = node.m_child[bit];
+        }
+        return node;
+    }
+
+    /**
+     * Returns the bytes of an ip address literal, or null if the entry is not one.
+     * Never does a name lookup.
+     */
+    public static byte[] parseAddress(String entry) {
+        if (entry.indexOf(':') != -1) {
+            // A string with a colon is always taken as an IPv6 literal. getByName looks up
+            // anything that does not parse as one, so only hex digits, colons and dots get there
+            if (entry.length() > 45 || entry.charAt(0) == '.')
+                return null;
+            for (int c = 0; c < entry.length(); c++) {
+                char ch = entry.charAt(c);
+                boolean hex = (ch >= '0' && ch <= '9') || (ch >= 'A' && ch <= 'F') || (ch >= 'a' && ch <= 'f');
+                if (!hex && ch != ':' && ch != '.')
+                    return null;
+            }
+            try {
+                return InetAddress.getByName(entry).getAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            } catch (SecurityException e) {
+                return null;
+            }
+        }
+
+        String[] parts = entry.split("\\.", -1);
+        if (parts.length != 4)
+            return null;
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            if (parts[i].length() == 0 || parts[i].length() > 3)
+                return null;
+            int v = 0;
+            for (int c = 0; c < parts[i].length(); c++) {
+                char ch = parts[i].charAt(c);
+                if (ch < '0' || ch > '9') return null;
+                v = v * 10 + (ch - '0');
+            }
+            if (v > 255)
+                return null;
+            address[i] = (byte) v;
+        }
+        return address;
+    }
+}
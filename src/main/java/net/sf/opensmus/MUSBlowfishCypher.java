@@ -62,12 +62,13 @@ public class MUSBlowfishCypher {
     final static int[] PRECALC_SBOX3 = new int[SBOX_ENTRIES];
     final static int[] PRECALC_SBOX4 = new int[SBOX_ENTRIES];
 
-    // The individual instance working boxes
-    int[] m_pbox = new int[PBOX_ENTRIES];
-    int[] m_sbox1 = new int[SBOX_ENTRIES];
-    int[] m_sbox2 = new int[SBOX_ENTRIES];
-    int[] m_sbox3 = new int[SBOX_ENTRIES];
-    int[] m_sbox4 = new int[SBOX_ENTRIES];
+    // The boxes used by this instance. They are only written while the key is set up,
+    // so instances using the global key share the precalculated boxes instead of copying 4K each.
+    int[] m_pbox;
+    int[] m_sbox1;
+    int[] m_sbox2;
+    int[] m_sbox3;
+    int[] m_sbox4;
     long m_lCBCIV;
 
 
@@ -88,7 +89,12 @@ public class MUSBlowfishCypher {
     // Creates a new instance with the pre-calculated boxes
     public MUSBlowfishCypher() {
 
-        reset();
+        m_pbox = PRECALC_PBOX;
+        m_sbox1 = PRECALC_SBOX1;
+        m_sbox2 = PRECALC_SBOX2;
+        m_sbox3 = PRECALC_SBOX3;
+        m_sbox4 = PRECALC_SBOX4;
+        m_lCBCIV = 0;
     }
 
 
@@ -98,6 +104,12 @@ public class MUSBlowfishCypher {
 
         int nI;
 
+        m_pbox = new int[PBOX_ENTRIES];
+        m_sbox1 = new int[SBOX_ENTRIES];
+        m_sbox2 = new int[SBOX_ENTRIES];
+        m_sbox3 = new int[SBOX_ENTRIES];
+        m_sbox4 = new int[SBOX_ENTRIES];
+
         // Init the cipher
         // Step 1: Init P array from pi bytes
         System.arraycopy(pbox_init, 0, m_pbox, 0, PBOX_ENTRIES);
@@ -170,13 +182,9 @@ public class MUSBlowfishCypher {
     }
 
     // Restores the cipher to fresh state
+    // (The boxes never change after the key setup, only the chaining value has to be cleared)
     public void reset() {
 
-        System.arraycopy(PRECALC_PBOX, 0, m_pbox, 0, PBOX_ENTRIES);
-        System.arraycopy(PRECALC_SBOX1, 0, m_sbox1, 0, SBOX_ENTRIES);
-        System.arraycopy(PRECALC_SBOX2, 0, m_sbox2, 0, SBOX_ENTRIES);
-        System.arraycopy(PRECALC_SBOX3, 0, m_sbox3, 0, SBOX_ENTRIES);
-        System.arraycopy(PRECALC_SBOX4, 0, m_sbox4, 0, SBOX_ENTRIES);
         m_lCBCIV = 0;
     }
 
@@ -0,0 +1,189 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latest value wins coalescing for a group. Messages with one of the configured subjects
+ * are not forwarded right away. Only the last message of each sender and subject is kept,
+ * and the kept messages are delivered on a fixed tick. In bundle mode each member gets one
+ * message per tick with the subject "Bundle". Its content is a list holding a list of
+ * [sender, subject, content] for every message the member would have received.
+ */
+public class MUSCoalescer implements Runnable {
+
+    public static final String BUNDLE_SUBJECT = "Bundle";
+
+    private final MUSGroup m_group;
+    private final Set<String> m_subjects = new HashSet<String>();
+    private final int m_interval;
+    private final boolean m_bundle;
+    private final ConcurrentHashMap<String, Pending> m_pending = new ConcurrentHashMap<String, Pending>();
+    private MUSServer m_server;
+    private MUSScheduledTask m_task;
+
+    static final class Pending {
+        final ServerUser sender;
+        final MUSMessage msg;
+
+        Pending(ServerUser psender, MUSMessage pmsg) {
+            sender = psender;
+            msg = pmsg;
+        }
+    }
+
+    public MUSCoalescer(MUSGroup group, String[] subjects, int interval, boolean bundle) {
+
+        m_group = group;
+        for (String subject : subjects) {
+            m_subjects.add(subject.trim().toLowerCase());
+        }
+        m_interval = interval;
+        m_bundle = bundle;
+    }
+
+    // Parses a CoalesceGroups entry: @group:subject[,subject...]:interval[:Bundle]
+    // Returns null if the entry is not valid
+    public static MUSCoalescer parse(MUSGroup group, String setting) {
+
+        String[] parts = setting.split(":");
+        if (parts.length < 3 || parts.length > 4) return null;
+
+        try {
+            int interval = Integer.parseInt(parts[2].trim());
+            if (interval <= 0) return null;
+
+            boolean bundle = false;
+            if (parts.length == 4) {
+                if (!parts[3].trim().equalsIgnoreCase("Bundle")) return null;
+                bundle = true;
+            }
+
+            return new MUSCoalescer(group, parts[1].split(","), interval, bundle);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String parseGroupName(String setting) {
+        return setting.substring(0, setting.indexOf(":")).trim();
+    }
+
+    public void start(MUSServer server) {
+        m_server = server;
+        m_task = server.m_scheduler.scheduleWithFixedDelay("Coalesce " + m_group.m_name, this, m_interval, m_interval);
+    }
+
+    public void kill() {
+
+        if (m_task != null) m_task.cancel();
+        m_pending.clear();
+    }
+
+    public boolean filters(String subject) {
+        return m_subjects.contains(subject.toLowerCase());
+    }
+
+    // Keeps the message until the next tick, replacing an older one with the same sender and subject
+    // Returns true if an older message was replaced
+    public boolean offer(ServerUser sender, MUSMessage msg) {
+
+        String key = sender.name().toUpperCase() + ":" + msg.m_subject.toString().toLowerCase();
+        return m_pending.put(key, new Pending(sender, msg)) != null;
+    }
+
+    // Drops the waiting messages of a sender that left the group
+    public void removeSender(ServerUser sender) {
+
+        for (Iterator<Pending> it = m_pending.values().iterator(); it.hasNext();) {
+            if (it.next().sender == sender) it.remove();
+        }
+    }
+
+    public int getPendingCount() {
+        return m_pending.size();
+    }
+
+    // The tick
+    public void run() {
+
+        if (m_pending.isEmpty()) return;
+
+        // Take the messages out one by one, so new offers during the flush wait for the next tick
+        List<Pending> flush = new ArrayList<Pending>(m_pending.size());
+        for (Map.Entry<String, Pending> entry : m_pending.entrySet()) {
+            if (m_pending.remove(entry.getKey(), entry.getValue()))
+                flush.add(entry.getValue());
+        }
+
+        if (!m_bundle) {
+            for (Pending p : flush) {
+                m_group.deliverMessage(p.sender, p.msg);
+            }
+            return;
+        }
+
+        Map<ServerUser, LList> bundles = new HashMap<ServerUser, LList>();
+        Map<ServerUser, Boolean> udp = new HashMap<ServerUser, Boolean>();
+        for (Pending p : flush) {
+            LList item = new LList();
+            item.addElement(new LString(p.msg.m_senderID.toString()));
+            item.addElement(new LString(p.msg.m_subject.toString()));
+            item.addElement(p.msg.m_msgContent);
+
+            for (ServerUser receiver : m_group.getReceivers(p.sender, p.msg)) {
+                LList bundle = bundles.get(receiver);
+                if (bundle == null) {
+                    bundle = new LList();
+                    bundles.put(receiver, bundle);
+                    udp.put(receiver, Boolean.TRUE);
+                }
+                bundle.addElement(item);
+                // The bundle only goes by UDP if all messages in it came that way
+                if (!p.msg.m_udp) udp.put(receiver, Boolean.FALSE);
+            }
+        }
+
+        for (Map.Entry<ServerUser, LList> entry : bundles.entrySet()) {
+            MUSMessage bundle = new MUSMessage();
+            bundle.m_errCode = 0;
+            bundle.m_timeStamp = m_server.timeStamp();
+            bundle.m_subject = new MUSMsgHeaderString(BUNDLE_SUBJECT);
+            bundle.m_senderID = new MUSMsgHeaderString("System");
+            bundle.m_recptID = new MUSMsgHeaderStringList();
+            bundle.m_recptID.addElement(new MUSMsgHeaderString(m_group.m_name));
+            bundle.m_msgContent = entry.getValue();
+            bundle.m_udp = udp.get(entry.getKey());
+            entry.getKey().sendMessage(bundle);
+        }
+    }
+}
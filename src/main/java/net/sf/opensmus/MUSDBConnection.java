@@ -31,14 +31,39 @@ package net.sf.opensmus;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.text.*;
 
 
 public class MUSDBConnection implements ServerUserDatabase {
-    private Connection m_conn;
+    private MUSDBPool m_pool;
+    private MUSDBWriteCache m_cache;
+    private MUSDBIdAllocator m_globalidalloc;
+    private MUSDBIdAllocator m_attridalloc;
+    // Held while checking that a name is free and inserting it
+    private final Object m_userlock = new Object();
+    private final Object m_applock = new Object();
+    // In-memory copy of BANLIST, changes are written through to the table
+    private final MUSBanList m_banlist = new MUSBanList();
+    private MUSScheduledTask m_bantask;
+    // Row counts of USERS and APPLICATIONS, counted once and then kept up to date by creation and deletion
+    private final AtomicInteger m_usercount = new AtomicInteger();
+    private final AtomicInteger m_appcount = new AtomicInteger();
     private MUSServer m_server;
     public boolean m_enabled;
 
+    // In-memory copy of ATTRLIST, name to id and id to name
+    private final ConcurrentHashMap<String, Integer> m_attrids = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentSkipListMap<Integer, String> m_attrnames = new ConcurrentSkipListMap<Integer, String>();
+    // Application data value indexes by application and attribute id, built by the first search.
+    // All index access is synchronized on this map.
+    private final HashMap<Long, MUSDBValueIndex> m_valueindexes = new HashMap<Long, MUSDBValueIndex>();
+    // Value indexes being read from the database, with the membership changes made meanwhile.
+    // Guarded by m_valueindexes, which is never held while taking a pooled connection
+    private final ArrayList<IndexBuild> m_indexbuilds = new ArrayList<IndexBuild>();
+
     public MUSDBConnection(MUSServer srv, boolean enableFlag) {
         m_server = srv;
 
@@ -53,15 +78,29 @@ public class MUSDBConnection implements ServerUserDatabase {
 
             // Connect to the database
             // It will be created automatically by hsqldb if it does not yet exist
-            m_conn = DriverManager.getConnection(m_server.m_props.getProperty("MUDatabaseURL"), m_server.m_props.getProperty("MUDatabaseUsername"), m_server.m_props.getProperty("MUDatabasePassword"));
+            m_pool = new MUSDBPool(m_server.m_props.getProperty("MUDatabaseURL"), m_server.m_props.getProperty("MUDatabaseUsername"), m_server.m_props.getProperty("MUDatabasePassword"),
+                    m_server.m_props.getIntProperty("MUDatabasePoolSize"), m_server.m_props.getIntProperty("MUDatabaseStatementCacheSize"));
+            m_cache = new MUSDBWriteCache(this);
+            // Attributes are declared rarely, so their ids are reserved one at a time and stay compact
+            m_globalidalloc = new MUSDBIdAllocator(m_pool, "GLOBALID", m_server.m_props.getIntProperty("MUDatabaseIDBlockSize"));
+            m_attridalloc = new MUSDBIdAllocator(m_pool, "ATTRID", 1);
 
             ensureDBPresence();
+            loadAttributeCatalog();
+            m_usercount.set(countRows("SELECT COUNT(*) FROM USERS"));
+            m_appcount.set(countRows("SELECT COUNT(*) FROM APPLICATIONS"));
 
-            MUSLog.Log("MUS database functions enabled", MUSLog.kSys);
+            MUSLog.Log("MUS database functions enabled, " + m_pool.size() + " connections", MUSLog.kSys);
             m_enabled = true;
+            m_cache.start(m_server.m_scheduler, m_server.m_props.getIntProperty("MUDatabaseFlushInterval"));
 
             processDBConfigCommands();
-            purgeBannedTable();
+            loadBanList();
+            m_bantask = m_server.m_scheduler.scheduleWithFixedDelay("BanExpiry", new Runnable() {
+                public void run() {
+                    purgeBannedTable();
+                }
+            }, 1000, 1000);
         } catch (DBException e) {
             // Database not enabled exception thrown, config option disabled
             MUSLog.Log("MUS database functions not enabled", MUSLog.kDB);
@@ -79,26 +118,29 @@ public class MUSDBConnection implements ServerUserDatabase {
     }
 
     public void killDBConnection() {
-        try {
 
-            if (m_enabled) {
-                try {
-                    String dbbackend = m_server.m_props.getProperty("MUDatabaseSQLBackend");
-                    if (dbbackend.equalsIgnoreCase("hsqldb")) {
-                        Statement stat = m_conn.createStatement();
+        if (m_enabled) {
+            if (m_bantask != null) m_bantask.cancel();
+            m_cache.kill();
+            try {
+                String dbbackend = m_server.m_props.getProperty("MUDatabaseSQLBackend");
+                if (dbbackend.equalsIgnoreCase("hsqldb")) {
+                    MUSDBPool.PooledConnection pc = m_pool.take();
+                    try {
+                        Statement stat = pc.m_conn.createStatement();
                         stat.executeQuery("SHUTDOWN COMPACT");
+                    } finally {
+                        m_pool.release(pc);
                     }
-
-                } catch (SQLException sqle) {
-                    MUSLog.Log(sqle, MUSLog.kDB);
                 }
-                m_conn.close();
-            }
 
-            m_enabled = false;
-        } catch (SQLException sqle) {
-            MUSLog.Log(sqle, MUSLog.kDB);
+            } catch (SQLException sqle) {
+                MUSLog.Log(sqle, MUSLog.kDB);
+            }
+            m_pool.close();
         }
+
+        m_enabled = false;
     }
 
 
@@ -124,90 +166,103 @@ public class MUSDBConnection implements ServerUserDatabase {
         }
     }
 
-    public synchronized boolean createUser(String usernamein, String password, String userlevel) {
-        try {
-
-            String username = usernamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT * FROM USERS WHERE NAME='" + username + "'");
+    // Reads ATTRLIST into the attribute catalog. Afterwards only declareAttribute and deleteAttribute change it.
+    private void loadAttributeCatalog() throws SQLException {
 
-            if (result.next()) {
-                MUSLog.Log("User " + username + " already in database", MUSLog.kDB);
-                return false;
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            ResultSet result = pc.prepare("SELECT ID, NAME FROM ATTRLIST").executeQuery();
+            while (result.next()) {
+                catalogAttribute(result.getInt(1), result.getString(2));
             }
             result.close();
+        } finally {
+            m_pool.release(pc);
+        }
+    }
 
-            // Go on, get next global id for this user
-            ResultSet idresult = stat.executeQuery("SELECT MAXID FROM IDTABLE WHERE TABLENAME='GLOBALID'");
-            int userid = 0;
-
-            if (idresult.next()) {
-                userid = idresult.getInt(1);
-            }
-            idresult.close();
-
-            // Increment globalid
-            userid++;
+    private void catalogAttribute(int attrid, String attributename) {
+        m_attrids.put(attributename, attrid);
+        m_attrnames.put(attrid, attributename);
+    }
 
-            PreparedStatement prep =
-                    m_conn.prepareStatement("INSERT INTO USERS (ID, NAME) VALUES (?,?)");
+    // Id of an upper case attribute name, or -1 if it is not declared
+    private int lookupAttribute(String attributename) {
+        Integer id = m_attrids.get(attributename);
+        return (id == null) ? -1 : id;
+    }
 
-            prep.setInt(1, userid);
-            prep.setString(2, username);
+    // True if the query with one string parameter returns a row
+    private boolean exists(MUSDBPool.PooledConnection pc, String sql, String param) throws SQLException {
 
-            prep.executeUpdate();
-            prep.close();
+        PreparedStatement prep = pc.prepare(sql);
+        prep.setString(1, param);
+        ResultSet result = prep.executeQuery();
+        boolean found = result.next();
+        result.close();
+        return found;
+    }
 
-            // Now insert the related attributes
-            PreparedStatement atprep =
-                    m_conn.prepareStatement("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
+    private void insertAttribute(MUSDBPool.PooledConnection pc, int ownerid, int attrid, LValue value) throws SQLException {
 
-            atprep.setInt(1, userid);
-            atprep.setInt(2, 5); // password
-            LString pass = new LString(password);
-            atprep.setBytes(3, pass.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
+        PreparedStatement atprep = pc.prepare("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
+        atprep.setInt(1, ownerid);
+        atprep.setInt(2, attrid);
+        atprep.setBytes(3, value.getBytes());
+        atprep.executeUpdate();
+    }
 
-            atprep.setInt(1, userid);
-            atprep.setInt(2, 6); // lastupdate time
-            LString currenttime = (LString) MUSAttribute.getTime();
-            atprep.setBytes(3, currenttime.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
+    // Runs an update with int parameters
+    private int update(MUSDBPool.PooledConnection pc, String sql, int... params) throws SQLException {
 
-            atprep.setInt(1, userid);
-            atprep.setInt(2, 7); // lastlogin time
-            atprep.setBytes(3, currenttime.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
+        PreparedStatement prep = pc.prepare(sql);
+        for (int i = 0; i < params.length; i++) {
+            prep.setInt(i + 1, params[i]);
+        }
+        return prep.executeUpdate();
+    }
 
-            atprep.setInt(1, userid);
-            atprep.setInt(2, 3); // userlevel
-            LInteger currentlevel;
+    public boolean createUser(String usernamein, String password, String userlevel) {
+        try {
+            MUSDBPool.PooledConnection pc = m_pool.take();
             try {
-                currentlevel = new LInteger(Integer.parseInt(userlevel));
-            } catch (NumberFormatException e) {
-                currentlevel = new LInteger(m_server.m_props.getIntProperty("DefaultUserLevel"));
-            }
-            atprep.setBytes(3, currentlevel.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
+                String username = usernamein.toUpperCase();
+                int userid;
+                synchronized (m_userlock) {
+                    if (exists(pc, "SELECT ID FROM USERS WHERE NAME=?", username)) {
+                        MUSLog.Log("User " + username + " already in database", MUSLog.kDB);
+                        return false;
+                    }
 
-            atprep.setInt(1, userid);
-            atprep.setInt(2, 2); // status
-            LInteger currentstatus = new LInteger(m_server.m_props.getIntProperty("DefaultUserStatus"));
-            atprep.setBytes(3, currentstatus.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
+                    // Go on, get next global id for this user
+                    userid = m_globalidalloc.next();
 
-            atprep.close();
+                    PreparedStatement prep = pc.prepare("INSERT INTO USERS (ID, NAME) VALUES (?,?)");
+                    prep.setInt(1, userid);
+                    prep.setString(2, username);
+                    prep.executeUpdate();
+                    m_usercount.incrementAndGet();
+                }
 
-            // Stuff global id back...
-            stat.executeUpdate("UPDATE IDTABLE SET MAXID=" + userid + " WHERE TABLENAME='GLOBALID'");
-            stat.close();
+                // Now insert the related attributes
+                insertAttribute(pc, userid, 5, new LString(password)); // password
+                LString currenttime = (LString) MUSAttribute.getTime();
+                insertAttribute(pc, userid, 6, currenttime); // lastupdate time
+                insertAttribute(pc, userid, 7, currenttime); // lastlogin time
 
-            MUSLog.Log("User " + username + " added to database", MUSLog.kDB);
+                LInteger currentlevel;
+                try {
+                    currentlevel = new LInteger(Integer.parseInt(userlevel));
+                } catch (NumberFormatException e) {
+                    currentlevel = new LInteger(m_server.m_props.getIntProperty("DefaultUserLevel"));
+                }
+                insertAttribute(pc, userid, 3, currentlevel); // userlevel
+                insertAttribute(pc, userid, 2, new LInteger(m_server.m_props.getIntProperty("DefaultUserStatus"))); // status
+            } finally {
+                m_pool.release(pc);
+            }
+
+            MUSLog.Log("User " + usernamein.toUpperCase() + " added to database", MUSLog.kDB);
             return true;
         } catch (SQLException sqle) {
             MUSLog.Log(sqle, MUSLog.kDB);
@@ -215,67 +270,35 @@ public class MUSDBConnection implements ServerUserDatabase {
         }
     }
 
-    public synchronized boolean createApplication(String applicationnamein, String description) {
+    public boolean createApplication(String applicationnamein, String description) {
         try {
-
             String applicationname = applicationnamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT * FROM APPLICATIONS WHERE NAME='" + applicationname + "'");
-
-            if (result.next()) {
-                MUSLog.Log("Application " + applicationname + " already in database", MUSLog.kDB);
-                return false;
-            }
-            result.close();
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                int appid;
+                synchronized (m_applock) {
+                    if (exists(pc, "SELECT ID FROM APPLICATIONS WHERE NAME=?", applicationname)) {
+                        MUSLog.Log("Application " + applicationname + " already in database", MUSLog.kDB);
+                        return false;
+                    }
 
+                    //go on, get next global id for this user
+                    appid = m_globalidalloc.next();
 
-            //go on, get next global id for this user
-            ResultSet idresult = stat.executeQuery("SELECT MAXID FROM IDTABLE WHERE TABLENAME='GLOBALID'");
-            int appid = 0;
+                    PreparedStatement prep = pc.prepare("INSERT INTO APPLICATIONS (ID, NAME) VALUES (?,?)");
+                    prep.setInt(1, appid);
+                    prep.setString(2, applicationname);
+                    prep.executeUpdate();
+                    m_appcount.incrementAndGet();
+                }
 
-            if (idresult.next()) {
-                appid = idresult.getInt(1);
+                //now insert the related attributes
+                insertAttribute(pc, appid, 6, MUSAttribute.getTime()); //lastupdate time
+                insertAttribute(pc, appid, 4, new LString(description)); //description
+            } finally {
+                m_pool.release(pc);
             }
-            idresult.close();
-
-            //increment globalid
-            appid++;
-
-            PreparedStatement prep =
-                    m_conn.prepareStatement("INSERT INTO APPLICATIONS (ID, NAME) VALUES (?,?)");
-
-            prep.setInt(1, appid);
-            prep.setString(2, applicationname);
-
-            prep.executeUpdate();
-            prep.close();
-
-            //now insert the related attributes
-            PreparedStatement atprep =
-                    m_conn.prepareStatement("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
-
-
-            atprep.setInt(1, appid);
-            atprep.setInt(2, 6);//lastupdate time
-            LString currenttime = (LString) MUSAttribute.getTime();
-            atprep.setBytes(3, currenttime.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
-
-            atprep.setInt(1, appid);
-            atprep.setInt(2, 4);//description
-            LString ldescription = new LString(description);
-            atprep.setBytes(3, ldescription.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
-
-
-            atprep.close();
 
-            // stuff global id back...
-            stat.executeUpdate("UPDATE IDTABLE SET MAXID=" + appid + " WHERE TABLENAME='GLOBALID'");
-
-            stat.close();
             MUSLog.Log("Application " + applicationname + " added to database", MUSLog.kDB);
             return true;
         } catch (SQLException sqle) {
@@ -284,55 +307,23 @@ public class MUSDBConnection implements ServerUserDatabase {
         }
     }
 
-    public synchronized boolean createDBPlayer(int userid, int appid) {
+    public boolean createDBPlayer(int userid, int appid) {
         try {
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                //go on, get next global id for this user
+                int playerid = m_globalidalloc.next();
 
-            Statement stat = m_conn.createStatement();
-            //go on, get next global id for this user
-            ResultSet idresult = stat.executeQuery("SELECT MAXID FROM IDTABLE WHERE TABLENAME='GLOBALID'");
-            int playerid = 0;
+                update(pc, "INSERT INTO PLAYERS (ID, USERID, APPID) VALUES (?,?,?)", playerid, userid, appid);
 
-            if (idresult.next()) {
-                playerid = idresult.getInt(1);
+                //now insert the related attributes
+                LString currenttime = (LString) MUSAttribute.getTime();
+                insertAttribute(pc, playerid, 1, currenttime); //creation time
+                insertAttribute(pc, playerid, 6, currenttime); //lastupdate time
+            } finally {
+                m_pool.release(pc);
             }
-            idresult.close();
-
-            //increment globalid
-            playerid++;
-
-            PreparedStatement prep =
-                    m_conn.prepareStatement("INSERT INTO PLAYERS (ID, USERID, APPID) VALUES (?,?,?)");
-
-            prep.setInt(1, playerid);
-            prep.setInt(2, userid);
-            prep.setInt(3, appid);
-
-            prep.executeUpdate();
-            prep.close();
-
-            //now insert the related attributes
-            PreparedStatement atprep =
-                    m_conn.prepareStatement("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
-
-            atprep.setInt(1, playerid);
-            atprep.setInt(2, 1);//creation time
-            LString currenttime = (LString) MUSAttribute.getTime();
-            atprep.setBytes(3, currenttime.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
-
-            atprep.setInt(1, playerid);
-            atprep.setInt(2, 6);//lastupdate time
-            atprep.setBytes(3, currenttime.getBytes());
-            atprep.executeUpdate();
-            atprep.clearParameters();
-
 
-            atprep.close();
-
-            // stuff global id back...
-            stat.executeUpdate("UPDATE IDTABLE SET MAXID=" + playerid + " WHERE TABLENAME='GLOBALID'");
-            stat.close();
             MUSLog.Log("DBPlayer added to database", MUSLog.kDB);
             return true;
         } catch (SQLException sqle) {
@@ -345,9 +336,14 @@ public class MUSDBConnection implements ServerUserDatabase {
         try {
             String dbbackend = m_server.m_props.getProperty("MUDatabaseSQLBackend");
             if (dbbackend.equalsIgnoreCase("hsqldb")) {
-                Statement stat = m_conn.createStatement();
-                stat.executeQuery("CHECKPOINT");
-                stat.close();
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    Statement stat = pc.m_conn.createStatement();
+                    stat.executeQuery("CHECKPOINT");
+                    stat.close();
+                } finally {
+                    m_pool.release(pc);
+                }
             }
 
         } catch (SQLException sqle) {
@@ -356,103 +352,101 @@ public class MUSDBConnection implements ServerUserDatabase {
     }
 
     public boolean isBanned(String inentry) {
-        try {
-            String entry = inentry.toUpperCase();
+        String entry = inentry.toUpperCase();
+        long expires = m_banlist.getExpiry(entry, System.currentTimeMillis());
+        if (expires == 0)
+            return false;
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT EXPDATE FROM BANLIST WHERE ENTRY='" + entry + "'");
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        MUSLog.Log("User ban in effect for entry " + entry + " until " + sdf.format(new java.util.Date(expires)), MUSLog.kDB);
+        return true;
+    }
 
-            if (result.next()) {
-                //compare date
-                String expdate = result.getString(1);
-                try {
-                    java.util.Date d = sdf.parse(expdate);
-                    if (d.getTime() > (new java.util.Date()).getTime()) {
-                        MUSLog.Log("User ban in effect for entry " + entry + " until " + expdate, MUSLog.kDB);
-                        return true;
-                    } else {
-                        removeBannedEntry(entry);
-                        return false;
+    /**
+     * Checks an address against the banned addresses and address ranges, without touching the database.
+     */
+    public boolean isBanned(java.net.InetAddress address) {
+        return m_enabled && m_banlist.isBanned(address, System.currentTimeMillis());
+    }
+
+    // Reads BANLIST into memory, deleting the rows that expired while the server was down
+    private void loadBanList() {
+        try {
+            ArrayList<String> expired = new ArrayList<String>();
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                ResultSet result = pc.prepare("SELECT EXPDATE, ENTRY FROM BANLIST").executeQuery();
+                SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+                long now = System.currentTimeMillis();
+
+                while (result.next()) {
+                    //compare date
+                    String expdate = result.getString(1);
+                    String entry = result.getString(2);
+                    try {
+                        long expires = sdf.parse(expdate).getTime();
+                        if (expires < now) {
+                            expired.add(entry);
+                        } else {
+                            m_banlist.add(entry, expires);
+                        }
+                    } catch (ParseException pe) {
+                        MUSLog.Log("Error parsing banned entry date for " + entry, MUSLog.kDB);
                     }
-                } catch (ParseException pe) {
-                    MUSLog.Log("Error parsing banned entry date", MUSLog.kDB);
-                    return false;
                 }
+                result.close();
+            } finally {
+                m_pool.release(pc);
             }
-            result.close();
-            stat.close();
 
-            return false;
+            for (String entry : expired) {
+                MUSLog.Log("Purging ban entry " + entry, MUSLog.kDB);
+                deleteBanRow(entry);
+            }
 
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in isBanned", MUSLog.kDB);
+            MUSLog.Log("SQL exception in loadBanList", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
         }
     }
 
+    // Runs every second, removes the bans that ran out from memory and from BANLIST
     public void purgeBannedTable() {
-        try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT EXPDATE, ENTRY FROM BANLIST");
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-
-            while (result.next()) {
-                //compare date
-                String expdate = result.getString(1);
-                String entry = result.getString(2);
-                try {
-                    java.util.Date d = sdf.parse(expdate);
-                    if (d.getTime() < (new java.util.Date()).getTime()) {
-                        MUSLog.Log("Purging ban entry " + entry, MUSLog.kDB);
-                        removeBannedEntry(entry);
-                    }
-                } catch (ParseException pe) {
-
-                }
-            }
-            result.close();
-            stat.close();
-
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in purgeBannedTable", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
+        for (String entry : m_banlist.takeExpired(System.currentTimeMillis())) {
+            MUSLog.Log("Purging ban entry " + entry, MUSLog.kDB);
+            deleteBanRow(entry);
         }
     }
 
     public void addBannedEntry(String inentry, int secsToBan) {
-        try {
-            //entry can be an ipaddress or username
-            String entry = inentry.toUpperCase();
+        //entry can be an ipaddress, an address range or username
+        String entry = inentry.toUpperCase();
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ENTRY FROM BANLIST WHERE ENTRY='" + entry + "'");
+        long expires = System.currentTimeMillis() + (secsToBan * 1000L);
+        m_banlist.add(entry, expires);
 
+        try {
             SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            java.util.Date expires = new java.util.Date(System.currentTimeMillis() + (secsToBan * 1000));
-            String expdate = sdf.format(expires);
-
-            if (result.next()) {
-                //whe have an entry, update it
-                PreparedStatement prep =
-                        m_conn.prepareStatement("UPDATE BANLIST SET EXPDATE=? WHERE ENTRY=?");
-                prep.setString(1, expdate);
-                prep.setString(2, entry);
-                prep.executeUpdate();
-                prep.close();
+            String expdate = sdf.format(new java.util.Date(expires));
 
-            } else {
-                //new entry
-                PreparedStatement prep =
-                        m_conn.prepareStatement("INSERT INTO BANLIST (ENTRY, EXPDATE) VALUES (?,?)");
-                prep.setString(1, entry);
-                prep.setString(2, expdate);
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                PreparedStatement prep;
+                if (exists(pc, "SELECT ENTRY FROM BANLIST WHERE ENTRY=?", entry)) {
+                    //whe have an entry, update it
+                    prep = pc.prepare("UPDATE BANLIST SET EXPDATE=? WHERE ENTRY=?");
+                    prep.setString(1, expdate);
+                    prep.setString(2, entry);
+                } else {
+                    //new entry
+                    prep = pc.prepare("INSERT INTO BANLIST (ENTRY, EXPDATE) VALUES (?,?)");
+                    prep.setString(1, entry);
+                    prep.setString(2, expdate);
+                }
                 prep.executeUpdate();
-                prep.close();
+            } finally {
+                m_pool.release(pc);
             }
-            result.close();
-            stat.close();
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in addBanEntry", MUSLog.kDB);
@@ -461,48 +455,53 @@ public class MUSDBConnection implements ServerUserDatabase {
     }
 
     public void removeBannedEntry(String inentry) {
-        try {
-            String entry = inentry.toUpperCase();
+        String entry = inentry.toUpperCase();
+        m_banlist.remove(entry);
+        deleteBanRow(entry);
+    }
 
-            PreparedStatement prep =
-                    m_conn.prepareStatement("DELETE FROM BANLIST WHERE ENTRY=?");
-            prep.setString(1, entry);
-            prep.executeUpdate();
-            prep.close();
+    private void deleteBanRow(String entry) {
+        try {
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                PreparedStatement prep = pc.prepare("DELETE FROM BANLIST WHERE ENTRY=?");
+                prep.setString(1, entry);
+                prep.executeUpdate();
+            } finally {
+                m_pool.release(pc);
+            }
 
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in addBanEntry", MUSLog.kDB);
+            MUSLog.Log("SQL exception in removeBannedEntry", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
         }
     }
 
-    public synchronized int createApplicationData(int applicationid) {
+    public int createApplicationData(int applicationid) {
         try {
+            int appdataid;
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                //get next global id for this user
+                appdataid = m_globalidalloc.next();
 
-            Statement stat = m_conn.createStatement();
-
-            //get next global id for this user
-            ResultSet idresult = stat.executeQuery("SELECT MAXID FROM IDTABLE WHERE TABLENAME='GLOBALID'");
-            int appdataid = 0;
-
-            if (idresult.next()) {
-                appdataid = idresult.getInt(1);
+                update(pc, "INSERT INTO APPDATA (ID, APPID) VALUES (?,?)", appdataid, applicationid);
+            } finally {
+                m_pool.release(pc);
             }
 
-            idresult.close();
-
-            //increment globalid
-            appdataid++;
-
-
-            Statement stat2 = m_conn.createStatement();
-            stat2.executeUpdate("INSERT INTO APPDATA (ID, APPID) VALUES (" + appdataid + "," + applicationid + ")");
-            stat2.close();
-
-            // stuff global id back...
-            stat.executeUpdate("UPDATE IDTABLE SET MAXID=" + appdataid + " WHERE TABLENAME='GLOBALID'");
-            stat.close();
-
+            synchronized (m_valueindexes) {
+                for (MUSDBValueIndex index : m_valueindexes.values()) {
+                    if (index.getAppID() == applicationid)
+                        index.addMember(appdataid);
+                }
+                for (IndexBuild build : m_indexbuilds) {
+                    if (build.m_appid == applicationid) {
+                        build.m_added.add(appdataid);
+                        build.m_removed.remove(appdataid);
+                    }
+                }
+            }
 
             MUSLog.Log("Application data " + appdataid + " added to database", MUSLog.kDB);
             return appdataid;
@@ -515,41 +514,26 @@ public class MUSDBConnection implements ServerUserDatabase {
 
     public synchronized boolean declareAttribute(String attributenamein) {
         try {
-
             String attributename = attributenamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT * FROM ATTRLIST WHERE NAME='" + attributename + "'");
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                if (m_attrids.containsKey(attributename)) {
+                    MUSLog.Log("Attribute " + attributename + " already in database", MUSLog.kDB);
+                    return false;
+                }
 
-            if (result.next()) {
-                MUSLog.Log("Attribute " + attributename + " already in database", MUSLog.kDB);
-                return false;
-            }
-            result.close();
+                //go on, get next attribute id
+                int attrid = m_attridalloc.next();
 
-            //go on, get next global id for this user
-            ResultSet idresult = stat.executeQuery("SELECT MAXID FROM IDTABLE WHERE TABLENAME='ATTRID'");
-            int attrid = 0;
+                PreparedStatement prep = pc.prepare("INSERT INTO ATTRLIST (ID, NAME) VALUES (?,?)");
+                prep.setInt(1, attrid);
+                prep.setString(2, attributename);
+                prep.executeUpdate();
 
-            if (idresult.next()) {
-                attrid = idresult.getInt(1);
+                catalogAttribute(attrid, attributename);
+            } finally {
+                m_pool.release(pc);
             }
-            idresult.close();
-
-            //increment attributeid
-            attrid++;
-
-            PreparedStatement prep =
-                    m_conn.prepareStatement("INSERT INTO ATTRLIST (ID, NAME) VALUES (?,?)");
-
-            prep.setInt(1, attrid);
-            prep.setString(2, attributename);
-
-            prep.executeUpdate();
-            prep.close();
-
-            // stuff attribute id back...
-            stat.executeUpdate("UPDATE IDTABLE SET MAXID=" + attrid + " WHERE TABLENAME='ATTRID'");
-            stat.close();
 
             MUSLog.Log("Attribute " + attributename + " added to database", MUSLog.kDB);
             return true;
@@ -561,9 +545,10 @@ public class MUSDBConnection implements ServerUserDatabase {
 
     public void ensureDBPresence() throws SQLException {
 
+        MUSDBPool.PooledConnection pc = m_pool.take();
         try {
             // Create a statement object
-            Statement stat = m_conn.createStatement();
+            Statement stat = pc.m_conn.createStatement();
             //try a query to verify if the default tables are there
             ResultSet result = stat.executeQuery("SELECT * FROM ATTRLIST");
             result.close();
@@ -572,6 +557,8 @@ public class MUSDBConnection implements ServerUserDatabase {
         } catch (SQLException sqle) {
             //db not initialized, init it
             createDefaultDB();
+        } finally {
+            m_pool.release(pc);
         }
     }
 
@@ -605,47 +592,52 @@ public class MUSDBConnection implements ServerUserDatabase {
         }
 
 
-        Statement stat = m_conn.createStatement();
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            Statement stat = pc.m_conn.createStatement();
 
-        stat.executeUpdate(tabletype + "APPDATA(ID INT,APPID INT)");
+            stat.executeUpdate(tabletype + "APPDATA(ID INT,APPID INT)");
 
-        stat.executeUpdate("CREATE INDEX IDXAPPDATA ON APPDATA(APPID)");
+            stat.executeUpdate("CREATE INDEX IDXAPPDATA ON APPDATA(APPID)");
 
-        stat.executeUpdate(tabletype + "APPLICATIONS(ID INT,NAME " + longchartype + ")");
+            stat.executeUpdate(tabletype + "APPLICATIONS(ID INT,NAME " + longchartype + ")");
 
-        stat.executeUpdate("CREATE UNIQUE INDEX IDXAPPLICATIONS ON APPLICATIONS(ID)");
+            stat.executeUpdate("CREATE UNIQUE INDEX IDXAPPLICATIONS ON APPLICATIONS(ID)");
 
-        stat.executeUpdate(tabletype + "ATTRIBUTES(OWNERID INT,ATTRID INT,DATAVALUE " + binarytype + ")");
+            stat.executeUpdate(tabletype + "ATTRIBUTES(OWNERID INT,ATTRID INT,DATAVALUE " + binarytype + ")");
 
-        stat.executeUpdate("CREATE INDEX IDXATTRIBUTES ON ATTRIBUTES(OWNERID,ATTRID)");
+            stat.executeUpdate("CREATE INDEX IDXATTRIBUTES ON ATTRIBUTES(OWNERID,ATTRID)");
 
-        stat.executeUpdate(tabletype + "IDTABLE(TABLENAME " + longchartype + ",MAXID INT)");
+            stat.executeUpdate(tabletype + "IDTABLE(TABLENAME " + longchartype + ",MAXID INT)");
 
-        stat.executeUpdate(tabletype + "PLAYERS(ID INT,USERID INT,APPID INT)");
+            stat.executeUpdate(tabletype + "PLAYERS(ID INT,USERID INT,APPID INT)");
 
-        stat.executeUpdate("CREATE INDEX IDXPLAYERS ON PLAYERS(USERID)");
+            stat.executeUpdate("CREATE INDEX IDXPLAYERS ON PLAYERS(USERID)");
 
-        stat.executeUpdate(tabletype + "USERS(ID INT,NAME " + longchartype + ")");
+            stat.executeUpdate(tabletype + "USERS(ID INT,NAME " + longchartype + ")");
 
-        stat.executeUpdate("CREATE UNIQUE INDEX IDXUSERS ON USERS(ID)");
+            stat.executeUpdate("CREATE UNIQUE INDEX IDXUSERS ON USERS(ID)");
 
-        stat.executeUpdate(tabletype + "ATTRLIST(ID INT,NAME " + longchartype + ")");
+            stat.executeUpdate(tabletype + "ATTRLIST(ID INT,NAME " + longchartype + ")");
 
-        stat.executeUpdate("CREATE UNIQUE INDEX IDXATTRLIST ON ATTRLIST(ID)");
+            stat.executeUpdate("CREATE UNIQUE INDEX IDXATTRLIST ON ATTRLIST(ID)");
 
-        stat.executeUpdate(tabletype + "BANLIST(ENTRY " + longchartype + ",EXPDATE " + longchartype + ")");
+            stat.executeUpdate(tabletype + "BANLIST(ENTRY " + longchartype + ",EXPDATE " + longchartype + ")");
 
-        stat.executeUpdate("INSERT INTO IDTABLE VALUES('ATTRID',7)");
-        stat.executeUpdate("INSERT INTO IDTABLE VALUES('GLOBALID',0)");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(1,'CREATIONTIME')");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(2,'STATUS')");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(3,'USERLEVEL')");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(4,'DESCRIPTION')");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(5,'PASSWORD')");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(6,'LASTUPDATETIME')");
-        stat.executeUpdate("INSERT INTO ATTRLIST VALUES(7,'LASTLOGINTIME')");
+            stat.executeUpdate("INSERT INTO IDTABLE VALUES('ATTRID',7)");
+            stat.executeUpdate("INSERT INTO IDTABLE VALUES('GLOBALID',0)");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(1,'CREATIONTIME')");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(2,'STATUS')");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(3,'USERLEVEL')");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(4,'DESCRIPTION')");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(5,'PASSWORD')");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(6,'LASTUPDATETIME')");
+            stat.executeUpdate("INSERT INTO ATTRLIST VALUES(7,'LASTLOGINTIME')");
 
-        stat.close();
+            stat.close();
+        } finally {
+            m_pool.release(pc);
+        }
 /*	stat.executeQuery("CREATE ALIAS DAYNAME FOR 'org.hsqldb.Library.dayname'");
 	stat.executeQuery("CREATE ALIAS SPACE FOR 'org.hsqldb.Library.space'");
 	stat.executeQuery("CREATE ALIAS SUBSTRING FOR 'org.hsqldb.Library.substring'");
@@ -714,155 +706,256 @@ public class MUSDBConnection implements ServerUserDatabase {
 	stat.executeQuery("CREATE ALIAS REPLACE FOR 'org.hsqldb.Library.replace'");*/
     }
 
-    public LValue srvcmd_getUserCount() {
-        try {
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM USERS");
-            int numofusers = 0;
+    // Result of a COUNT query without parameters
+    private int countRows(String sql) throws SQLException {
 
-            while (result.next()) {
-                numofusers++;
-            }
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            ResultSet result = pc.prepare(sql).executeQuery();
+            int rows = result.next() ? result.getInt(1) : 0;
             result.close();
-            stat.close();
-
-            return new LInteger(numofusers);
-
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in srvcmd_getUserCount", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return new LInteger(0);
+            return rows;
+        } finally {
+            m_pool.release(pc);
         }
     }
 
-    public LValue srvcmd_getUserNames() {
-        try {
+    // One page of the names in USERS or APPLICATIONS in id order. The cursor is the last id of the previous page.
+    private LPropList getNamePage(String table, String listname, int total, MUSPage page) throws SQLException {
+
+        LList list = new LList();
+        int next = 0;
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT NAME FROM USERS");
-            LList ulist = new LList();
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            PreparedStatement prep = pc.prepare("SELECT ID, NAME FROM " + table + " WHERE ID>? ORDER BY ID");
+            prep.setInt(1, page.m_cursor);
+            prep.setMaxRows(page.m_limit + 1);
+            ResultSet result = prep.executeQuery();
 
+            int lastid = 0;
             while (result.next()) {
-                ulist.addElement(new LString(result.getString(1)));
+                if (list.count() == page.m_limit) {
+                    next = lastid;
+                    break;
+                }
+                lastid = result.getInt(1);
+                list.addElement(new LString(result.getString(2)));
             }
             result.close();
-            stat.close();
-
-            return ulist;
-
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in srvcmd_getUserNames", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return new LList();
+        } finally {
+            m_pool.release(pc);
         }
+
+        LPropList pl = new LPropList();
+        pl.addElement(new LSymbol(listname), list);
+        MUSPage.addCursor(pl, next, total);
+        return pl;
     }
 
-    public LValue srvcmd_getApplicationCount() {
-        try {
+    // First column of a query without parameters as a list of strings
+    private LList getStringList(String sql) throws SQLException {
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM APPLICATIONS");
-            int numofapps = 0;
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            ResultSet result = pc.prepare(sql).executeQuery();
+            LList list = new LList();
 
             while (result.next()) {
-                numofapps++;
+                list.addElement(new LString(result.getString(1)));
             }
             result.close();
-            stat.close();
+            return list;
+        } finally {
+            m_pool.release(pc);
+        }
+    }
 
-            return new LInteger(numofapps);
+    // First int column of the first row of a query with int parameters, or -1 if there is no row
+    private int getID(String sql, int... params) throws SQLException {
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in srvcmd_getApplicationCount", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return new LInteger(0);
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            PreparedStatement prep = pc.prepare(sql);
+            for (int i = 0; i < params.length; i++) {
+                prep.setInt(i + 1, params[i]);
+            }
+            ResultSet result = prep.executeQuery();
+            int id = result.next() ? result.getInt(1) : -1;
+            result.close();
+            return id;
+        } finally {
+            m_pool.release(pc);
         }
     }
 
-    public LValue srvcmd_getApplicationNames() {
+    // First int column of the first row of a query with a string parameter, or -1 if there is no row
+    private int getID(String sql, String param) throws SQLException {
+
+        MUSDBPool.PooledConnection pc = m_pool.take();
         try {
+            PreparedStatement prep = pc.prepare(sql);
+            prep.setString(1, param);
+            ResultSet result = prep.executeQuery();
+            int id = result.next() ? result.getInt(1) : -1;
+            result.close();
+            return id;
+        } finally {
+            m_pool.release(pc);
+        }
+    }
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT NAME FROM APPLICATIONS");
-            LList alist = new LList();
+    // Stored bytes of an attribute, or null if the owner does not have it
+    private byte[] getAttributeBytes(int ownerid, int attrid) throws SQLException {
+        return m_cache.get(ownerid, attrid);
+    }
 
-            while (result.next()) {
-                alist.addElement(new LString(result.getString(1)));
-            }
+    // Reads an attribute value past the cache, or null if the owner does not have it
+    byte[] readAttributeBytes(int ownerid, int attrid) throws SQLException {
+
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            PreparedStatement prep = pc.prepare("SELECT DATAVALUE FROM ATTRIBUTES WHERE OWNERID=? AND ATTRID=?");
+            prep.setInt(1, ownerid);
+            prep.setInt(2, attrid);
+            ResultSet result = prep.executeQuery();
+            byte[] value = result.next() ? result.getBytes(1) : null;
             result.close();
-            stat.close();
+            return value;
+        } finally {
+            m_pool.release(pc);
+        }
+    }
 
-            return alist;
+    // Reads attribute values of several owners past the cache with one query. An empty attrids
+    // array reads all attributes of the owners. Missing rows are not in the result.
+    Map<Integer, Map<Integer, byte[]>> readAttributeBytes(int[] ownerids, int[] attrids) throws SQLException {
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in srvcmd_getApplicationNames", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return new LList();
+        HashMap<Integer, Map<Integer, byte[]>> owners = new HashMap<Integer, Map<Integer, byte[]>>();
+        if (ownerids.length == 0) return owners;
+
+        StringBuilder sql = new StringBuilder("SELECT OWNERID, ATTRID, DATAVALUE FROM ATTRIBUTES WHERE OWNERID IN (");
+        appendPlaceholders(sql, ownerids.length);
+        if (attrids.length > 0) {
+            sql.append(" AND ATTRID IN (");
+            appendPlaceholders(sql, attrids.length);
         }
-    }
 
-    public LValue srvcmd_getAttributeCount() {
+        MUSDBPool.PooledConnection pc = m_pool.take();
         try {
+            // The statement changes with the number of ids, so it is not kept in the statement cache
+            PreparedStatement prep = pc.m_conn.prepareStatement(sql.toString());
+            try {
+                int p = 1;
+                for (int ownerid : ownerids) prep.setInt(p++, ownerid);
+                for (int attrid : attrids) prep.setInt(p++, attrid);
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM ATTRLIST");
-            int numofatts = 0;
+                ResultSet result = prep.executeQuery();
+                while (result.next()) {
+                    int ownerid = result.getInt(1);
+                    Map<Integer, byte[]> values = owners.get(ownerid);
+                    if (values == null) {
+                        values = new LinkedHashMap<Integer, byte[]>();
+                        owners.put(ownerid, values);
+                    }
+                    values.put(result.getInt(2), result.getBytes(3));
+                }
+                result.close();
+            } finally {
+                prep.close();
+            }
+        } finally {
+            m_pool.release(pc);
+        }
+        return owners;
+    }
 
-            while (result.next()) {
-                numofatts++;
+    private static void appendPlaceholders(StringBuilder sql, int count) {
+        for (int i = 0; i < count; i++) {
+            sql.append((i == 0) ? "?" : ",?");
+        }
+        sql.append(")");
+    }
+
+    // Writes cached attribute values in one transaction, grouped per owner. Values without a row are
+    // inserted, except the update and login times that are only ever updated, like setAttribute always did.
+    void writeAttributes(Map<Integer, Map<Integer, byte[]>> owners) throws SQLException {
+
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        boolean autocommit = pc.m_conn.getAutoCommit();
+        try {
+            pc.m_conn.setAutoCommit(false);
+
+            PreparedStatement upprep = pc.prepare("UPDATE ATTRIBUTES SET DATAVALUE=? WHERE OWNERID=? AND ATTRID=?");
+            ArrayList<int[]> keys = new ArrayList<int[]>();
+            ArrayList<byte[]> values = new ArrayList<byte[]>();
+
+            for (Map.Entry<Integer, Map<Integer, byte[]>> owner : owners.entrySet()) {
+                for (Map.Entry<Integer, byte[]> value : owner.getValue().entrySet()) {
+                    upprep.setBytes(1, value.getValue());
+                    upprep.setInt(2, owner.getKey());
+                    upprep.setInt(3, value.getKey());
+                    upprep.addBatch();
+                    keys.add(new int[]{owner.getKey(), value.getKey()});
+                    values.add(value.getValue());
+                }
             }
-            result.close();
-            stat.close();
+            int[] counts = upprep.executeBatch();
+
+            PreparedStatement inprep = null;
+            for (int i = 0; i < counts.length; i++) {
+                int attrid = keys.get(i)[1];
+                if (counts[i] == 0 && attrid != 6 && attrid != 7) {
+                    if (inprep == null)
+                        inprep = pc.prepare("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
+                    inprep.setInt(1, keys.get(i)[0]);
+                    inprep.setInt(2, attrid);
+                    inprep.setBytes(3, values.get(i));
+                    inprep.addBatch();
+                }
+            }
+            if (inprep != null)
+                inprep.executeBatch();
 
-            return new LInteger(numofatts);
+            pc.m_conn.commit();
 
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in srvcmd_getAttributeCount", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return new LInteger(0);
+            pc.m_conn.rollback();
+            throw sqle;
+        } finally {
+            pc.m_conn.setAutoCommit(autocommit);
+            m_pool.release(pc);
         }
     }
 
-    public LValue srvcmd_getAttributeNames() {
-        try {
-
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT NAME FROM ATTRLIST");
-            LList alist = new LList();
+    // Writes the cached attribute changes of one owner without waiting for the next flush
+    public void flushAttributes(int ownerid) {
+        if (m_enabled) m_cache.flush(ownerid);
+    }
 
-            while (result.next()) {
-                alist.addElement(new LString(result.getString(1)));
-            }
-            result.close();
-            stat.close();
+    public LValue srvcmd_getUserCount() {
+        return new LInteger(m_usercount.get());
+    }
 
-            return alist;
+    public LValue srvcmd_getUserNames() {
+        try {
+            return getStringList("SELECT NAME FROM USERS");
 
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in srvcmd_getAttributeNames", MUSLog.kDB);
+            MUSLog.Log("SQL exception in srvcmd_getUserNames", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
             return new LList();
         }
     }
 
-    public LValue srvcmd_getBanned() {
-        try {
-
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ENTRY, EXPDATE FROM BANLIST");
-            LList blist = new LList();
-
-            while (result.next()) {
-                LPropList entry = new LPropList();
-                entry.addElement(new LSymbol("user"), new LString(result.getString(1)));
-                entry.addElement(new LSymbol("expires"), new LString(result.getString(2)));
-                blist.addElement(entry);
-            }
-            result.close();
-            stat.close();
+    public LValue srvcmd_getApplicationCount() {
+        return new LInteger(m_appcount.get());
+    }
 
-            return blist;
+    public LValue srvcmd_getApplicationNames() {
+        try {
+            return getStringList("SELECT NAME FROM APPLICATIONS");
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in srvcmd_getApplicationNames", MUSLog.kDB);
@@ -871,176 +964,240 @@ public class MUSDBConnection implements ServerUserDatabase {
         }
     }
 
-    public void updateUserLastLoginTime(int userid) {
-        try {
+    public LValue srvcmd_getAttributeCount() {
+        return new LInteger(m_attrnames.size());
+    }
 
-            PreparedStatement upprep;
-            upprep = m_conn.prepareStatement("UPDATE ATTRIBUTES SET DATAVALUE=? WHERE OWNERID=? AND ATTRID=?");
+    public LValue srvcmd_getAttributeNames() {
+        LList list = new LList();
+        for (String attributename : m_attrnames.values()) {
+            list.addElement(new LString(attributename));
+        }
+        return list;
+    }
 
-            //update lastlogintime
-            LString currenttime = (LString) MUSAttribute.getTime();
-            upprep.setBytes(1, currenttime.getBytes());
-            upprep.setInt(2, userid);
-            upprep.setInt(3, 7); //lastlogin time
-            upprep.executeUpdate();
-            upprep.clearParameters();
-            upprep.close();
+    // Paged variants of the DBAdmin list commands
+    public LValue srvcmd_getListPage(String command, MUSPage page) {
+        try {
+            if (command.equalsIgnoreCase("getUserNames"))
+                return getNamePage("USERS", "users", m_usercount.get(), page);
+            if (command.equalsIgnoreCase("getApplicationNames"))
+                return getNamePage("APPLICATIONS", "applications", m_appcount.get(), page);
 
         } catch (SQLException sqle) {
-            MUSLog.Log("Failed to update lastlogintime attr for user " + userid, MUSLog.kDB);
+            MUSLog.Log("SQL exception in srvcmd_getListPage", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
+            return new LPropList();
+        }
+
+        LPropList pl = new LPropList();
+        LList list = new LList();
+        int next;
+        int total;
+        if (command.equalsIgnoreCase("getAttributeNames")) {
+            Collection<String> names = m_attrnames.values();
+            next = page.fill(list, names);
+            total = names.size();
+            pl.addElement(new LSymbol("attributes"), list);
+        } else {
+            // getBanned, one property list per entry like the unpaged command
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+            Map<String, Long> entries = m_banlist.getEntries();
+            next = page.fill(list, entries.keySet());
+            for (int e = 0; e < list.count(); e++) {
+                String ban = list.getElementAt(e).toString();
+                LPropList entry = new LPropList();
+                entry.addElement(new LSymbol("user"), new LString(ban));
+                entry.addElement(new LSymbol("expires"), new LString(sdf.format(new java.util.Date(entries.get(ban)))));
+                list.m_list.set(e, entry);
+            }
+            total = entries.size();
+            pl.addElement(new LSymbol("banned"), list);
         }
+        MUSPage.addCursor(pl, next, total);
+        return pl;
     }
 
-    public int getDBUser(String usernamein) throws DBException, UserNotFoundException {
-        try {
+    public LValue srvcmd_getBanned() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        LList blist = new LList();
 
-            String username = usernamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM USERS WHERE NAME='" + username + "'");
+        for (Map.Entry<String, Long> ban : m_banlist.getEntries().entrySet()) {
+            LPropList entry = new LPropList();
+            entry.addElement(new LSymbol("user"), new LString(ban.getKey()));
+            entry.addElement(new LSymbol("expires"), new LString(sdf.format(new java.util.Date(ban.getValue()))));
+            blist.addElement(entry);
+        }
+        return blist;
+    }
 
-            if (result.next()) {
-                int id = result.getInt(1);
-                result.close();
-                stat.close();
-                return id;
-            }
+    public void updateUserLastLoginTime(int userid) {
+        //update lastlogintime
+        LString currenttime = (LString) MUSAttribute.getTime();
+        m_cache.put(userid, 7, currenttime.getBytes()); //lastlogin time
+    }
 
-            result.close();
-            stat.close();
-            throw new UserNotFoundException("User not found");
+    public int getDBUser(String usernamein) throws DBException, UserNotFoundException {
+        int id;
+        try {
+            id = getID("SELECT ID FROM USERS WHERE NAME=?", usernamein.toUpperCase());
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getDBUser", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
             throw new DBException("User not found");
         }
+
+        if (id == -1)
+            throw new UserNotFoundException("User not found");
+        return id;
     }
 
     public boolean deleteDBUser(int userid) {
-        try {
-            Statement stat = m_conn.createStatement();
-            stat.executeUpdate("DELETE FROM USERS WHERE ID=" + userid);
-            stat.executeUpdate("DELETE FROM ATTRIBUTES WHERE OWNERID=" + userid);
-
-            Statement stat2 = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM PLAYERS WHERE USERID=" + userid);
+        synchronized (m_cache) {
+            try {
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    if (update(pc, "DELETE FROM USERS WHERE ID=?", userid) > 0)
+                        m_usercount.decrementAndGet();
+                    m_cache.discard(userid);
+                    update(pc, "DELETE FROM ATTRIBUTES WHERE OWNERID=?", userid);
+
+                    PreparedStatement prep = pc.prepare("SELECT ID FROM PLAYERS WHERE USERID=?");
+                    prep.setInt(1, userid);
+                    ResultSet result = prep.executeQuery();
+                    ArrayList<Integer> players = new ArrayList<Integer>();
+
+                    while (result.next()) {
+                        players.add(result.getInt(1));
+                    }
+                    result.close();
 
-            while (result.next()) {
-                int playerid = result.getInt(1);
-                deleteDBPlayer(playerid);
-            }
-            result.close();
-            stat.close();
-            stat2.close();
+                    for (int playerid : players) {
+                        deleteDBPlayer(playerid);
+                    }
+                } finally {
+                    m_pool.release(pc);
+                }
 
-            MUSLog.Log("User " + userid + "removed from database", MUSLog.kDB);
-            return true;
+                MUSLog.Log("User " + userid + "removed from database", MUSLog.kDB);
+                return true;
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in deleteDBUser", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in deleteDBUser", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
     public int getAttribute(String attributenamein) throws DBException {
-        try {
-
-            String attributename = attributenamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM ATTRLIST WHERE NAME='" + attributename + "'");
-
-            if (result.next()) {
-                int id = result.getInt(1);
-                result.close();
-                stat.close();
-                return id;
-            }
+        int id = lookupAttribute(attributenamein.toUpperCase());
 
-            result.close();
-            stat.close();
-            throw new DBException("Attribute not found");
-
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in getAttribute", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
+        if (id == -1)
             throw new DBException("Attribute not found");
-        }
+        return id;
     }
 
-    public boolean deleteAttribute(int attid) {
-        try {
+    public synchronized boolean deleteAttribute(int attid) {
+        synchronized (m_cache) {
+            try {
 
-            //do not delete default attributes
-            if (attid < 8)
-                return false;
+                //do not delete default attributes
+                if (attid < 8)
+                    return false;
 
-            Statement stat = m_conn.createStatement();
-            stat.executeUpdate("DELETE FROM ATTRIBUTES WHERE ATTRID=" + attid);
-            stat.executeUpdate("DELETE FROM ATTRLIST WHERE ID=" + attid);
-            stat.close();
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    m_cache.discardAttribute(attid);
+                    update(pc, "DELETE FROM ATTRIBUTES WHERE ATTRID=?", attid);
+                    update(pc, "DELETE FROM ATTRLIST WHERE ID=?", attid);
+                } finally {
+                    m_pool.release(pc);
+                }
 
-            MUSLog.Log("Attribute removed from database", MUSLog.kDB);
-            return true;
+                String attributename = m_attrnames.remove(attid);
+                if (attributename != null) {
+                    m_attrids.remove(attributename);
+                }
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in deleteAttribute", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+                synchronized (m_valueindexes) {
+                    Iterator<MUSDBValueIndex> it = m_valueindexes.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next().getAttrID() == attid) it.remove();
+                    }
+                    for (IndexBuild build : m_indexbuilds) {
+                        if (build.m_attrid == attid) build.m_cancelled = true;
+                    }
+                }
+
+                MUSLog.Log("Attribute removed from database", MUSLog.kDB);
+                return true;
+
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in deleteAttribute", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
     public boolean removeAttribute(int ownerid, MUSAttribute attin) throws AttributeNotFoundException {
-        try {
-
-            int attid = -1;
-            String attributename = attin.getName().toString().toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM ATTRLIST WHERE NAME='" + attributename + "'");
+        synchronized (m_cache) {
+            try {
 
-            if (result.next()) {
-                attid = result.getInt(1);
-            }
-            result.close();
+                String attributename = attin.getName().toString().toUpperCase();
+                int attid = lookupAttribute(attributename);
 
-            if (attid == -1) {
-                stat.close();
-                throw new AttributeNotFoundException("Attribute not found");
-            }
+                if (attid == -1) {
+                    throw new AttributeNotFoundException("Attribute not found");
+                }
 
-            //do not delete default attributes
-            if (attid < 8) {
-                stat.close();
-                return false;
-            }
+                //do not delete default attributes
+                if (attid < 8) {
+                    return false;
+                }
 
-            stat.executeUpdate("DELETE FROM ATTRIBUTES WHERE ATTRID=" + attid + " AND OWNERID=" + ownerid);
-            stat.close();
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    m_cache.remove(ownerid, attid);
+                    update(pc, "DELETE FROM ATTRIBUTES WHERE ATTRID=? AND OWNERID=?", attid, ownerid);
+                } finally {
+                    m_pool.release(pc);
+                }
+                indexAttribute(ownerid, attid);
 
-            MUSLog.Log("Attribute removed from database", MUSLog.kDB);
-            return true;
+                MUSLog.Log("Attribute removed from database", MUSLog.kDB);
+                return true;
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in removeAttribute", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in removeAttribute", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
     public LValue getAttributeNames(int ownerid) {
         LList cl = new LList();
+        m_cache.flush(ownerid);
         try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ATTRLIST.NAME FROM ATTRLIST, ATTRIBUTES WHERE ATTRIBUTES.OWNERID=" + ownerid + " AND ATTRLIST.ID = ATTRIBUTES.ATTRID");
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                PreparedStatement prep = pc.prepare("SELECT ATTRID FROM ATTRIBUTES WHERE OWNERID=?");
+                prep.setInt(1, ownerid);
+                ResultSet result = prep.executeQuery();
 
-            while (result.next()) {
-                String attrname = result.getString(1);
+                while (result.next()) {
+                    String attrname = m_attrnames.get(result.getInt(1));
 
-                cl.addElement(new LSymbol(attrname));
+                    if (attrname != null)
+                        cl.addElement(new LSymbol(attrname));
+                }
+                result.close();
+            } finally {
+                m_pool.release(pc);
             }
-            result.close();
-            stat.close();
 
             return cl;
         } catch (SQLException sqle) {
@@ -1054,31 +1211,18 @@ public class MUSDBConnection implements ServerUserDatabase {
     public MUSAttribute getAttribute(int ownerid, String attributenamein) throws DBException, AttributeNotFoundException {
         try {
 
-            int id = -1;
             String attributename = attributenamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM ATTRLIST WHERE NAME='" + attributename + "'");
-
-            if (result.next()) {
-                id = result.getInt(1);
-            }
-            result.close();
+            int id = lookupAttribute(attributename);
 
             if (id == -1) {
-                stat.close();
                 throw new AttributeNotFoundException("Attribute not found");
             }
 
-            result = stat.executeQuery("SELECT DATAVALUE FROM ATTRIBUTES WHERE ATTRID=" + id + " AND OWNERID=" + ownerid);
-
-            if (result.next()) {
-                MUSAttribute att = new MUSAttribute(new LSymbol(attributename), LValue.fromRawBytes(result.getBytes(1), 0));
-                result.close();
-                stat.close();
-                return att;
+            byte[] value = getAttributeBytes(ownerid, id);
+            if (value != null) {
+                return new MUSAttribute(new LSymbol(attributename), LValue.fromRawBytes(value, 0));
             }
 
-            stat.close();
             //no results, throw exception
             throw new AttributeNotFoundException("Attribute not found");
 
@@ -1089,22 +1233,44 @@ public class MUSDBConnection implements ServerUserDatabase {
         }
     }
 
-    public boolean getAttributeExists(int ownerid, int attrid) throws DBException {
-        try {
+    /**
+     * Returns the values of several attributes of an owner in one read, keyed by the given names.
+     * Attributes that are not declared or not set for the owner are left out.
+     */
+    public LPropList getAttributes(int ownerid, LList attributenames) throws DBException {
 
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT * FROM ATTRIBUTES WHERE OWNERID=" + ownerid + " AND ATTRID=" + attrid);
+        LPropList res = new LPropList();
+        ArrayList<LValue> names = new ArrayList<LValue>();
+        int[] attrids = new int[attributenames.count()];
+        int count = 0;
 
-            if (result.next()) {
-                result.close();
-                stat.close();
-                return true;
+        for (int e = 0; e < attributenames.count(); e++) {
+            LValue name = attributenames.getElementAt(e);
+            int attrid = lookupAttribute(name.toString().toUpperCase());
+            if (attrid != -1) {
+                names.add(name);
+                attrids[count++] = attrid;
             }
+        }
 
-            //no results
-            result.close();
-            stat.close();
-            return false;
+        try {
+            byte[][] values = m_cache.getAll(ownerid, Arrays.copyOf(attrids, count));
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null)
+                    res.addElement(names.get(i), LValue.fromRawBytes(values[i], 0));
+            }
+            return res;
+
+        } catch (SQLException sqle) {
+            MUSLog.Log("SQL exception in getAttributes", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
+            throw new DBException("Attributes not found");
+        }
+    }
+
+    public boolean getAttributeExists(int ownerid, int attrid) throws DBException {
+        try {
+            return getAttributeBytes(ownerid, attrid) != null;
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getAttributeExists", MUSLog.kDB);
@@ -1114,64 +1280,153 @@ public class MUSDBConnection implements ServerUserDatabase {
     }
 
     public void setAttribute(int ownerid, MUSAttribute attin) throws DBException {
-        try {
 
-            LValue attvalue = attin.get();
-            int attrid = -1;
-            String attributename = attin.getName().toString().toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM ATTRLIST WHERE NAME='" + attributename + "'");
+        int attrid = storeAttribute(ownerid, attin);
 
-            if (result.next()) {
-                attrid = result.getInt(1);
-            }
-            result.close();
-            stat.close();
+        //update lastupdatetime, unless that was the attribute set
+        if (attrid != 6)
+            setUpdateTime(ownerid, MUSAttribute.getTime());
+    }
 
-            if (attrid == -1) {
-                throw new DBException("Attribute not found");
-            }
+    // Caches the value without touching lastUpdateTime, returns the attribute id
+    private int storeAttribute(int ownerid, MUSAttribute attin) throws DBException {
 
-            //check if attribute exists
+        LValue attvalue = attin.get();
+        String attributename = attin.getName().toString().toUpperCase();
+        int attrid = lookupAttribute(attributename);
 
-            boolean recordexists = getAttributeExists(ownerid, attrid);
+        if (attrid == -1) {
+            throw new DBException("Attribute not found");
+        }
 
-            PreparedStatement upprep, inprep;
-            upprep = m_conn.prepareStatement("UPDATE ATTRIBUTES SET DATAVALUE=? WHERE OWNERID=? AND ATTRID=?");
+        // Written to the database by the next cache flush
+        m_cache.put(ownerid, attrid, attvalue.getBytes());
+        indexAttribute(ownerid, attrid);
+        return attrid;
+    }
 
-            if (!recordexists) {
-                inprep = m_conn.prepareStatement("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
-                inprep.setInt(1, ownerid);
-                inprep.setInt(2, attrid);
-                inprep.setBytes(3, attvalue.getBytes());
-                inprep.executeUpdate();
-                inprep.clearParameters();
-                inprep.close();
-            } else {
-                upprep.setBytes(1, attvalue.getBytes());
-                upprep.setInt(2, ownerid);
-                upprep.setInt(3, attrid);
-                upprep.executeUpdate();
-                upprep.clearParameters();
-                //upprep.close();
-            }
+    private void setUpdateTime(int ownerid, LValue time) {
+        m_cache.put(ownerid, 6, time.getBytes()); //lastupdate time
+    }
+
+    private static final class IndexBuild {
+        final int m_appid;
+        final int m_attrid;
+        final HashSet<Integer> m_added = new HashSet<Integer>();
+        final HashSet<Integer> m_removed = new HashSet<Integer>();
+        boolean m_cancelled = false;
+
+        IndexBuild(int appid, int attrid) {
+            m_appid = appid;
+            m_attrid = attrid;
+        }
+    }
+
+    // Brings the value indexes of an attribute up to date after it changed for an owner.
+    // The value is taken from the cache while holding the index lock, so concurrent changes always end
+    // with the latest value indexed. A value missing from the cache is read first, without the lock.
+    private void indexAttribute(int ownerid, int attrid) {
+        while (true) {
+            synchronized (m_valueindexes) {
+                ArrayList<MUSDBValueIndex> indexes = new ArrayList<MUSDBValueIndex>();
+                for (MUSDBValueIndex index : m_valueindexes.values()) {
+                    if (index.getAttrID() == attrid && index.isMember(ownerid))
+                        indexes.add(index);
+                }
+                if (indexes.isEmpty())
+                    return;
 
-            //update lastupdatetime
-            LString currenttime = (LString) MUSAttribute.getTime();
-            upprep.setBytes(1, currenttime.getBytes());
-            upprep.setInt(2, ownerid);
-            upprep.setInt(3, 6); //lastupdate time
-            upprep.executeUpdate();
-            upprep.clearParameters();
-            upprep.close();
+                byte[] value = m_cache.peek(ownerid, attrid);
+                if (value != MUSDBWriteCache.UNKNOWN) {
+                    for (MUSDBValueIndex index : indexes) {
+                        index.set(ownerid, value);
+                    }
+                    return;
+                }
+            }
 
+            try {
+                m_cache.get(ownerid, attrid);
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in indexAttribute", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return;
+            }
+        }
+    }
 
-            //throw new DBException("Failed to set attribute");
+    // Returns the value index of an application attribute, reading it from the database the first time.
+    // The rows are read without holding the index lock; records created or deleted meanwhile are
+    // collected in an IndexBuild and applied when the index is put in place.
+    private MUSDBValueIndex getValueIndex(int appid, int attrid) throws SQLException {
+        Long key = ((long) appid << 32) | (attrid & 0xffffffffL);
+        IndexBuild build = new IndexBuild(appid, attrid);
+        synchronized (m_valueindexes) {
+            MUSDBValueIndex index = m_valueindexes.get(key);
+            if (index != null)
+                return index;
+            m_indexbuilds.add(build);
+        }
+
+        ArrayList<Integer> members;
+        HashMap<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+        try {
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                members = getIDs(pc, "SELECT ID FROM APPDATA WHERE APPID=?", appid);
 
+                PreparedStatement prep = pc.prepare("SELECT ATTRIBUTES.OWNERID, ATTRIBUTES.DATAVALUE FROM APPDATA, ATTRIBUTES WHERE APPDATA.APPID=? AND ATTRIBUTES.OWNERID=APPDATA.ID AND ATTRIBUTES.ATTRID=?");
+                prep.setInt(1, appid);
+                prep.setInt(2, attrid);
+                ResultSet result = prep.executeQuery();
+                while (result.next()) {
+                    values.put(result.getInt(1), result.getBytes(2));
+                }
+                result.close();
+            } finally {
+                m_pool.release(pc);
+            }
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in setAttribute", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            throw new DBException("Failed to set attribute");
+            synchronized (m_valueindexes) {
+                m_indexbuilds.remove(build);
+            }
+            throw sqle;
+        }
+
+        synchronized (m_valueindexes) {
+            m_indexbuilds.remove(build);
+
+            // Another thread may have built it meanwhile
+            MUSDBValueIndex index = m_valueindexes.get(key);
+            if (index != null)
+                return index;
+
+            index = new MUSDBValueIndex(appid, attrid);
+            for (int appdataid : members) {
+                if (!build.m_removed.contains(appdataid))
+                    index.addMember(appdataid);
+            }
+            for (int appdataid : build.m_added) {
+                index.addMember(appdataid);
+            }
+            for (Map.Entry<Integer, byte[]> value : values.entrySet()) {
+                if (index.isMember(value.getKey()))
+                    index.set(value.getKey(), value.getValue());
+            }
+
+            // Values not written by the cache yet, or changed while reading, are newer than the rows
+            for (int appdataid : index.getMemberIDs()) {
+                byte[] value = m_cache.peek(appdataid, attrid);
+                if (value != MUSDBWriteCache.UNKNOWN)
+                    index.set(appdataid, value);
+            }
+
+            // Not kept if the application or the attribute was deleted while reading
+            if (!build.m_cancelled) {
+                m_valueindexes.put(key, index);
+                MUSLog.Log("Value index of attribute " + attrid + " for application " + appid + " built, " + index.size() + " records", MUSLog.kDB);
+            }
+            return index;
         }
     }
 
@@ -1179,21 +1434,19 @@ public class MUSDBConnection implements ServerUserDatabase {
         // atrrlist is a LSymbol list, objectid is known to exist
         // Now insert the related attributes
         try {
-            PreparedStatement atprep =
-                    m_conn.prepareStatement("INSERT INTO ATTRIBUTES (OWNERID, ATTRID ,DATAVALUE) VALUES (?,?,?)");
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                for (int a = 0; a < attrlist.count(); a++) {
+                    LInteger attributeid = (LInteger) attrlist.getElementAt(a);
+                    insertAttribute(pc, objectid, attributeid.toInteger(), vallist.getElementAt(a));
+                }
+            } finally {
+                m_pool.release(pc);
+            }
 
             for (int a = 0; a < attrlist.count(); a++) {
-                LInteger attributeid = (LInteger) attrlist.getElementAt(a);
-                LValue attrvalue = vallist.getElementAt(a);
-
-                atprep.setInt(1, objectid);
-                atprep.setInt(2, attributeid.toInteger()); // lastupdate time
-                // LString currenttime = (LString) MUSAttribute.getTime();
-                atprep.setBytes(3, attrvalue.getBytes());
-                atprep.executeUpdate();
-                atprep.clearParameters();
+                indexAttribute(objectid, attrlist.getElementAt(a).toInteger());
             }
-            atprep.close();
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in setDBObjectAttribute", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
@@ -1202,60 +1455,44 @@ public class MUSDBConnection implements ServerUserDatabase {
     }
 
     public int getDBUserLevel(int userid) throws DBException {
+        byte[] vl;
         try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT DATAVALUE FROM ATTRIBUTES WHERE OWNERID=" + userid + " AND ATTRID=3");
-
-            if (result.next()) {
-                byte[] vl = result.getBytes(1);
-                LInteger lvl = new LInteger(0);
-                lvl.extractFromBytes(vl, 2); // Extract the value without first two bytes, type info
-                result.close();
-                stat.close();
-                return lvl.toInteger();
-            }
-
-            result.close();
-            stat.close();
-            throw new DBException("Userlevel not found");
+            vl = getAttributeBytes(userid, 3);
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getDBUserLevel", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
             throw new DBException("Userlevel not found");
         }
+
+        if (vl == null)
+            throw new DBException("Userlevel not found");
+
+        LInteger lvl = new LInteger(0);
+        lvl.extractFromBytes(vl, 2); // Extract the value without first two bytes, type info
+        return lvl.toInteger();
     }
 
     public String getDBUserPassword(int userid) throws DBException {
+        byte[] vl;
         try {
-            Statement stat = m_conn.createStatement();
-            /*ResultSet result = stat.executeQuery("SELECT PASSWORD FROM USERS WHERE ID="+userid);
-
-           if (result.next()) {
-               String pass = result.getString(1);
-
-               return pass;
-           }*/
-            ResultSet result = stat.executeQuery("SELECT DATAVALUE FROM ATTRIBUTES WHERE OWNERID=" + userid + " AND ATTRID=5");
-
-            if (result.next()) {
-                LValue res = LValue.fromRawBytes(result.getBytes(1), 0);
-                result.close();
-                stat.close();
-                if (res.getType() == LValue.vt_String)
-                    return res.toString();
-            }
-            result.close();
-            stat.close();
-            throw new DBException("Password not found");
+            vl = getAttributeBytes(userid, 5);
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getDBUserPassword", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
             throw new DBException("Password not found");
         }
+
+        if (vl != null) {
+            LValue res = LValue.fromRawBytes(vl, 0);
+            if (res.getType() == LValue.vt_String)
+                return res.toString();
+        }
+        throw new DBException("Password not found");
     }
 
+
     public int checkLogin(MUSUser oneUser, String username, String password) {
 
         try {
@@ -1292,139 +1529,168 @@ public class MUSDBConnection implements ServerUserDatabase {
         return 0; // Everything OK. User is cleared to logon.
     }
 
+
     public int getDBApplication(String appnamein) throws DBException {
+        int id;
         try {
-            String appname = appnamein.toUpperCase();
-
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM APPLICATIONS WHERE NAME='" + appname + "'");
-
-            if (result.next()) {
-                int id = result.getInt(1);
-                result.close();
-                stat.close();
-                return id;
-            }
-
-            result.close();
-            stat.close();
-            throw new DBException("Application not found");
+            id = getID("SELECT ID FROM APPLICATIONS WHERE NAME=?", appnamein.toUpperCase());
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getDBApplication", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
             throw new DBException("Application not found");
         }
+
+        if (id == -1)
+            throw new DBException("Application not found");
+        return id;
     }
 
-    public boolean deleteDBApplication(int appid) {
-        try {
+    // All ids returned by a query with one int parameter
+    private ArrayList<Integer> getIDs(MUSDBPool.PooledConnection pc, String sql, int param) throws SQLException {
 
-            Statement stat = m_conn.createStatement();
-            stat.executeQuery("DELETE FROM APPLICATIONS WHERE ID=" + appid);
+        PreparedStatement prep = pc.prepare(sql);
+        prep.setInt(1, param);
+        ResultSet result = prep.executeQuery();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
 
-            Statement stat2 = m_conn.createStatement();
-            ResultSet result = stat2.executeQuery("SELECT ID FROM APPDATA WHERE APPID=" + appid);
+        while (result.next()) {
+            ids.add(result.getInt(1));
+        }
+        result.close();
+        return ids;
+    }
 
-            while (result.next()) {
-                int appdataid = result.getInt(1);
-                deleteDBApplicationData(appdataid);
+    public boolean deleteDBApplication(int appid) {
+        synchronized (m_cache) {
+            synchronized (m_valueindexes) {
+                Iterator<MUSDBValueIndex> it = m_valueindexes.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getAppID() == appid) it.remove();
+                }
+                for (IndexBuild build : m_indexbuilds) {
+                    if (build.m_appid == appid) build.m_cancelled = true;
+                }
             }
-            result.close();
-            stat.close();
 
-            Statement stat3 = m_conn.createStatement();
-            ResultSet result2 = stat2.executeQuery("SELECT ID FROM PLAYERS WHERE APPID=" + appid);
+            try {
+                ArrayList<Integer> appdataids;
+                ArrayList<Integer> playerids;
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    if (update(pc, "DELETE FROM APPLICATIONS WHERE ID=?", appid) > 0)
+                        m_appcount.decrementAndGet();
+
+                    appdataids = getIDs(pc, "SELECT ID FROM APPDATA WHERE APPID=?", appid);
+                    playerids = getIDs(pc, "SELECT ID FROM PLAYERS WHERE APPID=?", appid);
+                } finally {
+                    m_pool.release(pc);
+                }
 
-            while (result2.next()) {
-                int playerid = result2.getInt(1);
-                deleteDBPlayer(playerid);
-            }
-            result2.close();
-            stat2.close();
-            stat3.close();
+                // Not holding the connection, deleteDBApplicationData updates the value indexes
+                for (int appdataid : appdataids) {
+                    deleteDBApplicationData(appdataid);
+                }
 
-            MUSLog.Log("Application " + appid + " removed from database", MUSLog.kDB);
+                for (int playerid : playerids) {
+                    deleteDBPlayer(playerid);
+                }
 
-            return true;
+                MUSLog.Log("Application " + appid + " removed from database", MUSLog.kDB);
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in deleteDBApplication", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+                return true;
+
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in deleteDBApplication", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
     public boolean deleteDBApplicationData(int appdataid) {
-        try {
+        synchronized (m_cache) {
+            try {
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    update(pc, "DELETE FROM APPDATA WHERE ID=?", appdataid);
+                    m_cache.discard(appdataid);
+                    update(pc, "DELETE FROM ATTRIBUTES WHERE OWNERID=?", appdataid);
+                } finally {
+                    m_pool.release(pc);
+                }
 
-            Statement stat = m_conn.createStatement();
-            stat.executeUpdate("DELETE FROM APPDATA WHERE ID=" + appdataid);
-            stat.executeUpdate("DELETE FROM ATTRIBUTES WHERE OWNERID=" + appdataid);
-            stat.close();
-            MUSLog.Log("Application data " + appdataid + " removed from database", MUSLog.kDB);
-            return true;
+                synchronized (m_valueindexes) {
+                    for (MUSDBValueIndex index : m_valueindexes.values()) {
+                        index.removeMember(appdataid);
+                    }
+                    for (IndexBuild build : m_indexbuilds) {
+                        build.m_removed.add(appdataid);
+                        build.m_added.remove(appdataid);
+                    }
+                }
+                MUSLog.Log("Application data " + appdataid + " removed from database", MUSLog.kDB);
+                return true;
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in deleteDBApplicationData", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in deleteDBApplicationData", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
     public boolean deleteDBPlayer(int playerid) {
-        try {
-
-            Statement stat = m_conn.createStatement();
-            stat.executeUpdate("DELETE FROM PLAYERS WHERE ID=" + playerid);
-            stat.executeUpdate("DELETE FROM ATTRIBUTES WHERE OWNERID=" + playerid);
-            stat.close();
-            MUSLog.Log("Player " + playerid + " removed from database", MUSLog.kDB);
+        synchronized (m_cache) {
+            try {
+                MUSDBPool.PooledConnection pc = m_pool.take();
+                try {
+                    update(pc, "DELETE FROM PLAYERS WHERE ID=?", playerid);
+                    m_cache.discard(playerid);
+                    update(pc, "DELETE FROM ATTRIBUTES WHERE OWNERID=?", playerid);
+                } finally {
+                    m_pool.release(pc);
+                }
+                MUSLog.Log("Player " + playerid + " removed from database", MUSLog.kDB);
 
-            return true;
+                return true;
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in deleteDBPlayer", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in deleteDBPlayer", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
     public int getDBPlayer(int userid, int appid) throws DBException, PlayerNotFoundException {
+        int id;
         try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM PLAYERS WHERE USERID=" + userid + " AND APPID=" + appid);
-
-            if (result.next()) {
-                int id = result.getInt(1);
-                result.close();
-                stat.close();
-                return id;
-            }
-            result.close();
-            stat.close();
-            throw new PlayerNotFoundException("Player not found");
+            id = getID("SELECT ID FROM PLAYERS WHERE USERID=? AND APPID=?", userid, appid);
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getDBPlayer", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
             throw new DBException("Player not found");
         }
+
+        if (id == -1)
+            throw new PlayerNotFoundException("Player not found");
+        return id;
     }
 
     public LList getApplicationDataListFromApplicationID(int appid) {
         LList appdataidlist = new LList();
         try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM APPDATA WHERE APPID=" + appid);
-
-            while (result.next()) {
-                int appdataid = result.getInt(1);
-                appdataidlist.addElement(new LInteger(appdataid));
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                for (int appdataid : getIDs(pc, "SELECT ID FROM APPDATA WHERE APPID=?", appid)) {
+                    appdataidlist.addElement(new LInteger(appdataid));
+                }
+            } finally {
+                m_pool.release(pc);
             }
 
-            result.close();
-            stat.close();
             return appdataidlist;
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getApplicationDataListFromApplicationID", MUSLog.kDB);
@@ -1436,18 +1702,26 @@ public class MUSDBConnection implements ServerUserDatabase {
 
     public LPropList getApplicationDataAsL(int appid) {
         LPropList res = new LPropList();
+        m_cache.flush(appid);
         try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ATTRLIST.NAME, ATTRIBUTES.DATAVALUE FROM ATTRLIST, ATTRIBUTES WHERE ATTRIBUTES.OWNERID=" + appid + " AND ATTRLIST.ID = ATTRIBUTES.ATTRID");
+            MUSDBPool.PooledConnection pc = m_pool.take();
+            try {
+                PreparedStatement prep = pc.prepare("SELECT ATTRID, DATAVALUE FROM ATTRIBUTES WHERE OWNERID=?");
+                prep.setInt(1, appid);
+                ResultSet result = prep.executeQuery();
 
-            while (result.next()) {
-                String attrname = result.getString(1);
-                LValue attrval = LValue.fromRawBytes(result.getBytes(2), 0);
+                while (result.next()) {
+                    String attrname = m_attrnames.get(result.getInt(1));
+                    if (attrname == null)
+                        continue;
 
-                res.addElement(new LSymbol(attrname), attrval);
+                    LValue attrval = LValue.fromRawBytes(result.getBytes(2), 0);
+                    res.addElement(new LSymbol(attrname), attrval);
+                }
+                result.close();
+            } finally {
+                m_pool.release(pc);
             }
-            result.close();
-            stat.close();
             return res;
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in getApplicationDataAsL", MUSLog.kDB);
@@ -1457,111 +1731,76 @@ public class MUSDBConnection implements ServerUserDatabase {
 
     }
 
-    public LList searchApplicationDataForText(int appid, int attrid, LList appdataidlist, LValue argsearch1) {
-        LList resultlist = new LList();
-        try {
-            Statement stat = m_conn.createStatement();
-            LString lstring = (LString) argsearch1;
-            String stringtosearch = lstring.toString();
-
-
-            for (int a = 0; a < appdataidlist.count(); a++) {
-                LInteger thisappLint = (LInteger) appdataidlist.getElementAt(a);
-                int thisappid = thisappLint.toInteger();
-                ResultSet result = stat.executeQuery("SELECT DATAVALUE FROM ATTRIBUTES WHERE ATTRID=" + attrid + " AND OWNERID=" + thisappid);
+    // Same as getApplicationDataAsL for a list of application data ids, read with a single query
+    public LList getApplicationDataAsL(LList appdataidlist) {
+        LList res = new LList();
+        int[] ownerids = new int[appdataidlist.count()];
+        for (int a = 0; a < ownerids.length; a++) {
+            ownerids[a] = appdataidlist.getElementAt(a).toInteger();
+            m_cache.flush(ownerids[a]);
+        }
 
-                while (result.next()) {
-                    byte[] bytevalue = result.getBytes(1);
-                    int elemType = ConversionUtils.byteArrayToShort(bytevalue, 0);
-                    if (elemType == LValue.vt_String) {
-                        LString thisrestr = new LString();
-                        thisrestr.extractFromBytes(bytevalue, 2);
-                        if (thisrestr.toString().equalsIgnoreCase(stringtosearch))
-                            resultlist.addElement(new LInteger(thisappid));
+        try {
+            Map<Integer, Map<Integer, byte[]>> owners = readAttributeBytes(ownerids, new int[0]);
+            for (int ownerid : ownerids) {
+                LPropList pl = new LPropList();
+                Map<Integer, byte[]> values = owners.get(ownerid);
+                if (values != null) {
+                    for (Map.Entry<Integer, byte[]> value : values.entrySet()) {
+                        String attrname = m_attrnames.get(value.getKey());
+                        if (attrname != null)
+                            pl.addElement(new LSymbol(attrname), LValue.fromRawBytes(value.getValue(), 0));
                     }
                 }
-                result.close();
+                res.addElement(pl);
             }
-            stat.close();
-            return resultlist;
-
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in searchApplicationDataForText", MUSLog.kDB);
+            MUSLog.Log("SQL exception in getApplicationDataAsL", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
-            return resultlist;
         }
+        return res;
     }
 
-    public LList searchApplicationDataForNumber(int appid, int attrid, LList appdataidlist, LValue argsearch1) {
-        LList resultlist = new LList();
-        LInteger lint;
+    public LList searchApplicationDataForText(int appid, int attrid, LValue argsearch1) {
         try {
+            MUSDBValueIndex index = getValueIndex(appid, attrid);
+            synchronized (m_valueindexes) {
+                return index.findText(argsearch1.toString());
+            }
 
-            Statement stat = m_conn.createStatement();
-            lint = (LInteger) argsearch1;
-
-            for (int a = 0; a < appdataidlist.count(); a++) {
-                LInteger thisappLint = (LInteger) appdataidlist.getElementAt(a);
-                int thisappid = thisappLint.toInteger();
-                ResultSet result = stat.executeQuery("SELECT DATAVALUE FROM ATTRIBUTES WHERE ATTRID=" + attrid + " AND OWNERID=" + thisappid);
+        } catch (SQLException sqle) {
+            MUSLog.Log("SQL exception in searchApplicationDataForText", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
+            return new LList();
+        }
+    }
 
-                while (result.next()) {
-                    byte[] bytevalue = result.getBytes(1);
-                    int elemType = ConversionUtils.byteArrayToShort(bytevalue, 0);
-                    if (elemType == LValue.vt_Integer) {
-                        LInteger thisresint = new LInteger();
-                        thisresint.extractFromBytes(bytevalue, 2);
-                        if (thisresint.toInteger() == lint.toInteger())
-                            resultlist.addElement(new LInteger(thisappid));
-                    }
-                }
-                result.close();
+    public LList searchApplicationDataForNumber(int appid, int attrid, LValue argsearch1) {
+        try {
+            MUSDBValueIndex index = getValueIndex(appid, attrid);
+            synchronized (m_valueindexes) {
+                return index.findNumber(argsearch1.toInteger());
             }
-            stat.close();
-            return resultlist;
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in searchApplicationDataForNumber", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
-            return resultlist;
+            return new LList();
         }
 
     }
 
-    public LList searchApplicationDataForRange(int appid, int attrid, LList appdataidlist, LValue argsearch1, LValue argsearch2) {
-        LList resultlist = new LList();
-        LInteger lint;
-        LInteger lint2;
+    public LList searchApplicationDataForRange(int appid, int attrid, LValue argsearch1, LValue argsearch2) {
         try {
-
-            Statement stat = m_conn.createStatement();
-            lint = (LInteger) argsearch1;
-            lint2 = (LInteger) argsearch2;
-
-            for (int a = 0; a < appdataidlist.count(); a++) {
-                LInteger thisappLint = (LInteger) appdataidlist.getElementAt(a);
-                int thisappid = thisappLint.toInteger();
-                ResultSet result = stat.executeQuery("SELECT DATAVALUE FROM ATTRIBUTES WHERE ATTRID=" + attrid + " AND OWNERID=" + thisappid);
-
-                while (result.next()) {
-                    byte[] bytevalue = result.getBytes(1);
-                    int elemType = ConversionUtils.byteArrayToShort(bytevalue, 0);
-                    if (elemType == LValue.vt_Integer) {
-                        LInteger thisresint = new LInteger();
-                        thisresint.extractFromBytes(bytevalue, 2);
-                        if ((thisresint.toInteger() <= lint2.toInteger()) & (thisresint.toInteger() >= lint.toInteger()))
-                            resultlist.addElement(new LInteger(thisappid));
-                    }
-                }
-                result.close();
+            MUSDBValueIndex index = getValueIndex(appid, attrid);
+            synchronized (m_valueindexes) {
+                return index.findRange(argsearch1.toInteger(), argsearch2.toInteger());
             }
-            stat.close();
-            return resultlist;
 
         } catch (SQLException sqle) {
             MUSLog.Log("SQL exception in searchApplicationDataForRange", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
-            return resultlist;
+            return new LList();
         }
     }
 
@@ -1579,7 +1818,19 @@ public class MUSDBConnection implements ServerUserDatabase {
 
         // First batch of DBAdmin commands take no parameters
         if (args[1].equalsIgnoreCase("DBAdmin")) {
-            if (args[2].equalsIgnoreCase("getUserCount")) {
+            if ((args[2].equalsIgnoreCase("getUserNames") ||
+                    args[2].equalsIgnoreCase("getApplicationNames") ||
+                    args[2].equalsIgnoreCase("getAttributeNames") ||
+                    args[2].equalsIgnoreCase("getBanned")) && MUSPage.isPaged(msg.m_msgContent)) {
+                try {
+                    reply.m_msgContent = srvcmd_getListPage(args[2], MUSPage.fromContents(msg.m_msgContent));
+                } catch (MUSErrorCode err) {
+                    reply.m_errCode = err.m_errCode;
+                    reply.m_msgContent = new LInteger(0);
+                }
+                user.sendMessage(reply);
+                return;
+            } else if (args[2].equalsIgnoreCase("getUserCount")) {
                 reply.m_msgContent = srvcmd_getUserCount();
                 user.sendMessage(reply);
                 return;
@@ -2047,12 +2298,7 @@ public class MUSDBConnection implements ServerUserDatabase {
                 if (args[2].equalsIgnoreCase("getApplicationData")) {
                     LList matchedappdataidlist = getMatchedApplicationDataList(plist);
 
-                    LList replylist = new LList();
-                    for (int a = 0; a < matchedappdataidlist.count(); a++) {
-                        LInteger appint = (LInteger) matchedappdataidlist.getElementAt(a);
-                        replylist.addElement(getApplicationDataAsL(appint.toInteger()));
-                    }
-                    reply.m_msgContent = replylist;
+                    reply.m_msgContent = getApplicationDataAsL(matchedappdataidlist);
                     user.sendMessage(reply);
                     return;
                 } else if (args[2].equalsIgnoreCase("getAttribute") ||
@@ -2338,7 +2584,7 @@ public class MUSDBConnection implements ServerUserDatabase {
             try {
                 msgupdatetime = msgattributes.getElement(lutsym);
                 try {
-                    MUSAttribute att = getAttribute(ownerid, lutsym.toString());
+                    MUSAttribute att = getAttribute(ownerid, "lastUpdateTime");
                     tval = att.get();
                 } catch (AttributeNotFoundException anf) {
                     // Should not happen, lastUpdateTime is always present
@@ -2370,27 +2616,15 @@ public class MUSDBConnection implements ServerUserDatabase {
             for (int e = 0; e < attrlist.count(); e++) {
                 LSymbol attname = (LSymbol) attrlist.getElementAt(e);
                 LValue attvalue = vallist.getElementAt(e);
-                MUSAttribute att;
-                try {
-                    att = getAttribute(ownerid, attname.toString());
-                    att.set(attvalue);
-                    setAttribute(ownerid, att);
-                } catch (AttributeNotFoundException anf) {
-                    att = new MUSAttribute(attname, attvalue);
-                    setAttribute(ownerid, att);
-                }
-            }
-            // Update lastUpdateTime and report it
-            tval = (LString) MUSAttribute.getTime();
-            try {
-                MUSAttribute att = getAttribute(ownerid, lutsym.toString());
-                att.set(tval);
-                setAttribute(ownerid, att);
-            } catch (AttributeNotFoundException anf) {
-                // Should not happen, lastUpdateTime is always present
-                MUSLog.Log("DB Error: could not locate lastUpdateTime attribute", MUSLog.kDB);
+                storeAttribute(ownerid, new MUSAttribute(attname, attvalue));
             }
+            // Update lastUpdateTime once for all values and report the stored time,
+            // so the client can use it for its next conditional set
+            tval = MUSAttribute.getTime();
+            setUpdateTime(ownerid, tval);
             al.addElement(lutsym, tval);
+            if (user instanceof MUSUser)
+                ((MUSUser) user).wroteDBAttributes(ownerid);
             return al;
         }
 
@@ -2411,17 +2645,7 @@ public class MUSDBConnection implements ServerUserDatabase {
             // Add lastUpdateTime anyway
             attrlist.addElement(new LSymbol("lastUpdateTime"));
 
-            for (int e = 0; e < attrlist.count(); e++) {
-                try {
-                    LSymbol attname = (LSymbol) attrlist.getElementAt(e);
-                    MUSAttribute att = getAttribute(ownerid, attname.toString());
-                    LValue attvalue = att.get();
-                    al.addElement(attname, attvalue);
-
-                } catch (AttributeNotFoundException anf) {
-                }
-            }
-            return al;
+            return getAttributes(ownerid, attrlist);
 
         } else if (attrcommand.equalsIgnoreCase("deleteAttribute")) {
             for (int e = 0; e < attrlist.count(); e++) {
@@ -2542,21 +2766,36 @@ public class MUSDBConnection implements ServerUserDatabase {
             throw new MUSErrorCode(MUSErrorCode.DatabaseRecordNotExists);
         }
 
-        LList appdataidlist = getApplicationDataListFromApplicationID(appid);
         LList matchedappdataidlist = new LList();
 
-        if (appdataidlist.count() == 0) {
+        if (searchtype.equalsIgnoreCase("all")) {
+            matchedappdataidlist = getApplicationDataListFromApplicationID(appid);
+            if (matchedappdataidlist.count() == 0) {
+                throw new MUSErrorCode(MUSErrorCode.DatabaseRecordNotExists);
+            }
+            return matchedappdataidlist;
+        }
+
+        // The other searches are answered by the value index of the attribute
+        try {
+            MUSDBValueIndex index = getValueIndex(appid, attrid);
+            synchronized (m_valueindexes) {
+                if (index.size() == 0) {
+                    throw new MUSErrorCode(MUSErrorCode.DatabaseRecordNotExists);
+                }
+            }
+        } catch (SQLException sqle) {
+            MUSLog.Log("SQL exception in getMatchedApplicationDataList", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
             throw new MUSErrorCode(MUSErrorCode.DatabaseRecordNotExists);
         }
 
         if (searchtype.equalsIgnoreCase("text")) {
-            matchedappdataidlist = searchApplicationDataForText(appid, attrid, appdataidlist, argsearch1);
+            matchedappdataidlist = searchApplicationDataForText(appid, attrid, argsearch1);
         } else if (searchtype.equalsIgnoreCase("number")) {
-            matchedappdataidlist = searchApplicationDataForNumber(appid, attrid, appdataidlist, argsearch1);
+            matchedappdataidlist = searchApplicationDataForNumber(appid, attrid, argsearch1);
         } else if (searchtype.equalsIgnoreCase("range")) {
-            matchedappdataidlist = searchApplicationDataForRange(appid, attrid, appdataidlist, argsearch1, argsearch2);
-        } else if (searchtype.equalsIgnoreCase("all")) {
-            matchedappdataidlist = appdataidlist;
+            matchedappdataidlist = searchApplicationDataForRange(appid, attrid, argsearch1, argsearch2);
         }
 
         return matchedappdataidlist;
@@ -0,0 +1,102 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.sql.*;
+
+/**
+ * Hands out ids of an IDTABLE counter from blocks reserved in the database.
+ * Reserving a block is one update of MAXID, after that ids come from memory until the block is used up.
+ * Ids left in a block when the server stops are never used, so ids stay unique across restarts.
+ */
+public class MUSDBIdAllocator {
+
+    private final MUSDBPool m_pool;
+    private final String m_tablename;
+    private final int m_blocksize;
+    // Ids from m_next up to m_last are reserved and not handed out yet
+    private int m_next = 1;
+    private int m_last = 0;
+
+    public MUSDBIdAllocator(MUSDBPool pool, String tablename, int blocksize) {
+        m_pool = pool;
+        m_tablename = tablename;
+        m_blocksize = Math.max(1, blocksize);
+    }
+
+    public int next() throws SQLException {
+
+        // The connection is taken before the lock, so a thread waiting for the lock never holds up the pool
+        MUSDBPool.PooledConnection pc = m_pool.take();
+        try {
+            synchronized (this) {
+                if (m_next > m_last)
+                    reserve(pc);
+                return m_next++;
+            }
+        } finally {
+            m_pool.release(pc);
+        }
+    }
+
+    private void reserve(MUSDBPool.PooledConnection pc) throws SQLException {
+
+        boolean autocommit = pc.m_conn.getAutoCommit();
+        try {
+            pc.m_conn.setAutoCommit(false);
+
+            PreparedStatement upprep = pc.prepare("UPDATE IDTABLE SET MAXID=MAXID+? WHERE TABLENAME=?");
+            upprep.setInt(1, m_blocksize);
+            upprep.setString(2, m_tablename);
+            upprep.executeUpdate();
+
+            PreparedStatement prep = pc.prepare("SELECT MAXID FROM IDTABLE WHERE TABLENAME=?");
+            prep.setString(1, m_tablename);
+            ResultSet result = prep.executeQuery();
+            if (!result.next()) {
+                result.close();
+                throw new SQLException("No " + m_tablename + " entry in IDTABLE");
+            }
+            int maxid = result.getInt(1);
+            result.close();
+
+            pc.m_conn.commit();
+
+            m_last = maxid;
+            m_next = maxid - m_blocksize + 1;
+
+        } catch (SQLException sqle) {
+            pc.m_conn.rollback();
+            throw sqle;
+        } finally {
+            pc.m_conn.setAutoCommit(autocommit);
+        }
+    }
+}
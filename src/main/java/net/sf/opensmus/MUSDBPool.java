@@ -0,0 +1,145 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Small JDBC connection pool for the MUS database. Each connection keeps its own cache of
+ * prepared statements, so a statement is only prepared once per connection.
+ * A thread that already holds a connection gets the same one again, so methods using the pool
+ * can call each other without needing a second connection.
+ */
+public class MUSDBPool {
+
+    private final BlockingQueue<PooledConnection> m_idle;
+    private final List<PooledConnection> m_all = new ArrayList<PooledConnection>();
+    private final ThreadLocal<PooledConnection> m_held = new ThreadLocal<PooledConnection>();
+
+    public static final class PooledConnection {
+
+        public final Connection m_conn;
+        private final LinkedHashMap<String, PreparedStatement> m_statements;
+        private int m_holds = 0;
+
+        PooledConnection(Connection conn, final int cachesize) {
+            m_conn = conn;
+            m_statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= cachesize) return false;
+                    try {
+                        eldest.getValue().close();
+                    } catch (SQLException sqle) {
+                        MUSLog.Log(sqle, MUSLog.kDB);
+                    }
+                    return true;
+                }
+            };
+        }
+
+        // Returns the cached statement for the SQL, preparing it the first time.
+        // Cached statements must not be closed by the caller, only their result sets.
+        public PreparedStatement prepare(String sql) throws SQLException {
+
+            PreparedStatement prep = m_statements.get(sql);
+            if (prep == null) {
+                prep = m_conn.prepareStatement(sql);
+                m_statements.put(sql, prep);
+            } else {
+                prep.clearParameters();
+            }
+            return prep;
+        }
+
+        void close() {
+            for (PreparedStatement prep : m_statements.values()) {
+                try {
+                    prep.close();
+                } catch (SQLException sqle) {
+                    // Closing anyway
+                }
+            }
+            m_statements.clear();
+            try {
+                m_conn.close();
+            } catch (SQLException sqle) {
+                MUSLog.Log(sqle, MUSLog.kDB);
+            }
+        }
+    }
+
+    public MUSDBPool(String url, String user, String password, int size, int statementcachesize) throws SQLException {
+
+        m_idle = new ArrayBlockingQueue<PooledConnection>(Math.max(size, 1));
+        for (int i = 0; i < Math.max(size, 1); i++) {
+            PooledConnection pc = new PooledConnection(DriverManager.getConnection(url, user, password), statementcachesize);
+            m_all.add(pc);
+            m_idle.add(pc);
+        }
+    }
+
+    public int size() {
+        return m_all.size();
+    }
+
+    // Waits for a free connection. Every take() needs a matching release(), usually in a finally block.
+    public PooledConnection take() throws SQLException {
+
+        PooledConnection pc = m_held.get();
+        if (pc == null) {
+            try {
+                pc = m_idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection");
+            }
+            m_held.set(pc);
+        }
+        pc.m_holds++;
+        return pc;
+    }
+
+    public void release(PooledConnection pc) {
+
+        if (--pc.m_holds == 0) {
+            m_held.remove();
+            m_idle.add(pc);
+        }
+    }
+
+    public void close() {
+        for (PooledConnection pc : m_all) {
+            pc.close();
+        }
+    }
+}
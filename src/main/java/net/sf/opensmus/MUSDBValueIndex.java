@@ -0,0 +1,182 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.*;
+
+/**
+ * In-memory index of one attribute over the application data records of one application,
+ * used by the #text, #number and #lowNum/#highNum searches of DBApplication.getApplicationData.
+ * Integer values are kept sorted for range searches, string values are matched ignoring case.
+ * Records with other value types, or without the attribute, are members without a value.
+ * <p/>
+ * The index is not thread safe, the owner synchronizes all access.
+ */
+public class MUSDBValueIndex {
+
+    private static final Object NOVALUE = new Object();
+
+    private final int m_appid;
+    private final int m_attrid;
+    // Application data id to its indexed value: an Integer, a String or NOVALUE
+    private final HashMap<Integer, Object> m_values = new HashMap<Integer, Object>();
+    private final TreeMap<Integer, TreeSet<Integer>> m_numbers = new TreeMap<Integer, TreeSet<Integer>>();
+    private final TreeMap<String, TreeSet<Integer>> m_texts = new TreeMap<String, TreeSet<Integer>>(String.CASE_INSENSITIVE_ORDER);
+
+    public MUSDBValueIndex(int appid, int attrid) {
+        m_appid = appid;
+        m_attrid = attrid;
+    }
+
+    public int getAppID() {
+        return m_appid;
+    }
+
+    public int getAttrID() {
+        return m_attrid;
+    }
+
+    public int size() {
+        return m_values.size();
+    }
+
+    public boolean isMember(int appdataid) {
+        return m_values.containsKey(appdataid);
+    }
+
+    public void addMember(int appdataid) {
+        if (!m_values.containsKey(appdataid))
+            m_values.put(appdataid, NOVALUE);
+    }
+
+    public void removeMember(int appdataid) {
+        unindex(appdataid, m_values.remove(appdataid));
+    }
+
+    /**
+     * Sets the value of a member from the stored attribute bytes, null if the record does not have the attribute.
+     */
+    public void set(int appdataid, byte[] value) {
+        unindex(appdataid, m_values.get(appdataid));
+
+        Object key = decode(value);
+        m_values.put(appdataid, key);
+
+        if (key instanceof Integer) {
+            TreeSet<Integer> ids = m_numbers.get(key);
+            if (ids == null) {
+                ids = new TreeSet<Integer>();
+                m_numbers.put((Integer) key, ids);
+            }
+            ids.add(appdataid);
+        } else if (key instanceof String) {
+            TreeSet<Integer> ids = m_texts.get(key);
+            if (ids == null) {
+                ids = new TreeSet<Integer>();
+                m_texts.put((String) key, ids);
+            }
+            ids.add(appdataid);
+        }
+    }
+
+    private void unindex(int appdataid, Object key) {
+        TreeSet<Integer> ids = null;
+        if (key instanceof Integer)
+            ids = m_numbers.get(key);
+        else if (key instanceof String)
+            ids = m_texts.get(key);
+
+        if (ids != null) {
+            ids.remove(appdataid);
+            if (ids.isEmpty()) {
+                if (key instanceof Integer)
+                    m_numbers.remove(key);
+                else
+                    m_texts.remove(key);
+            }
+        }
+    }
+
+    private static Object decode(byte[] value) {
+        if (value == null)
+            return NOVALUE;
+
+        int elemType = ConversionUtils.byteArrayToShort(value, 0);
+        if (elemType == LValue.vt_Integer) {
+            LInteger lint = new LInteger();
+            lint.extractFromBytes(value, 2);
+            return lint.toInteger();
+        } else if (elemType == LValue.vt_String) {
+            LString lstr = new LString();
+            lstr.extractFromBytes(value, 2);
+            return lstr.toString();
+        }
+        return NOVALUE;
+    }
+
+    public List<Integer> getMemberIDs() {
+        return new ArrayList<Integer>(m_values.keySet());
+    }
+
+    // All members, in id order
+    public LList members() {
+        return toList(new TreeSet<Integer>(m_values.keySet()));
+    }
+
+    public LList findText(String text) {
+        return toList(m_texts.get(text));
+    }
+
+    public LList findNumber(int number) {
+        return toList(m_numbers.get(number));
+    }
+
+    // Members with an integer value between low and high inclusive, in id order
+    public LList findRange(int low, int high) {
+        if (low > high)
+            return new LList();
+
+        TreeSet<Integer> ids = new TreeSet<Integer>();
+        for (TreeSet<Integer> match : m_numbers.subMap(low, true, high, true).values()) {
+            ids.addAll(match);
+        }
+        return toList(ids);
+    }
+
+    private static LList toList(Collection<Integer> ids) {
+        LList list = new LList();
+        if (ids != null) {
+            for (int id : ids) {
+                list.addElement(new LInteger(id));
+            }
+        }
+        return list;
+    }
+}
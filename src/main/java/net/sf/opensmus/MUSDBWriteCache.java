@@ -0,0 +1,309 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-behind cache of owner attributes (users, players, applications and application data) in
+ * the MUS database. Attribute writes only change the cache and are written to the database in
+ * batches every flush interval, grouped per owner. Reads are served from the cache, and a miss
+ * reads the value from the database once. Owners that were not used during a whole interval and
+ * have nothing left to write are dropped from the cache.
+ * <p/>
+ * Code changing ATTRIBUTES rows directly must hold the lock of this object, so a flush
+ * in progress can not write back a row that was just deleted.
+ */
+public class MUSDBWriteCache implements Runnable {
+
+    public static final byte[] UNKNOWN = new byte[0];
+
+    private final MUSDBConnection m_db;
+    private final ConcurrentHashMap<Integer, Owner> m_owners = new ConcurrentHashMap<Integer, Owner>();
+    private MUSScheduledTask m_task;
+
+    private static final class Owner {
+        // Known values. A null value means the attribute is known not to exist.
+        final HashMap<Integer, byte[]> m_values = new HashMap<Integer, byte[]>();
+        // Values waiting to be written, in the order they were first changed
+        final LinkedHashMap<Integer, byte[]> m_dirty = new LinkedHashMap<Integer, byte[]>();
+        boolean m_touched = true;
+        boolean m_evicted = false;
+    }
+
+    public MUSDBWriteCache(MUSDBConnection db) {
+        m_db = db;
+    }
+
+    public void start(MUSScheduler scheduler, int interval) {
+        if (interval > 0)
+            m_task = scheduler.scheduleWithFixedDelay("DBWriteCache", this, interval, interval);
+    }
+
+    // Stops the periodic flush and writes everything still pending
+    public void kill() {
+        if (m_task != null) m_task.cancel();
+        m_task = null;
+        flush();
+    }
+
+    private Owner owner(int ownerid) {
+        Owner o = m_owners.get(ownerid);
+        if (o == null) {
+            Owner n = new Owner();
+            o = m_owners.putIfAbsent(ownerid, n);
+            if (o == null) o = n;
+        }
+        return o;
+    }
+
+    /**
+     * Returns the stored value of an attribute, or null if the owner does not have it.
+     */
+    public byte[] get(int ownerid, int attrid) throws SQLException {
+
+        while (true) {
+            Owner o = owner(ownerid);
+            synchronized (o) {
+                if (o.m_evicted) continue;
+                o.m_touched = true;
+                if (o.m_values.containsKey(attrid))
+                    return o.m_values.get(attrid);
+            }
+
+            // Miss, read it without holding the owner lock
+            byte[] value = m_db.readAttributeBytes(ownerid, attrid);
+
+            synchronized (o) {
+                // A write that happened meanwhile wins over the value just read
+                if (!o.m_values.containsKey(attrid))
+                    o.m_values.put(attrid, value);
+                return o.m_values.get(attrid);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached value of an attribute without reading the database: null if the owner is
+     * known not to have it, UNKNOWN if the attribute is not in the cache.
+     */
+    public byte[] peek(int ownerid, int attrid) {
+        Owner o = m_owners.get(ownerid);
+        if (o == null) return UNKNOWN;
+        synchronized (o) {
+            return o.m_values.containsKey(attrid) ? o.m_values.get(attrid) : UNKNOWN;
+        }
+    }
+
+    /**
+     * Returns the stored values of several attributes of an owner, null where the owner does not
+     * have the attribute. All misses are read from the database with a single query.
+     */
+    public byte[][] getAll(int ownerid, int[] attrids) throws SQLException {
+
+        byte[][] values = new byte[attrids.length][];
+
+        while (true) {
+            Owner o = owner(ownerid);
+            ArrayList<Integer> misses = new ArrayList<Integer>();
+            synchronized (o) {
+                if (o.m_evicted) continue;
+                o.m_touched = true;
+                for (int i = 0; i < attrids.length; i++) {
+                    if (o.m_values.containsKey(attrids[i]))
+                        values[i] = o.m_values.get(attrids[i]);
+                    else
+                        misses.add(attrids[i]);
+                }
+            }
+            if (misses.isEmpty()) return values;
+
+            int[] missids = new int[misses.size()];
+            for (int i = 0; i < missids.length; i++) missids[i] = misses.get(i);
+            Map<Integer, byte[]> read = m_db.readAttributeBytes(new int[]{ownerid}, missids).get(ownerid);
+
+            synchronized (o) {
+                for (int attrid : missids) {
+                    if (!o.m_values.containsKey(attrid))
+                        o.m_values.put(attrid, (read == null) ? null : read.get(attrid));
+                }
+                for (int i = 0; i < attrids.length; i++) {
+                    values[i] = o.m_values.get(attrids[i]);
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Stores a new attribute value, to be written on the next flush.
+     */
+    public void put(int ownerid, int attrid, byte[] value) {
+
+        while (true) {
+            Owner o = owner(ownerid);
+            synchronized (o) {
+                if (o.m_evicted) continue;
+                o.m_touched = true;
+                o.m_values.put(attrid, value);
+                o.m_dirty.put(attrid, value);
+            }
+            break;
+        }
+
+        if (m_task == null) flush();
+    }
+
+    /**
+     * Forgets a pending write and marks the attribute as missing. Call while holding the lock of
+     * this object, together with the DELETE of the row.
+     */
+    public void remove(int ownerid, int attrid) {
+        Owner o = m_owners.get(ownerid);
+        if (o == null) return;
+        synchronized (o) {
+            o.m_values.put(attrid, null);
+            o.m_dirty.remove(attrid);
+        }
+    }
+
+    /**
+     * Drops everything cached for an owner, used when the owner is deleted.
+     * Call while holding the lock of this object.
+     */
+    public void discard(int ownerid) {
+        Owner o = m_owners.remove(ownerid);
+        if (o == null) return;
+        synchronized (o) {
+            o.m_evicted = true;
+        }
+    }
+
+    /**
+     * Drops an attribute from all owners, used when the attribute is deleted.
+     * Call while holding the lock of this object.
+     */
+    public void discardAttribute(int attrid) {
+        for (Owner o : m_owners.values()) {
+            synchronized (o) {
+                o.m_values.remove(attrid);
+                o.m_dirty.remove(attrid);
+            }
+        }
+    }
+
+    public int pendingCount() {
+        int count = 0;
+        for (Owner o : m_owners.values()) {
+            synchronized (o) {
+                count += o.m_dirty.size();
+            }
+        }
+        return count;
+    }
+
+    public void run() {
+        flush();
+    }
+
+    /**
+     * Writes all pending values in one batch and drops the owners that were idle since the last flush.
+     */
+    public synchronized void flush() {
+
+        LinkedHashMap<Integer, Map<Integer, byte[]>> batch = new LinkedHashMap<Integer, Map<Integer, byte[]>>();
+
+        for (Iterator<Map.Entry<Integer, Owner>> it = m_owners.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Owner> entry = it.next();
+            Owner o = entry.getValue();
+            synchronized (o) {
+                if (!o.m_dirty.isEmpty()) {
+                    batch.put(entry.getKey(), new LinkedHashMap<Integer, byte[]>(o.m_dirty));
+                    o.m_dirty.clear();
+                } else if (!o.m_touched) {
+                    o.m_evicted = true;
+                    it.remove();
+                }
+                o.m_touched = false;
+            }
+        }
+
+        if (batch.isEmpty()) return;
+
+        try {
+            m_db.writeAttributes(batch);
+        } catch (SQLException sqle) {
+            MUSLog.Log("Failed to write " + batch.size() + " cached attribute owners, will retry", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
+
+            // Put the values back unless they were changed again meanwhile
+            for (Map.Entry<Integer, Map<Integer, byte[]>> entry : batch.entrySet()) {
+                Owner o = owner(entry.getKey());
+                synchronized (o) {
+                    for (Map.Entry<Integer, byte[]> value : entry.getValue().entrySet()) {
+                        if (!o.m_dirty.containsKey(value.getKey()))
+                            o.m_dirty.put(value.getKey(), value.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending values of a single owner, used before reading its rows with SQL.
+     */
+    public synchronized void flush(int ownerid) {
+
+        Owner o = m_owners.get(ownerid);
+        if (o == null) return;
+
+        Map<Integer, byte[]> values;
+        synchronized (o) {
+            if (o.m_dirty.isEmpty()) return;
+            values = new LinkedHashMap<Integer, byte[]>(o.m_dirty);
+            o.m_dirty.clear();
+        }
+
+        try {
+            m_db.writeAttributes(Collections.singletonMap(ownerid, values));
+        } catch (SQLException sqle) {
+            MUSLog.Log("Failed to write cached attributes of owner " + ownerid + ", will retry", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
+            synchronized (o) {
+                for (Map.Entry<Integer, byte[]> value : values.entrySet()) {
+                    if (!o.m_dirty.containsKey(value.getKey()))
+                        o.m_dirty.put(value.getKey(), value.getValue());
+                }
+            }
+        }
+    }
+}
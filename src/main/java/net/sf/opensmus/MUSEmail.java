@@ -32,7 +32,8 @@ package net.sf.opensmus;
 import java.net.*;
 import java.io.*;
 
-public class MUSEmail extends Thread {
+// Run by the server scheduler
+public class MUSEmail implements Runnable {
 
     Socket socket;
     PrintStream ps;
@@ -54,9 +55,6 @@ public class MUSEmail extends Thread {
         m_subject = subject;
         m_smtphost = smtphost;
         m_data = data;
-
-        start();
-
     }
 
     public void run() {
@@ -64,6 +62,7 @@ public class MUSEmail extends Thread {
         try {
             try {
                 socket = new Socket(m_smtphost, 25);
+                socket.setSoTimeout(30000); // Don't hold a scheduler thread forever
 
                 rina = socket.getInetAddress();
                 lina = rina.getLocalHost();
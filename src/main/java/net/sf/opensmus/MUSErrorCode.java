@@ -29,6 +29,11 @@
 
 package net.sf.opensmus;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Class representing a MultiUserServer error code.
  */
@@ -91,10 +96,30 @@ public class MUSErrorCode extends Exception {
 
     public int m_errCode = 0;
 
+    private static Map<Integer, String> m_names;
+
     public MUSErrorCode(int msg) {
         super("MUSErrorCode > " + msg);
         m_errCode = msg;
 
     }
 
+    // Name of the error code constant, e.g. "InvalidPassword"
+    public static synchronized String getName(int code) {
+        if (m_names == null) {
+            m_names = new HashMap<Integer, String>();
+            for (Field f : MUSErrorCode.class.getFields()) {
+                if (f.getType() == int.class && Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        m_names.put(f.getInt(null), f.getName());
+                    } catch (IllegalAccessException e) {
+                        // Only public fields are listed
+                    }
+                }
+            }
+        }
+        String name = m_names.get(code);
+        return name != null ? name : Integer.toString(code);
+    }
+
 }
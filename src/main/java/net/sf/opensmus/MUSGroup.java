@@ -38,11 +38,20 @@ public class MUSGroup implements ServerGroup {
     private MUSMovie m_movie;
     public String m_name;
     private ConcurrentHashMap<String, ServerUser> m_userlist = new ConcurrentHashMap<String, ServerUser>();
-    public Vector<MUSAttribute> m_attributelist = new Vector<MUSAttribute>();
+    // Attributes by upper case name, in creation order. Also the lock for all attribute changes.
+    public LinkedHashMap<String, MUSAttribute> m_attributelist = new LinkedHashMap<String, MUSAttribute>();
+    private MUSAttribute m_lastupdatetime;
+    private int m_attrversion = 0; // Incremented by every setAttribute and deleteAttribute
     public boolean m_enabled = true;
     public boolean m_persists = false;
 
     public int m_userlimit = -1;
+    public volatile MUSInterestGrid m_interest = null; // Area of interest index, only for groups listed in InterestGroups
+    public volatile MUSCoalescer m_coalescer = null; // Only for groups listed in CoalesceGroups
+    public volatile MUSGroupHistory m_history = null; // Only for groups matching HistoryGroups
+    private volatile MUSGroupState m_state = null; // Created by the first system.group.setState
+    // Members that get the attribute changes pushed, see system.group.subscribeAttributes
+    private final ConcurrentHashMap<String, ServerUser> m_attrsubscribers = new ConcurrentHashMap<String, ServerUser>();
 
     /////////////////////////////////////////////////////////////
     public MUSGroup(MUSMovie initmovie, String initname) {
@@ -53,7 +62,8 @@ public class MUSGroup implements ServerGroup {
         // Add the lastupdateTime attribute
         LSymbol attname = new LSymbol("lastUpdateTime");
         LValue attvalue = (LString) MUSAttribute.getTime();
-        addAttribute(new MUSAttribute(attname, attvalue));
+        m_lastupdatetime = new MUSAttribute(attname, attvalue);
+        addAttribute(m_lastupdatetime);
 
         // When a group is created add it to the movie list of groups
         MUSLog.Log("Group created:" + initname, MUSLog.kGrp);
@@ -71,12 +81,21 @@ public class MUSGroup implements ServerGroup {
             throw new MUSErrorCode(MUSErrorCode.ErrorJoiningGroup);
 
         String ukey = oneuser.name().toUpperCase();
-        if (m_userlist.putIfAbsent(ukey, oneuser) == null) {
-
-            // Add the user to the group before we notify the scripts
-            MUSLog.Log(oneuser.name() + " joined group " + name(), MUSLog.kUsr);
-            oneuser.groupJoined(this);
+        MUSGroupHistory history = m_history;
+        boolean added;
+        if (history == null) {
+            added = join(ukey, oneuser);
+        } else {
+            // deliverMessage adds to the history and sends under the same lock, so every
+            // message is either replayed here or delivered live to the new member, never both
+            synchronized (history) {
+                added = join(ukey, oneuser);
+                if (added)
+                    history.replay(oneuser); // Recent messages, so the other members need not repeat them
+            }
+        }
 
+        if (added) {
             for (ServerSideScript script : m_movie.m_scriptList) {
                 script.groupJoin(oneuser, this);
             }
@@ -84,6 +103,23 @@ public class MUSGroup implements ServerGroup {
             MUSLog.Log("Attempt to join same group twice: " + oneuser.name(), MUSLog.kGrp);
         }
     }
+
+    // Adds the user to the member list, returns false if already a member
+    private boolean join(String ukey, ServerUser oneuser) {
+
+        if (m_userlist.putIfAbsent(ukey, oneuser) != null)
+            return false;
+
+        // Add the user to the group before we notify the scripts
+        MUSLog.Log(oneuser.name() + " joined group " + name(), MUSLog.kUsr);
+        oneuser.groupJoined(this);
+
+        // Late joiners need the full shared state, the deltas only carry changes
+        MUSGroupState state = m_state;
+        if (state != null)
+            oneuser.sendMessage(state.getSnapshotMessage());
+        return true;
+    }
     /////////////////////////////////////////////////////////////
 
     public void removeUser(ServerUser oneuser) {
@@ -93,6 +129,9 @@ public class MUSGroup implements ServerGroup {
 
              // Remove the user from the group before we notify the scripts
             m_userlist.remove(ukey);
+            m_attrsubscribers.remove(ukey);
+            if (m_interest != null) m_interest.remove(oneuser);
+            if (m_coalescer != null) m_coalescer.removeSender(oneuser);
             MUSLog.Log(oneuser.name() + " left group " + name(), MUSLog.kUsr);
             oneuser.groupLeft(this);
 
@@ -118,22 +157,26 @@ public class MUSGroup implements ServerGroup {
     }
 
     public void addAttribute(MUSAttribute oneatt) {
-        m_attributelist.addElement(oneatt);
+        synchronized (m_attributelist) {
+            m_attributelist.put(oneatt.getName().toString().toUpperCase(), oneatt);
+        }
     }
 
     public void removeAttribute(MUSAttribute oneatt) {
-        m_attributelist.removeElement(oneatt);
+        synchronized (m_attributelist) {
+            m_attributelist.remove(oneatt.getName().toString().toUpperCase());
+        }
     }
 
     public MUSAttribute getAttribute(String attname) throws AttributeNotFoundException {
 
-        for (MUSAttribute at : m_attributelist) {
-            if (attname.equalsIgnoreCase(at.getName().toString())) {
-                return at;
-            }
+        MUSAttribute at;
+        synchronized (m_attributelist) {
+            at = m_attributelist.get(attname.toUpperCase());
         }
-
-        throw new AttributeNotFoundException("Attribute not found");
+        if (at == null)
+            throw new AttributeNotFoundException("Attribute not found");
+        return at;
     }
 
     public void logDroppedMsg() {
@@ -153,6 +196,7 @@ public class MUSGroup implements ServerGroup {
         }
 
         LPropList al = new LPropList();
+        LSymbol lutsym = new LSymbol("lastUpdateTime");
 
         // Handle setAtribute call
         if (attrcommand.equalsIgnoreCase("setAttribute")) {
@@ -160,65 +204,51 @@ public class MUSGroup implements ServerGroup {
             LList vallist = new LList();
             MUSAttribute.getSetAttributeListsFromContents(attrlist, vallist, attributes);
 
-            // Validate optional lastUpdateTime property
-            LValue msgupdatetime;
-            LSymbol lutsym = new LSymbol("lastUpdateTime");
-            LValue tval = new LValue();
+            // Optional lastUpdateTime property
+            LValue msgupdatetime = null;
             try {
                 msgupdatetime = msgattributes.getElement(lutsym);
-                try {
-                    MUSAttribute att = getAttribute(lutsym.toString());
-                    tval = att.get();
-                } catch (AttributeNotFoundException anf) {
-                    // Should not happen, lastUpdateTime is always present
-                    MUSLog.Log("Could not locate group lastUpdateTime attribute", MUSLog.kDeb);
-                }
-                if (msgupdatetime.getType() == LValue.vt_String) {
-                    LString msgtime = (LString) msgupdatetime;
-                    LString curtime = (LString) tval;
+            } catch (PropertyNotFoundException pnf) {
+                // OK, go on
+            }
 
-                    if (!msgtime.toString().equals(curtime.toString())) {
-                        // Not OK, return error and indicate this in the reply
+            LPropList changed = new LPropList();
+            LValue tval;
+            int version;
+            // The check and all the changes of the message are applied at once
+            synchronized (m_attributelist) {
+                if (msgupdatetime != null) {
+                    // Not a valid time string or not the current one, return error and indicate this in the reply
+                    if (msgupdatetime.getType() != LValue.vt_String ||
+                            !msgupdatetime.toString().equals(m_lastupdatetime.get().toString())) {
                         reply.m_errCode = MUSErrorCode.MessageContainsErrorInfo;
                         al.addElement(new LSymbol("errorCode"), new LInteger(MUSErrorCode.DataConcurrencyError));
-                        al.addElement(lutsym, tval);
+                        al.addElement(lutsym, m_lastupdatetime.get());
                         return al;
                     }
-                } else {
-                    // Not a valid time string specified, return error and indicate this in the reply
-                    reply.m_errCode = MUSErrorCode.MessageContainsErrorInfo;
-                    al.addElement(new LSymbol("errorCode"), new LInteger(MUSErrorCode.DataConcurrencyError));
-                    al.addElement(lutsym, tval);
-                    return al;
                 }
 
-            } catch (PropertyNotFoundException pnf) {
-                // OK, go on
-                // property not found while checking time
-            }
-
-            for (int e = 0; e < attrlist.count(); e++) {
-                LSymbol attname = (LSymbol) attrlist.getElementAt(e);
-                LValue attvalue = vallist.getElementAt(e);
-                MUSAttribute att;
-                try {
-                    att = getAttribute(attname.toString());
-                    att.set(attvalue);
-                } catch (AttributeNotFoundException anf) {
-                    att = new MUSAttribute(attname, attvalue);
-                    addAttribute(att);
+                version = ++m_attrversion;
+                for (int e = 0; e < attrlist.count(); e++) {
+                    LSymbol attname = (LSymbol) attrlist.getElementAt(e);
+                    LValue attvalue = vallist.getElementAt(e);
+                    String key = attname.toString().toUpperCase();
+                    MUSAttribute att = m_attributelist.get(key);
+                    if (att == null) {
+                        att = new MUSAttribute(attname, attvalue);
+                        m_attributelist.put(key, att);
+                    } else
+                        att.set(attvalue);
+                    att.setVersion(version);
+                    changed.addElement(attname, attvalue);
                 }
-            }
-            // Update lastUpdateTime and report it
-            tval = (LString) MUSAttribute.getTime();
-            try {
-                MUSAttribute att = getAttribute(lutsym.toString());
-                att.set(tval);
-            } catch (AttributeNotFoundException anf) {
-                // Should not happen, lastUpdateTime is always present
-                MUSLog.Log("Could not locate group lastUpdateTime attribute", MUSLog.kDeb);
+                // Update lastUpdateTime and report it
+                tval = MUSAttribute.getTime();
+                m_lastupdatetime.set(tval);
+                m_lastupdatetime.setVersion(version);
             }
             al.addElement(lutsym, tval);
+            notifyAttributeChange(changed, new LList(), tval, version);
             return al;
         }
 
@@ -228,34 +258,36 @@ public class MUSGroup implements ServerGroup {
 
 
         if (attrcommand.equalsIgnoreCase("getAttribute")) {
-            // Add lastUpdateTime anyway
-            attrlist.addElement(new LSymbol("lastUpdateTime"));
-
-            for (int e = 0; e < attrlist.count(); e++) {
-                try {
+            synchronized (m_attributelist) {
+                for (int e = 0; e < attrlist.count(); e++) {
                     LSymbol attname = (LSymbol) attrlist.getElementAt(e);
-                    MUSAttribute att = getAttribute(attname.toString());
-                    LValue attvalue = att.get();
-                    al.addElement(attname, attvalue);
-
-                } catch (AttributeNotFoundException anf) {
+                    MUSAttribute att = m_attributelist.get(attname.toString().toUpperCase());
+                    if (att != null)
+                        al.addElement(attname, att.get());
                 }
+                // Add lastUpdateTime anyway
+                al.addElement(lutsym, m_lastupdatetime.get());
             }
             return al;
 
         } else if (attrcommand.equalsIgnoreCase("deleteAttribute")) {
-            for (int e = 0; e < attrlist.count(); e++) {
-                try {
+            LList deleted = new LList();
+            LValue tval;
+            int version;
+            synchronized (m_attributelist) {
+                for (int e = 0; e < attrlist.count(); e++) {
                     LSymbol attname = (LSymbol) attrlist.getElementAt(e);
                     // lastupdatetime is protected
-                    if (!attname.toString().equalsIgnoreCase("lastUpdateTime")) {
-                        MUSAttribute att = getAttribute(attname.toString());
-                        LValue attvalue = att.get();
-                        removeAttribute(att);
+                    if (!attname.toString().equalsIgnoreCase(lutsym.toString())) {
+                        if (m_attributelist.remove(attname.toString().toUpperCase()) != null)
+                            deleted.addElement(attname);
                     }
-                } catch (AttributeNotFoundException anf) {
                 }
+                if (deleted.count() == 0) return al;
+                version = ++m_attrversion;
+                tval = m_lastupdatetime.get();
             }
+            notifyAttributeChange(new LPropList(), deleted, tval, version);
             return al;
 
         }
@@ -264,6 +296,66 @@ public class MUSGroup implements ServerGroup {
 
     }
 
+    public void subscribeAttributes(ServerUser user) throws UserNotFoundException {
+        // Only members, so the subscription ends when the user leaves the group.
+        // removeUser takes the user out of m_userlist before m_attrsubscribers, so checking
+        // membership again after the put catches a leave that ran in between
+        String ukey = user.name().toUpperCase();
+        getUser(user.name());
+        m_attrsubscribers.put(ukey, user);
+        if (m_userlist.get(ukey) != user) {
+            m_attrsubscribers.remove(ukey, user);
+            throw new UserNotFoundException("User not found");
+        }
+    }
+
+    public void unsubscribeAttributes(ServerUser user) {
+        m_attrsubscribers.remove(user.name().toUpperCase());
+    }
+
+    // All attributes including lastUpdateTime, the starting point for a subscriber
+    public LPropList getAllAttributes() {
+
+        LPropList al = new LPropList();
+        synchronized (m_attributelist) {
+            for (MUSAttribute at : m_attributelist.values()) {
+                al.addElement(at.getName(), at.get());
+            }
+        }
+        return al;
+    }
+
+    // Pushes changed and deleted attributes to the subscribers and the scripts
+    // The version orders the changes, they can reach a subscriber out of order when set from different threads
+    private void notifyAttributeChange(LPropList changed, LList deleted, LValue updatetime, int version) {
+
+        LPropList content = new LPropList();
+        content.addElement(new LSymbol("group"), new LString(m_name));
+        content.addElement(new LSymbol("attribute"), changed);
+        content.addElement(new LSymbol("deleted"), deleted);
+        content.addElement(new LSymbol("lastUpdateTime"), updatetime);
+        content.addElement(new LSymbol("version"), new LInteger(version));
+
+        for (ServerSideScript script : m_movie.m_scriptList) {
+            script.groupAttributeChange(this, content);
+        }
+
+        if (m_attrsubscribers.isEmpty()) return;
+
+        MUSMessage msg = new MUSMessage();
+        msg.m_errCode = 0;
+        msg.m_timeStamp = m_movie.getServer().timeStamp();
+        msg.m_subject = new MUSMsgHeaderString("AttributeChange");
+        msg.m_senderID = new MUSMsgHeaderString("System");
+        msg.m_recptID = new MUSMsgHeaderStringList();
+        msg.m_recptID.addElement(new MUSMsgHeaderString(m_name));
+        msg.m_msgContent = content;
+
+        for (ServerUser user : m_attrsubscribers.values()) {
+            user.sendMessage(msg);
+        }
+    }
+
     public LValue srvcmd_getAllUsersCount() {
         return new LInteger(m_userlist.size());
     }
@@ -281,11 +373,28 @@ public class MUSGroup implements ServerGroup {
         return pl;
     }
 
+    // One page of the member names
+    public LValue srvcmd_getUsers(MUSPage page) {
+        LPropList pl = new LPropList();
+        pl.addElement(new LSymbol("groupName"), new LString(m_name));
+        ArrayList<String> names = new ArrayList<String>();
+        for (ServerUser mv : m_userlist.values()) {
+            names.add(mv.name());
+        }
+        LList ml = new LList();
+        int next = page.fill(ml, names);
+        pl.addElement(new LSymbol("groupMembers"), ml);
+        MUSPage.addCursor(pl, next, names.size());
+        return pl;
+    }
+
     public LValue srvcmd_getAttributeNames() {
 
         LList cl = new LList();
-        for (MUSAttribute mv : m_attributelist) {
-            cl.addElement(mv.getName());
+        synchronized (m_attributelist) {
+            for (MUSAttribute mv : m_attributelist.values()) {
+                cl.addElement(mv.getName());
+            }
         }
 
         return cl;
@@ -317,6 +426,8 @@ public class MUSGroup implements ServerGroup {
         }
 
         m_userlist.clear();
+        m_attrsubscribers.clear();
+        if (m_interest != null) m_interest.clear();
 
         // This will kill the group
         if (m_userlist.isEmpty()) {
@@ -361,12 +472,104 @@ public class MUSGroup implements ServerGroup {
         return m_userlist.size();
     }
 
+    // Returns the shared state of the group, or null if nothing has been set yet
+    public MUSGroupState getState() {
+        return m_state;
+    }
+
+    public synchronized MUSGroupState createState() {
+
+        if (m_state == null) {
+            MUSGroupState state = new MUSGroupState(this, m_movie.getServer());
+            state.start(m_movie.m_props.getIntProperty("GroupStateInterval"));
+            m_state = state;
+        }
+        return m_state;
+    }
+
     public void sendMessage(MUSMessage msg) {
         for (ServerUser oneClient : m_userlist.values()) {
             oneClient.sendMessage(msg);
         }
     }
 
+    // Sends a message from a user to the group.
+    // Messages with a coalesced subject wait for the next tick of the coalescer.
+    public void sendMessage(ServerUser sender, MUSMessage msg) {
+
+        MUSCoalescer coalescer = m_coalescer;
+        if (coalescer != null && coalescer.filters(msg.m_subject.toString())) {
+            if (coalescer.offer(sender, msg))
+                m_movie.logCoalesced();
+            return;
+        }
+
+        deliverMessage(sender, msg);
+    }
+
+    // Messages with an area of interest subject only reach the members near the sender.
+    void deliverMessage(ServerUser sender, MUSMessage msg) {
+
+        MUSGroupHistory history = m_history;
+        if (history != null && history.filters(msg.m_subject.toString())) {
+            // Atomic with the replay to joining members, see addUser
+            synchronized (history) {
+                history.add(msg);
+                sendToReceivers(sender, msg);
+            }
+            return;
+        }
+
+        sendToReceivers(sender, msg);
+    }
+
+    private void sendToReceivers(ServerUser sender, MUSMessage msg) {
+
+        List<ServerUser> receivers = getInterestReceivers(sender, msg);
+        if (receivers == null) {
+            sendMessage(msg);
+            return;
+        }
+
+        for (ServerUser receiver : receivers) {
+            receiver.sendMessage(msg);
+        }
+    }
+
+    // Returns the members that a message from the sender should reach
+    List<ServerUser> getReceivers(ServerUser sender, MUSMessage msg) {
+
+        List<ServerUser> receivers = getInterestReceivers(sender, msg);
+        return receivers != null ? receivers : new ArrayList<ServerUser>(m_userlist.values());
+    }
+
+    // Returns null if the message is not filtered by area of interest
+    private List<ServerUser> getInterestReceivers(ServerUser sender, MUSMessage msg) {
+
+        MUSInterestGrid interest = m_interest;
+        if (interest == null || !interest.filters(msg.m_subject.toString()))
+            return null;
+
+        double[] pos = MUSInterestGrid.extractPosition(msg.m_msgContent);
+        if (pos != null) {
+            synchronized (interest) {
+                // Only index members, the sender may just have left the group
+                if (m_userlist.containsKey(sender.name().toUpperCase()))
+                    interest.update(sender, pos[0], pos[1], pos[2]);
+            }
+        } else {
+            // No position in this message, use the last one published
+            MUSInterestGrid.Position last = interest.getPosition(sender);
+            if (last == null)
+                return null;
+            pos = new double[]{last.x, last.y, last.z};
+        }
+
+        List<ServerUser> receivers = interest.getUsersNear(pos[0], pos[1], pos[2]);
+        m_movie.logInterestFiltered(m_userlist.size() - receivers.size());
+        return receivers;
+    }
+
     public String name() {
         return m_name;
     }
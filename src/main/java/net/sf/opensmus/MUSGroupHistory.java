@@ -0,0 +1,137 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Bounded history of the recent messages of a group. The messages are kept as encoded bytes,
+ * so replaying them to a user that joins the group needs no encoding, only buffer writes.
+ */
+public class MUSGroupHistory {
+
+    private final Set<String> m_subjects = new HashSet<String>(); // Empty for all subjects
+    private final byte[][] m_ring;
+    private final String[] m_ringsubjects;
+    private int m_next = 0;
+    private int m_count = 0;
+
+    public MUSGroupHistory(String[] subjects, int size) {
+
+        for (String subject : subjects) {
+            if (!subject.trim().equals("*"))
+                m_subjects.add(subject.trim().toLowerCase());
+        }
+        m_ring = new byte[size][];
+        m_ringsubjects = new String[size];
+    }
+
+    // Parses a HistoryGroups entry: @group[*]:subject[,subject...]:size
+    // Returns null if the entry is not valid
+    public static MUSGroupHistory parse(String setting) {
+
+        String[] parts = setting.split(":");
+        if (parts.length != 3) return null;
+
+        try {
+            int size = Integer.parseInt(parts[2].trim());
+            if (size <= 0) return null;
+
+            return new MUSGroupHistory(parts[1].split(","), size);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String parseGroupName(String setting) {
+        return setting.substring(0, setting.indexOf(":")).trim();
+    }
+
+    // Group names in the entries may end with * to match all groups starting with the rest of the name
+    public static boolean matches(String pattern, String groupname) {
+
+        if (pattern.endsWith("*"))
+            return groupname.toUpperCase().startsWith(pattern.substring(0, pattern.length() - 1).toUpperCase());
+        return groupname.equalsIgnoreCase(pattern);
+    }
+
+    public boolean filters(String subject) {
+        return m_subjects.isEmpty() || m_subjects.contains(subject.toLowerCase());
+    }
+
+    public void add(MUSMessage msg) {
+
+        ChannelBuffer buf = msg.getBytes();
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+
+        synchronized (this) {
+            m_ring[m_next] = bytes;
+            m_ringsubjects[m_next] = msg.m_subject.toString();
+            m_next = (m_next + 1) % m_ring.length;
+            if (m_count < m_ring.length) m_count++;
+        }
+    }
+
+    public synchronized int size() {
+        return m_count;
+    }
+
+    // Sends the kept messages to the user, oldest first.
+    // MUSGroup holds the history's lock around this and the join, and around add and the live send
+    public void replay(ServerUser user) {
+
+        byte[][] entries;
+        String[] subjects;
+        synchronized (this) {
+            entries = new byte[m_count][];
+            subjects = new String[m_count];
+            int first = (m_next - m_count + m_ring.length) % m_ring.length;
+            for (int i = 0; i < m_count; i++) {
+                entries[i] = m_ring[(first + i) % m_ring.length];
+                subjects[i] = m_ringsubjects[(first + i) % m_ring.length];
+            }
+        }
+
+        for (int i = 0; i < entries.length; i++) {
+            if (user instanceof MUSUser) {
+                ((MUSUser) user).sendBytes(subjects[i], entries[i]);
+            } else {
+                // Scripts get message objects
+                ChannelBuffer buf = ChannelBuffers.wrappedBuffer(entries[i]);
+                buf.readerIndex(6); // Forward past the header bytes
+                user.sendMessage(new MUSMessage(buf));
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.*;
+
+/**
+ * Server managed shared state of a group. The state is a tree of property lists, and values
+ * are addressed by a dotted path like "players.bob.score". Changes are collected between
+ * ticks and every tick the members get one "StateDelta" message with the changed paths only.
+ * Users that join the group later get a "StateSnapshot" with the full state.
+ */
+public class MUSGroupState implements Runnable {
+
+    public static final String DELTA_SUBJECT = "StateDelta";
+    public static final String SNAPSHOT_SUBJECT = "StateSnapshot";
+
+    private final MUSGroup m_group;
+    private final MUSServer m_server;
+    // Nested state. The values are either LValues or another map for a nested property list.
+    private final LinkedHashMap<String, Object> m_root = new LinkedHashMap<String, Object>();
+    // Paths changed since the last tick. A path is never stored together with one of its ancestors.
+    private final TreeSet<String> m_dirty = new TreeSet<String>();
+    private int m_tick = 0;
+    private MUSScheduledTask m_task;
+
+    public MUSGroupState(MUSGroup group, MUSServer server) {
+        m_group = group;
+        m_server = server;
+    }
+
+    public void start(int interval) {
+        m_task = m_server.m_scheduler.scheduleWithFixedDelay("GroupState " + m_group.m_name, this, interval, interval);
+    }
+
+    public void kill() {
+        if (m_task != null) m_task.cancel();
+    }
+
+    public synchronized int getTick() {
+        return m_tick;
+    }
+
+    // Sets the value at a path, creating the property lists on the way.
+    // A property list value is stored as nested state, so its items can be changed one by one later.
+    @SuppressWarnings("unchecked")
+    public synchronized void set(String path, LValue value) {
+
+        String[] keys = splitPath(path);
+        Map<String, Object> node = m_root;
+        for (int k = 0; k < keys.length - 1; k++) {
+            Object child = node.get(keys[k]);
+            if (!(child instanceof Map)) {
+                child = new LinkedHashMap<String, Object>();
+                node.put(keys[k], child);
+            }
+            node = (Map<String, Object>) child;
+        }
+
+        node.put(keys[keys.length - 1], toState(value));
+        markDirty(path);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized boolean remove(String path) {
+
+        String[] keys = splitPath(path);
+        Map<String, Object> node = m_root;
+        for (int k = 0; k < keys.length - 1; k++) {
+            Object child = node.get(keys[k]);
+            if (!(child instanceof Map)) return false;
+            node = (Map<String, Object>) child;
+        }
+
+        if (node.remove(keys[keys.length - 1]) == null) return false;
+        markDirty(path);
+        return true;
+    }
+
+    // Returns the value at a path, or null if there is none
+    public synchronized LValue get(String path) {
+
+        Object value = find(path);
+        return value == null ? null : toLValue(value);
+    }
+
+    public synchronized LPropList getSnapshot() {
+        return (LPropList) toLValue(m_root);
+    }
+
+    // Full state for a user that joins the group
+    public MUSMessage getSnapshotMessage() {
+
+        LPropList content = new LPropList();
+        content.addElement(new LSymbol("group"), new LString(m_group.m_name));
+        synchronized (this) {
+            content.addElement(new LSymbol("tick"), new LInteger(m_tick));
+            content.addElement(new LSymbol("state"), getSnapshot());
+        }
+        return newMessage(SNAPSHOT_SUBJECT, content);
+    }
+
+    // The tick: sends the paths changed since the last tick to all members
+    public void run() {
+
+        LPropList content = new LPropList();
+        content.addElement(new LSymbol("group"), new LString(m_group.m_name));
+        if (takeDelta(content))
+            m_group.sendMessage(newMessage(DELTA_SUBJECT, content));
+    }
+
+    // Adds the tick and the changes since the last tick to the content, returns false if there are none
+    synchronized boolean takeDelta(LPropList content) {
+
+        if (m_dirty.isEmpty()) return false;
+
+        LPropList changes = new LPropList();
+        LList deleted = new LList();
+        for (String path : m_dirty) {
+            Object value = find(path);
+            if (value == null)
+                deleted.addElement(new LString(path));
+            else
+                changes.addElement(new LString(path), toLValue(value));
+        }
+        m_dirty.clear();
+
+        content.addElement(new LSymbol("tick"), new LInteger(++m_tick));
+        content.addElement(new LSymbol("changes"), changes);
+        content.addElement(new LSymbol("deleted"), deleted);
+        return true;
+    }
+
+    private MUSMessage newMessage(String subject, LValue content) {
+
+        MUSMessage msg = new MUSMessage();
+        msg.m_errCode = 0;
+        msg.m_timeStamp = m_server.timeStamp();
+        msg.m_subject = new MUSMsgHeaderString(subject);
+        msg.m_senderID = new MUSMsgHeaderString("System");
+        msg.m_recptID = new MUSMsgHeaderStringList();
+        msg.m_recptID.addElement(new MUSMsgHeaderString(m_group.m_name));
+        msg.m_msgContent = content;
+        return msg;
+    }
+
+    // Changes to a path already covered by a dirty ancestor need no entry of their own,
+    // and a dirty path covers all its dirty descendants.
+    private void markDirty(String path) {
+
+        int dot = path.indexOf('.');
+        while (dot != -1) {
+            if (m_dirty.contains(path.substring(0, dot))) return;
+            dot = path.indexOf('.', dot + 1);
+        }
+
+        m_dirty.subSet(path + ".", path + "/").clear(); // '/' follows '.'
+        m_dirty.add(path);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object find(String path) {
+
+        Object value = m_root;
+        for (String key : splitPath(path)) {
+            if (!(value instanceof Map)) return null;
+            value = ((Map<String, Object>) value).get(key);
+            if (value == null) return null;
+        }
+        return value;
+    }
+
+    // Property names can be strings or symbols, symbols are stored without the #
+    public static String keyName(LValue prop) {
+
+        String name = prop.toString();
+        if (prop.getType() == LValue.vt_Symbol) return name.substring(1);
+        return name;
+    }
+
+    private static String[] splitPath(String path) {
+
+        if (path.length() == 0 || path.startsWith(".") || path.endsWith(".") || path.contains(".."))
+            throw new IllegalArgumentException("Invalid state path: " + path);
+        return path.split("\\.");
+    }
+
+    private static Object toState(LValue value) {
+
+        if (value.getType() != LValue.vt_PropList) return value;
+
+        LPropList list = (LPropList) value;
+        LinkedHashMap<String, Object> node = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < list.count(); i++) {
+            node.put(keyName(list.getPropAt(i)), toState(list.getElementAt(i)));
+        }
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static LValue toLValue(Object state) {
+
+        if (!(state instanceof Map)) return (LValue) state;
+
+        LPropList list = new LPropList();
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) state).entrySet()) {
+            list.addElement(new LSymbol(entry.getKey()), toLValue(entry.getValue()));
+        }
+        return list;
+    }
+}
@@ -30,43 +30,30 @@
 package net.sf.opensmus;
 
 // Doesn't check user idle anymore. That is handled by Netty.
-public class MUSIdleCheck extends Thread {
+// Scheduled by the server every IdleTimeOut seconds (minimum 30)
+public class MUSIdleCheck implements Runnable {
+
+    /**
+     * Minimum 30 seconds between idle checks
+     */
+    public static final int MINIMUM_DELAY_INSECONDS = 30;
 
     private final MUSServer server;
 
     public MUSIdleCheck(MUSServer svr) {
 
-        super("MUSIdleCheckThread");
-
         this.server = svr;
     }
 
-    @Override
-    public void run() {
-
-        try {
-            while (server.m_alive) {
-
-                server.checkDatabaseConnections();
-
-                server.ensureLoggerThreadIsAlive();
+    public int getInterval() {
+        return server.idle > MINIMUM_DELAY_INSECONDS ? server.idle : MINIMUM_DELAY_INSECONDS;
+    }
 
-                if (server.m_props.getIntProperty("EnableServerStructureChecks") == 1)
-                    server.checkStructure();
+    public void run() {
 
-                // Minimum 30 seconds between idle checks
-                if (server.idle > 30)
-                    Thread.sleep(server.idle * 1000);
-                else
-                    Thread.sleep(30000);
-            }
-        }
-        catch (InterruptedException e) {
-            // TODO Why error. Will be issued by server shutdown
-            MUSLog.Log("IdleCheck Error!", MUSLog.kDeb);
+        server.checkDatabaseConnections();
 
-            // Dont swallow interrupt exceptions
-            Thread.currentThread().interrupt();
-        }
+        if (server.m_props.getIntProperty("EnableServerStructureChecks") == 1)
+            server.checkStructure();
     }
 }
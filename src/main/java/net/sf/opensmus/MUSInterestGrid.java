@@ -0,0 +1,218 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Area of interest index for a group. Members publish their position by sending a message
+ * with one of the configured subjects, and those messages are only delivered to members
+ * near the sender. Positions are kept in a uniform grid of cubic cells, so a message only
+ * looks at the cells around the sender instead of the whole group.
+ * <BR>With a radius above 0 the receivers are the members within that distance of the sender.
+ * With a radius of 0 the receivers are the members in the sender's cell and the cells next to it.
+ */
+public class MUSInterestGrid {
+
+    private final Set<String> m_subjects = new HashSet<String>();
+    private final double m_radius;
+    private final double m_cellsize;
+    private final int m_reach; // Cells to search in each direction
+
+    private final ConcurrentHashMap<ServerUser, Position> m_positions = new ConcurrentHashMap<ServerUser, Position>();
+    private final ConcurrentHashMap<Long, Set<ServerUser>> m_cells = new ConcurrentHashMap<Long, Set<ServerUser>>();
+    private volatile boolean m_depth = false; // Set once a position leaves the z = 0 layer of cells
+
+    static final class Position {
+        final double x, y, z;
+        final long cell;
+
+        Position(double px, double py, double pz, long pcell) {
+            x = px;
+            y = py;
+            z = pz;
+            cell = pcell;
+        }
+    }
+
+    public MUSInterestGrid(String[] subjects, double radius, double cellsize) {
+
+        for (String subject : subjects) {
+            m_subjects.add(subject.toLowerCase());
+        }
+        m_radius = radius;
+        m_cellsize = cellsize > 0 ? cellsize : radius;
+        m_reach = radius > 0 ? (int) Math.ceil(radius / m_cellsize) : 1;
+    }
+
+    // Parses an InterestGroups entry: @group:subject[,subject...]:radius[:cellsize]
+    // Returns null if the entry is not valid
+    public static MUSInterestGrid parse(String setting) {
+
+        String[] parts = setting.split(":");
+        if (parts.length < 3 || parts.length > 4) return null;
+
+        try {
+            double radius = Double.parseDouble(parts[2].trim());
+            double cellsize = parts.length == 4 ? Double.parseDouble(parts[3].trim()) : radius;
+            if (radius < 0 || cellsize <= 0) return null;
+
+            return new MUSInterestGrid(parts[1].trim().split(","), radius, cellsize);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String parseGroupName(String setting) {
+        return setting.substring(0, setting.indexOf(":")).trim();
+    }
+
+    public boolean filters(String subject) {
+        return m_subjects.contains(subject.toLowerCase());
+    }
+
+    public int size() {
+        return m_positions.size();
+    }
+
+    // Moves a user to a new position. Only needs to touch the cell sets when the user changes cells.
+    public synchronized void update(ServerUser user, double x, double y, double z) {
+
+        long cell = cellKey(cellIndex(x), cellIndex(y), cellIndex(z));
+        if (cellIndex(z) != 0) m_depth = true;
+
+        Position old = m_positions.put(user, new Position(x, y, z, cell));
+        if (old != null && old.cell == cell) return;
+
+        if (old != null) removeFromCell(user, old.cell);
+
+        Set<ServerUser> members = m_cells.get(cell);
+        if (members == null) {
+            members = Collections.newSetFromMap(new ConcurrentHashMap<ServerUser, Boolean>());
+            m_cells.put(cell, members);
+        }
+        members.add(user);
+    }
+
+    public synchronized void remove(ServerUser user) {
+
+        Position old = m_positions.remove(user);
+        if (old != null) removeFromCell(user, old.cell);
+    }
+
+    public synchronized void clear() {
+        m_positions.clear();
+        m_cells.clear();
+    }
+
+    public Position getPosition(ServerUser user) {
+        return m_positions.get(user);
+    }
+
+    // Returns the users of interest around a position
+    public List<ServerUser> getUsersNear(double x, double y, double z) {
+
+        int cx = cellIndex(x);
+        int cy = cellIndex(y);
+        int cz = cellIndex(z);
+        int zreach = m_depth ? m_reach : 0;
+        double radius2 = m_radius * m_radius;
+        List<ServerUser> near = new ArrayList<ServerUser>();
+
+        for (int dx = -m_reach; dx <= m_reach; dx++) {
+            for (int dy = -m_reach; dy <= m_reach; dy++) {
+                for (int dz = -zreach; dz <= zreach; dz++) {
+                    Set<ServerUser> members = m_cells.get(cellKey(cx + dx, cy + dy, cz + dz));
+                    if (members == null) continue;
+
+                    for (ServerUser member : members) {
+                        if (m_radius > 0) {
+                            Position pos = m_positions.get(member);
+                            if (pos == null) continue;
+                            double ddx = pos.x - x, ddy = pos.y - y, ddz = pos.z - z;
+                            if (ddx * ddx + ddy * ddy + ddz * ddz > radius2) continue;
+                        }
+                        near.add(member);
+                    }
+                }
+            }
+        }
+
+        return near;
+    }
+
+    // Gets the position from a message content: a point or vector, or a list that starts with one
+    // Returns null if the content has no position
+    public static double[] extractPosition(LValue content) {
+
+        if (content.getType() == LValue.vt_List) {
+            LList list = (LList) content;
+            if (list.count() == 0) return null;
+            content = list.getElementAt(0);
+        } else if (content.getType() == LValue.vt_PropList) {
+            LPropList list = (LPropList) content;
+            if (list.count() == 0) return null;
+            content = list.getElementAt(0);
+        }
+
+        if (content.getType() == LValue.vt_Point) {
+            LPoint point = (LPoint) content;
+            return new double[]{coordinate(point.m_X), coordinate(point.m_Y), 0};
+        } else if (content.getType() == LValue.vt_3dVector) {
+            L3dVector vector = (L3dVector) content;
+            return new double[]{vector.getComponent(0), vector.getComponent(1), vector.getComponent(2)};
+        }
+
+        return null;
+    }
+
+    private static double coordinate(LValue value) {
+        return value.getType() == LValue.vt_Integer ? value.toInteger() : value.toDouble();
+    }
+
+    private void removeFromCell(ServerUser user, long cell) {
+
+        Set<ServerUser> members = m_cells.get(cell);
+        if (members == null) return;
+
+        members.remove(user);
+        if (members.isEmpty()) m_cells.remove(cell);
+    }
+
+    private int cellIndex(double coordinate) {
+        return (int) Math.floor(coordinate / m_cellsize);
+    }
+
+    // Packs three cell indices into one key, 21 bits each
+    private static long cellKey(int cx, int cy, int cz) {
+        return ((cx & 0x1FFFFFL) << 42) | ((cy & 0x1FFFFFL) << 21) | (cz & 0x1FFFFFL);
+    }
+}
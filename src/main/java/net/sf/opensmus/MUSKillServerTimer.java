@@ -29,25 +29,24 @@
 
 package net.sf.opensmus;
 
-public class MUSKillServerTimer extends Thread {
+// Stops the server, then restarts it after the given delay (ms)
+public class MUSKillServerTimer implements Runnable {
     private MUSServer m_server;
     private int m_timeToKill;
 
     public MUSKillServerTimer(MUSServer oneserver, int timeToKill) {
         m_server = oneserver;
         m_timeToKill = timeToKill;
-        start();
     }
 
-    @Override
     public void run() {
-        try {
-            m_server.killServer();
-            sleep(m_timeToKill);
-            OpenSMUS.restart();
-        } catch (InterruptedException e) {
-            MUSLog.Log("KillServerTimer Error!", MUSLog.kDeb);
-        }
+        // Pending tasks still run after killServer() stops the scheduler
+        m_server.m_scheduler.schedule("RestartServer", new Runnable() {
+            public void run() {
+                OpenSMUS.restart();
+            }
+        }, m_timeToKill);
+
+        m_server.killServer();
     }
 }
-
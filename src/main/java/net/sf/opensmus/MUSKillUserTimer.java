@@ -29,24 +29,16 @@
 
 package net.sf.opensmus;
 
-public class MUSKillUserTimer extends Thread {
+// Scheduled by MUSUser.deleteUser()
+public class MUSKillUserTimer implements Runnable {
     private MUSUser m_user;
-    private int m_timeToKill;
 
-    public MUSKillUserTimer(MUSUser oneuser, int timeToKill) {
+    public MUSKillUserTimer(MUSUser oneuser) {
         m_user = oneuser;
-        m_timeToKill = timeToKill;
-        start();
     }
 
-    @Override
     public void run() {
-        try {
-            sleep(m_timeToKill);
-            m_user.killMUSUser();
-        } catch (InterruptedException e) {
-            MUSLog.Log("KillUserTimer Error!", MUSLog.kDeb);
-        }
+        m_user.killMUSUser();
     }
 }
 
@@ -29,6 +29,9 @@
 
 package net.sf.opensmus;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 /** 
  *Class to log messages to the server output (console or text file) 
  */
@@ -67,23 +70,67 @@ public class MUSLog {
   	m_LogLevel = level;
   }
 
+  /** Asynchronous writer used for all output, null to print directly to System.out */
+  private static volatile MUSLogWriter m_writer;
+
+  /** Route all log output through the given background writer, null to go back to System.out */
+  public static void setWriter(MUSLogWriter writer){
+	m_writer = writer;
+  }
+
+  /** True if messages of this type are logged. Use to avoid building expensive log messages. */
+  public static boolean isEnabled(int level){
+	return (m_LogLevel & level) > 0;
+  }
+
   /** Log as message to output. 
   * Integer parameter is the type of message, for example MUSLog.kSys. 
   */
   public static void Log(String str, int level){
 	if ((m_LogLevel & level) > 0)
-	 System.out.println(str);
+	 write(str);
   } 
   
+  /** Log a message with {} placeholders, for example Log(MUSLog.kUsr, "User {} joined {}", name, group).
+  * The arguments are only converted to strings if this type of message is logged.
+  */
+  public static void Log(int level, String format, Object... args){
+	if ((m_LogLevel & level) > 0)
+	 write(format(format, args));
+  }
+
   /** Logs a java exception to output. 
   * Integer parameter is the type of message, for example MUSLog.kDB.
   */
   public static void Log(Exception e, int level){
 	if ((m_LogLevel & level) > 0)
 	{
-	 //System.out.println(e);
-	 e.printStackTrace();
+	 StringWriter sw = new StringWriter();
+	 e.printStackTrace(new PrintWriter(sw));
+	 write(sw.toString().trim());
+	}
+  }
+
+  static String format(String format, Object[] args){
+	StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+	int pos = 0;
+	for (Object arg : args) {
+	 int next = format.indexOf("{}", pos);
+	 if (next < 0)
+	  break;
+	 sb.append(format, pos, next).append(arg);
+	 pos = next + 2;
 	}
+	sb.append(format, pos, format.length());
+	return sb.toString();
+  }
+
+  private static void write(String str){
+	MUSLogWriter writer = m_writer;
+	if (writer != null)
+	 writer.write(str);
+	else
+	 System.out.println(str);
   }
     
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer for MUSLog. Log lines are put in a lock-free ring buffer by the
+ * logging threads and written in batches by a single writer thread.
+ * When the buffer is full new lines are dropped and counted instead of blocking the caller.
+ * The log file is rotated when it grows beyond the configured size.
+ */
+public class MUSLogWriter extends Thread {
+
+    private static final int BATCH_SIZE = 256;
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    private final AtomicReferenceArray<String> m_ring;
+    private final int m_mask;
+    private final AtomicLong m_head = new AtomicLong(); // Next slot to claim (producers)
+    private volatile long m_tail = 0; // Next slot to write (writer thread only)
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    private final File m_file; // null for console output
+    private final long m_maxsize;
+    private final int m_backups;
+    private Writer m_out;
+    private long m_size = 0;
+
+    private volatile boolean m_alive = true;
+
+    /**
+     * @param file log file, or null to write to the console
+     * @param append keep the current contents of the log file
+     * @param buffersize number of lines the ring buffer holds, rounded up to a power of two
+     * @param maxsize rotate the log file when it grows beyond this many bytes, 0 to disable
+     * @param backups number of rotated log files kept
+     */
+    public MUSLogWriter(File file, boolean append, int buffersize, long maxsize, int backups) throws IOException {
+
+        super("MUSLogWriterThread");
+        setDaemon(true);
+
+        int capacity = Integer.highestOneBit(Math.max(buffersize, 64) - 1) << 1;
+        m_ring = new AtomicReferenceArray<String>(capacity);
+        m_mask = capacity - 1;
+
+        m_file = file;
+        m_maxsize = maxsize;
+        m_backups = backups;
+        openOutput(append);
+    }
+
+    /**
+     * Queues one log line. Never blocks.
+     * @return false if the line was dropped because the buffer is full
+     */
+    public boolean write(String line) {
+
+        long slot;
+        do {
+            slot = m_head.get();
+            if (slot - m_tail >= m_ring.length()) {
+                m_dropped.incrementAndGet();
+                return false;
+            }
+        } while (!m_head.compareAndSet(slot, slot + 1));
+
+        m_ring.lazySet((int) slot & m_mask, line);
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    public int getQueuedCount() {
+        return (int) (m_head.get() - m_tail);
+    }
+
+    // A PrintStream that feeds this writer, used to redirect System.out
+    public PrintStream asPrintStream() {
+        return new PrintStream(new LineOutputStream(), true);
+    }
+
+    @Override
+    public void run() {
+
+        while (m_alive || m_head.get() != m_tail) {
+            try {
+                if (drain() == 0)
+                    LockSupport.parkNanos(2000000L);
+            } catch (IOException e) {
+                // Nowhere left to report this but the console
+                System.err.println("Error writing log file: " + e);
+                LockSupport.parkNanos(1000000000L);
+            }
+        }
+
+        try {
+            if (m_file != null)
+                m_out.close();
+            else
+                m_out.flush(); // Leave the console open
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Writes the remaining lines and closes the log file
+     */
+    public void kill() {
+
+        m_alive = false;
+        LockSupport.unpark(this);
+        try {
+            join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes up to one batch, returns the number of lines written
+    private int drain() throws IOException {
+
+        int count = 0;
+        long dropped = m_dropped.getAndSet(0);
+        if (dropped > 0)
+            append("Log buffer full, " + dropped + " log messages dropped");
+
+        while (count < BATCH_SIZE && m_tail != m_head.get()) {
+            int idx = (int) m_tail & m_mask;
+            String line = m_ring.get(idx);
+            if (line == null)
+                break; // Slot claimed but not filled in yet
+
+            m_ring.lazySet(idx, null);
+            m_tail++;
+            append(line);
+            count++;
+        }
+
+        if (count > 0 || dropped > 0)
+            m_out.flush();
+        return count;
+    }
+
+    private void append(String line) throws IOException {
+        m_out.write(line);
+        m_out.write(NEWLINE);
+        m_size += line.length() + NEWLINE.length();
+        if (m_maxsize > 0 && m_size >= m_maxsize)
+            rotate();
+    }
+
+    private void openOutput(boolean append) throws IOException {
+
+        if (m_file == null) {
+            m_out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 16384);
+        } else {
+            m_out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_file, append)), 16384);
+            m_size = append ? m_file.length() : 0;
+        }
+    }
+
+    // serverlog.txt -> serverlog.txt.1 -> serverlog.txt.2 ...
+    private void rotate() throws IOException {
+
+        if (m_file == null) return;
+
+        m_out.close();
+
+        File oldest = new File(m_file.getPath() + "." + m_backups);
+        if (oldest.exists()) oldest.delete();
+        for (int i = m_backups - 1; i >= 1; i--) {
+            File f = new File(m_file.getPath() + "." + i);
+            if (f.exists()) f.renameTo(new File(m_file.getPath() + "." + (i + 1)));
+        }
+        if (m_backups > 0)
+            m_file.renameTo(new File(m_file.getPath() + ".1"));
+
+        openOutput(false);
+    }
+
+    //////////
+
+    // Collects bytes into lines
+    private class LineOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream m_line = new ByteArrayOutputStream(256);
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                flushLine();
+            } else if (b != '\r') {
+                m_line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        private void flushLine() {
+            MUSLogWriter.this.write(m_line.toString());
+            m_line.reset();
+        }
+    }
+}
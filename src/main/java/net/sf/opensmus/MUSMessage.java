@@ -85,6 +85,12 @@ public class MUSMessage {
      */
     public boolean m_udp = false;
 
+    /**
+     * System.nanoTime() when the incoming message this one originates from was framed, 0 if unknown.
+     * Used for the message latency metrics, it is not part of the message bytes.
+     */
+    public long m_framed = 0;
+
 
     /**
      * Default Constructor
@@ -107,6 +113,7 @@ public class MUSMessage {
         ChannelBuffer raw = msg.getBytes();
         raw.readerIndex(6); // Forward past the header bytes
         extractMUSMessage(raw);
+        m_framed = msg.m_framed;
         // TODO: Replace the m_senderID here if we want to skip reading the bytes
     }
 
@@ -0,0 +1,393 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of server metrics. Counters and histograms use striped LongAdders so they
+ * can be updated from any number of threads without locking or losing updates.
+ * Gauges read their value from the server when a snapshot is taken.
+ * Metrics are identified by a name and optional label pairs, e.g.
+ * counter("opensmus_movie_messages_total", "movie", "Chat").
+ */
+public class MUSMetrics {
+
+    // Limits the number of distinct label values per metric name (e.g. user chosen subjects)
+    public static final int MAX_SERIES_PER_NAME = 256;
+    public static final String OVERFLOW_LABEL = "other";
+
+    private static final long[] LATENCY_BOUNDS = Histogram.exponentialBounds(10000000);
+
+    private final ConcurrentHashMap<String, Metric> m_metrics = new ConcurrentHashMap<String, Metric>();
+    private final ConcurrentHashMap<String, Integer> m_seriescount = new ConcurrentHashMap<String, Integer>();
+
+    public Counter counter(String name, String... labels) {
+        Metric m = lookup(name, labels);
+        if (m == null) m = register(new Counter(name, labels));
+        return (Counter) m;
+    }
+
+    // Counters of one name by the value of a single label, for label values that come with every message
+    public CounterFamily counterFamily(String name, String label) {
+        return new CounterFamily(this, name, label);
+    }
+
+    public Histogram histogram(String name, long[] bounds, String... labels) {
+        Metric m = lookup(name, labels);
+        if (m == null) m = register(new Histogram(name, bounds, labels));
+        return (Histogram) m;
+    }
+
+    // Histogram for durations in microseconds, from 1 us up to 10 seconds
+    public Histogram latency(String name, String... labels) {
+        return histogram(name, LATENCY_BOUNDS, labels);
+    }
+
+    public Gauge gauge(String name, GaugeSource source, String... labels) {
+        Gauge g = new Gauge(name, source, labels);
+        m_metrics.put(g.key(), g); // Replaces an older gauge, e.g. from a deleted movie with the same name
+        return g;
+    }
+
+    // All metrics, sorted by name
+    public List<Metric> getMetrics() {
+        List<Metric> list = new ArrayList<Metric>(m_metrics.values());
+        Collections.sort(list, new Comparator<Metric>() {
+            public int compare(Metric a, Metric b) {
+                return a.key().compareTo(b.key());
+            }
+        });
+        return list;
+    }
+
+    // Current values of all counters and gauges by key, histograms report their count
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snap = new TreeMap<String, Long>();
+        for (Metric m : m_metrics.values()) {
+            snap.put(m.key(), m.value());
+        }
+        return snap;
+    }
+
+    // Removes all metrics with this label, e.g. when a movie is deleted
+    public void removeLabel(String label, String value) {
+        for (Iterator<Metric> it = m_metrics.values().iterator(); it.hasNext();) {
+            Metric m = it.next();
+            if (value.equals(m.getLabel(label))) {
+                it.remove();
+                if (!(m instanceof Gauge) && !OVERFLOW_LABEL.equals(m.m_labels[1])) release(m.m_name);
+            }
+        }
+    }
+
+    private Metric lookup(String name, String[] labels) {
+        return m_metrics.get(Metric.key(name, labels));
+    }
+
+    private Metric register(Metric m) {
+        if (m.m_labels.length == 0) {
+            Metric old = m_metrics.putIfAbsent(m.key(), m);
+            return old != null ? old : m;
+        }
+
+        if (reserve(m.m_name)) {
+            Metric old = m_metrics.putIfAbsent(m.key(), m);
+            if (old == null) return m;
+            release(m.m_name);
+            return old;
+        }
+
+        // Too many series, fold this one into the overflow series
+        String[] labels = m.m_labels.clone();
+        for (int i = 1; i < labels.length; i += 2) labels[i] = OVERFLOW_LABEL;
+        Metric overflow = m.copy(labels);
+        Metric old = m_metrics.putIfAbsent(overflow.key(), overflow);
+        return old != null ? old : overflow;
+    }
+
+    private boolean reserve(String name) {
+        synchronized (m_seriescount) {
+            Integer c = m_seriescount.get(name);
+            int count = c == null ? 0 : c;
+            if (count >= MAX_SERIES_PER_NAME) return false;
+            m_seriescount.put(name, count + 1);
+            return true;
+        }
+    }
+
+    private void release(String name) {
+        synchronized (m_seriescount) {
+            Integer c = m_seriescount.get(name);
+            if (c != null && c > 0) m_seriescount.put(name, c - 1);
+        }
+    }
+
+    //////////
+
+    public interface GaugeSource {
+        long value();
+    }
+
+    public static abstract class Metric {
+
+        final String m_name;
+        final String[] m_labels; // name, value, name, value...
+
+        Metric(String name, String[] labels) {
+            if (labels.length % 2 != 0)
+                throw new IllegalArgumentException("Labels must be name/value pairs");
+            m_name = name;
+            m_labels = labels;
+        }
+
+        public String name() {
+            return m_name;
+        }
+
+        public String[] labels() {
+            return m_labels.clone();
+        }
+
+        public String getLabel(String label) {
+            for (int i = 0; i < m_labels.length; i += 2) {
+                if (m_labels[i].equals(label)) return m_labels[i + 1];
+            }
+            return null;
+        }
+
+        public String key() {
+            return key(m_name, m_labels);
+        }
+
+        // counter, gauge or histogram
+        public abstract String type();
+
+        public abstract long value();
+
+        abstract Metric copy(String[] labels);
+
+        static String key(String name, String[] labels) {
+            if (labels.length == 0) return name;
+            StringBuilder sb = new StringBuilder(name).append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) sb.append(',');
+                sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            return sb.append('}').toString();
+        }
+
+        // Label values are quoted, escape them as the Prometheus text format requires
+        static String escape(String value) {
+            if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    public static class Counter extends Metric {
+
+        private final LongAdder m_count = new LongAdder();
+
+        Counter(String name, String[] labels) {
+            super(name, labels);
+        }
+
+        public void inc() {
+            m_count.increment();
+        }
+
+        public void add(long n) {
+            m_count.add(n);
+        }
+
+        public String type() {
+            return "counter";
+        }
+
+        public long value() {
+            return m_count.sum();
+        }
+
+        Metric copy(String[] labels) {
+            return new Counter(m_name, labels);
+        }
+    }
+
+    // Keeps the counter of each label value, so counting does not build a key per call.
+    // Past the series limit new values go straight to the overflow counter
+    public static class CounterFamily {
+
+        private final MUSMetrics m_metrics;
+        private final String m_name;
+        private final String m_label;
+        private final ConcurrentHashMap<String, Counter> m_counters = new ConcurrentHashMap<String, Counter>();
+        private volatile Counter m_overflow;
+
+        CounterFamily(MUSMetrics metrics, String name, String label) {
+            m_metrics = metrics;
+            m_name = name;
+            m_label = label;
+        }
+
+        public Counter get(String value) {
+            Counter c = m_counters.get(value);
+            if (c != null) return c;
+
+            if (m_counters.size() >= MAX_SERIES_PER_NAME) {
+                if (m_overflow == null) m_overflow = m_metrics.counter(m_name, m_label, OVERFLOW_LABEL);
+                return m_overflow;
+            }
+
+            c = m_metrics.counter(m_name, m_label, value);
+            Counter old = m_counters.putIfAbsent(value, c);
+            return old != null ? old : c;
+        }
+    }
+
+    public static class Gauge extends Metric {
+
+        private final GaugeSource m_source;
+
+        Gauge(String name, GaugeSource source, String[] labels) {
+            super(name, labels);
+            m_source = source;
+        }
+
+        public String type() {
+            return "gauge";
+        }
+
+        public long value() {
+            try {
+                return m_source.value();
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+
+        Metric copy(String[] labels) {
+            return new Gauge(m_name, m_source, labels);
+        }
+    }
+
+    /**
+     * Histogram with fixed bucket upper bounds. Percentiles are estimated
+     * by interpolating inside the bucket that contains them.
+     */
+    public static class Histogram extends Metric {
+
+        private final long[] m_bounds;
+        private final LongAdder[] m_buckets; // One extra bucket for values above the last bound
+        private final LongAdder m_count = new LongAdder();
+        private final LongAdder m_sum = new LongAdder();
+
+        Histogram(String name, long[] bounds, String[] labels) {
+            super(name, labels);
+            m_bounds = bounds.clone();
+            Arrays.sort(m_bounds);
+            m_buckets = new LongAdder[m_bounds.length + 1];
+            for (int i = 0; i < m_buckets.length; i++) m_buckets[i] = new LongAdder();
+        }
+
+        public void record(long v) {
+            int i = Arrays.binarySearch(m_bounds, v);
+            if (i < 0) i = -i - 1;
+            m_buckets[i].increment();
+            m_count.increment();
+            m_sum.add(v);
+        }
+
+        public String type() {
+            return "histogram";
+        }
+
+        public long value() {
+            return m_count.sum();
+        }
+
+        public long getSum() {
+            return m_sum.sum();
+        }
+
+        public long[] getBounds() {
+            return m_bounds.clone();
+        }
+
+        // Non-cumulative count per bucket, the last one counts values above all bounds
+        public long[] getBucketCounts() {
+            long[] counts = new long[m_buckets.length];
+            for (int i = 0; i < counts.length; i++) counts[i] = m_buckets[i].sum();
+            return counts;
+        }
+
+        // Estimated value below which the fraction q (0..1) of all recorded values lie
+        public long percentile(double q) {
+            return percentile(q, getBucketCounts());
+        }
+
+        // Same for bucket counts taken from this histogram, e.g. the difference of two getBucketCounts() calls
+        public long percentile(double q, long[] counts) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+
+            double rank = q * total;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0 && seen + counts[i] >= rank) {
+                    if (i == m_bounds.length) return m_bounds.length > 0 ? m_bounds[i - 1] : 0; // Above the last bound
+                    long low = i == 0 ? 0 : m_bounds[i - 1];
+                    return low + (long) ((m_bounds[i] - low) * ((rank - seen) / counts[i]));
+                }
+                seen += counts[i];
+            }
+            return m_bounds.length > 0 ? m_bounds[m_bounds.length - 1] : 0;
+        }
+
+        Metric copy(String[] labels) {
+            return new Histogram(m_name, m_bounds, labels);
+        }
+
+        // 1, 2, 5, 10, 20, 50 ... up to max
+        public static long[] exponentialBounds(long max) {
+            List<Long> list = new ArrayList<Long>();
+            for (long b = 1; b <= max; b *= 10) {
+                list.add(b);
+                if (b * 2 <= max) list.add(b * 2);
+                if (b * 5 <= max) list.add(b * 5);
+            }
+            long[] bounds = new long[list.size()];
+            for (int i = 0; i < bounds.length; i++) bounds[i] = list.get(i);
+            return bounds;
+        }
+    }
+}
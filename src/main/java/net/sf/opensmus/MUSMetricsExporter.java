@@ -0,0 +1,160 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.List;
+
+/**
+ * Formats the server metrics for the metrics HTTP port:
+ * Prometheus text exposition format and a JSON snapshot of movies, groups and users.
+ */
+public class MUSMetricsExporter {
+
+    private final MUSServer m_server;
+
+    public MUSMetricsExporter(MUSServer srv) {
+        m_server = srv;
+    }
+
+    public String toPrometheus() {
+
+        StringBuilder sb = new StringBuilder(8192);
+        String lastname = null;
+        List<MUSMetrics.Metric> metrics = m_server.m_metrics.getMetrics();
+        for (MUSMetrics.Metric m : metrics) {
+            if (!m.name().equals(lastname)) {
+                sb.append("# TYPE ").append(m.name()).append(' ').append(m.type()).append('\n');
+                lastname = m.name();
+            }
+
+            if (m instanceof MUSMetrics.Histogram) {
+                appendHistogram(sb, (MUSMetrics.Histogram) m);
+            } else {
+                sb.append(m.key()).append(' ').append(m.value()).append('\n');
+            }
+        }
+
+        // Groups come and go too quickly to register them, they are read at scrape time
+        sb.append("# TYPE opensmus_group_users gauge\n");
+        for (MUSMovie mov : m_server.m_movielist.values()) {
+            for (MUSGroup grp : mov.m_grouplist.values()) {
+                sb.append(MUSMetrics.Metric.key("opensmus_group_users", new String[]{"movie", mov.name(), "group", grp.name()}));
+                sb.append(' ').append(grp.serverUserCount()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendHistogram(StringBuilder sb, MUSMetrics.Histogram h) {
+
+        long[] bounds = h.getBounds();
+        long[] counts = h.getBucketCounts();
+        String[] labels = h.labels();
+        String[] bucketlabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, bucketlabels, 0, labels.length);
+        bucketlabels[labels.length] = "le";
+
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            bucketlabels[labels.length + 1] = i < bounds.length ? Long.toString(bounds[i]) : "+Inf";
+            sb.append(MUSMetrics.Metric.key(h.name() + "_bucket", bucketlabels)).append(' ').append(cumulative).append('\n');
+        }
+        sb.append(MUSMetrics.Metric.key(h.name() + "_sum", labels)).append(' ').append(h.getSum()).append('\n');
+        sb.append(MUSMetrics.Metric.key(h.name() + "_count", labels)).append(' ').append(h.value()).append('\n');
+    }
+
+    public String toJSON() {
+
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\"server\":").append(quote(MUSServer.m_vendorname + " " + MUSServer.m_version));
+        sb.append(",\"uptime\":").append(System.currentTimeMillis() - m_server.m_starttime);
+        sb.append(",\"users\":").append(m_server.m_clientlist.size());
+        sb.append(",\"movies\":[");
+        boolean firstmovie = true;
+        for (MUSMovie mov : m_server.m_movielist.values()) {
+            if (!firstmovie) sb.append(',');
+            firstmovie = false;
+            sb.append("{\"name\":").append(quote(mov.name()));
+            sb.append(",\"enabled\":").append(mov.m_enabled);
+            sb.append(",\"users\":").append(mov.m_userlist.size());
+            sb.append(",\"groups\":[");
+            boolean firstgroup = true;
+            for (MUSGroup grp : mov.m_grouplist.values()) {
+                if (!firstgroup) sb.append(',');
+                firstgroup = false;
+                sb.append("{\"name\":").append(quote(grp.name()));
+                sb.append(",\"users\":").append(grp.serverUserCount()).append('}');
+            }
+            sb.append("]}");
+        }
+        sb.append("],\"pools\":[");
+        boolean firstpool = true;
+        for (MUSThreadPool tp : m_server.m_threadpools.values()) {
+            if (!firstpool) sb.append(',');
+            firstpool = false;
+            sb.append("{\"name\":").append(quote(tp.name()));
+            sb.append(",\"activeThreads\":").append(tp.getActiveThreads());
+            sb.append(",\"maxThreads\":").append(tp.getMaximumPoolSize());
+            sb.append(",\"queueDepth\":").append(tp.getQueueDepth()).append('}');
+        }
+        sb.append("],\"latency\":[");
+        boolean firsthist = true;
+        for (MUSMetrics.Metric m : m_server.m_metrics.getMetrics()) {
+            if (!(m instanceof MUSMetrics.Histogram) || !m.name().endsWith("_latency_us")) continue;
+            MUSMetrics.Histogram h = (MUSMetrics.Histogram) m;
+            if (!firsthist) sb.append(',');
+            firsthist = false;
+            sb.append("{\"name\":").append(quote(h.key()));
+            sb.append(",\"count\":").append(h.value());
+            sb.append(",\"p50\":").append(h.percentile(0.5));
+            sb.append(",\"p95\":").append(h.percentile(0.95));
+            sb.append(",\"p99\":").append(h.percentile(0.99)).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    static String quote(String s) {
+
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+import net.sf.opensmus.io.MetricsHttpHandler;
+
+/////////////////////////////////////////////////////////////
+// Optional HTTP port serving the server metrics, see MetricsHttpAddress in OpenSMUS.cfg
+public class MUSMetricsPort {
+
+    private ChannelFactory factory;
+    private final ChannelGroup m_channels = new DefaultChannelGroup("OpenSMUSMetrics");
+
+    /////////////////////////////////////////////////////////////
+    public MUSMetricsPort(MUSServer srv, String ipaddress, int port) {
+        try {
+            InetAddress iad = InetAddress.getByName(ipaddress);
+
+            factory = new NioServerSocketChannelFactory(
+                    Executors.newCachedThreadPool(),
+                    Executors.newCachedThreadPool(), 1);
+
+            ServerBootstrap bootstrap = new ServerBootstrap(factory);
+
+            final MetricsHttpHandler handler = new MetricsHttpHandler(new MUSMetricsExporter(srv));
+            bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                public ChannelPipeline getPipeline() throws Exception {
+                    ChannelPipeline pipeline = Channels.pipeline();
+                    pipeline.addLast("decoder", new HttpRequestDecoder());
+                    pipeline.addLast("encoder", new HttpResponseEncoder());
+                    pipeline.addLast("handler", handler);
+                    return pipeline;
+                }
+            });
+            bootstrap.setOption("reuseAddress", true);
+
+            Channel sc = bootstrap.bind(new InetSocketAddress(iad, port));
+            m_channels.add(sc);
+
+            MUSLog.Log("Metrics available at http://" + iad.getHostAddress() + ":" + port + "/metrics", MUSLog.kSys);
+
+        } catch (Exception e) {
+            MUSLog.Log("Metrics port bind error : address in use", MUSLog.kSys);
+            MUSLog.Log(e, MUSLog.kSys);
+        }
+    }
+
+    public void killMetricsPort() {
+        try {
+            m_channels.close().awaitUninterruptibly();
+            factory.releaseExternalResources();
+        } catch (Exception e) {
+            MUSLog.Log("Error while stopping metrics port", MUSLog.kSys);
+        }
+    }
+}
@@ -44,6 +44,9 @@ public class MUSMovie implements ServerMovie {
     public final ConcurrentHashMap<String, MUSGroup> m_grouplist = new ConcurrentHashMap<String, MUSGroup>();
     public final ConcurrentHashMap<String, ServerUser> m_userlist = new ConcurrentHashMap<String, ServerUser>();
     public final ConcurrentHashMap<String, Integer> m_groupsizelimitlist = new ConcurrentHashMap<String, Integer>();
+    protected final ConcurrentHashMap<String, String> m_interestgrouplist = new ConcurrentHashMap<String, String>();
+    protected final ConcurrentHashMap<String, String> m_coalescegrouplist = new ConcurrentHashMap<String, String>();
+    protected final Vector<String> m_historygrouplist = new Vector<String>(); // Entries in configuration order, the first match wins
     protected final Vector<String> m_disabledgroupslist = new Vector<String>();
     protected final Vector<String> m_notifydisconnectlist = new Vector<String>();
 
@@ -57,6 +60,15 @@ public class MUSMovie implements ServerMovie {
     private final Hashtable<String, Integer> m_userlevelcache = new Hashtable<String, Integer>();
     public final Vector<ServerSideScript> m_scriptList = new Vector<ServerSideScript>(1);
     public final MUSGroup allUsers;
+    public final MUSThreadPool m_threadpool; // Executes incoming messages of users in this movie, may be null
+    private final MUSMetrics.Counter m_msgcounter;
+    private final MUSMetrics.Counter m_interestfiltered;
+    private final MUSMetrics.Counter m_coalesced;
+    // Message latency per stage: framed -> dispatched, handled by the movie, written -> sent, framed -> sent
+    private final MUSMetrics.Histogram m_queuelatency;
+    private final MUSMetrics.Histogram m_dispatchlatency;
+    private final MUSMetrics.Histogram m_writelatency;
+    private final MUSMetrics.Histogram m_totallatency;
 
     /////////////////////////////////////////////////////////////
     public MUSMovie(MUSServer srv, String initname) {
@@ -86,8 +98,63 @@ public class MUSMovie implements ServerMovie {
             }
         }
 
+        // Get list of groups with area of interest filtering
+        String[] interestgroups = m_props.getStringListProperty("InterestGroups");
+        for (String ig : interestgroups) {
+            if (!ig.equalsIgnoreCase("default")) {
+                if (ig.startsWith("@") && MUSInterestGrid.parse(ig) != null) {
+                    m_interestgrouplist.put(MUSInterestGrid.parseGroupName(ig).toUpperCase(), ig);
+                } else {
+                    MUSLog.Log("Bad InterestGroups entry specified: " + ig, MUSLog.kSys);
+                }
+            }
+        }
+
+        // Get list of groups with coalesced subjects
+        String[] coalescegroups = m_props.getStringListProperty("CoalesceGroups");
+        for (String cg : coalescegroups) {
+            if (!cg.equalsIgnoreCase("default")) {
+                if (cg.startsWith("@") && MUSCoalescer.parse(null, cg) != null) {
+                    m_coalescegrouplist.put(MUSCoalescer.parseGroupName(cg).toUpperCase(), cg);
+                } else {
+                    MUSLog.Log("Bad CoalesceGroups entry specified: " + cg, MUSLog.kSys);
+                }
+            }
+        }
+
+        // Get list of groups that keep a message history
+        String[] historygroups = m_props.getStringListProperty("HistoryGroups");
+        for (String hg : historygroups) {
+            if (!hg.equalsIgnoreCase("default")) {
+                if (hg.startsWith("@") && MUSGroupHistory.parse(hg) != null) {
+                    m_historygrouplist.addElement(hg);
+                } else {
+                    MUSLog.Log("Bad HistoryGroups entry specified: " + hg, MUSLog.kSys);
+                }
+            }
+        }
+
         m_maxconnections = m_props.getIntProperty("ConnectionLimit");
         m_messagingLevel = m_props.getIntProperty("MessagingUserLevel");
+        m_threadpool = m_server.getThreadPool(m_props);
+
+        m_msgcounter = m_server.m_metrics.counter("opensmus_movie_messages_total", "movie", m_name);
+        m_interestfiltered = m_server.m_metrics.counter("opensmus_interest_filtered_total", "movie", m_name);
+        m_coalesced = m_server.m_metrics.counter("opensmus_messages_coalesced_total", "movie", m_name);
+        m_queuelatency = m_server.m_metrics.latency("opensmus_message_latency_us", "movie", m_name, "stage", "queue");
+        m_dispatchlatency = m_server.m_metrics.latency("opensmus_message_latency_us", "movie", m_name, "stage", "dispatch");
+        m_writelatency = m_server.m_metrics.latency("opensmus_message_latency_us", "movie", m_name, "stage", "write");
+        m_totallatency = m_server.m_metrics.latency("opensmus_message_latency_us", "movie", m_name, "stage", "total");
+        m_server.m_metrics.gauge("opensmus_movie_users", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return m_userlist.size();
+            }
+        }, "movie", m_name);
+        m_server.m_metrics.gauge("opensmus_movie_groups", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return m_grouplist.size();
+            }
+        }, "movie", m_name);
 
         buildUserlevelCache();
 
@@ -105,6 +172,16 @@ public class MUSMovie implements ServerMovie {
         return m_server;
     }
 
+    // Stops the periodic tasks of groups that outlive the movie (persistent groups)
+    void stopGroupTasks() {
+        for (MUSGroup group : m_grouplist.values()) {
+            if (group.m_coalescer != null)
+                group.m_coalescer.kill();
+            if (group.getState() != null)
+                group.getState().kill();
+        }
+    }
+
     /////////////////////////////////////////////////////////////
 
     //    public synchronized void addGroup(MUSGroup oneGroup) {
@@ -119,6 +196,25 @@ public class MUSMovie implements ServerMovie {
             if (limit != null)
                 oneGroup.setuserLimit(limit.intValue());
 
+            // Each group gets its own index
+            String interest = m_interestgrouplist.get(gkey);
+            if (interest != null)
+                oneGroup.m_interest = MUSInterestGrid.parse(interest);
+
+            String coalesce = m_coalescegrouplist.get(gkey);
+            if (coalesce != null) {
+                MUSCoalescer coalescer = MUSCoalescer.parse(oneGroup, coalesce);
+                coalescer.start(m_server);
+                oneGroup.m_coalescer = coalescer;
+            }
+
+            for (String history : m_historygrouplist) {
+                if (MUSGroupHistory.matches(MUSGroupHistory.parseGroupName(history), oneGroup.m_name)) {
+                    oneGroup.m_history = MUSGroupHistory.parse(history);
+                    break;
+                }
+            }
+
             // Check if script is already initialized
             // Not available when AllUsersGroup is created
             if (m_scriptList != null) {
@@ -142,6 +238,11 @@ public class MUSMovie implements ServerMovie {
 
         m_grouplist.remove(gkey);
 
+        if (oneGroup.m_coalescer != null)
+            oneGroup.m_coalescer.kill();
+        if (oneGroup.getState() != null)
+            oneGroup.getState().kill();
+
         MUSLog.Log("Group removed:" + oneGroup.m_name, MUSLog.kGrp);
     }
 
@@ -294,6 +395,22 @@ public class MUSMovie implements ServerMovie {
     }
 
 
+    // One page of the group names of this movie
+    public LValue srvcmd_getGroups(MUSPage page) {
+
+        LPropList pl = new LPropList();
+        pl.addElement(new LSymbol("movieID"), new LString(m_name));
+        ArrayList<String> names = new ArrayList<String>();
+        for (MUSGroup group : m_grouplist.values()) {
+            names.add(group.m_name);
+        }
+        LList cl = new LList();
+        int next = page.fill(cl, names);
+        pl.addElement(new LSymbol("groups"), cl);
+        MUSPage.addCursor(pl, next, names.size());
+        return pl;
+    }
+
     public LValue srvcmd_getGroupCount() {
 
         LPropList pl = new LPropList();
@@ -613,6 +730,11 @@ public class MUSMovie implements ServerMovie {
 
     public void handleMsg(ServerUser user, MUSMessage msg) {
 
+        m_msgcounter.inc();
+        long dispatched = System.nanoTime();
+        if (msg.m_framed != 0)
+            m_queuelatency.record((dispatched - msg.m_framed) / 1000);
+
         // user.testMessage();
         Enumeration<MUSMsgHeaderString> recipients = msg.m_recptID.elements();
         String recpt;
@@ -654,17 +776,41 @@ public class MUSMovie implements ServerMovie {
             }
         }
 
+        m_dispatchlatency.record((System.nanoTime() - dispatched) / 1000);
+    }
+
+    // Called by groups with an area of interest for the members a message did not need to reach
+    void logInterestFiltered(int skipped) {
+        if (skipped > 0) m_interestfiltered.add(skipped);
+    }
+
+    // Called by groups with coalescing when a message is replaced by a newer one before it was sent
+    void logCoalesced() {
+        m_coalesced.inc();
+    }
+
+    // Called by the user once an outgoing message has been written to the network
+    void logWriteLatency(long written, long framed) {
+
+        long now = System.nanoTime();
+        m_writelatency.record((now - written) / 1000);
+        if (framed != 0)
+            m_totallatency.record((now - framed) / 1000);
     }
 
     public void handleLocalMsg(ServerUser user, String recpt, MUSMessage msg) {
 
         if (recpt.regionMatches(true, 0, "system.", 0, 7)) {  // toLowerCase().startsWith("system.")
+            long started = System.nanoTime();
             handleSystemMsg(user, recpt, msg);
+            // Only known commands get their own series
+            if (m_userlevelcache.containsKey(recpt.toUpperCase()))
+                m_server.logCommandLatency(recpt.toLowerCase(), (System.nanoTime() - started) / 1000);
             return;
         }
 
         if (user.userLevel() < m_messagingLevel) { // Ignore messages if user hasn't got enough privs.
-            MUSLog.Log("REJECTED MSG: " + user + ": " + msg, MUSLog.kDeb);
+            MUSLog.Log(MUSLog.kDeb, "REJECTED MSG: {}: {}", user, msg);
             msg.m_msgContent = new LVoid();
             msg.m_errCode = MUSErrorCode.NotPermittedWithUserLevel;
             user.sendMessage(msg);
@@ -716,6 +862,7 @@ public class MUSMovie implements ServerMovie {
             reply.m_recptID.addElement(new MUSMsgHeaderString(user.name()));
             reply.m_msgContent = new LValue();
             reply.m_udp = msg.m_udp;
+            reply.m_framed = msg.m_framed;
 
             // Some commands will receive the same msg as a reply, update the timestamp here
             msg.m_timeStamp = m_server.timeStamp();
@@ -767,10 +914,10 @@ public class MUSMovie implements ServerMovie {
                 // OpenSMUS specific
 
                 else if (args[2].equalsIgnoreCase("restart")) {
-                    MUSKillServerTimer mks = new MUSKillServerTimer(m_server, 15000);
+                    m_server.m_scheduler.execute("KillServer", new MUSKillServerTimer(m_server, 15000));
                     reply.m_msgContent = new LString("ServerRestarted");
                 } else if (args[2].equalsIgnoreCase("shutdown")) {
-                    MUSShutdownServerTimer mks = new MUSShutdownServerTimer(m_server, 10000);
+                    m_server.m_scheduler.execute("ShutdownServer", new MUSShutdownServerTimer(m_server, 10000));
                     reply.m_msgContent = new LString("ServerRestarted");
                 } else if (args[2].equalsIgnoreCase("disable")) {
                     m_server.disable();
@@ -854,7 +1001,7 @@ public class MUSMovie implements ServerMovie {
                             datalist[i] = argdatalist.getElementAt(i).toString();
                         }
 
-                        MUSEmail em = new MUSEmail(argsender.toString(), argrecpt.toString(), argsubject.toString(), argsmtphost.toString(), datalist);
+                        m_server.m_scheduler.execute("Email", new MUSEmail(argsender.toString(), argrecpt.toString(), argsubject.toString(), argsmtphost.toString(), datalist));
                         reply.m_msgContent = new LString("EmailAccepted");
                     } catch (MUSErrorCode err) {
                         reply.m_errCode = err.m_errCode;
@@ -869,6 +1016,11 @@ public class MUSMovie implements ServerMovie {
             } // End server commands
 
             else if (args[1].equalsIgnoreCase("movie")) {
+                if (args[2].equalsIgnoreCase("getGroups") && MUSPage.isPaged(msg.m_msgContent)) {
+                    handlePagedListMsg(user, args[1], args[2], msg, reply);
+                    return;
+                }
+
                 // All movie commands take the same content list
                 LList contlist = new LList();
                 GetStringListFromContents(contlist, msg.m_msgContent);
@@ -1087,6 +1239,23 @@ public class MUSMovie implements ServerMovie {
                     return;
                 }
 
+                else if (args[2].equalsIgnoreCase("subscribeAttributes") ||
+                        args[2].equalsIgnoreCase("unsubscribeAttributes")) {
+                    handleGroupSubscribeMsg(user, args[2], msg, reply);
+                    return;
+                }
+
+                else if (args[2].equalsIgnoreCase("setState") ||
+                        args[2].equalsIgnoreCase("getState")) {
+                    handleGroupStateMsg(user, args[2], msg, reply);
+                    return;
+                }
+
+                else if (args[2].equalsIgnoreCase("getUsers") && MUSPage.isPaged(msg.m_msgContent)) {
+                    handlePagedListMsg(user, args[1], args[2], msg, reply);
+                    return;
+                }
+
                 // createuniquename does not require parameters
                 else if (args[2].equalsIgnoreCase("createUniqueName")) {
                     reply.m_msgContent = srvcmd_createUniqueName();
@@ -1432,6 +1601,160 @@ public class MUSMovie implements ServerMovie {
 
     }
 
+    // system.group.subscribeAttributes and system.group.unsubscribeAttributes
+    // Content is [#group: "@name"] or [#group: ["@name1", "@name2"]]
+    public void handleGroupSubscribeMsg(ServerUser user, String subcommand, MUSMessage msg, MUSMessage reply) {
+        LValue msgcont = msg.m_msgContent;
+        if (msgcont.getType() != LValue.vt_PropList) {
+            reply.m_errCode = MUSErrorCode.BadParameter;
+            reply.m_msgContent = msgcont;
+            user.sendMessage(reply);
+            return;
+        }
+        LPropList plist = (LPropList) msgcont;
+        try {
+            LList groups = new LList();
+            GetGroupListFromContents(groups, plist.getElement(new LSymbol("group")));
+            LPropList cl = new LPropList();
+
+            for (int e = 0; e < groups.count(); e++) {
+                String groupname = groups.getElementAt(e).toString();
+                try {
+                    MUSGroup thisgroup = getGroup(groupname);
+                    if (subcommand.equalsIgnoreCase("subscribeAttributes")) {
+                        thisgroup.subscribeAttributes(user);
+                        // Current values, the pushed changes start from here
+                        cl.addElement(new LString(groupname), thisgroup.getAllAttributes());
+                    } else {
+                        thisgroup.unsubscribeAttributes(user);
+                        cl.addElement(new LString(groupname), new LPropList());
+                    }
+                } catch (GroupNotFoundException gnf) {
+                    LPropList tl = new LPropList();
+                    tl.addElement(new LSymbol("errorCode"), new LInteger(MUSErrorCode.InvalidGroupName));
+                    reply.m_errCode = MUSErrorCode.MessageContainsErrorInfo;
+                    cl.addElement(new LString(groupname), tl);
+                } catch (UserNotFoundException unf) {
+                    LPropList tl = new LPropList();
+                    tl.addElement(new LSymbol("errorCode"), new LInteger(MUSErrorCode.OperationNotAllowed));
+                    reply.m_errCode = MUSErrorCode.MessageContainsErrorInfo;
+                    cl.addElement(new LString(groupname), tl);
+                }
+            }
+            reply.m_msgContent = cl;
+
+        } catch (PropertyNotFoundException pnf) {
+            reply.m_errCode = MUSErrorCode.BadParameter;
+            reply.m_msgContent = msgcont;
+        } catch (MUSErrorCode err) {
+            reply.m_errCode = err.m_errCode;
+            reply.m_msgContent = msgcont;
+        }
+
+        user.sendMessage(reply);
+    }
+
+    // system.group.setState and system.group.getState
+    // Content is [#group: "@name", #values: ["path.to.item": value]] for setState, [#group: "@name"] for getState
+    public void handleGroupStateMsg(ServerUser user, String statecommand, MUSMessage msg, MUSMessage reply) {
+
+        LValue msgcont = msg.m_msgContent;
+        try {
+            if (msgcont.getType() != LValue.vt_PropList)
+                throw new MUSErrorCode(MUSErrorCode.BadParameter);
+
+            LPropList plist = (LPropList) msgcont;
+            String groupname = plist.getElement(new LSymbol("group")).toString();
+            MUSGroup thisgroup = getGroup(groupname);
+
+            LPropList cl = new LPropList();
+            cl.addElement(new LSymbol("group"), new LString(thisgroup.m_name));
+
+            if (statecommand.equalsIgnoreCase("setState")) {
+                // Only members change the state of a group
+                thisgroup.getUser(user.name());
+
+                LValue values = plist.getElement(new LSymbol("values"));
+                if (values.getType() != LValue.vt_PropList)
+                    throw new MUSErrorCode(MUSErrorCode.BadParameter);
+
+                LPropList vlist = (LPropList) values;
+                MUSGroupState state = thisgroup.createState();
+                for (int e = 0; e < vlist.count(); e++) {
+                    String path = MUSGroupState.keyName(vlist.getPropAt(e));
+                    LValue value = vlist.getElementAt(e);
+                    if (value.getType() == LValue.vt_Void)
+                        state.remove(path);
+                    else
+                        state.set(path, value);
+                }
+                cl.addElement(new LSymbol("tick"), new LInteger(state.getTick()));
+            } else {
+                MUSGroupState state = thisgroup.getState();
+                cl.addElement(new LSymbol("tick"), new LInteger(state == null ? 0 : state.getTick()));
+                cl.addElement(new LSymbol("state"), state == null ? new LPropList() : state.getSnapshot());
+            }
+            reply.m_msgContent = cl;
+
+        } catch (PropertyNotFoundException pnf) {
+            reply.m_errCode = MUSErrorCode.BadParameter;
+            reply.m_msgContent = msgcont;
+        } catch (IllegalArgumentException iae) {
+            // Malformed path
+            reply.m_errCode = MUSErrorCode.BadParameter;
+            reply.m_msgContent = msgcont;
+        } catch (GroupNotFoundException gnf) {
+            reply.m_errCode = MUSErrorCode.InvalidGroupName;
+            reply.m_msgContent = msgcont;
+        } catch (UserNotFoundException unf) {
+            reply.m_errCode = MUSErrorCode.OperationNotAllowed;
+            reply.m_msgContent = msgcont;
+        } catch (MUSErrorCode err) {
+            reply.m_errCode = err.m_errCode;
+            reply.m_msgContent = msgcont;
+        }
+
+        user.sendMessage(reply);
+    }
+
+    // Paged system.movie.getGroups and system.group.getUsers, content [#group or #movieID, #cursor, #limit]
+    public void handlePagedListMsg(ServerUser user, String target, String command, MUSMessage msg, MUSMessage reply) {
+
+        LValue msgcont = msg.m_msgContent;
+        try {
+            MUSPage page = MUSPage.fromContents(msgcont);
+            LPropList plist = (LPropList) msgcont;
+
+            if (target.equalsIgnoreCase("group")) {
+                MUSGroup thisgroup = getGroup(plist.getElement(new LSymbol("group")).toString());
+                reply.m_msgContent = thisgroup.srvcmd_getUsers(page);
+            } else {
+                MUSMovie thismov = this;
+                try {
+                    thismov = m_server.getMovie(plist.getElement(new LSymbol("movieID")).toString());
+                } catch (PropertyNotFoundException pnf) {
+                    // Current movie
+                }
+                reply.m_msgContent = thismov.srvcmd_getGroups(page);
+            }
+
+        } catch (PropertyNotFoundException pnf) {
+            reply.m_errCode = MUSErrorCode.BadParameter;
+            reply.m_msgContent = msgcont;
+        } catch (GroupNotFoundException gnf) {
+            reply.m_errCode = MUSErrorCode.InvalidGroupName;
+            reply.m_msgContent = msgcont;
+        } catch (MovieNotFoundException mnf) {
+            reply.m_errCode = MUSErrorCode.InvalidMovieID;
+            reply.m_msgContent = msgcont;
+        } catch (MUSErrorCode err) {
+            reply.m_errCode = err.m_errCode;
+            reply.m_msgContent = msgcont;
+        }
+
+        user.sendMessage(reply);
+    }
+
     // Handles messages to a group
     public void handleGroupMsg(ServerUser user, String recpt, MUSMessage msg) {
 
@@ -1448,7 +1771,7 @@ public class MUSMovie implements ServerMovie {
             reply.m_recptID = new MUSMsgHeaderStringList();
             reply.m_recptID.addElement(new MUSMsgHeaderString(thisgroup.m_name));
             reply.m_udp = msg.m_udp;
-            thisgroup.sendMessage(reply);
+            thisgroup.sendMessage(user, reply);
         } catch (GroupNotFoundException gnf) {
             // MUSLog.Log("Group not found in handleGroupMsg " + recpt, MUSLog.kDeb);
         } catch (MUSErrorCode err) {
@@ -40,6 +40,10 @@ public class MUSMovieProperties extends MUSServerProperties {
         movieProps = (Properties) serverdef.clone();
         movieProps.put("NotifyDisconnect", "default");
         movieProps.put("GroupSizeLimits", "default");
+        movieProps.put("InterestGroups", "default");
+        movieProps.put("CoalesceGroups", "default");
+        movieProps.put("HistoryGroups", "default");
+        movieProps.put("GroupStateInterval", "100");
 
         try {
             FileInputStream in = new FileInputStream(moviename.toUpperCase() + ".cfg");
@@ -59,6 +63,17 @@ public class MUSMovieProperties extends MUSServerProperties {
         return movieProps.getProperty(prop);
     }
 
+    // Needed to access movie specific settings
+    @Override
+    public int getIntProperty(String prop) {
+        try {
+            return Integer.parseInt(movieProps.getProperty(prop));
+        } catch (NumberFormatException e) {
+            MUSLog.Log("Bad or missing property value in movie configuration file: " + prop, MUSLog.kSys);
+            return 0;
+        }
+    }
+
     // Needed to access movie specific settings
     @Override
     public String[] getStringListProperty(String prop) {
@@ -0,0 +1,122 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Paging parameters of a list command. A list command becomes paged when its content is a
+ * property list with #cursor and/or #limit. The first page is requested with #cursor 0, and
+ * every reply carries the #cursor for the next page, 0 once the list is complete, and the #total
+ * number of items. Cursors are opaque to the client: an offset into the sorted names for lists
+ * held in memory, the last record id for database tables.
+ */
+public class MUSPage {
+
+    public static final int MAXLIMIT = 1000;
+
+    public final int m_cursor;
+    public final int m_limit;
+
+    public MUSPage(int cursor, int limit) {
+        m_cursor = Math.max(0, cursor);
+        m_limit = Math.max(1, Math.min(MAXLIMIT, limit));
+    }
+
+    public static boolean isPaged(LValue content) {
+        if (content.getType() != LValue.vt_PropList)
+            return false;
+
+        LPropList plist = (LPropList) content;
+        return has(plist, "cursor") || has(plist, "limit");
+    }
+
+    private static boolean has(LPropList plist, String prop) {
+        try {
+            plist.getElement(new LSymbol(prop));
+            return true;
+        } catch (PropertyNotFoundException pnf) {
+            return false;
+        }
+    }
+
+    public static MUSPage fromContents(LValue content) throws MUSErrorCode {
+        return fromContents(content, MAXLIMIT);
+    }
+
+    // Same, with the page size to use when the content has no #limit
+    public static MUSPage fromContents(LValue content, int defaultlimit) throws MUSErrorCode {
+        if (content.getType() != LValue.vt_PropList)
+            throw new MUSErrorCode(MUSErrorCode.BadParameter);
+
+        LPropList plist = (LPropList) content;
+        return new MUSPage(getInt(plist, "cursor", 0), getInt(plist, "limit", defaultlimit));
+    }
+
+    private static int getInt(LPropList plist, String prop, int defvalue) throws MUSErrorCode {
+        try {
+            LValue value = plist.getElement(new LSymbol(prop));
+            if (value.getType() != LValue.vt_Integer)
+                throw new MUSErrorCode(MUSErrorCode.BadParameter);
+            return value.toInteger();
+        } catch (PropertyNotFoundException pnf) {
+            return defvalue;
+        }
+    }
+
+    /**
+     * Adds one page of the names to the list, using the cursor as an offset into the sorted names,
+     * so pages follow each other no matter in which order the collection returns them.
+     * Returns the cursor of the next page, 0 if there are no more names.
+     */
+    public int fill(LList list, Collection<String> names) {
+        ArrayList<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted);
+
+        int pos = 0;
+        for (String name : sorted) {
+            if (pos >= m_cursor) {
+                if (list.count() == m_limit)
+                    return pos;
+                list.addElement(new LString(name));
+            }
+            pos++;
+        }
+        return 0;
+    }
+
+    // Adds the #cursor and #total properties of a reply
+    public static void addCursor(LPropList reply, int next, int total) {
+        reply.addElement(new LSymbol("cursor"), new LInteger(next));
+        reply.addElement(new LSymbol("total"), new LInteger(total));
+    }
+}
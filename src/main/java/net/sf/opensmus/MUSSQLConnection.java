@@ -36,10 +36,26 @@ import java.text.CharacterIterator;
 
 
 public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
+    // Guarded by this: a JDBC connection is not safe for concurrent use, so statements,
+    // cursor reads and (re)connecting all hold the lock
     private Connection m_conn;
+    // Guarded by m_authlock: a second connection for the USERS table, so logons do not
+    // wait behind the statements and cursor reads of the SQL gateway
+    private Connection m_authconn;
+    private final Object m_authlock = new Object();
     private MUSServer m_server;
     public boolean m_enabled;
 
+    // Open cursors of the SQL gateway by id
+    private final HashMap<Integer, MUSSQLCursor> m_cursors = new HashMap<Integer, MUSSQLCursor>();
+    // Owners of the cursors whose query is still running, guarded by m_cursors
+    private final ArrayList<String> m_opening = new ArrayList<String>();
+    private int m_nextcursor = 0;
+    private MUSScheduledTask m_cursortask;
+
+    // Runs the system.SQL commands sent by users, on a single thread since they share m_conn
+    private final MUSSQLExecutor m_executor;
+
     String m_driver;
     String m_url;
     String m_userid;
@@ -47,6 +63,9 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
 
     public MUSSQLConnection(MUSServer srv, boolean enableFlag) {
         m_server = srv;
+        m_executor = new MUSSQLExecutor(srv.m_metrics,
+                srv.m_props.getIntProperty("SQLQueueSize"),
+                srv.m_props.getIntProperty("SQLQueueSizePerUser"));
 
         // Exceptions may occur
         try {
@@ -64,10 +83,12 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
 
             // Connect to the database
             m_conn = DriverManager.getConnection(m_url, m_userid, m_password);
+            openAuthConnection();
 
             ensureDBPresence();
             MUSLog.Log("SQL database connection established", MUSLog.kSys);
             m_enabled = true;
+            startCursorExpiry();
 
             processDBConfigCommands();
 
@@ -87,7 +108,7 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
         return m_enabled;
     }
 
-    public boolean connect(String sqldriver, String sqlurl, String sqluser, String sqlpass) {
+    public synchronized boolean connect(String sqldriver, String sqlurl, String sqluser, String sqlpass) {
         // Exceptions may occur
         try {
 
@@ -104,9 +125,11 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
 
             // Connect to the database
             m_conn = DriverManager.getConnection(m_url, m_userid, m_password);
+            openAuthConnection();
 
             MUSLog.Log("SQL connection established", MUSLog.kSys);
             m_enabled = true;
+            startCursorExpiry();
             return m_enabled;
 
         } catch (DBException e) {
@@ -123,7 +146,15 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
         }
     }
 
-    public boolean isConnected() {
+    private void openAuthConnection() throws SQLException {
+        synchronized (m_authlock) {
+            if (m_authconn != null && !m_authconn.isClosed())
+                m_authconn.close();
+            m_authconn = DriverManager.getConnection(m_url, m_userid, m_password);
+        }
+    }
+
+    public synchronized boolean isConnected() {
         // Exceptions may occur
         try {
             return m_conn.isClosed();
@@ -134,7 +165,7 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
         }
     }
 
-    public void checkPoint() {
+    public synchronized void checkPoint() {
         try {
             // checkPoint is only called when the db is enabled
             // make sure connection has not gone bad
@@ -161,9 +192,23 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
         return m_conn;
     }
 
-    public void killDBConnection() {
+    // Lets the queued SQL commands finish, then closes the connection
+    public void kill() {
+        m_executor.kill();
+        killDBConnection();
+    }
+
+    public synchronized void killDBConnection() {
+        if (m_cursortask != null) {
+            m_cursortask.cancel();
+            m_cursortask = null;
+        }
+        closeCursorsOf(null);
         try {
             if (m_enabled) {
+                synchronized (m_authlock) {
+                    m_authconn.close();
+                }
                 try {
                     String dbbackend = m_server.m_props.getProperty("SQLBackend");
                     if (dbbackend.equalsIgnoreCase("hsqldb")) {
@@ -252,267 +297,284 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
         stat.close();
     }
 
-    public synchronized boolean createUser(String usernamein, String password, String userlevel) {
-        try {
+    public boolean createUser(String usernamein, String password, String userlevel) {
+        synchronized (m_authlock) {
+            try {
 
-            String username = usernamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT * FROM USERS WHERE NAME='" + username + "'");
+                String username = usernamein.toUpperCase();
+                Statement stat = m_authconn.createStatement();
+                ResultSet result = stat.executeQuery("SELECT * FROM USERS WHERE NAME='" + username + "'");
 
-            if (result.next()) {
-                MUSLog.Log("User " + username + " already in database", MUSLog.kDB);
-                return false;
-            }
+                if (result.next()) {
+                    MUSLog.Log("User " + username + " already in database", MUSLog.kDB);
+                    return false;
+                }
 
-            // Go on, get next global id for this user
-            ResultSet idresult = stat.executeQuery("SELECT MAX(ID) FROM USERS");
-            int userid = 0;
+                // Go on, get next global id for this user
+                ResultSet idresult = stat.executeQuery("SELECT MAX(ID) FROM USERS");
+                int userid = 0;
 
-            if (idresult.next()) {
-                userid = idresult.getInt(1);
-            }
-            result.close();
-            stat.close();
-            // Increment globalid
-            userid++;
+                if (idresult.next()) {
+                    userid = idresult.getInt(1);
+                }
+                result.close();
+                stat.close();
+                // Increment globalid
+                userid++;
 
-            PreparedStatement prep =
-                    m_conn.prepareStatement("INSERT INTO USERS (ID, NAME, PASSWORD, USERLEVEL, LASTLOGIN) VALUES (?,?,?,?,?)");
+                PreparedStatement prep =
+                        m_authconn.prepareStatement("INSERT INTO USERS (ID, NAME, PASSWORD, USERLEVEL, LASTLOGIN) VALUES (?,?,?,?,?)");
 
-            prep.setInt(1, userid);
-            prep.setString(2, username);
-            prep.setString(3, password);
+                prep.setInt(1, userid);
+                prep.setString(2, username);
+                prep.setString(3, password);
 
-            int currentlevel;
-            try {
-                currentlevel = Integer.parseInt(userlevel);
-            } catch (NumberFormatException e) {
-                currentlevel = m_server.m_props.getIntProperty("DefaultUserLevel");
-            }
+                int currentlevel;
+                try {
+                    currentlevel = Integer.parseInt(userlevel);
+                } catch (NumberFormatException e) {
+                    currentlevel = m_server.m_props.getIntProperty("DefaultUserLevel");
+                }
 
-            prep.setInt(4, currentlevel);
-            prep.setString(5, "NULL");
+                prep.setInt(4, currentlevel);
+                prep.setString(5, "NULL");
 
-            prep.executeUpdate();
-            prep.close();
+                prep.executeUpdate();
+                prep.close();
 
 
-            MUSLog.Log("User " + username + " added to database", MUSLog.kDB);
-            return true;
-        } catch (SQLException sqle) {
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+                MUSLog.Log("User " + username + " added to database", MUSLog.kDB);
+                return true;
+            } catch (SQLException sqle) {
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
 
     public void updateUserLastLoginTime(int userid) {
-        try {
-            PreparedStatement upprep;
-            upprep = m_conn.prepareStatement("UPDATE USERS SET LASTLOGIN=? WHERE ID=?");
-
-            // Update lastlogintime
-            LString currenttime = (LString) MUSAttribute.getTime();
-            upprep.setString(1, currenttime.toString());
-            upprep.setInt(2, userid);
-            upprep.executeUpdate();
-            upprep.clearParameters();
-            upprep.close();
-
-        } catch (SQLException sqle) {
-            MUSLog.Log("Failed to update lastlogintime sql value for user " + userid, MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
+        synchronized (m_authlock) {
+            try {
+                PreparedStatement upprep;
+                upprep = m_authconn.prepareStatement("UPDATE USERS SET LASTLOGIN=? WHERE ID=?");
+
+                // Update lastlogintime
+                LString currenttime = (LString) MUSAttribute.getTime();
+                upprep.setString(1, currenttime.toString());
+                upprep.setInt(2, userid);
+                upprep.executeUpdate();
+                upprep.clearParameters();
+                upprep.close();
+
+            } catch (SQLException sqle) {
+                MUSLog.Log("Failed to update lastlogintime sql value for user " + userid, MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+            }
         }
     }
 
     public int getDBUser(String usernamein) throws DBException, UserNotFoundException {
-        try {
+        synchronized (m_authlock) {
+            try {
 
-            String username = usernamein.toUpperCase();
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT ID FROM USERS WHERE NAME='" + username + "'");
+                String username = usernamein.toUpperCase();
+                Statement stat = m_authconn.createStatement();
+                ResultSet result = stat.executeQuery("SELECT ID FROM USERS WHERE NAME='" + username + "'");
 
-            if (result.next()) {
-                int id = result.getInt(1);
+                if (result.next()) {
+                    int id = result.getInt(1);
+                    result.close();
+                    stat.close();
+                    return id;
+                }
                 result.close();
                 stat.close();
-                return id;
-            }
-            result.close();
-            stat.close();
-            throw new UserNotFoundException("User not found");
+                throw new UserNotFoundException("User not found");
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in getDBUser", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            throw new DBException("User not found");
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in getDBUser", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                throw new DBException("User not found");
+            }
         }
     }
 
     public boolean deleteDBUser(int userid) {
-        try {
-            Statement stat = m_conn.createStatement();
-            stat.executeUpdate("DELETE FROM USERS WHERE ID=" + userid);
-            stat.close();
-            MUSLog.Log("User " + userid + "removed from database", MUSLog.kDB);
-            return true;
+        synchronized (m_authlock) {
+            try {
+                Statement stat = m_authconn.createStatement();
+                stat.executeUpdate("DELETE FROM USERS WHERE ID=" + userid);
+                stat.close();
+                MUSLog.Log("User " + userid + "removed from database", MUSLog.kDB);
+                return true;
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in deleteDBUser", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            return false;
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in deleteDBUser", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                return false;
+            }
         }
     }
 
 
     public int getDBUserLevel(int userid) throws DBException {
-        try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT USERLEVEL FROM USERS WHERE ID=" + userid);
+        synchronized (m_authlock) {
+            try {
+                Statement stat = m_authconn.createStatement();
+                ResultSet result = stat.executeQuery("SELECT USERLEVEL FROM USERS WHERE ID=" + userid);
+
+                if (result.next()) {
+                    int userlevel;
+                    userlevel = result.getInt(1);
+                    result.close();
+                    stat.close();
+                    return userlevel;
+                }
 
-            if (result.next()) {
-                int userlevel;
-                userlevel = result.getInt(1);
                 result.close();
                 stat.close();
-                return userlevel;
-            }
-
-            result.close();
-            stat.close();
-            throw new DBException("Userlevel not found");
+                throw new DBException("Userlevel not found");
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in getDBUserLevel", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            throw new DBException("Userlevel not found");
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in getDBUserLevel", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                throw new DBException("Userlevel not found");
+            }
         }
     }
 
     public String getDBUserPassword(int userid) throws DBException {
-        try {
-            Statement stat = m_conn.createStatement();
-            ResultSet result = stat.executeQuery("SELECT PASSWORD FROM USERS WHERE ID=" + userid);
-
-            if (result.next()) {
-                String pass = result.getString(1);
+        synchronized (m_authlock) {
+            try {
+                Statement stat = m_authconn.createStatement();
+                ResultSet result = stat.executeQuery("SELECT PASSWORD FROM USERS WHERE ID=" + userid);
+
+                if (result.next()) {
+                    String pass = result.getString(1);
+                    result.close();
+                    stat.close();
+                    return pass;
+                }
                 result.close();
                 stat.close();
-                return pass;
-            }
-            result.close();
-            stat.close();
-            throw new DBException("Password not found");
+                throw new DBException("Password not found");
 
-        } catch (SQLException sqle) {
-            MUSLog.Log("SQL exception in getDBUserPassword", MUSLog.kDB);
-            MUSLog.Log(sqle, MUSLog.kDB);
-            throw new DBException("Password not found");
+            } catch (SQLException sqle) {
+                MUSLog.Log("SQL exception in getDBUserPassword", MUSLog.kDB);
+                MUSLog.Log(sqle, MUSLog.kDB);
+                throw new DBException("Password not found");
+            }
         }
     }
 
     public int checkLogin(MUSUser oneUser, String username, String password) {
-
-        ResultSet rs = null;
-        PreparedStatement loginStatement = null;
-        try {
-            loginStatement = m_conn.prepareStatement("SELECT PASSWORD, USERLEVEL FROM USERS WHERE NAME = ?");
-            loginStatement.setString(1, username.toUpperCase());
-            rs = loginStatement.executeQuery();
-
-            if (rs.next()) {
-                // Account with that name exists in the database
-                String storedPW = rs.getString(1);
-                if (password.equals(storedPW)) {
-                    int storedLevel = rs.getInt(2);
-                    oneUser.setuserLevel(storedLevel);
-                } else {
-                    // Password mismatch
-                    return MUSErrorCode.InvalidPassword;
-                }
-            } else {
-                // No account exists
-                if (oneUser.m_movie.getServer().authentication == ServerUserDatabase.AUTHENTICATION_REQUIRED) {  // NullPointerException has happened here...
-                    // UserRecordRequired
-                    return MUSErrorCode.InvalidUserID;
+        synchronized (m_authlock) {
+            ResultSet rs = null;
+            PreparedStatement loginStatement = null;
+            try {
+                loginStatement = m_authconn.prepareStatement("SELECT PASSWORD, USERLEVEL FROM USERS WHERE NAME = ?");
+                loginStatement.setString(1, username.toUpperCase());
+                rs = loginStatement.executeQuery();
+
+                if (rs.next()) {
+                    // Account with that name exists in the database
+                    String storedPW = rs.getString(1);
+                    if (password.equals(storedPW)) {
+                        int storedLevel = rs.getInt(2);
+                        oneUser.setuserLevel(storedLevel);
+                    } else {
+                        // Password mismatch
+                        return MUSErrorCode.InvalidPassword;
+                    }
                 } else {
-                    // No user record exists, but it is ok to login
-                    oneUser.setuserLevel(oneUser.m_movie.m_props.getIntProperty("DefaultUserLevel")); // Gets NullPointerException here sometimes !?
+                    // No account exists
+                    if (oneUser.m_movie.getServer().authentication == ServerUserDatabase.AUTHENTICATION_REQUIRED) {  // NullPointerException has happened here...
+                        // UserRecordRequired
+                        return MUSErrorCode.InvalidUserID;
+                    } else {
+                        // No user record exists, but it is ok to login
+                        oneUser.setuserLevel(oneUser.m_movie.m_props.getIntProperty("DefaultUserLevel")); // Gets NullPointerException here sometimes !?
+                    }
                 }
-            }
 
-        }
-        catch (SQLException e) {
-            // Allow users to log in if the database breaks
-            return 0;
-        }
-        finally {
-            try {
-                if (rs != null) rs.close();
             }
-            catch (Exception e) {
-                //
+            catch (SQLException e) {
+                // Allow users to log in if the database breaks
+                return 0;
             }
-            try {
-                if (loginStatement != null) loginStatement.close();
-            }
-            catch (Exception e) {
-                //
+            finally {
+                try {
+                    if (rs != null) rs.close();
+                }
+                catch (Exception e) {
+                    //
+                }
+                try {
+                    if (loginStatement != null) loginStatement.close();
+                }
+                catch (Exception e) {
+                    //
+                }
             }
-        }
 
-        return 0; // Everything OK. User is cleared to logon.
+            return 0; // Everything OK. User is cleared to logon.
+        }
     }
 
 
-    public boolean executeUpdate(String sqlquery, LList params) {
-        try {
-            // Statement stat = m_conn.createStatement();
-            PreparedStatement prep;
-            prep = m_conn.prepareStatement(sqlquery);
-
-            for (int e = 0; e < params.count(); e++) {
-                LValue thisparam = params.getElementAt(e);
-                switch (thisparam.getType()) {
-                    case LValue.vt_Void:
-                        prep.setNull(e + 1, Types.NULL);
-                        break;
+    // Binds the LValues to the ? placeholders of the statement, mapped to the matching SQL types
+    private void setParameters(PreparedStatement prep, LList params) throws SQLException {
+        for (int e = 0; e < params.count(); e++) {
+            LValue thisparam = params.getElementAt(e);
+            switch (thisparam.getType()) {
+                case LValue.vt_Void:
+                    prep.setNull(e + 1, Types.NULL);
+                    break;
 
-                    case LValue.vt_Integer:
-                        prep.setInt(e + 1, thisparam.toInteger());
-                        break;
+                case LValue.vt_Integer:
+                    prep.setInt(e + 1, thisparam.toInteger());
+                    break;
 
-                    case LValue.vt_Symbol:
-                        prep.setString(e + 1, thisparam.toString());
-                        break;
+                case LValue.vt_Symbol:
+                    prep.setString(e + 1, thisparam.toString());
+                    break;
 
-                    case LValue.vt_String:
-                        prep.setString(e + 1, thisparam.toString());
-                        break;
+                case LValue.vt_String:
+                    prep.setString(e + 1, thisparam.toString());
+                    break;
 
-                    case LValue.vt_Picture:
-                        prep.setBytes(e + 1, thisparam.toBytes());
-                        break;
+                case LValue.vt_Picture:
+                    prep.setBytes(e + 1, thisparam.toBytes());
+                    break;
 
-                    case LValue.vt_Float:
-                        prep.setDouble(e + 1, thisparam.toDouble());
-                        break;
+                case LValue.vt_Float:
+                    prep.setDouble(e + 1, thisparam.toDouble());
+                    break;
 
-                    case LValue.vt_Media:
-                        prep.setBytes(e + 1, thisparam.toBytes());
-                        break;
+                case LValue.vt_Media:
+                    prep.setBytes(e + 1, thisparam.toBytes());
+                    break;
 
-
-                    default:
-                        prep.setInt(e + 1, 0);
-                        break;
-
-                }
+                default:
+                    prep.setInt(e + 1, 0);
+                    break;
 
             }
+        }
+    }
 
-            prep.executeUpdate();
-            prep.close();
+    public synchronized boolean executeUpdate(String sqlquery, LList params) {
+        try {
+            PreparedStatement prep;
+            prep = m_conn.prepareStatement(sqlquery);
+            try {
+                prep.setQueryTimeout(m_server.m_props.getIntProperty("SQLStatementTimeout"));
+                setParameters(prep, params);
+                prep.executeUpdate();
+            } finally {
+                prep.close();
+            }
 
             return true;
         } catch (SQLException sqle) {
@@ -526,156 +588,239 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
         }
     }
 
-    public LValue executeQuery(String sqlquery, LList params) {
+    // Runs the query with the row and byte budget from the configuration
+    private synchronized MUSSQLCursor runQuery(int id, String owner, String sqlquery, LList params) throws SQLException {
+        PreparedStatement prep = m_conn.prepareStatement(sqlquery);
         try {
-            PreparedStatement prep;
-            prep = m_conn.prepareStatement(sqlquery);
+            prep.setQueryTimeout(m_server.m_props.getIntProperty("SQLStatementTimeout"));
+            setParameters(prep, params);
+        } catch (SQLException sqle) {
+            prep.close();
+            throw sqle;
+        }
 
-            for (int e = 0; e < params.count(); e++) {
-                LValue thisparam = params.getElementAt(e);
-                switch (thisparam.getType()) {
-                    case LValue.vt_Void:
-                        prep.setNull(e + 1, Types.NULL);
-                        break;
+        return new MUSSQLCursor(id, owner, prep,
+                m_server.m_props.getIntProperty("SQLQueryMaxRows"),
+                m_server.m_props.getIntProperty("SQLQueryMaxBytes"));
+    }
 
-                    case LValue.vt_Integer:
-                        prep.setInt(e + 1, thisparam.toInteger());
-                        break;
+    public synchronized LValue executeQuery(String sqlquery, LList params) {
+        try {
+            MUSSQLCursor cursor = runQuery(0, null, sqlquery, params);
+            LList ml = cursor.fetch(Integer.MAX_VALUE);
+            if (cursor.isTruncated())
+                MUSLog.Log("Result of executeQuery truncated to " + ml.count() + " rows: " + sqlquery, MUSLog.kDB);
 
-                    case LValue.vt_Symbol:
-                        prep.setString(e + 1, thisparam.toString());
-                        break;
+            return ml;
 
-                    case LValue.vt_String:
-                        prep.setString(e + 1, thisparam.toString());
-                        break;
+        } catch (SQLException sqle) {
+            MUSLog.Log("SQL Exception in executeQuery", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
+            return new LList();
+        } catch (NullPointerException npe) {
+            MUSLog.Log("Null result in executeQuery", MUSLog.kDB);
+            MUSLog.Log(npe, MUSLog.kDB);
+            return new LList();
+        }
+    }
 
-                    case LValue.vt_Picture:
-                        prep.setBytes(e + 1, thisparam.toBytes());
-                        break;
+    public int openQuery(String sqlquery, LList params) {
+        try {
+            return openCursor(null, sqlquery, params).m_id;
 
-                    case LValue.vt_Float:
-                        prep.setDouble(e + 1, thisparam.toDouble());
-                        break;
+        } catch (SQLException sqle) {
+            MUSLog.Log("SQL Exception in openQuery", MUSLog.kDB);
+            MUSLog.Log(sqle, MUSLog.kDB);
+        } catch (MUSErrorCode err) {
+            MUSLog.Log("Could not open query: " + err, MUSLog.kDB);
+        }
+        return 0;
+    }
 
-                    case LValue.vt_Media:
-                        prep.setBytes(e + 1, thisparam.toBytes());
-                        break;
+    public LPropList fetchQuery(int cursor, int rows) {
+        try {
+            return fetchCursor(null, cursor, rows);
+
+        } catch (MUSErrorCode err) {
+            MUSLog.Log("Could not fetch from query " + cursor + ": " + err, MUSLog.kDB);
+            LPropList pl = new LPropList();
+            pl.addElement(new LSymbol("rows"), new LList());
+            pl.addElement(new LSymbol("cursor"), new LInteger(0));
+            return pl;
+        }
+    }
 
-                    default:
-                        prep.setInt(e + 1, 0);
-                        break;
+    public void closeQuery(int cursor) {
+        closeCursor(null, cursor);
+    }
 
+    // Opens a cursor that stays registered until its last row is fetched, it is closed or it expires.
+    // Cursors of users (owner not null) are limited in number and only visible to their owner.
+    private MUSSQLCursor openCursor(String owner, String sqlquery, LList params) throws SQLException, MUSErrorCode {
+        int id;
+        synchronized (m_cursors) {
+            if (owner != null) {
+                int open = 0;
+                for (MUSSQLCursor c : m_cursors.values()) {
+                    if (owner.equals(c.m_owner))
+                        open++;
                 }
-
+                for (String o : m_opening) {
+                    if (owner.equals(o))
+                        open++;
+                }
+                if (open >= m_server.m_props.getIntProperty("SQLCursorsPerUser"))
+                    throw new MUSErrorCode(MUSErrorCode.OperationNotAllowed);
             }
 
-            ResultSet result = prep.executeQuery();
-            ResultSetMetaData meta = result.getMetaData();
-            int numcols = meta.getColumnCount();
-            int[] coltypes = new int[numcols];
-            for (int i = 0; i < numcols; i++) {
-                coltypes[i] = meta.getColumnType(i + 1);
-            }
+            if (++m_nextcursor <= 0)
+                m_nextcursor = 1;
+            id = m_nextcursor;
+            // Hold the slot while the query runs, so concurrent opens stay within the limit
+            m_opening.add(owner);
+        }
 
-            LList ml = new LList();
-
-            while (result.next()) {
-                LList cl = new LList();
-                for (int i = 0; i < numcols; i++) {
-                    switch (coltypes[i]) {
-                        case Types.INTEGER:
-                            cl.addElement(LValue.getLValue(result.getInt(i + 1)));
-                            break;
-
-                        case Types.SMALLINT:
-                            cl.addElement(LValue.getLValue(result.getInt(i + 1)));
-                            break;
-
-                        case Types.BIGINT:
-                            cl.addElement(LValue.getLValue(result.getInt(i + 1)));
-                            break;
-
-                        case Types.TINYINT:
-                            cl.addElement(LValue.getLValue(result.getInt(i + 1)));
-                            break;
-
-                        case Types.REAL:
-                            cl.addElement(LValue.getLValue(result.getFloat(i + 1)));
-                            break;
-
-                        case Types.FLOAT:
-                            cl.addElement(LValue.getLValue(result.getDouble(i + 1)));
-                            break;
-
-                        case Types.NUMERIC:
-                            cl.addElement(LValue.getLValue(result.getDouble(i + 1)));
-                            break;
-
-                        case Types.DOUBLE:
-                            cl.addElement(LValue.getLValue(result.getDouble(i + 1)));
-                            break;
-
-                        case Types.DECIMAL:
-                            // cl.addElement(LValue.getLValue(result.getDouble(i+1)));
-                            cl.addElement(LValue.getLValue(result.getBigDecimal(i + 1).setScale(2).doubleValue()));
-                            break;
-
-                        case Types.BINARY:
-                            cl.addElement(LValue.getLValue(result.getBytes(i + 1)));
-                            break;
-
-                        case Types.VARBINARY:
-                            cl.addElement(LValue.getLValue(result.getBytes(i + 1)));
-                            break;
-
-                        case Types.LONGVARBINARY:
-                            cl.addElement(LValue.getLValue(result.getBytes(i + 1)));
-                            break;
-
-                        case Types.NULL:
-                            cl.addElement(new LVoid());
-                            break;
-
-                        case Types.BIT:
-                        case Types.CHAR:
-                        case Types.DATE:
-                        case Types.LONGVARCHAR:
-                        case Types.OTHER:
-                        case Types.TIME:
-                        case Types.VARCHAR:
-
-                            cl.addElement(LValue.getLValue(result.getString(i + 1)));
-                            break;
-
-                        default:
-                            cl.addElement(new LVoid());
-                            break;
-                    }
-                }
-                ml.addElement(cl);
+        MUSSQLCursor cursor = null;
+        try {
+            cursor = runQuery(id, owner, sqlquery, params);
+        } finally {
+            synchronized (m_cursors) {
+                m_opening.remove(owner);
+                if (cursor != null)
+                    m_cursors.put(id, cursor);
             }
+        }
+        return cursor;
+    }
 
-            result.close();
-            prep.close();
-            return ml;
+    // Next rows of a cursor as [#rows:[...], #cursor:id], with #cursor 0 after the last row.
+    // A result cut short by the budget also has #truncated:1
+    private LPropList fetchCursor(String owner, int id, int rows) throws MUSErrorCode {
+        MUSSQLCursor cursor;
+        synchronized (m_cursors) {
+            cursor = m_cursors.get(id);
+        }
+        if (cursor == null || (owner != null && !owner.equals(cursor.m_owner)))
+            throw new MUSErrorCode(MUSErrorCode.RequestedDataNotFound);
 
+        LList ml;
+        try {
+            synchronized (this) {
+                ml = cursor.fetch(rows);
+            }
         } catch (SQLException sqle) {
-            MUSLog.Log("SQL Exception in executeQuery", MUSLog.kDB);
+            MUSLog.Log("SQL Exception in fetchCursor", MUSLog.kDB);
             MUSLog.Log(sqle, MUSLog.kDB);
-            return new LList();
-        } catch (NullPointerException npe) {
-            MUSLog.Log("Null result in executeQuery", MUSLog.kDB);
-            MUSLog.Log(npe, MUSLog.kDB);
-            return new LList();
+            closeCursor(owner, id);
+            throw new MUSErrorCode(MUSErrorCode.DatabaseError);
+        }
+
+        if (!cursor.hasMore()) {
+            synchronized (m_cursors) {
+                m_cursors.remove(id);
+            }
+        }
+
+        LPropList pl = new LPropList();
+        pl.addElement(new LSymbol("rows"), ml);
+        pl.addElement(new LSymbol("cursor"), new LInteger(cursor.hasMore() ? id : 0));
+        if (cursor.isTruncated())
+            pl.addElement(new LSymbol("truncated"), new LInteger(1));
+        return pl;
+    }
+
+    private boolean closeCursor(String owner, int id) {
+        MUSSQLCursor cursor;
+        synchronized (m_cursors) {
+            cursor = m_cursors.get(id);
+            if (cursor == null || (owner != null && !owner.equals(cursor.m_owner)))
+                return false;
+            m_cursors.remove(id);
+        }
+        synchronized (this) {
+            cursor.close();
+        }
+        return true;
+    }
+
+    // Closes the cursors of a user that leaves the server
+    public void closeCursors(String owner) {
+        if (owner != null)
+            closeCursorsOf(owner);
+    }
+
+    // Closes the cursors of the owner, or all cursors if the owner is null
+    private void closeCursorsOf(String owner) {
+        ArrayList<MUSSQLCursor> closed = new ArrayList<MUSSQLCursor>();
+        synchronized (m_cursors) {
+            Iterator<MUSSQLCursor> it = m_cursors.values().iterator();
+            while (it.hasNext()) {
+                MUSSQLCursor cursor = it.next();
+                if (owner == null || owner.equals(cursor.m_owner)) {
+                    it.remove();
+                    closed.add(cursor);
+                }
+            }
+        }
+        synchronized (this) {
+            for (MUSSQLCursor cursor : closed) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Closes cursors that have not been fetched from for SQLCursorTimeout seconds
+    private void expireCursors() {
+        long oldest = System.currentTimeMillis() - 1000L * m_server.m_props.getIntProperty("SQLCursorTimeout");
+        ArrayList<MUSSQLCursor> expired = new ArrayList<MUSSQLCursor>();
+        synchronized (m_cursors) {
+            Iterator<MUSSQLCursor> it = m_cursors.values().iterator();
+            while (it.hasNext()) {
+                MUSSQLCursor cursor = it.next();
+                if (cursor.getLastUsedTime() < oldest) {
+                    it.remove();
+                    expired.add(cursor);
+                }
+            }
+        }
+        synchronized (this) {
+            for (MUSSQLCursor cursor : expired) {
+                MUSLog.Log("SQL cursor " + cursor.m_id + " expired", MUSLog.kDB);
+                cursor.close();
+            }
         }
     }
 
+    private synchronized void startCursorExpiry() {
+        if (m_cursortask == null) {
+            m_cursortask = m_server.m_scheduler.scheduleWithFixedDelay("SQLCursorExpiry", new Runnable() {
+                public void run() {
+                    expireCursors();
+                }
+            }, 5000, 5000);
+        }
+    }
 
 
     ////////////// Stuff from MUSSQLDispatcher below //////////////
 
-    public void deliver(ServerUser user, MUSMovie mov, String[] args, MUSMessage msg, MUSMessage reply) {
+    public void deliver(final ServerUser user, final MUSMovie mov, final String[] args, final MUSMessage msg, final MUSMessage reply) {
+        // Run on the SQL executor, so the delivering thread does not wait for the database
+        boolean queued = m_executor.execute(user.name(), args[2], new Runnable() {
+            public void run() {
+                handleSQLMsg(user, mov, args, msg, reply);
+            }
+        });
+
+        if (!queued) {
+            MUSLog.Log("SQL command " + args[2] + " of " + user.name() + " rejected, too many SQL commands queued", MUSLog.kDB);
+            reply.m_errCode = MUSErrorCode.DatabaseLocked;
+            reply.m_msgContent = new LInteger(0);
+            user.sendMessage(reply);
+        }
+    }
+
+    private void handleSQLMsg(ServerUser user, MUSMovie mov, String[] args, MUSMessage msg, MUSMessage reply) {
         if (!(m_enabled) & !(args[2].equalsIgnoreCase("connect"))) {
             reply.m_msgContent = new LString("Database disabled");
             user.sendMessage(reply);
@@ -931,11 +1076,64 @@ public class MUSSQLConnection implements ServerUserDatabase, SQLGateway {
                     if (argslots != argparamslist.count())
                         throw new MUSErrorCode(MUSErrorCode.BadParameter);
 
-                    LValue ret = executeQuery(argentrystr.toString(), argparamslist);
+                    // With #limit (or #cursor) the rows are sent in pages, fetched with system.SQL.fetch
+                    if (MUSPage.isPaged(plist)) {
+                        MUSPage page = MUSPage.fromContents(plist, m_server.m_props.getIntProperty("SQLCursorRows"));
+                        MUSSQLCursor cursor;
+                        try {
+                            cursor = openCursor(user.name(), argentrystr.toString(), argparamslist);
+                        } catch (SQLException sqle) {
+                            MUSLog.Log("SQL Exception in executeQuery", MUSLog.kDB);
+                            MUSLog.Log(sqle, MUSLog.kDB);
+                            throw new MUSErrorCode(MUSErrorCode.DatabaseError);
+                        }
+                        reply.m_msgContent = fetchCursor(user.name(), cursor.m_id, page.m_limit);
+                        user.sendMessage(reply);
+                        return;
+                    }
+
+                    LList ret;
+                    try {
+                        MUSSQLCursor cursor;
+                        synchronized (this) {
+                            cursor = runQuery(0, null, argentrystr.toString(), argparamslist);
+                            ret = cursor.fetch(Integer.MAX_VALUE);
+                        }
+                        if (cursor.isTruncated()) {
+                            // Too big to send as one reply, the client should page through it instead
+                            MUSLog.Log("Result of executeQuery from " + user.name() + " exceeds the SQL query budget: " + argentrystr, MUSLog.kDB);
+                            throw new MUSErrorCode(MUSErrorCode.MessageTooLarge);
+                        }
+                    } catch (SQLException sqle) {
+                        MUSLog.Log("SQL Exception in executeQuery", MUSLog.kDB);
+                        MUSLog.Log(sqle, MUSLog.kDB);
+                        ret = new LList();
+                    } catch (NullPointerException npe) {
+                        MUSLog.Log("Null result in executeQuery", MUSLog.kDB);
+                        MUSLog.Log(npe, MUSLog.kDB);
+                        ret = new LList();
+                    }
 
-                    // reply.m_msgContent.addElement(ret);
                     reply.m_msgContent = ret;
 
+                    user.sendMessage(reply);
+                    return;
+                } else if (args[2].equalsIgnoreCase("fetch")) {
+                    MUSPage page = MUSPage.fromContents(plist, m_server.m_props.getIntProperty("SQLCursorRows"));
+                    if (page.m_cursor == 0)
+                        throw new MUSErrorCode(MUSErrorCode.BadParameter);
+
+                    reply.m_msgContent = fetchCursor(user.name(), page.m_cursor, page.m_limit);
+                    user.sendMessage(reply);
+                    return;
+                } else if (args[2].equalsIgnoreCase("closeCursor")) {
+                    MUSPage page = MUSPage.fromContents(plist);
+                    if (!closeCursor(user.name(), page.m_cursor))
+                        throw new MUSErrorCode(MUSErrorCode.RequestedDataNotFound);
+
+                    LPropList pl = new LPropList();
+                    pl.addElement(new LSymbol("cursor"), new LInteger(page.m_cursor));
+                    reply.m_msgContent = pl;
                     user.sendMessage(reply);
                     return;
                 }
@@ -0,0 +1,193 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.sql.*;
+
+/**
+ * An open SQL gateway query whose rows are read a few at a time instead of all at once.
+ * Every cursor has a budget of rows and bytes (the size of the rows as sent to the client);
+ * once it is used up the cursor stops, even if the query has more rows, and reports itself
+ * as truncated. The cursor closes its statement as soon as the last row has been read.
+ */
+public class MUSSQLCursor {
+
+    public final int m_id;
+    public final String m_owner;
+
+    private final PreparedStatement m_prep;
+    private final ResultSet m_result;
+    private final int[] m_coltypes;
+    private final int m_maxrows;
+    private final long m_maxbytes;
+
+    private int m_rows = 0;
+    private long m_bytes = 0;
+    private boolean m_more = true;
+    private boolean m_truncated = false;
+    private volatile long m_lastused;
+
+    /**
+     * Executes the prepared query. The cursor owns the statement from now on.
+     * @param maxrows row budget, 0 for no limit
+     * @param maxbytes byte budget, 0 for no limit
+     */
+    public MUSSQLCursor(int id, String owner, PreparedStatement prep, int maxrows, long maxbytes) throws SQLException {
+        m_id = id;
+        m_owner = owner;
+        m_prep = prep;
+        m_maxrows = maxrows;
+        m_maxbytes = maxbytes;
+
+        try {
+            // One row past the budget tells a truncated result from one that fits exactly
+            if (maxrows > 0)
+                prep.setMaxRows(maxrows + 1);
+            m_result = prep.executeQuery();
+
+            ResultSetMetaData meta = m_result.getMetaData();
+            m_coltypes = new int[meta.getColumnCount()];
+            for (int i = 0; i < m_coltypes.length; i++) {
+                m_coltypes[i] = meta.getColumnType(i + 1);
+            }
+        } catch (SQLException sqle) {
+            prep.close();
+            throw sqle;
+        }
+        m_lastused = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads up to count more rows, each row as an LList.
+     * Fewer rows are returned when the query or the budget runs out.
+     */
+    public synchronized LList fetch(int count) throws SQLException {
+        LList rows = new LList();
+
+        try {
+            while (m_more && rows.count() < count) {
+                if ((m_maxrows > 0 && m_rows >= m_maxrows) || (m_maxbytes > 0 && m_bytes >= m_maxbytes)) {
+                    m_truncated = m_result.next();
+                    m_more = false;
+                } else if (!m_result.next()) {
+                    m_more = false;
+                } else {
+                    LList row = readRow();
+                    m_rows++;
+                    m_bytes += row.getBytes().length;
+                    rows.addElement(row);
+                }
+            }
+        } finally {
+            if (!m_more)
+                close();
+        }
+
+        m_lastused = System.currentTimeMillis();
+        return rows;
+    }
+
+    // True while there may be rows left to fetch
+    public boolean hasMore() {
+        return m_more;
+    }
+
+    // True if the cursor stopped because the row or byte budget was used up
+    public boolean isTruncated() {
+        return m_truncated;
+    }
+
+    public long getLastUsedTime() {
+        return m_lastused;
+    }
+
+    public synchronized void close() {
+        m_more = false;
+        try {
+            m_result.close();
+            m_prep.close();
+        } catch (SQLException sqle) {
+            MUSLog.Log(sqle, MUSLog.kDB);
+        }
+    }
+
+    private LList readRow() throws SQLException {
+        LList cl = new LList();
+        for (int i = 0; i < m_coltypes.length; i++) {
+            switch (m_coltypes[i]) {
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.BIGINT:
+                case Types.TINYINT:
+                    cl.addElement(LValue.getLValue(m_result.getInt(i + 1)));
+                    break;
+
+                case Types.REAL:
+                    cl.addElement(LValue.getLValue(m_result.getFloat(i + 1)));
+                    break;
+
+                case Types.FLOAT:
+                case Types.NUMERIC:
+                case Types.DOUBLE:
+                    cl.addElement(LValue.getLValue(m_result.getDouble(i + 1)));
+                    break;
+
+                case Types.DECIMAL:
+                    cl.addElement(LValue.getLValue(m_result.getBigDecimal(i + 1).setScale(2).doubleValue()));
+                    break;
+
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                    cl.addElement(LValue.getLValue(m_result.getBytes(i + 1)));
+                    break;
+
+                case Types.NULL:
+                    cl.addElement(new LVoid());
+                    break;
+
+                case Types.BIT:
+                case Types.CHAR:
+                case Types.DATE:
+                case Types.LONGVARCHAR:
+                case Types.OTHER:
+                case Types.TIME:
+                case Types.VARCHAR:
+                    cl.addElement(LValue.getLValue(m_result.getString(i + 1)));
+                    break;
+
+                default:
+                    cl.addElement(new LVoid());
+                    break;
+            }
+        }
+        return cl;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs SQL gateway commands on a thread of their own, so a slow query does not hold up the
+ * thread that delivers messages. The gateway shares one JDBC connection, so commands run one
+ * at a time: commands of the same user in the order they were sent, users taking turns.
+ * The number of waiting commands is limited in total and per user; a command that does not
+ * fit is rejected instead of waiting.
+ */
+public class MUSSQLExecutor {
+
+    private final ThreadPoolExecutor m_executor;
+    private final int m_maxqueued;
+    private final int m_maxqueuedperuser;
+
+    // Commands waiting or running, by user. Also guards m_queued
+    private final HashMap<String, UserQueue> m_queues = new HashMap<String, UserQueue>();
+    private int m_queued = 0;
+
+    private final MUSMetrics.Counter m_rejected;
+    private final MUSMetrics m_metrics;
+
+    public MUSSQLExecutor(MUSMetrics metrics, int maxqueued, int maxqueuedperuser) {
+
+        m_maxqueued = maxqueued;
+        m_maxqueuedperuser = maxqueuedperuser;
+        m_metrics = metrics;
+        m_rejected = metrics.counter("opensmus_sql_rejected_total");
+
+        // Only one task per user is ever in the pool's queue, the queue limits are enforced by execute()
+        m_executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SQLExecutor-" + m_count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        m_executor.allowCoreThreadTimeOut(true);
+
+        metrics.gauge("opensmus_sql_queue_depth", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return getQueued();
+            }
+        });
+    }
+
+    /**
+     * Queues a command of the user.
+     * @param command name used for the metrics, e.g. executeQuery
+     * @return false if the queues are full and the command was not accepted
+     */
+    public boolean execute(String user, String command, Runnable task) {
+        Command cmd = new Command(command, task);
+        UserQueue queue;
+
+        synchronized (m_queues) {
+            queue = m_queues.get(user);
+            if (m_queued >= m_maxqueued || (queue != null && queue.m_commands.size() >= m_maxqueuedperuser)) {
+                m_rejected.inc();
+                return false;
+            }
+
+            m_queued++;
+            if (queue == null) {
+                queue = new UserQueue(user);
+                m_queues.put(user, queue);
+            }
+            queue.m_commands.add(cmd);
+
+            // A queue that already has commands is being worked on
+            if (queue.m_commands.size() > 1)
+                return true;
+        }
+
+        try {
+            m_executor.execute(queue);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            synchronized (m_queues) {
+                m_queues.remove(user);
+                m_queued--;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // Commands waiting or running
+    public int getQueued() {
+        synchronized (m_queues) {
+            return m_queued;
+        }
+    }
+
+    public int getActiveThreads() {
+        return m_executor.getActiveCount();
+    }
+
+    // Stops accepting commands and waits a little for the running ones to finish
+    public void kill() {
+        m_executor.shutdown();
+        try {
+            if (!m_executor.awaitTermination(5, TimeUnit.SECONDS))
+                MUSLog.Log("SQL commands still running at shutdown", MUSLog.kDB);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //////////
+
+    private static class Command {
+
+        final String m_name;
+        final Runnable m_task;
+        final long m_queuedtime = System.nanoTime();
+
+        Command(String name, Runnable task) {
+            m_name = name;
+            m_task = task;
+        }
+    }
+
+    // The commands of one user. Runs the first command, then goes to the back of the pool's queue for the next one
+    private class UserQueue implements Runnable {
+
+        final String m_user;
+        final ArrayDeque<Command> m_commands = new ArrayDeque<Command>();
+
+        UserQueue(String user) {
+            m_user = user;
+        }
+
+        public void run() {
+            while (runFirst()) {
+                try {
+                    m_executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Shutting down, finish the commands already accepted on this thread
+                }
+            }
+        }
+
+        // Runs the first command, returns true if more are waiting
+        private boolean runFirst() {
+            Command cmd;
+            synchronized (m_queues) {
+                cmd = m_commands.peek();
+            }
+
+            long start = System.nanoTime();
+            m_metrics.latency("opensmus_sql_queue_latency_us", "command", cmd.m_name).record((start - cmd.m_queuedtime) / 1000);
+            try {
+                cmd.m_task.run();
+            } catch (RuntimeException e) {
+                MUSLog.Log("Error in SQL command " + cmd.m_name + " of " + m_user, MUSLog.kDB);
+                MUSLog.Log(e, MUSLog.kDB);
+            }
+            m_metrics.latency("opensmus_sql_execution_latency_us", "command", cmd.m_name).record((System.nanoTime() - start) / 1000);
+
+            synchronized (m_queues) {
+                m_commands.poll();
+                m_queued--;
+                if (m_commands.isEmpty()) {
+                    m_queues.remove(m_user);
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import org.jboss.netty.util.Timeout;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle for a task run by the MUSScheduler. Can be used to cancel the task
+ * and to check when and how often it ran.
+ */
+public class MUSScheduledTask implements Runnable {
+
+    private final MUSScheduler m_scheduler;
+    private final String m_name;
+    private final Runnable m_task;
+    private final long m_period; // 0 for one-shot tasks
+
+    volatile long m_deadline; // Next planned run, in ms
+    volatile Timeout m_timeout;
+    volatile Future<?> m_future;
+
+    private volatile boolean m_cancelled = false;
+    private volatile boolean m_done = false;
+    private volatile long m_lastrun = 0;
+    private final AtomicInteger m_runs = new AtomicInteger();
+    private final AtomicInteger m_failures = new AtomicInteger();
+
+    MUSScheduledTask(MUSScheduler scheduler, String name, Runnable task, long delay, long period) {
+        m_scheduler = scheduler;
+        m_name = name;
+        m_task = task;
+        m_period = period;
+        m_deadline = System.currentTimeMillis() + delay;
+    }
+
+    public void run() {
+        if (m_cancelled) return;
+
+        m_lastrun = System.currentTimeMillis();
+        try {
+            m_task.run();
+        } catch (Exception e) {
+            // Never let an exception kill a periodic task
+            m_failures.incrementAndGet();
+            MUSLog.Log("Scheduled task " + m_name + " failed: " + e, MUSLog.kDeb);
+            MUSLog.Log(e, MUSLog.kDeb);
+        }
+        m_runs.incrementAndGet();
+
+        if (m_period > 0) {
+            m_deadline = System.currentTimeMillis() + m_period;
+        } else {
+            m_done = true;
+            m_scheduler.taskFinished(this);
+        }
+    }
+
+    public void cancel() {
+        if (m_done || m_cancelled) return;
+
+        m_cancelled = true;
+        if (m_timeout != null) m_timeout.cancel();
+        if (m_future != null) m_future.cancel(false);
+        m_scheduler.taskFinished(this);
+    }
+
+    public String name() {
+        return m_name;
+    }
+
+    public boolean isPeriodic() {
+        return m_period > 0;
+    }
+
+    public boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    public boolean isDone() {
+        return m_done || m_cancelled;
+    }
+
+    // Milliseconds until the next run
+    public long getDelay() {
+        return Math.max(0, m_deadline - System.currentTimeMillis());
+    }
+
+    public long getLastRunTime() {
+        return m_lastrun;
+    }
+
+    public int getRunCount() {
+        return m_runs.get();
+    }
+
+    public int getFailureCount() {
+        return m_failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return m_name + (isPeriodic() ? " (every " + m_period + " ms)" : "") + ", next run in " + getDelay() + " ms, "
+                + m_runs.get() + " runs, " + m_failures.get() + " failures";
+    }
+}
@@ -0,0 +1,209 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all delayed and periodic server work.
+ * One-shot delays (e.g. disconnecting a user) are kept in a hashed timing wheel, so thousands
+ * of them cost no threads. Expired and periodic tasks run on a small scheduled executor.
+ */
+public class MUSScheduler {
+
+    public static final int EXECUTOR_THREADS = 2;
+
+    private final HashedWheelTimer m_wheel;
+    private final ScheduledThreadPoolExecutor m_executor;
+    private final Set<MUSScheduledTask> m_tasks = Collections.newSetFromMap(new ConcurrentHashMap<MUSScheduledTask, Boolean>());
+
+    private final AtomicLong m_scheduled = new AtomicLong();
+    private final AtomicLong m_finished = new AtomicLong();
+
+    public MUSScheduler() {
+
+        m_wheel = new HashedWheelTimer(new NamedThreadFactory("OpenSMUSTimer"), 100, TimeUnit.MILLISECONDS);
+        m_executor = new ScheduledThreadPoolExecutor(EXECUTOR_THREADS, new NamedThreadFactory("OpenSMUSScheduler"));
+    }
+
+    // The timing wheel, shared with Netty handlers that need timeouts (e.g. IdleStateHandler)
+    public Timer getTimer() {
+        return m_wheel;
+    }
+
+    // Run the task once after the delay (ms)
+    public MUSScheduledTask schedule(String name, Runnable task, long delay) {
+
+        MUSScheduledTask st = new MUSScheduledTask(this, name, task, delay, 0);
+        addTask(st);
+        try {
+            st.m_timeout = m_wheel.newTimeout(new WheelTask(st), delay, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // The wheel is stopped
+            rejected(st);
+        }
+        return st;
+    }
+
+    // Run the task every period (ms), starting after the initial delay (ms)
+    public MUSScheduledTask scheduleWithFixedDelay(String name, Runnable task, long initialDelay, long period) {
+
+        MUSScheduledTask st = new MUSScheduledTask(this, name, task, initialDelay, period);
+        addTask(st);
+        try {
+            st.m_future = m_executor.scheduleWithFixedDelay(st, initialDelay, period, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The executor is stopped
+            rejected(st);
+        }
+        return st;
+    }
+
+    // Run the task as soon as possible
+    public MUSScheduledTask execute(String name, Runnable task) {
+
+        MUSScheduledTask st = new MUSScheduledTask(this, name, task, 0, 0);
+        addTask(st);
+        submit(st);
+        return st;
+    }
+
+    public List<MUSScheduledTask> getTasks() {
+        return new ArrayList<MUSScheduledTask>(m_tasks);
+    }
+
+    public int getPendingCount() {
+        return m_tasks.size();
+    }
+
+    public long getScheduledCount() {
+        return m_scheduled.get();
+    }
+
+    public long getFinishedCount() {
+        return m_finished.get();
+    }
+
+    public String getStatus() {
+        return m_tasks.size() + " tasks pending, " + m_scheduled.get() + " scheduled, " + m_finished.get() + " finished";
+    }
+
+    /**
+     * Stops all periodic tasks. Pending one-shot tasks still run at their planned time,
+     * after which the scheduler threads exit. Tasks scheduled afterwards are logged and dropped.
+     */
+    public void shutdown() {
+
+        for (MUSScheduledTask st : m_tasks) {
+            if (st.isPeriodic()) st.cancel();
+        }
+
+        for (Timeout t : m_wheel.stop()) {
+            if (!(t.getTask() instanceof WheelTask)) continue; // Netty timeouts
+
+            MUSScheduledTask st = ((WheelTask) t.getTask()).m_task;
+            if (!st.isDone()) {
+                st.m_future = m_executor.schedule(st, st.getDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        m_executor.shutdown();
+    }
+
+    void taskFinished(MUSScheduledTask st) {
+        if (m_tasks.remove(st)) {
+            m_finished.incrementAndGet();
+        }
+    }
+
+    private void addTask(MUSScheduledTask st) {
+        m_tasks.add(st);
+        m_scheduled.incrementAndGet();
+    }
+
+    private void submit(MUSScheduledTask st) {
+        try {
+            st.m_future = m_executor.submit(st);
+        } catch (RejectedExecutionException e) {
+            rejected(st);
+        }
+    }
+
+    // Late teardown work may still schedule tasks, they are dropped instead of failing the caller
+    private void rejected(MUSScheduledTask st) {
+        MUSLog.Log("Scheduled task " + st.name() + " rejected, scheduler is stopped", MUSLog.kDeb);
+        st.cancel();
+    }
+
+    //////////
+
+    // Keeps the wheel thread free, the task itself runs on the executor
+    private class WheelTask implements TimerTask {
+
+        final MUSScheduledTask m_task;
+
+        WheelTask(MUSScheduledTask st) {
+            m_task = st;
+        }
+
+        public void run(Timeout timeout) {
+            submit(m_task);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            m_prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, m_prefix + "Thread-" + m_count.incrementAndGet());
+        }
+    }
+}
@@ -51,6 +51,7 @@ public class MUSServer implements ServerObject {
 
     public final ConcurrentHashMap<String, MUSUser> m_clientlist = new ConcurrentHashMap<String, MUSUser>();
     public final ConcurrentHashMap<String, MUSMovie> m_movielist = new ConcurrentHashMap<String, MUSMovie>();
+    public final ConcurrentHashMap<String, MUSThreadPool> m_threadpools = new ConcurrentHashMap<String, MUSThreadPool>();
 
     protected MUSServerLoginQueue m_loginqueue;
 
@@ -85,8 +86,10 @@ public class MUSServer implements ServerObject {
     public String encryptionKey;
     public int authentication; // Valid states defined in ServerUserDatabase
 
-    private MUSIdleCheck m_bgtask;
-    private MUSServerStatusLogger m_slogger;
+    public MUSScheduler m_scheduler;
+    private MUSLogWriter m_logwriter;
+    private MUSScheduledTask m_bgtask;
+    private MUSScheduledTask m_slogger;
 
     public int m_udpStartingPort = 1627;
     public String m_udpAddress = "default";
@@ -95,11 +98,16 @@ public class MUSServer implements ServerObject {
     protected Vector<Integer> m_udpPortsInUse = new Vector<Integer>();
     public ChannelGroup UDP_channels;
 
-    public long in_bytes = 0;
-    public long out_bytes = 0;
-    public long in_msg = 0;
-    public long out_msg = 0;
-    public long drop_msg = 0;
+    public final MUSMetrics m_metrics = new MUSMetrics();
+    private MUSMetricsPort m_metricsport;
+    public MUSTrafficCapture m_capture; // null unless TrafficCaptureFile is set
+    private final MUSMetrics.Counter m_inbytes = m_metrics.counter("opensmus_bytes_in_total");
+    private final MUSMetrics.Counter m_outbytes = m_metrics.counter("opensmus_bytes_out_total");
+    private final MUSMetrics.Counter m_inmsg = m_metrics.counter("opensmus_messages_in_total");
+    private final MUSMetrics.Counter m_outmsg = m_metrics.counter("opensmus_messages_out_total");
+    private final MUSMetrics.Counter m_dropmsg = m_metrics.counter("opensmus_messages_dropped_total");
+    private final MUSMetrics.CounterFamily m_subjectinbytes = m_metrics.counterFamily("opensmus_subject_bytes_in_total", "subject");
+    private final MUSMetrics.CounterFamily m_subjectoutbytes = m_metrics.counterFamily("opensmus_subject_bytes_out_total", "subject");
 
     /////////////////////////////////////////////////////////////
     public MUSServer() {
@@ -119,6 +127,8 @@ public class MUSServer implements ServerObject {
 
         this.installServerLogging();
 
+        m_scheduler = new MUSScheduler();
+
         int loglevel = MUSLog.kSys;
         if (m_props.getIntProperty("LogServerEvents") == 1)
             loglevel = loglevel | MUSLog.kSrv;
@@ -182,6 +192,7 @@ public class MUSServer implements ServerObject {
 
         this.installLoginQueueing();
         this.installIdleChecker();
+        this.installMetrics();
 
         if (this.m_props.getIntProperty("ServerStatusReportInterval") != 0) {
         	this.installStatusLogger();
@@ -191,8 +202,17 @@ public class MUSServer implements ServerObject {
 
         m_starttime = System.currentTimeMillis();
 
+        if (!m_props.getProperty("TrafficCaptureFile").equalsIgnoreCase("none")) {
+            this.installTrafficCapture();
+        }
+
         initConnectionPorts();
 
+        if (m_props.getIntProperty("EnableMetricsHttp") == 1) {
+            String metricsaddress = m_props.getProperty("MetricsHttpAddress");
+            m_metricsport = new MUSMetricsPort(this, MUSServerProperties.parseIPAddress(metricsaddress), MUSServerProperties.parseIPPort(metricsaddress));
+        }
+
         if (m_props.getIntProperty("EnableUDP") == 1) {
             // Netty Init UDP
             // http://www.adobe.com/support/director/multiuser/using_udp/using_udp02.html
@@ -244,15 +264,28 @@ public class MUSServer implements ServerObject {
     /////////////////////////////////////////////////////////////
     public void killServer() {
 
-        m_sqlConn.killDBConnection();
+        m_sqlConn.kill();
         m_dbConn.killDBConnection();
 
         m_loginqueue.kill();
 
         freeConnectionPorts();
 
+        if (m_metricsport != null)
+            m_metricsport.killMetricsPort();
+
         disconnectAllUsers();
 
+        if (m_capture != null)
+            m_capture.kill();
+
+        // Periodic tasks stop here, the scheduled user disconnects still run
+        m_scheduler.shutdown();
+
+        for (MUSThreadPool tp : m_threadpools.values()) {
+            tp.kill();
+        }
+
         m_alive = false;
 
         MUSLog.Log("Server Stopped", MUSLog.kSys);
@@ -260,6 +293,51 @@ public class MUSServer implements ServerObject {
         this.deinstallServerLogging();
     }
 
+    // Traffic is counted by the LogFilter, only installed if someone reads the numbers
+    public boolean collectsTrafficMetrics() {
+        return m_props.getIntProperty("ServerStatusReportInterval") != 0 || m_props.getIntProperty("EnableMetricsHttp") == 1;
+    }
+
+    // Returns the server wide message thread pool, or null if ThreadPoolSize is 0
+    public MUSThreadPool getDefaultThreadPool() {
+        return getThreadPool(MUSThreadPool.DEFAULT_POOL, m_props);
+    }
+
+    // Movies with a ThreadPool setting get their own pool, shared with other movies using the same pool name
+    public MUSThreadPool getThreadPool(MUSMovieProperties movprops) {
+        String poolname = movprops.getProperty("ThreadPool");
+        if (poolname == null || poolname.equalsIgnoreCase(MUSThreadPool.DEFAULT_POOL))
+            return getDefaultThreadPool();
+
+        return getThreadPool(poolname.toUpperCase(), movprops);
+    }
+
+    private synchronized MUSThreadPool getThreadPool(String poolname, MUSServerProperties props) {
+        MUSThreadPool tp = m_threadpools.get(poolname);
+        if (tp == null) {
+            // The first movie using a pool decides its size
+            int size = props.getIntProperty("ThreadPoolSize");
+            if (size <= 0)
+                return null;
+
+            tp = new MUSThreadPool(poolname, size, props.getIntProperty("MaxUserMemorySize"), props.getIntProperty("MaxTotalMemorySize"));
+            m_threadpools.put(poolname, tp);
+
+            final MUSThreadPool pool = tp;
+            m_metrics.gauge("opensmus_pool_queue_depth", new MUSMetrics.GaugeSource() {
+                public long value() {
+                    return pool.getQueueDepth();
+                }
+            }, "pool", poolname);
+            m_metrics.gauge("opensmus_pool_active_threads", new MUSMetrics.GaugeSource() {
+                public long value() {
+                    return pool.getActiveThreads();
+                }
+            }, "pool", poolname);
+        }
+        return tp;
+    }
+
     public void disconnectAllUsers() {
 
         for (MUSUser mu : m_clientlist.values()) {
@@ -325,48 +403,6 @@ public class MUSServer implements ServerObject {
         }
     }
 
-    public void ensureLoggerThreadIsAlive() {
-        // MUSLog.Log("Checking health of status logger thread", MUSLog.kDeb);
-        // Status logger is initialized after the bgtask idle check, avoid null
-        if (m_slogger != null) {
-            if (m_slogger.isInterrupted() || !m_slogger.isAlive()) {
-                MUSLog.Log("Server status logger thread restarted", MUSLog.kDeb);
-                
-                this.installStatusLogger();
-            }
-        }
-    }
-
-    public void ensureThreadsAreAlive() {
-        try {
-            MUSLog.Log("Checking health of server threads", MUSLog.kDeb);
-
-            if (m_bgtask.isInterrupted() || !m_bgtask.isAlive()) {
-                MUSLog.Log("Idle check thread restarted", MUSLog.kDeb);
-                this.installIdleChecker();
-            }
-
-            // Status logger is initialized after the bgtask idle check, avoid null
-            if (m_slogger != null) {
-                if (m_slogger.isInterrupted() || !m_slogger.isAlive()) {
-                    MUSLog.Log("Server status logger thread restarted", MUSLog.kDeb);
-                    this.installStatusLogger();
-                }
-            }
-
-            if (m_loginqueue.isInterrupted() || !m_loginqueue.isAlive()) {
-                MUSLog.Log("Login message queue thread restarted", MUSLog.kDeb);
-                this.installLoginQueueing();
-            }
-
-        } catch (NullPointerException e) {
-            MUSLog.Log("Null pointer when checking threads status", MUSLog.kDeb);
-            MUSLog.Log(e, MUSLog.kDeb);
-        }
-    }
-
-    /////////////////////////////////////////////////////////////
-    // public synchronized void removeMUSUser(MUSUser oneClient) {
     public void removeMUSUser(MUSUser oneClient) {
         m_clientlist.remove(oneClient.m_name.toUpperCase());
     }
@@ -389,17 +425,66 @@ public class MUSServer implements ServerObject {
     }
 
     public void logInBytes(int bytes) {
-        in_bytes += bytes;
-        in_msg++;
+        m_inbytes.add(bytes);
+        m_inmsg.inc();
     }
 
     public void logOutBytes(int bytes) {
-        out_bytes += bytes;
-        out_msg++;
+        m_outbytes.add(bytes);
+        m_outmsg.inc();
     }
 
     public void logDroppedMsg() {
-        drop_msg++;
+        m_dropmsg.inc();
+    }
+
+    // Bytes per message subject, subjects are chosen by clients so the number of series is capped
+    public void logInSubject(String subject, int bytes) {
+        m_subjectinbytes.get(subject).add(bytes);
+    }
+
+    public void logOutSubject(String subject, int bytes) {
+        m_subjectoutbytes.get(subject).add(bytes);
+    }
+
+    public void logCommandLatency(String command, long micros) {
+        m_metrics.latency("opensmus_command_latency_us", "command", command).record(micros);
+    }
+
+    public void logLoginResult(int errCode) {
+        m_metrics.counter("opensmus_logins_total", "result", MUSErrorCode.getName(errCode)).inc();
+    }
+
+    private void installMetrics() {
+
+        m_metrics.gauge("opensmus_users", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return m_clientlist.size();
+            }
+        });
+        m_metrics.gauge("opensmus_movies", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return m_movielist.size();
+            }
+        });
+        m_metrics.gauge("opensmus_login_queue_depth", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return m_loginqueue.m_queue.size();
+            }
+        });
+        m_metrics.gauge("opensmus_scheduler_tasks", new MUSMetrics.GaugeSource() {
+            public long value() {
+                return m_scheduler.getPendingCount();
+            }
+        });
+        if (m_logwriter != null) {
+            final MUSLogWriter logwriter = m_logwriter;
+            m_metrics.gauge("opensmus_log_queue_depth", new MUSMetrics.GaugeSource() {
+                public long value() {
+                    return logwriter.getQueuedCount();
+                }
+            });
+        }
     }
 
     public void addConnectionPort(MUSConnectionPort onePort) {
@@ -828,6 +913,8 @@ public class MUSServer implements ServerObject {
                     try {
                         int userid = authdb.getDBUser(logmsg.m_userID.toUpperCase());
                         authdb.updateUserLastLoginTime(userid);
+                        if (authdb == m_dbConn)
+                            oneUser.m_dbuserid = userid;
                     } catch (UserNotFoundException dbe) {
                     } catch (DBException dbe) {
                     }
@@ -837,7 +924,7 @@ public class MUSServer implements ServerObject {
         } else // Wrong subject in message
         {
             // Not logged and wrong Logon Message
-            MUSLog.Log("Login error: wrong logon message from " + oneUser + ": " + msg.m_subject, MUSLog.kDeb);
+            MUSLog.Log(MUSLog.kDeb, "Login error: wrong logon message from {}: {}", oneUser, msg.m_subject);
             // throw new NullPointerException();
             oneUser.deleteUser();
         }
@@ -858,6 +945,8 @@ public class MUSServer implements ServerObject {
 
         String gkey = onemovie.m_name.toUpperCase();
         m_movielist.remove(gkey);
+        onemovie.stopGroupTasks();
+        m_metrics.removeLabel("movie", onemovie.name());
 
         MUSLog.Log("Movie removed:" + onemovie.name(), MUSLog.kMov);
     }
@@ -1003,17 +1092,27 @@ public class MUSServer implements ServerObject {
     	
     	MUSServerStatusLogger logger = new MUSServerStatusLogger(
     			this, this.m_props.getIntProperty("ServerStatusReportInterval"));
-    	logger.start();
     	
-    	this.m_slogger = logger;
+    	this.m_slogger = m_scheduler.scheduleWithFixedDelay("ServerStatusLogger", logger, 0, logger.getInterval() * 1000L);
     }
     
+    private void installTrafficCapture() {
+
+        File captureFile = new File(m_props.getProperty("TrafficCaptureFile"));
+        try {
+            m_capture = new MUSTrafficCapture(captureFile, m_props.getIntProperty("TrafficCaptureMaxSize") * 1024L);
+            m_capture.start();
+            MUSLog.Log("Capturing incoming traffic to " + captureFile, MUSLog.kSys);
+        } catch (IOException e) {
+            MUSLog.Log("Could not open traffic capture file " + captureFile + ": " + e, MUSLog.kSys);
+        }
+    }
+
     private void installIdleChecker() {
     	
-    	MUSIdleCheck checkThread = new MUSIdleCheck(this);
-    	checkThread.start();
+    	MUSIdleCheck check = new MUSIdleCheck(this);
     	
-    	this.m_bgtask = checkThread;
+    	this.m_bgtask = m_scheduler.scheduleWithFixedDelay("IdleCheck", check, check.getInterval() * 1000L, check.getInterval() * 1000L);
     }
     
     private void installLoginQueueing() {
@@ -1026,40 +1125,47 @@ public class MUSServer implements ServerObject {
     }
     
     /**
-     * Installs the server logging by redirecting the standard system out to the 
-     * server log file
+     * Installs the server logging. Log messages are written by a background thread, 
+     * to the server log file or the console. Standard system out is redirected to the log file.
      */
     private void installServerLogging() {
     	
+        File logFile = null;
+        boolean appendToLog = true;
         if (this.doesServerLogging()) {
+            logFile = new File(m_props.getProperty("LogFileName"));
+            if (m_props.getIntProperty("ClearLogAtStartup") == 1)
+                appendToLog = false;
+        }
 
-        	try {
-                boolean appendToLog = true;
-                if (m_props.getIntProperty("ClearLogAtStartup") == 1)
-                    appendToLog = false;
-
-                PrintStream stdout = new PrintStream(
-                		new BufferedOutputStream(new FileOutputStream(m_props.getProperty("LogFileName"), appendToLog), 128), true);
-                System.setOut(stdout);
-            } 
-        	catch (IOException e) {
-                MUSLog.Log("Error creating log file", MUSLog.kSys);
-            }
+        try {
+            m_logwriter = new MUSLogWriter(logFile, appendToLog, m_props.getIntProperty("LogBufferSize"),
+                    m_props.getIntProperty("LogFileMaxSize") * 1024L, m_props.getIntProperty("LogFileBackups"));
+            m_logwriter.start();
+            MUSLog.setWriter(m_logwriter);
+
+            if (logFile != null)
+                System.setOut(m_logwriter.asPrintStream());
+        }
+        catch (IOException e) {
+            MUSLog.Log("Error creating log file", MUSLog.kSys);
         }
     }
     
     /**
-     * Deinstalls the server logging by setting standard output back to console 
-     * and closing the server log file
+     * Deinstalls the server logging by writing all pending log messages, closing the
+     * server log file and setting standard output back to console 
      */
     private void deinstallServerLogging() {
     	
+        if (m_logwriter == null)
+            return;
+
+        MUSLog.setWriter(null);
+        m_logwriter.kill();
+        m_logwriter = null;
+
     	if (this.doesServerLogging()) {
-    		
-    		PrintStream serverLoggingStream = System.out;
-    		if (serverLoggingStream != null)
-    			serverLoggingStream.close();
-    		
             PrintStream stdout = new PrintStream(
             		new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 128), true);
             System.setOut(stdout);
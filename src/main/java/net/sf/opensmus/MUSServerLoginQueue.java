@@ -72,7 +72,7 @@ public class MUSServerLoginQueue extends Thread {
                     try {
                     	this.m_server.processLogonMessage(msg.m_msg, (MUSUser) msg.m_user);
                     } catch (NullPointerException e) {
-                        MUSLog.Log("Null pointer in MUSServerLoginQueue " + msg, MUSLog.kDeb);
+                        MUSLog.Log(MUSLog.kDeb, "Null pointer in MUSServerLoginQueue {}", msg);
                         MUSLog.Log(e, MUSLog.kDeb);
                     }
                 }
@@ -133,11 +133,18 @@ public class MUSServerProperties {
         m_props.put("EncryptionKey", "IPAddress resolution");
         m_props.put("LogFileName", DEFAULT_LOGFILENAME);
         m_props.put("ClearLogAtStartup", "1");
+        m_props.put("LogFileMaxSize", "0");
+        m_props.put("LogFileBackups", "5");
+        m_props.put("LogBufferSize", "8192");
         m_props.put("ServerOutputToLogFile", "1");
         m_props.put("AllowMovies", "default");
         m_props.put("MoviePathName", "default");
         m_props.put("IdleTimeOut", "600");
         m_props.put("ServerStatusReportInterval", "300");
+        m_props.put("EnableMetricsHttp", "0");
+        m_props.put("MetricsHttpAddress", "127.0.0.1:9116");
+        m_props.put("TrafficCaptureFile", "none");
+        m_props.put("TrafficCaptureMaxSize", "0");
 
         m_props.put("StartupMovies", "none");
 
@@ -209,6 +216,10 @@ public class MUSServerProperties {
         m_props.put("UserLevel.System.Group.GetAttribute", "20");
         m_props.put("UserLevel.System.Group.DeleteAttribute", "20");
         m_props.put("UserLevel.System.Group.GetAttributeNames", "20");
+        m_props.put("UserLevel.System.Group.SetState", "20");
+        m_props.put("UserLevel.System.Group.GetState", "20");
+        m_props.put("UserLevel.System.Group.SubscribeAttributes", "20");
+        m_props.put("UserLevel.System.Group.UnsubscribeAttributes", "20");
         m_props.put("UserLevel.System.DBAdmin.CreateUser", "80");
         m_props.put("UserLevel.System.DBAdmin.DeleteUser", "80");
         m_props.put("UserLevel.System.DBAdmin.CreateApplication", "80");
@@ -245,6 +256,8 @@ public class MUSServerProperties {
 
         m_props.put("UserLevel.System.SQL.executeUpdate", "20");
         m_props.put("UserLevel.System.SQL.executeQuery", "20");
+        m_props.put("UserLevel.System.SQL.fetch", "20");
+        m_props.put("UserLevel.System.SQL.closeCursor", "20");
         m_props.put("UserLevel.System.SQL.connect", "80");
         m_props.put("UserLevel.System.SQL.disconnect", "80");
 
@@ -257,6 +270,10 @@ public class MUSServerProperties {
         m_props.put("MUDatabaseURL", "jdbc:hsqldb:OpenSMUSDB");
         m_props.put("MUDatabaseUsername", "sa");
         m_props.put("MUDatabasePassword", "");
+        m_props.put("MUDatabasePoolSize", "4");
+        m_props.put("MUDatabaseStatementCacheSize", "64");
+        m_props.put("MUDatabaseFlushInterval", "1000");
+        m_props.put("MUDatabaseIDBlockSize", "1000");
 
         m_props.put("SQLDatabaseDriver", "org.hsqldb.jdbcDriver");
         m_props.put("SQLBackend", "hsqldb");
@@ -267,6 +284,14 @@ public class MUSServerProperties {
         m_props.put("CreateSQLUserTable", "0");
         m_props.put("CreateSQLUser", "default");
         m_props.put("UseSQLDatabaseForAuthentication", "0");
+        m_props.put("SQLQueryMaxRows", "10000");
+        m_props.put("SQLQueryMaxBytes", "4194304");
+        m_props.put("SQLCursorRows", "100");
+        m_props.put("SQLCursorTimeout", "60");
+        m_props.put("SQLCursorsPerUser", "4");
+        m_props.put("SQLQueueSize", "256");
+        m_props.put("SQLQueueSizePerUser", "16");
+        m_props.put("SQLStatementTimeout", "30");
 
         m_props.put("AntiFloodUserLevelIgnore", "100");
 
@@ -29,12 +29,15 @@
 
 package net.sf.opensmus;
 
+import java.util.HashMap;
+import java.util.Map;
+
 
 /**
  *	
  *
  */
-public final class MUSServerStatusLogger extends Thread {
+public final class MUSServerStatusLogger implements Runnable {
 	
 	/**
 	 * Minimum 30 seconds between idle checks
@@ -47,14 +50,22 @@ public final class MUSServerStatusLogger extends Thread {
     
     private final int logLevel = MUSLog.kSrv;
 
+    /**
+     * Metric values at the previous report, the counters themselves are never reset
+     */
+    private Map<String, Long> lastSnapshot = new HashMap<String, Long>();
+
+    /**
+     * Latency histogram buckets at the previous report, so percentiles cover the last interval only
+     */
+    private Map<String, long[]> lastBuckets = new HashMap<String, long[]>();
+
     /**
      * @param svr
      * @param winterval
      */
     public MUSServerStatusLogger(final MUSServer svr, int winterval) {
     	
-    	super("ServerStatusLoggerThread");
-    	
         this.server = svr;
         this.interval = winterval > MINIMUM_DELAY_INSECONDS ? winterval : MINIMUM_DELAY_INSECONDS;
         
@@ -62,47 +73,93 @@ public final class MUSServerStatusLogger extends Thread {
         	throw new IllegalArgumentException("Parameter 'svr' must not be null");
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Thread#run()
+    /**
+     * @return seconds between two status reports
+     */
+    public int getInterval() {
+    	return this.interval;
+    }
+
+    /**
+     * Logs and resets the server statistics. Run periodically by the server scheduler.
      */
-    @Override
     public void run() {
-    	
-        try {
-            while (this.server.m_alive) {
 
-            	// Log the traffic statistics of the server
-                this.logServerStatus(">Server state at " + server.timeString() + " \n  " + server.m_clientlist.size() + " users connected");
-                this.logServerStatus(" >Traffic since last state report: \n  in - " + server.in_bytes + " bytes\n  out - " + server.out_bytes + " bytes");
-                this.logServerStatus(" >Messages since last state report: \n  in - " + server.in_msg + " msgs\n  out - " + server.out_msg + " msgs\n  discarded - " + server.drop_msg + " msgs");
-                
-                // Clear the traffic statistics of the server
-                this.resetServerTrafficStatistics();
+        Map<String, Long> snapshot = server.m_metrics.snapshot();
+
+        // Log the traffic statistics of the server
+        this.logServerStatus(">Server state at " + server.timeString() + " \n  " + snapshot.get("opensmus_users") + " users connected");
+        this.logServerStatus(" >Traffic since last state report: \n  in - " + delta(snapshot, "opensmus_bytes_in_total") + " bytes\n  out - " + delta(snapshot, "opensmus_bytes_out_total") + " bytes");
+        this.logServerStatus(" >Messages since last state report: \n  in - " + delta(snapshot, "opensmus_messages_in_total") + " msgs\n  out - " + delta(snapshot, "opensmus_messages_out_total") + " msgs\n  discarded - " + delta(snapshot, "opensmus_messages_dropped_total") + " msgs");
+        this.logDeltas(snapshot, "opensmus_movie_messages_total", " >Messages per movie:");
+        this.logDeltas(snapshot, "opensmus_logins_total", " >Logins by result:");
+        this.logLatencies();
+        for (MUSThreadPool tp : server.m_threadpools.values()) {
+            this.logServerStatus(" >Thread pool " + tp.getStatus());
+        }
+        this.logServerStatus(" >Scheduler: " + server.m_scheduler.getStatus());
+        this.logServerStatus(" >Login queue: " + snapshot.get("opensmus_login_queue_depth") + " msgs queued");
+
+        this.lastSnapshot = snapshot;
+    }
 
-                server.ensureThreadsAreAlive();
+    private long delta(Map<String, Long> snapshot, String key) {
+    	
+        Long now = snapshot.get(key);
+        Long last = lastSnapshot.get(key);
+        return (now != null ? now : 0) - (last != null ? last : 0);
+    }
 
-                Thread.sleep(this.interval * 1000);
+    // Logs the change of every series of a labelled counter, e.g. one line per movie
+    private void logDeltas(Map<String, Long> snapshot, String name, String title) {
+    	
+        StringBuilder sb = new StringBuilder(title);
+        boolean found = false;
+        for (String key : snapshot.keySet()) {
+            if (key.startsWith(name + "{")) {
+                long d = delta(snapshot, key);
+                if (d != 0) {
+                    sb.append("\n  ").append(key.substring(name.length())).append(" - ").append(d);
+                    found = true;
+                }
             }
         }
-        catch (InterruptedException e) {
-        	// TODO Why error. Will be issued by server shutdown
-            MUSLog.Log("ServerStatusLogger Error!", MUSLog.kDeb);
-            
-            // Dont swallow interrupt exceptions
-            Thread.currentThread().interrupt();
-        }
+        if (found)
+            this.logServerStatus(sb.toString());
     }
     
+    // Logs the percentiles of every latency histogram that recorded anything since the last report
+    private void logLatencies() {
+
+        StringBuilder sb = new StringBuilder(" >Latency since last state report (microseconds):");
+        boolean found = false;
+        Map<String, long[]> buckets = new HashMap<String, long[]>();
+        for (MUSMetrics.Metric m : server.m_metrics.getMetrics()) {
+            if (!(m instanceof MUSMetrics.Histogram) || !m.name().endsWith("_latency_us")) continue;
+
+            MUSMetrics.Histogram h = (MUSMetrics.Histogram) m;
+            long[] counts = h.getBucketCounts();
+            buckets.put(h.key(), counts);
+
+            long[] last = lastBuckets.get(h.key());
+            long[] diff = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                diff[i] = counts[i] - (last != null ? last[i] : 0);
+                total += diff[i];
+            }
+            if (total > 0) {
+                sb.append("\n  ").append(h.key()).append(" - ").append(total).append(" msgs, p50 ").append(h.percentile(0.5, diff))
+                        .append(", p95 ").append(h.percentile(0.95, diff)).append(", p99 ").append(h.percentile(0.99, diff));
+                found = true;
+            }
+        }
+        this.lastBuckets = buckets;
+        if (found)
+            this.logServerStatus(sb.toString());
+    }
+
     private void logServerStatus(final String logMessage) {
     	MUSLog.Log(logMessage, this.logLevel);
     }
-    
-    private void resetServerTrafficStatistics() {
-    	
-        server.in_bytes = 0;
-        server.out_bytes = 0;
-        server.in_msg = 0;
-        server.out_msg = 0;
-        server.drop_msg = 0;
-   }
 }
@@ -29,24 +29,24 @@
 
 package net.sf.opensmus;
 
-public class MUSShutdownServerTimer extends Thread {
+// Stops the server, then exits after the given delay (ms)
+public class MUSShutdownServerTimer implements Runnable {
     private MUSServer m_server;
     private int m_timeToKill;
 
     public MUSShutdownServerTimer(MUSServer oneserver, int timeToKill) {
         m_server = oneserver;
         m_timeToKill = timeToKill;
-        start();
     }
 
-    @Override
     public void run() {
-        try {
-            m_server.killServer();
-            sleep(m_timeToKill);
-            System.exit(0);
-        } catch (InterruptedException e) {
-            MUSLog.Log("KillServerTimer Error!", MUSLog.kDeb);
-        }
+        // Pending tasks still run after killServer() stops the scheduler
+        m_server.m_scheduler.schedule("ExitServer", new Runnable() {
+            public void run() {
+                System.exit(0);
+            }
+        }, m_timeToKill);
+
+        m_server.killServer();
     }
 }
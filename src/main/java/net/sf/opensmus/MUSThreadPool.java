@@ -0,0 +1,152 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A named message thread pool. Movies configured with the same ThreadPool name
+ * share one instance; all other movies use the server's "default" pool.
+ * Messages of a single connection are always executed in order.
+ */
+public class MUSThreadPool {
+
+    public static final String DEFAULT_POOL = "default";
+
+    private final String m_name;
+    private final PoolExecutor m_executor;
+    private final ExecutionHandler m_handler;
+
+    public MUSThreadPool(String name, int size, long maxUserMemory, long maxTotalMemory) {
+
+        m_name = name;
+        m_executor = new PoolExecutor(size, maxUserMemory, maxTotalMemory);
+        m_handler = new ExecutionHandler(m_executor);
+
+        MUSLog.Log("Thread pool " + name + " created with " + size + " threads", MUSLog.kSrv);
+    }
+
+    public String name() {
+        return m_name;
+    }
+
+    // Shared by all pipelines using this pool
+    public ExecutionHandler getExecutionHandler() {
+        return m_handler;
+    }
+
+    // Number of messages waiting for a free thread or for earlier messages of the same connection
+    public int getQueueDepth() {
+        return m_executor.m_pending.get();
+    }
+
+    public int getActiveThreads() {
+        return m_executor.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        return m_executor.getPoolSize();
+    }
+
+    public int getMaximumPoolSize() {
+        return m_executor.getMaximumPoolSize();
+    }
+
+    public long getCompletedTasks() {
+        return m_executor.getCompletedTaskCount();
+    }
+
+    public String getStatus() {
+        return m_name + ": " + getActiveThreads() + "/" + getMaximumPoolSize() + " threads active, "
+                + getQueueDepth() + " msgs queued, " + getCompletedTasks() + " msgs completed";
+    }
+
+    public void kill() {
+        m_handler.releaseExternalResources();
+    }
+
+    // Runs the task on the executor of the pipeline context once the events of its channel
+    // queued there so far have been handled
+    public static void executeAfterQueued(ChannelHandlerContext executorctx, final Runnable task) {
+        Executor executor = ((ExecutionHandler) executorctx.getHandler()).getExecutor();
+        try {
+            executor.execute(new ChannelEventRunnable(executorctx, new UpstreamMessageEvent(executorctx.getChannel(), task, null)) {
+                @Override
+                public void run() {
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Pool shut down, nothing is left queued
+            task.run();
+        }
+    }
+
+    // Counts the messages that are queued, the pool's own queue only holds one entry per busy connection
+    private static class PoolExecutor extends OrderedMemoryAwareThreadPoolExecutor {
+
+        final AtomicInteger m_pending = new AtomicInteger();
+
+        PoolExecutor(int size, long maxUserMemory, long maxTotalMemory) {
+            super(size, maxUserMemory, maxTotalMemory);
+        }
+
+        @Override
+        protected void doExecute(Runnable task) {
+            if (!(task instanceof ChannelEventRunnable)) {
+                super.doExecute(task);
+                return;
+            }
+
+            m_pending.incrementAndGet();
+            try {
+                super.doExecute(task);
+            } catch (RuntimeException e) {
+                m_pending.decrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable task) {
+            super.beforeExecute(t, task);
+            if (task instanceof ChannelEventRunnable)
+                m_pending.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only capture file of the incoming traffic, written by a background thread.
+ * Records framed inbound messages with their connection id and the time since the
+ * capture started, plus connection open/close and user name changes, so the traffic
+ * can be fed back into a server with the TrafficReplay tool.
+ * <BR>File format (big endian): "SMUSCAP1", start time in ms, then records of
+ * type byte, time in microseconds (long), connection id (int) and a type specific part.
+ * When the queue is full records are dropped and counted instead of blocking the I/O threads.
+ */
+public class MUSTrafficCapture extends Thread {
+
+    public static final byte[] MAGIC = {'S', 'M', 'U', 'S', 'C', 'A', 'P', '1'};
+
+    public static final byte OPEN = 1; // UTF remote address
+    public static final byte NAME = 2; // UTF user name
+    public static final byte MESSAGE = 3; // int length, message bytes without the 6 header bytes
+    public static final byte CLOSE = 4; // nothing
+
+    private static final int QUEUE_SIZE = 8192;
+
+    private final BlockingQueue<byte[]> m_queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final long m_start = System.nanoTime();
+    private final long m_maxsize;
+    private final DataOutputStream m_out;
+    private long m_size = 0;
+    private volatile boolean m_alive = true;
+
+    /**
+     * @param file capture file, appended to if it exists
+     * @param maxsize stop capturing when the file grows beyond this many bytes, 0 for no limit
+     */
+    public MUSTrafficCapture(File file, long maxsize) throws IOException {
+
+        super("MUSTrafficCaptureThread");
+        setDaemon(true);
+
+        m_maxsize = maxsize;
+        m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+        // Every capture session starts with its own header, so appended sessions can be told apart
+        m_out.write(MAGIC);
+        m_out.writeLong(System.currentTimeMillis());
+        m_size = MAGIC.length + 8;
+    }
+
+    public void open(int conn, String address) {
+        queue(OPEN, conn, address, null, 0, 0);
+    }
+
+    public void name(int conn, String name) {
+        queue(NAME, conn, name, null, 0, 0);
+    }
+
+    public void message(int conn, byte[] data, int offset, int length) {
+        queue(MESSAGE, conn, null, data, offset, length);
+    }
+
+    public void close(int conn) {
+        queue(CLOSE, conn, null, null, 0, 0);
+    }
+
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    private void queue(byte type, int conn, String text, byte[] data, int offset, int length) {
+
+        if (!m_alive) return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + length);
+            DataOutputStream rec = new DataOutputStream(bytes);
+            rec.writeByte(type);
+            rec.writeLong((System.nanoTime() - m_start) / 1000);
+            rec.writeInt(conn);
+            if (text != null) rec.writeUTF(text);
+            if (data != null) {
+                rec.writeInt(length);
+                rec.write(data, offset, length);
+            }
+            if (!m_queue.offer(bytes.toByteArray()))
+                m_dropped.incrementAndGet();
+        } catch (IOException e) {
+            // Can not happen with a ByteArrayOutputStream
+        }
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            while (m_alive || !m_queue.isEmpty()) {
+                byte[] rec = m_queue.poll(100, TimeUnit.MILLISECONDS);
+                if (rec == null) {
+                    m_out.flush();
+                    continue;
+                }
+                if (m_maxsize > 0 && m_size + rec.length > m_maxsize) {
+                    MUSLog.Log("Traffic capture stopped, maximum file size reached", MUSLog.kSys);
+                    m_alive = false;
+                    m_queue.clear();
+                    break;
+                }
+                m_out.write(rec);
+                m_size += rec.length;
+            }
+        } catch (InterruptedException e) {
+            // Close the file
+        } catch (IOException e) {
+            MUSLog.Log("Traffic capture stopped: " + e, MUSLog.kSys);
+        }
+
+        try {
+            m_out.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        if (m_dropped.get() > 0)
+            MUSLog.Log("Traffic capture dropped " + m_dropped.get() + " records", MUSLog.kSys);
+    }
+
+    /**
+     * Writes the queued records and closes the capture file
+     */
+    public void kill() {
+
+        m_alive = false;
+        try {
+            join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //////////
+
+    public static class Record {
+        public byte type;
+        public long time; // Microseconds since the start of the capture
+        public int conn;
+        public String text; // Address for OPEN, user name for NAME
+        public byte[] data; // Message bytes for MESSAGE
+    }
+
+    /**
+     * Reads the records of a capture file in order. A new session header
+     * (appended capture) is skipped, its times continue after the previous session.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream m_in;
+        private long m_offset = 0; // Added to the times of appended sessions
+        private long m_last = 0;
+
+        public Reader(InputStream in) throws IOException {
+            m_in = new DataInputStream(new BufferedInputStream(in, 65536));
+            readHeader(m_in.readByte());
+        }
+
+        // Returns null at the end of the file
+        public Record next() throws IOException {
+
+            int type = m_in.read();
+            if (type == -1) return null;
+            if (type == MAGIC[0]) {
+                readHeader((byte) type);
+                m_offset = m_last;
+                type = m_in.read();
+                if (type == -1) return null;
+            }
+
+            Record rec = new Record();
+            rec.type = (byte) type;
+            rec.time = m_in.readLong() + m_offset;
+            rec.conn = m_in.readInt();
+            switch (rec.type) {
+                case OPEN:
+                case NAME:
+                    rec.text = m_in.readUTF();
+                    break;
+                case MESSAGE:
+                    rec.data = new byte[m_in.readInt()];
+                    m_in.readFully(rec.data);
+                    break;
+                case CLOSE:
+                    break;
+                default:
+                    throw new IOException("Invalid capture record type " + type);
+            }
+            m_last = rec.time;
+            return rec;
+        }
+
+        private void readHeader(byte first) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            magic[0] = first;
+            m_in.readFully(magic, 1, magic.length - 1);
+            if (!java.util.Arrays.equals(magic, MAGIC))
+                throw new IOException("Not an OpenSMUS capture file");
+            m_in.readLong(); // Start time
+        }
+
+        public void close() throws IOException {
+            m_in.close();
+        }
+    }
+}
@@ -30,6 +30,7 @@
 package net.sf.opensmus;
 
 import org.jboss.netty.channel.*;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.*;
 import java.util.*;
@@ -65,7 +66,7 @@ public class MUSUser implements ServerUser {
     public int m_udpcookie = 0;
     public boolean m_udpenabled = false;
 
-    private Thread m_timer;
+    private MUSScheduledTask m_timer;
     boolean m_scheduledToDie = false;
 
     public boolean logged = false;
@@ -77,8 +78,11 @@ public class MUSUser implements ServerUser {
     public String m_name = "";
     public MUSMovie m_movie;
     public int m_userlevel = 0;
-    private Vector<ServerGroup> m_grouplist = new Vector<ServerGroup>();
+    public int m_dbuserid = 0; // Id of the user's record in the MUS database, 0 if none
+    private final Set<Integer> m_dbowners = Collections.synchronizedSet(new HashSet<Integer>()); // Other database owners this user wrote attributes of
+    private volatile Vector<ServerGroup> m_grouplist = null; // Created on the first group join, most idle connections never need it
     private int m_creationtime = 0;
+    private int m_poolswitches = 0;
 
 
     /////////////////////////////////////////////////////////////
@@ -210,6 +214,8 @@ public class MUSUser implements ServerUser {
 
     public void replyLogon(MUSLogonMessage msg) {
 
+        m_server.logLoginResult(MUSErrorCode.NoError);
+
         if (m_udpenabled)
             replyUDPInformation();
 
@@ -235,6 +241,8 @@ public class MUSUser implements ServerUser {
 
     public void replyLogonError(MUSLogonMessage msg, int error) {
 
+        m_server.logLoginResult(error);
+
         MUSMessage reply = new MUSMessage();
         reply.m_errCode = error;
         reply.m_timeStamp = 0;
@@ -326,16 +334,42 @@ public class MUSUser implements ServerUser {
     public void deleteUser() {
 
         if (!m_scheduledToDie) {
-            m_timer = new MUSKillUserTimer(this, 600);
+            m_timer = m_server.m_scheduler.schedule("KillUser", new MUSKillUserTimer(this), 600);
             m_scheduledToDie = true;
         }
     }
 
 
+    // Remembers a database record (user, player or application) written by this user, to flush it on logoff
+    public void wroteDBAttributes(int ownerid) {
+        m_dbowners.add(ownerid);
+    }
+
     public void killMUSUser() {
 
         disconnectFromMovie();
 
+        // The records this user wrote are written soon, on a scheduler thread instead of this I/O thread
+        final ArrayList<Integer> owners;
+        synchronized (m_dbowners) {
+            owners = new ArrayList<Integer>(m_dbowners);
+        }
+        if (m_dbuserid != 0 && !owners.contains(m_dbuserid))
+            owners.add(m_dbuserid);
+        if (!owners.isEmpty()) {
+            m_server.m_scheduler.execute("FlushUserAttributes", new Runnable() {
+                public void run() {
+                    for (int ownerid : owners) {
+                        m_server.m_dbConn.flushAttributes(ownerid);
+                    }
+                }
+            });
+        }
+
+        // SQL gateway queries still open for this user are of no use to anyone else
+        if (m_server.m_sqlConn != null)
+            m_server.m_sqlConn.closeCursors(name());
+
         if (m_udpenabled)
             m_server.releaseUDPPort(m_udpportnumber);
 
@@ -385,7 +419,7 @@ public class MUSUser implements ServerUser {
             m_movie = null;
         }
 
-        m_grouplist.clear();
+        m_grouplist = null;
 
         m_server.removeMUSUser(this);
         // MUSLog.Log("Removed " + name() + " from m_clientlist", MUSLog.kUsr);
@@ -395,6 +429,7 @@ public class MUSUser implements ServerUser {
 
         m_movie = newmov;
         m_movie.addUser(this);
+        useThreadPool(m_movie.m_threadpool);
         MUSLog.Log("User " + name() + " logged to movie " + m_movie.name(), MUSLog.kUsr);
 
         // Join allusers group directly
@@ -418,6 +453,66 @@ public class MUSUser implements ServerUser {
     }
 
 
+    // Switch the executor in the pipeline to the thread pool of the movie.
+    // Messages arriving meanwhile are held until the old pool has handled the ones queued before them
+    private void useThreadPool(MUSThreadPool tp) {
+
+        if (channel == null) return;
+
+        final ChannelPipeline pl = channel.getPipeline();
+        ChannelHandlerContext current = pl.getContext("executor");
+        if (current == null) {
+            if (tp != null) pl.addAfter("encoder", "executor", tp.getExecutionHandler());
+            return;
+        }
+        if (tp != null && current.getHandler() == tp.getExecutionHandler())
+            return;
+
+        final PoolSwitch gate = new PoolSwitch();
+        pl.addBefore("executor", "poolswitch" + (++m_poolswitches), gate);
+        if (tp == null) {
+            pl.remove("executor");
+        } else {
+            pl.replace("executor", "executor", tp.getExecutionHandler());
+        }
+
+        MUSThreadPool.executeAfterQueued(current, new Runnable() {
+            public void run() {
+                gate.open(pl);
+            }
+        });
+    }
+
+    // Holds the incoming events of a user while its messages move to another thread pool
+    private static final class PoolSwitch implements ChannelUpstreamHandler {
+
+        private final ArrayList<ChannelEvent> m_held = new ArrayList<ChannelEvent>();
+        private ChannelHandlerContext m_ctx;
+        private boolean m_open = false;
+
+        public synchronized void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) {
+            if (m_open) {
+                ctx.sendUpstream(e);
+            } else {
+                m_ctx = ctx;
+                m_held.add(e);
+            }
+        }
+
+        synchronized void open(ChannelPipeline pl) {
+            for (ChannelEvent e : m_held) {
+                m_ctx.sendUpstream(e);
+            }
+            m_held.clear();
+            m_open = true;
+            pl.remove(this);
+        }
+    }
+
+    public MUSServer getServer() {
+        return m_server;
+    }
+
     public void logDroppedMsg() {
         m_server.logDroppedMsg();
     }
@@ -426,13 +521,44 @@ public class MUSUser implements ServerUser {
     // ServerUser interface methods
 
     public void sendMessage(MUSMessage msg) {
+        long written = System.nanoTime(); // Before the write, which may complete right away
+        ChannelFuture future;
         if (msg.m_udp && m_udpenabled) {
-            MUSLog.Log("Writing outgoing UDP message : " + msg, MUSLog.kDeb);
-            udpchannel.write(msg, m_UDPSocketAddress); // m_udplistener.send(msg, m_userUDPAddress, m_userUDPPort);
+            MUSLog.Log(MUSLog.kDeb, "Writing outgoing UDP message : {}", msg);
+            future = udpchannel.write(msg, m_UDPSocketAddress); // m_udplistener.send(msg, m_userUDPAddress, m_userUDPPort);
         } else {
             // Netty
             // MUSLog.Log("Writing outgoing message to " + m_name + ": " + msg, MUSLog.kDeb);
-            channel.write(msg);
+            future = channel.write(msg);
+        }
+
+        MUSMovie mov = m_movie;
+        if (mov != null)
+            future.addListener(new WriteTimer(mov, written, msg.m_framed));
+    }
+
+    // Sends an already encoded message over TCP. The bytes are copied since encryption works in place.
+    public void sendBytes(String subject, byte[] msgbytes) {
+        m_server.logOutSubject(subject, msgbytes.length);
+        channel.write(ChannelBuffers.copiedBuffer(msgbytes));
+    }
+
+    // Reports the write latency of an outgoing message to the movie metrics
+    private static final class WriteTimer implements ChannelFutureListener {
+
+        private final MUSMovie movie;
+        private final long written;
+        private final long framed;
+
+        WriteTimer(MUSMovie mov, long writtentime, long framedtime) {
+            movie = mov;
+            written = writtentime;
+            framed = framedtime;
+        }
+
+        public void operationComplete(ChannelFuture future) {
+            if (future.isSuccess())
+                movie.logWriteLatency(written, framed);
         }
     }
 
@@ -508,7 +634,10 @@ public class MUSUser implements ServerUser {
     public Vector<String> getGroupNames() {
 
         Vector<String> groups = new Vector<String>();
-        for (ServerGroup group : m_grouplist) {
+        Vector<ServerGroup> grouplist = m_grouplist;
+        if (grouplist == null) return groups;
+
+        for (ServerGroup group : grouplist) {
             groups.addElement(((MUSGroup) group).m_name);
         }
 
@@ -516,19 +645,27 @@ public class MUSUser implements ServerUser {
     }
 
     public Vector<ServerGroup> getGroups() {
-        return new Vector<ServerGroup>(m_grouplist);
+        Vector<ServerGroup> grouplist = m_grouplist;
+        return grouplist == null ? new Vector<ServerGroup>() : new Vector<ServerGroup>(grouplist);
     }
 
     public int getGroupsCount() {
-        return m_grouplist.size();
+        Vector<ServerGroup> grouplist = m_grouplist;
+        return grouplist == null ? 0 : grouplist.size();
     }
 
     public void groupJoined(ServerGroup grp) {
-        m_grouplist.addElement(grp);
+        Vector<ServerGroup> grouplist;
+        synchronized (this) {
+            if (m_grouplist == null) m_grouplist = new Vector<ServerGroup>(4);
+            grouplist = m_grouplist;
+        }
+        grouplist.addElement(grp);
     }
 
     public void groupLeft(ServerGroup grp) {
-        m_grouplist.removeElement(grp);
+        Vector<ServerGroup> grouplist = m_grouplist;
+        if (grouplist != null) grouplist.removeElement(grp);
     }
 
     @Override
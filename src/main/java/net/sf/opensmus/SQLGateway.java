@@ -47,6 +47,7 @@ public interface SQLGateway {
    /** 
    *Returns the default SQL database connection as a java.sql.Connection object.
    *<BR> This is useful if the script author wants to call JDBC methods directly.
+   *<BR> The connection is shared with the SQL commands of users; synchronize on this SQLGateway while using it.
    */
    public java.sql.Connection getConnection();
    
@@ -104,5 +105,35 @@ public interface SQLGateway {
    */ 
    public LValue executeQuery(String sqlquery, LList params);
 
+   /** 
+   *Executes an SQL query call and keeps the results open, to be read in pages with fetchQuery.
+   * <BR>Use this instead of executeQuery for queries that may return many rows.
+   * <BR>Both methods stop reading rows once the limits set by the SQLQueryMaxRows and
+   * SQLQueryMaxBytes directives in OpenSMUS.cfg are reached; executeQuery logs the
+   * truncation, fetchQuery reports it in its result.
+   * <BR>Queries that are not read for SQLCursorTimeout seconds are closed automatically.
+   * @param sqlquery Prepared SQL query string. 
+   * @param params LList of parameters to the prepared statement.
+   * @return Cursor id to pass to fetchQuery, 0 if an SQL error occurs
+   */ 
+   public int openQuery(String sqlquery, LList params);
+
+   /** 
+   *Reads the next rows of a query opened with openQuery.
+   * <BR>Sample output (Lingo formatted): [#rows:[["Perkins",10],["Garcia",23]], #cursor:12]
+   * <BR>#cursor is 0 once the last row has been read, and the query is then closed.
+   * If the row or byte limit was reached the result also contains #truncated:1.
+   * @param cursor Cursor id returned by openQuery
+   * @param rows Maximum number of rows to read
+   * @return LPropList with the rows and the cursor id for the next call
+   */ 
+   public LPropList fetchQuery(int cursor, int rows);
+
+   /** 
+   *Closes a query opened with openQuery before all rows were read.
+   * @param cursor Cursor id returned by openQuery
+   */ 
+   public void closeQuery(int cursor);
+
 }
  
\ No newline at end of file
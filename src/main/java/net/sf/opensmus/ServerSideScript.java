@@ -168,6 +168,18 @@ public class ServerSideScript implements ServerUser {
 
     }
 
+    /**
+     * Called by the OpenSMUS server when group attributes are set or deleted in the movie associated with this server side script.
+     * <BR>The content has the same format as the "AttributeChange" messages pushed to subscribed users:
+     * [#group: "@name", #attribute: [#name: value], #deleted: [#name], #lastUpdateTime: "time"]
+     *
+     * @param grp     ServerGroup reference
+     * @param changes LPropList with the changes
+     */
+    public void groupAttributeChange(ServerGroup grp, LPropList changes) {
+
+    }
+
 
     //ServerUser interface methods
     /**
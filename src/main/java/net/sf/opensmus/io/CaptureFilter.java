@@ -0,0 +1,49 @@
+package net.sf.opensmus.io;
+
+import org.jboss.netty.channel.*;
+import org.jboss.netty.buffer.ChannelBuffer;
+import net.sf.opensmus.MUSTrafficCapture;
+import net.sf.opensmus.MUSUser;
+
+// Records the framed incoming messages of one connection to the traffic capture file.
+// One instance per pipeline, it remembers the last user name written for the connection.
+public class CaptureFilter implements ChannelUpstreamHandler {
+
+    private final MUSTrafficCapture capture;
+    private String lastName = null;
+
+    public CaptureFilter(MUSTrafficCapture cap) {
+        capture = cap;
+    }
+
+
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+
+        int conn = e.getChannel().getId();
+        if (e instanceof MessageEvent) {
+            Object incoming = ((MessageEvent) e).getMessage();
+            if (incoming instanceof ChannelBuffer) {
+                // The name changes from the temporary login name once the user has logged on
+                MUSUser user = ((SMUSPipeline) ctx.getPipeline()).user;
+                if (user != null && !user.name().equals(lastName)) {
+                    lastName = user.name();
+                    capture.name(conn, lastName);
+                }
+
+                ChannelBuffer buffer = (ChannelBuffer) incoming;
+                byte[] data = new byte[buffer.readableBytes()];
+                buffer.getBytes(buffer.readerIndex(), data);
+                capture.message(conn, data, 0, data.length);
+            }
+        } else if (e instanceof ChannelStateEvent) {
+            ChannelStateEvent se = (ChannelStateEvent) e;
+            if (se.getState() == ChannelState.CONNECTED && se.getValue() != null) {
+                capture.open(conn, String.valueOf(e.getChannel().getRemoteAddress()));
+            } else if (se.getState() == ChannelState.OPEN && Boolean.FALSE.equals(se.getValue())) {
+                capture.close(conn);
+            }
+        }
+
+        ctx.sendUpstream(e);
+    }
+}
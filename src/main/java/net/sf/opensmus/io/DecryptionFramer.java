@@ -85,7 +85,8 @@ public class DecryptionFramer extends FrameDecoder {
 
         // Trying to optimize and use buffer.readSlice(messageSize) instead will work most of the time
         // but occasionally generate corrupt messages.
-        ChannelBuffer msgData = buffer.readBytes(messageSize);
+        ChannelBuffer msgData = new FramedBuffer(messageSize);
+        buffer.readBytes(msgData);
 
         messageSize = 0; // Get ready for the next message
         // (The original buffer's reader index is now consumed properly so the FrameDecoder is happy.)
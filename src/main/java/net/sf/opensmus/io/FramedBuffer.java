@@ -0,0 +1,14 @@
+package net.sf.opensmus.io;
+
+import org.jboss.netty.buffer.BigEndianHeapChannelBuffer;
+
+// Buffer holding one complete incoming message, stamped with the time the framer completed it.
+// Handlers further up the pipeline still see a plain ChannelBuffer.
+public class FramedBuffer extends BigEndianHeapChannelBuffer {
+
+    public final long framed = System.nanoTime();
+
+    public FramedBuffer(int length) {
+        super(length);
+    }
+}
@@ -17,7 +17,7 @@ public class Framer extends FrameDecoder {
         if (messageSize == 0) {
             // Start of new message
             // Grab the first 6 bytes of the incoming message so we can see how long this message is
-            if (buffer.readableBytes() < 6) return false; // Wait until the length prefix is available.
+            if (buffer.readableBytes() < 6) return null; // Wait until the length prefix is available. (A non-null value would be passed on as a message)
 
             // Check that the packet has the SMUS signature header
             if (buffer.readShort() != 0x7200) {
@@ -42,7 +42,9 @@ public class Framer extends FrameDecoder {
 
         // Store the message bytes (stripped of the 2 header bytes and 4 length info bytes) in a new buffer
         // This also updates the readerIndex of the original buffer, so FrameDecoder will know we consumed the bytes in it.
-        ChannelBuffer msgData = buffer.readBytes(messageSize);
+        // The FramedBuffer also remembers when the message was complete, for the latency metrics.
+        ChannelBuffer msgData = new FramedBuffer(messageSize);
+        buffer.readBytes(msgData);
 
         messageSize = 0; // Get ready for the next message
         return (msgData);
@@ -29,7 +29,8 @@ public class IOHandler extends IdleStateAwareChannelUpstreamHandler {
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         MUSUser whatUser = ((SMUSPipeline) ctx.getPipeline()).user; // Figure out what user this is
         // MUSLog.Log("Channel closed for: " + whatUser.name(), MUSLog.kDeb);
-        whatUser.killMUSUser();
+        if (whatUser != null) // No user for connections refused by the LogonHandler
+            whatUser.killMUSUser();
     }
 
 
@@ -47,11 +48,16 @@ public class IOHandler extends IdleStateAwareChannelUpstreamHandler {
         // Always assume the (complete) message is a ChannelBuffer, created by the framer
         ChannelBuffer buffer = (ChannelBuffer) incoming;
 
+        int size = buffer.readableBytes();
+
         // Decode the message
         MUSMessage msg = new MUSMessage(buffer); // The incoming buffer does NOT have the 6 headerbytes (ID & length info)
+        if (buffer instanceof FramedBuffer)
+            msg.m_framed = ((FramedBuffer) buffer).framed;
 
          // Figure out what user this is
         MUSUser whatUser = ((SMUSPipeline) ctx.getPipeline()).user;
+        whatUser.getServer().logInSubject(msg.m_subject.toString(), size);
 
         // Prevent spoofing of userid by ignoring the parsed senderID !
         // ALWAYS do this on incoming messages.
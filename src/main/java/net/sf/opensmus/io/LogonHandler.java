@@ -12,15 +12,26 @@ public class LogonHandler extends IOHandler {
 
     MUSServer m_server;
     ChannelGroup channels;
+    MUSMetrics.Counter m_banned;
 
     public LogonHandler(MUSServer srv, ChannelGroup cg) {
         m_server = srv;
         channels = cg;
+        m_banned = srv.m_metrics.counter("opensmus_connections_banned_total");
     }
 
 
     @Override
     public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+        // Drop connections from banned addresses before any user object is created for them
+        InetSocketAddress remote = (InetSocketAddress) e.getChannel().getRemoteAddress();
+        if (remote != null && m_server.m_dbConn != null && m_server.m_dbConn.isBanned(remote.getAddress())) {
+            MUSLog.Log("Connection from banned address " + remote.getAddress().getHostAddress() + " refused", MUSLog.kDeb);
+            m_banned.inc();
+            e.getChannel().close();
+            return;
+        }
+
         // Add all open channels to the global group so that they are closed on shutdown.
         // If the added channel is closed before shutdown, it will be removed from the group automatically.
         channels.add(e.getChannel());
@@ -30,6 +41,9 @@ public class LogonHandler extends IOHandler {
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 
+        if (!ctx.getChannel().isOpen())
+            return; // Refused in channelOpen
+
         String ip = ((InetSocketAddress) ctx.getChannel().getRemoteAddress()).getAddress().getHostAddress();
         
         MUSLog.Log("Client connection initialized : " + (m_server.m_clientlist.size() + 1) + " (" + ip + ")", MUSLog.kSrv);
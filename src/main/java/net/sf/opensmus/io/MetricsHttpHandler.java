@@ -0,0 +1,60 @@
+package net.sf.opensmus.io;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import net.sf.opensmus.MUSLog;
+import net.sf.opensmus.MUSMetricsExporter;
+
+import java.nio.charset.Charset;
+
+// Serves /metrics (Prometheus text format) and /status (JSON) on the metrics port
+@ChannelHandler.Sharable
+public class MetricsHttpHandler extends SimpleChannelUpstreamHandler {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MUSMetricsExporter m_exporter;
+
+    public MetricsHttpHandler(MUSMetricsExporter exporter) {
+        m_exporter = exporter;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+
+        HttpRequest request = (HttpRequest) e.getMessage();
+        String path = new QueryStringDecoder(request.getUri()).getPath();
+
+        HttpResponse response;
+        if (request.getMethod() != HttpMethod.GET) {
+            response = reply(HttpResponseStatus.METHOD_NOT_ALLOWED, "text/plain", "Only GET is supported\n");
+        } else if (path.equals("/metrics")) {
+            response = reply(HttpResponseStatus.OK, "text/plain; version=0.0.4; charset=utf-8", m_exporter.toPrometheus());
+        } else if (path.equals("/status") || path.equals("/status.json")) {
+            response = reply(HttpResponseStatus.OK, "application/json; charset=utf-8", m_exporter.toJSON());
+        } else {
+            response = reply(HttpResponseStatus.NOT_FOUND, "text/plain", "Not found\n");
+        }
+
+        // One request per connection keeps this simple, scrapers reconnect anyway
+        e.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+        MUSLog.Log("Metrics port exception " + e.getCause(), MUSLog.kDeb);
+        e.getChannel().close();
+    }
+
+    private HttpResponse reply(HttpResponseStatus status, String type, String body) {
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        byte[] bytes = body.getBytes(UTF8);
+        response.setContent(ChannelBuffers.wrappedBuffer(bytes));
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, type);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(bytes.length));
+        response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        return response;
+    }
+}
@@ -5,6 +5,7 @@ import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.buffer.ChannelBuffer;
 
 
 @ChannelHandler.Sharable
@@ -13,8 +14,18 @@ public class SMUSEncoder extends OneToOneEncoder {
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel, Object message) throws Exception {
 
+        // Already encoded, see MUSUser.sendBytes()
+        if (message instanceof ChannelBuffer)
+            return message;
+
         MUSMessage msg = (MUSMessage) message;
+        ChannelBuffer bytes = msg.getBytes();
+
+        MUSUser user = ((SMUSPipeline) ctx.getPipeline()).user;
+        if (user != null)
+            user.getServer().logOutSubject(msg.m_subject.toString(), bytes.readableBytes());
+
         // Return the constructed raw message bytes.
-        return (msg.getBytes());
+        return bytes;
     }
 }
@@ -4,14 +4,12 @@ import net.sf.opensmus.MUSServerProperties;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
-import org.jboss.netty.handler.execution.ExecutionHandler;
-import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
-import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import net.sf.opensmus.MUSServer;
 import net.sf.opensmus.MUSLog;
+import net.sf.opensmus.MUSThreadPool;
 
 import java.util.ArrayList;
-import java.util.concurrent.TimeUnit;
 
 public class SMUSPipelineFactory implements ChannelPipelineFactory {
 
@@ -19,16 +17,16 @@ public class SMUSPipelineFactory implements ChannelPipelineFactory {
     private static final ChannelHandler ENCODER = new SMUSEncoder();
     public static final ChannelHandler HANDLER = new IOHandler();
     public final ChannelHandler LOGGER;
-    private ExecutionHandler EXECUTOR;
+    private final ChannelHandler LOGONHANDLER;
+    private MUSThreadPool EXECUTOR;
 
     private MUSServer m_server;
     private ChannelGroup channels;
     boolean useUDP = false;
-    private HashedWheelTimer timer;
+    private Timer timer;
     private int idleTimeout;
     private boolean useLogging = false;
     private boolean allEncryptionEnabled = false;
-    private int threadPoolSize;
 
     private boolean useFloodProtection = false;
     final ArrayList<ArrayList> antiFloodSettings = new ArrayList<ArrayList>();
@@ -40,18 +38,15 @@ public class SMUSPipelineFactory implements ChannelPipelineFactory {
         useUDP = udp;
 
         LOGGER = new LogFilter(m_server);
+        LOGONHANDLER = new LogonHandler(m_server, channels);
 
-        threadPoolSize = m_server.m_props.getIntProperty("ThreadPoolSize");
-        if (threadPoolSize > 0) {
-            int maxMem = m_server.m_props.getIntProperty("MaxUserMemorySize");
-            int maxTotalMem = m_server.m_props.getIntProperty("MaxTotalMemorySize");
-            EXECUTOR = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(threadPoolSize, maxMem, maxTotalMem));
-        }
+        // New connections use the default pool, the movie pool takes over once the user has logged on
+        EXECUTOR = m_server.getDefaultThreadPool();
 
         // Look up these properties once instead of every pipeline creation
         idleTimeout = m_server.m_props.getIntProperty("IdleTimeOut");
         allEncryptionEnabled = m_server.encryptionKey.startsWith("#All");
-        useLogging = m_server.m_props.getIntProperty("ServerStatusReportInterval") != 0;
+        useLogging = m_server.collectsTrafficMetrics();
 
         // Parse and setup antiflood
         String[] af = m_server.m_props.getStringListProperty("AntiFlood");
@@ -66,8 +61,8 @@ public class SMUSPipelineFactory implements ChannelPipelineFactory {
             if (!antiFloodSettings.isEmpty()) useFloodProtection = true;
         }
 
-        // Set up the timer to use for scheduling timeouts
-        timer = new HashedWheelTimer(5, TimeUnit.SECONDS); // @TODO: Are the defaults (100ms / 512 wheels) good for SMUS usage?
+        // Idle timeouts share the timing wheel of the server scheduler
+        timer = m_server.m_scheduler.getTimer();
     }
 
     public ChannelPipeline getPipeline() throws Exception {
@@ -84,6 +79,9 @@ public class SMUSPipelineFactory implements ChannelPipelineFactory {
             pipeline.addLast("framer", new Framer()); // Frames upstream (incoming) messages
         }
 
+        if (m_server.m_capture != null)
+            pipeline.addLast("capture", new CaptureFilter(m_server.m_capture));
+
         if (useLogging)
             pipeline.addLast("logging", LOGGER); // new LogFilter(m_server)
 
@@ -94,8 +92,8 @@ public class SMUSPipelineFactory implements ChannelPipelineFactory {
         pipeline.addLast("encoder", ENCODER);
 
         // It's not strictly necessary to use an executor, but will help prevent lag caused by slow/blocking business logic (e.g. server side scripts)
-        if (threadPoolSize > 0)
-            pipeline.addLast("executor", EXECUTOR);
+        if (EXECUTOR != null)
+            pipeline.addLast("executor", EXECUTOR.getExecutionHandler());
         
         // Add business logic (upstream) ALSO INCLUDES decoder
         if (useUDP) {
@@ -103,7 +101,7 @@ public class SMUSPipelineFactory implements ChannelPipelineFactory {
             pipeline.addLast("handler", new UDPIOHandler(m_server, channels));
         } else {
             // (LogonHandler gets replaced with IOHandler once the login message has been handled)
-            pipeline.addLast("logonhandler", new LogonHandler(m_server, channels));
+            pipeline.addLast("logonhandler", LOGONHANDLER); // new LogonHandler(m_server, channels)
         }
 
         // Return pipeline instance
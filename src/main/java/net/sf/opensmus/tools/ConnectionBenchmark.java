@@ -0,0 +1,317 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus.tools;
+
+import net.sf.opensmus.MUSConnectionPort;
+import net.sf.opensmus.MUSServer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ServerChannel;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap retained by idle connections. Starts an OpenSMUS server in this process,
+ * using the OpenSMUS.cfg of the working directory, opens a number of plain sockets to it and
+ * compares the used heap before and after. The same number of sockets is first connected to a
+ * bare acceptor, so the cost of the sockets themselves (both ends live in this process) can be
+ * subtracted from the server figure.
+ * <BR>Usage: java -Xmx2g -cp OpenSMUS.jar:dependencies/netty.jar net.sf.opensmus.tools.ConnectionBenchmark [-option value]...
+ * <BR>Every connection uses two file descriptors, so raise the open file limit (ulimit -n) first.
+ */
+public class ConnectionBenchmark {
+
+    // Options, with their defaults
+    int[] m_counts = {10000, 50000};
+    int m_settle = 2; // Seconds to wait after the last connect before measuring
+    int m_peraddress = 20000; // Loopback connections per local address, stays below the ephemeral port range
+    boolean m_baseline = true;
+
+    // The server sends System.out to its log file, the results go to the console
+    final PrintStream m_out = System.out;
+
+    public static void main(String[] args) {
+
+        ConnectionBenchmark bench = new ConnectionBenchmark();
+        try {
+            bench.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        bench.run();
+        System.exit(0);
+    }
+
+    static void printUsage() {
+        System.err.println("Options: -connections 10000,50000 -settle 2 -peraddress 20000 -baseline 1\n" +
+                "The server is configured by the OpenSMUS.cfg in the working directory.");
+    }
+
+    void parseArguments(String[] args) {
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (args[i].equals("-help")) throw new IllegalArgumentException("OpenSMUS connection memory benchmark");
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+            String opt = args[i];
+            String val = args[i + 1];
+            try {
+                if (opt.equals("-connections")) {
+                    String[] counts = val.split(",");
+                    m_counts = new int[counts.length];
+                    for (int c = 0; c < counts.length; c++) m_counts[c] = Integer.parseInt(counts[c].trim());
+                }
+                else if (opt.equals("-settle")) m_settle = Integer.parseInt(val);
+                else if (opt.equals("-peraddress")) m_peraddress = Integer.parseInt(val);
+                else if (opt.equals("-baseline")) m_baseline = Integer.parseInt(val) != 0;
+                else throw new IllegalArgumentException("Unknown option " + opt);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + opt + ": " + val);
+            }
+        }
+
+        for (int count : m_counts) {
+            if (count < 1) throw new IllegalArgumentException("connections must be at least 1");
+        }
+        if (m_peraddress < 1) throw new IllegalArgumentException("peraddress must be at least 1");
+    }
+
+    void run() {
+
+        MUSServer server = new MUSServer();
+        final List<MUSConnectionPort> ports = new ArrayList<MUSConnectionPort>(server.m_ports);
+        InetSocketAddress address = serverAddress(ports);
+        if (address == null) {
+            System.err.println("The server did not open a connection port, check OpenSMUS.cfg and the server log");
+            server.killServer();
+            return;
+        }
+
+        Acceptor acceptor = null;
+        try {
+            if (m_baseline) acceptor = new Acceptor(address.getAddress());
+
+            m_out.println("Server listening on " + address);
+            m_out.println("connections   baseline B/conn   server B/conn   OpenSMUS B/conn");
+
+            for (int count : m_counts) {
+                long base = 0;
+                if (acceptor != null) {
+                    base = measure(acceptor, acceptor.m_address, count);
+                    if (base < 0) break;
+                }
+
+                final Counter accepted = new Counter() {
+                    public int count() {
+                        int total = 0;
+                        for (MUSConnectionPort port : ports) {
+                            total += port.m_channels.size() - 1; // Minus the listening channel
+                        }
+                        return total;
+                    }
+
+                    public void release() {
+                        // The server notices the closed clients by itself
+                    }
+                };
+                long srv = measure(accepted, address, count);
+                if (srv < 0) break;
+
+                m_out.println(String.format("%11d   %15s   %13d   %15s", count,
+                        acceptor != null ? String.valueOf(base) : "-", srv, acceptor != null ? String.valueOf(srv - base) : "-"));
+            }
+        } catch (IOException e) {
+            System.err.println("Benchmark failed: " + e);
+        } finally {
+            if (acceptor != null) acceptor.close();
+            server.killServer();
+        }
+    }
+
+    // Opens count connections, waits for them to be accepted and returns the heap growth per connection,
+    // or -1 if the connections could not be opened.
+    long measure(Counter accepted, InetSocketAddress address, int count) throws IOException {
+
+        long before = usedHeap();
+        List<SocketChannel> clients = new ArrayList<SocketChannel>(count);
+        try {
+            boolean loopback = address.getAddress().isLoopbackAddress() && address.getAddress().getAddress().length == 4;
+            for (int i = 0; i < count; i++) {
+                SocketChannel client = SocketChannel.open();
+                clients.add(client);
+                if (loopback && count > m_peraddress) {
+                    // Spread over 127.0.0.x so a single local address does not run out of ports
+                    client.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) (1 + i / m_peraddress)}), 0));
+                }
+                client.connect(address);
+            }
+
+            if (!waitFor(accepted, count, 60000)) {
+                System.err.println("Only " + accepted.count() + " of " + count + " connections were accepted");
+                return -1;
+            }
+            Thread.sleep(m_settle * 1000L);
+
+            return (usedHeap() - before) / count;
+
+        } catch (IOException e) {
+            System.err.println("Connection " + (clients.size()) + " of " + count + " failed: " + e.getMessage());
+            System.err.println("Each connection needs two file descriptors, check the open file limit (ulimit -n)");
+            return -1;
+        } catch (InterruptedException e) {
+            return -1;
+        } finally {
+            for (SocketChannel client : clients) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+            accepted.release();
+            waitFor(accepted, 0, 60000);
+        }
+    }
+
+    static boolean waitFor(Counter accepted, int count, long timeout) {
+
+        long end = System.currentTimeMillis() + timeout;
+        while (accepted.count() != count) {
+            if (System.currentTimeMillis() > end) return false;
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long usedHeap() {
+
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static InetSocketAddress serverAddress(List<MUSConnectionPort> ports) {
+
+        for (MUSConnectionPort port : ports) {
+            for (Channel channel : port.m_channels) {
+                if (channel instanceof ServerChannel) {
+                    InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+                    if (local.getAddress().isAnyLocalAddress())
+                        return new InetSocketAddress("127.0.0.1", local.getPort());
+                    return local;
+                }
+            }
+        }
+        return null;
+    }
+
+    // The accepting side of a measurement
+    interface Counter {
+        int count();
+
+        void release();
+    }
+
+    // Accepts connections and keeps the sockets open, without any per connection state of its own
+    static class Acceptor extends Thread implements Counter {
+
+        final ServerSocketChannel m_socket;
+        final InetSocketAddress m_address;
+        private final List<SocketChannel> m_accepted = new ArrayList<SocketChannel>();
+
+        Acceptor(InetAddress address) throws IOException {
+            super("Baseline acceptor");
+            setDaemon(true);
+            m_socket = ServerSocketChannel.open();
+            m_socket.socket().bind(new InetSocketAddress(address, 0), 1024);
+            m_address = (InetSocketAddress) m_socket.socket().getLocalSocketAddress();
+            start();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    SocketChannel accepted = m_socket.accept();
+                    synchronized (m_accepted) {
+                        m_accepted.add(accepted);
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        public int count() {
+            synchronized (m_accepted) {
+                return m_accepted.size();
+            }
+        }
+
+        public void release() {
+            synchronized (m_accepted) {
+                for (SocketChannel accepted : m_accepted) {
+                    try {
+                        accepted.close();
+                    } catch (IOException e) {
+                        // Already gone
+                    }
+                }
+                m_accepted.clear();
+            }
+        }
+
+        void close() {
+            release();
+            try {
+                m_socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus.tools;
+
+import net.sf.opensmus.*;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One virtual client of the load generator. Logs on, joins its group and then sends
+ * chat and position messages to the group. Each message carries its send time, so the
+ * round trip latency is measured when the group message comes back to the sender.
+ */
+class LoadClient extends SimpleChannelUpstreamHandler {
+
+    private static final String CHAT = "chat";
+    private static final String POSITION = "pos";
+    private static final String JOIN = "join";
+
+    private final LoadGenerator m_gen;
+    private final String m_name;
+    private final String m_group;
+    private final Random m_random = new Random();
+    private final List<ScheduledFuture<?>> m_tasks = new ArrayList<ScheduledFuture<?>>();
+    private Channel m_channel;
+    private long m_logonstart;
+    private long m_joinstart;
+    private int m_x, m_y;
+    private volatile boolean m_online = false;
+
+    LoadClient(LoadGenerator gen, String name, String group) {
+        m_gen = gen;
+        m_name = name;
+        m_group = group;
+    }
+
+    void connect() {
+
+        // Incoming messages are framed by their length field, the 6 header bytes are stripped
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("framer", new LengthFieldBasedFrameDecoder(16 * 1024 * 1024, 2, 4, 0, 6));
+        pipeline.addLast("client", this);
+
+        m_channel = m_gen.m_factory.newChannel(pipeline);
+        m_channel.getConfig().setOption("tcpNoDelay", true);
+        m_channel.connect(m_gen.m_address).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    m_gen.m_connected.inc();
+                    m_online = true;
+                    sendLogon();
+                } else {
+                    m_gen.m_connectfailed.inc();
+                }
+            }
+        });
+    }
+
+    void close() {
+
+        synchronized (m_tasks) {
+            for (ScheduledFuture<?> task : m_tasks) task.cancel(false);
+            m_tasks.clear();
+        }
+        if (m_channel != null) m_channel.close().awaitUninterruptibly(1000);
+    }
+
+    private void sendLogon() {
+
+        LList info = new LList();
+        info.addElement(new LString(m_gen.m_movie));
+        info.addElement(new LString(m_name));
+        info.addElement(new LString(m_gen.m_password));
+
+        MUSMessage msg = newMessage("Logon", "System", info);
+        ChannelBuffer bytes = msg.getBytes();
+
+        // Only the content of the logon message is encrypted
+        byte[] content = info.getBytes();
+        new MUSBlowfish(m_gen.m_key).encode(content);
+        bytes.setBytes(bytes.writerIndex() - content.length, content);
+
+        m_logonstart = System.nanoTime();
+        write(bytes);
+    }
+
+    private void sendJoin() {
+        m_joinstart = System.nanoTime();
+        write(newMessage(JOIN, "system.group.join", new LString(m_group)).getBytes());
+    }
+
+    // Schedules the chat and position messages once the client is in its group
+    private void startTraffic() {
+
+        synchronized (m_tasks) {
+            if (m_gen.m_stopping) return;
+            if (m_gen.m_chatrate > 0) m_tasks.add(schedule(m_gen.m_chatrate, new Runnable() {
+                public void run() {
+                    sendChat();
+                }
+            }));
+            if (m_gen.m_posrate > 0) m_tasks.add(schedule(m_gen.m_posrate, new Runnable() {
+                public void run() {
+                    sendPosition();
+                }
+            }));
+        }
+    }
+
+    private ScheduledFuture<?> schedule(double rate, Runnable r) {
+        long period = (long) (1000000 / rate);
+        // Random start so the clients don't send in bursts
+        return m_gen.m_scheduler.scheduleAtFixedRate(r, (long) (m_random.nextDouble() * period), period, TimeUnit.MICROSECONDS);
+    }
+
+    private void sendChat() {
+
+        StringBuilder sb = new StringBuilder(m_gen.m_payload);
+        for (int i = 0; i < m_gen.m_payload; i++) sb.append((char) ('a' + m_random.nextInt(26)));
+
+        LList content = new LList();
+        content.addElement(new LInteger(now()));
+        content.addElement(new LString(sb.toString()));
+        write(newMessage(CHAT, m_group, content).getBytes());
+    }
+
+    private void sendPosition() {
+
+        m_x += m_random.nextInt(11) - 5;
+        m_y += m_random.nextInt(11) - 5;
+
+        LList content = new LList();
+        content.addElement(new LInteger(now()));
+        content.addElement(new LPoint(new LInteger(m_x), new LInteger(m_y)));
+        write(newMessage(POSITION, m_group, content).getBytes());
+    }
+
+    private MUSMessage newMessage(String subject, String recipient, LValue content) {
+
+        MUSMessage msg = new MUSMessage();
+        msg.m_subject = new MUSMsgHeaderString(subject);
+        msg.m_senderID = new MUSMsgHeaderString(m_name);
+        msg.m_recptID = new MUSMsgHeaderStringList();
+        msg.m_recptID.addElement(new MUSMsgHeaderString(recipient));
+        msg.m_msgContent = content;
+        return msg;
+    }
+
+    private void write(ChannelBuffer bytes) {
+
+        if (!m_channel.isConnected()) return;
+        m_gen.m_sent.inc();
+        m_gen.m_bytesout.add(bytes.readableBytes());
+        m_channel.write(bytes);
+    }
+
+    // Send time in microseconds. Truncated to an int, differences stay correct as long as they are below 35 minutes.
+    private static int now() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+
+        ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+        m_gen.m_received.inc();
+        m_gen.m_bytesin.add(buffer.readableBytes() + 6);
+
+        MUSMessage msg = new MUSMessage(buffer);
+        String subject = msg.m_subject.toString();
+        if (msg.m_errCode != 0) m_gen.logError(msg.m_errCode);
+
+        if (subject.equals(CHAT) || subject.equals(POSITION)) {
+            // Our own message came back through the group
+            if (msg.m_senderID.toString().equals(m_name) && msg.m_msgContent instanceof LList) {
+                LValue sent = ((LList) msg.m_msgContent).getElementAt(0);
+                if (sent instanceof LInteger)
+                    m_gen.logLatency(subject, now() - ((LInteger) sent).toInteger());
+            }
+        } else if (subject.equals("Logon")) {
+            m_gen.logLatency("Logon", (System.nanoTime() - m_logonstart) / 1000);
+            if (msg.m_errCode == 0) {
+                m_gen.m_loggedon.inc();
+                sendJoin();
+            }
+        } else if (subject.equals(JOIN)) {
+            m_gen.logLatency(JOIN, (System.nanoTime() - m_joinstart) / 1000);
+            if (msg.m_errCode == 0) {
+                m_gen.m_joined.inc();
+                startTraffic();
+            }
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+
+        synchronized (m_tasks) {
+            for (ScheduledFuture<?> task : m_tasks) task.cancel(false);
+            m_tasks.clear();
+        }
+        if (m_online && !m_gen.m_stopping) m_gen.m_disconnects.inc();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+
+        if (!(e.getCause() instanceof ConnectException))
+            System.err.println(m_name + ": " + e.getCause());
+        e.getChannel().close();
+    }
+}
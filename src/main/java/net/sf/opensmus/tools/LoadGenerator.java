@@ -0,0 +1,271 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus.tools;
+
+import net.sf.opensmus.MUSErrorCode;
+import net.sf.opensmus.MUSMetrics;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless load generator. Connects a number of virtual clients to an OpenSMUS server,
+ * logs them on with an encrypted Logon message, joins them to groups and sends chat
+ * and position messages at a fixed rate per client. Throughput, round trip latency
+ * percentiles and error codes are reported periodically.
+ * <BR>Usage: java -cp OpenSMUS.jar:dependencies/netty.jar net.sf.opensmus.tools.LoadGenerator [-option value]...
+ * <BR>Full stream encryption (#All keys) is not supported.
+ */
+public class LoadGenerator {
+
+    // Options, with their defaults
+    String m_host = "127.0.0.1";
+    int m_port = 1626;
+    int m_clients = 100;
+    String m_movie = "LoadTest";
+    String m_userprefix = "load";
+    String m_password = "";
+    String m_key = "IPAddress resolution";
+    int m_groups = 10;
+    double m_chatrate = 1; // Messages per second per client
+    double m_posrate = 0;
+    int m_payload = 32; // Chat message length in characters
+    int m_duration = 60; // Seconds, measured from the start of the ramp-up
+    int m_rampup = 10;
+    int m_report = 5;
+
+    final MUSMetrics m_metrics = new MUSMetrics();
+    final MUSMetrics.Counter m_connected = m_metrics.counter("loadgen_connects_total");
+    final MUSMetrics.Counter m_connectfailed = m_metrics.counter("loadgen_connect_failures_total");
+    final MUSMetrics.Counter m_loggedon = m_metrics.counter("loadgen_logons_total");
+    final MUSMetrics.Counter m_joined = m_metrics.counter("loadgen_joins_total");
+    final MUSMetrics.Counter m_disconnects = m_metrics.counter("loadgen_disconnects_total");
+    final MUSMetrics.Counter m_sent = m_metrics.counter("loadgen_messages_sent_total");
+    final MUSMetrics.Counter m_received = m_metrics.counter("loadgen_messages_received_total");
+    final MUSMetrics.Counter m_bytesout = m_metrics.counter("loadgen_bytes_out_total");
+    final MUSMetrics.Counter m_bytesin = m_metrics.counter("loadgen_bytes_in_total");
+
+    ClientSocketChannelFactory m_factory;
+    ScheduledExecutorService m_scheduler;
+    InetSocketAddress m_address;
+    volatile boolean m_stopping = false;
+    private final List<LoadClient> m_clientlist = new ArrayList<LoadClient>();
+
+    public static void main(String[] args) {
+
+        LoadGenerator gen = new LoadGenerator();
+        try {
+            gen.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        gen.run();
+        System.exit(0);
+    }
+
+    static void printUsage() {
+        System.err.println("Options: -host 127.0.0.1 -port 1626 -clients 100 -movie LoadTest -user load -password \"\"\n" +
+                "         -key \"IPAddress resolution\" -groups 10 -chatrate 1 -posrate 0 -payload 32\n" +
+                "         -duration 60 -rampup 10 -report 5\n" +
+                "Rates are messages per second per client, times are in seconds.");
+    }
+
+    void parseArguments(String[] args) {
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (args[i].equals("-help")) throw new IllegalArgumentException("OpenSMUS load generator");
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+            String opt = args[i];
+            String val = args[i + 1];
+            try {
+                if (opt.equals("-host")) m_host = val;
+                else if (opt.equals("-port")) m_port = Integer.parseInt(val);
+                else if (opt.equals("-clients")) m_clients = Integer.parseInt(val);
+                else if (opt.equals("-movie")) m_movie = val;
+                else if (opt.equals("-user")) m_userprefix = val;
+                else if (opt.equals("-password")) m_password = val;
+                else if (opt.equals("-key")) m_key = val;
+                else if (opt.equals("-groups")) m_groups = Integer.parseInt(val);
+                else if (opt.equals("-chatrate")) m_chatrate = Double.parseDouble(val);
+                else if (opt.equals("-posrate")) m_posrate = Double.parseDouble(val);
+                else if (opt.equals("-payload")) m_payload = Integer.parseInt(val);
+                else if (opt.equals("-duration")) m_duration = Integer.parseInt(val);
+                else if (opt.equals("-rampup")) m_rampup = Integer.parseInt(val);
+                else if (opt.equals("-report")) m_report = Integer.parseInt(val);
+                else throw new IllegalArgumentException("Unknown option " + opt);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + opt + ": " + val);
+            }
+        }
+
+        if (m_key.startsWith("#All"))
+            throw new IllegalArgumentException("Full stream encryption is not supported");
+        // Same adjustment as the server does
+        if (m_key.length() < 20)
+            m_key = m_key + "IPAddress resolution";
+        if (m_clients < 1 || m_groups < 1 || m_report < 1)
+            throw new IllegalArgumentException("clients, groups and report must be at least 1");
+    }
+
+    void run() {
+
+        m_address = new InetSocketAddress(m_host, m_port);
+        m_factory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        m_scheduler = Executors.newScheduledThreadPool(2);
+
+        System.out.println("Connecting " + m_clients + " clients to " + m_address + " movie " + m_movie + " over " + m_rampup + " seconds");
+
+        // Spread the connects evenly over the ramp-up time
+        long spacing = m_rampup * 1000000L / m_clients;
+        for (int i = 0; i < m_clients; i++) {
+            final LoadClient client = new LoadClient(this, m_userprefix + i, "@" + m_userprefix + (i % m_groups));
+            m_clientlist.add(client);
+            m_scheduler.schedule(new Runnable() {
+                public void run() {
+                    client.connect();
+                }
+            }, i * spacing, TimeUnit.MICROSECONDS);
+        }
+
+        Reporter reporter = new Reporter();
+        long start = System.currentTimeMillis();
+        long end = start + m_duration * 1000L;
+        try {
+            while (System.currentTimeMillis() < end) {
+                Thread.sleep(Math.min(m_report * 1000L, end - System.currentTimeMillis()));
+                reporter.report((System.currentTimeMillis() - start) / 1000);
+            }
+        } catch (InterruptedException e) {
+            // Stop early
+        }
+
+        m_stopping = true;
+        m_scheduler.shutdownNow();
+        for (LoadClient client : m_clientlist) {
+            client.close();
+        }
+        m_factory.releaseExternalResources();
+
+        reporter.summary((System.currentTimeMillis() - start) / 1000);
+    }
+
+    void logLatency(String subject, long micros) {
+        m_metrics.latency("loadgen_latency_us", "subject", subject).record(micros);
+    }
+
+    void logError(int errCode) {
+        m_metrics.counter("loadgen_errors_total", "code", MUSErrorCode.getName(errCode)).inc();
+    }
+
+    // Prints the change of all counters since the previous report, and interval percentiles
+    private class Reporter {
+
+        private Map<String, Long> lastSnapshot = new HashMap<String, Long>();
+        private final Map<String, long[]> lastBuckets = new HashMap<String, long[]>();
+        private long lastTime = System.nanoTime();
+
+        void report(long elapsed) {
+
+            Map<String, Long> snapshot = m_metrics.snapshot();
+            long now = System.nanoTime();
+            double secs = Math.max(1, now - lastTime) / 1e9;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("[%4ds] connected %d/%d, logged on %d, joined %d, disconnects %d%n",
+                    elapsed, value(snapshot, "loadgen_connects_total"), m_clients, value(snapshot, "loadgen_logons_total"),
+                    value(snapshot, "loadgen_joins_total"), value(snapshot, "loadgen_disconnects_total")));
+            sb.append(String.format("       sent %.0f msg/s (%.1f KB/s), received %.0f msg/s (%.1f KB/s)%n",
+                    delta(snapshot, "loadgen_messages_sent_total") / secs, delta(snapshot, "loadgen_bytes_out_total") / secs / 1024,
+                    delta(snapshot, "loadgen_messages_received_total") / secs, delta(snapshot, "loadgen_bytes_in_total") / secs / 1024));
+
+            for (MUSMetrics.Metric m : m_metrics.getMetrics()) {
+                if (m instanceof MUSMetrics.Histogram) {
+                    MUSMetrics.Histogram h = (MUSMetrics.Histogram) m;
+                    long[] counts = h.getBucketCounts();
+                    long[] last = lastBuckets.put(h.key(), counts);
+                    long[] diff = new long[counts.length];
+                    long total = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        diff[i] = counts[i] - (last != null ? last[i] : 0);
+                        total += diff[i];
+                    }
+                    if (total > 0)
+                        sb.append(String.format("       %-12s %6d rtt, p50 %d us, p95 %d us, p99 %d us%n", h.getLabel("subject"), total,
+                                h.percentile(0.5, diff), h.percentile(0.95, diff), h.percentile(0.99, diff)));
+                } else if (m.name().equals("loadgen_errors_total") && delta(snapshot, m.key()) > 0) {
+                    sb.append(String.format("       error %s: %d%n", m.getLabel("code"), delta(snapshot, m.key())));
+                }
+            }
+
+            System.out.print(sb);
+            lastSnapshot = snapshot;
+            lastTime = now;
+        }
+
+        void summary(long elapsed) {
+
+            Map<String, Long> snapshot = m_metrics.snapshot();
+            long sent = value(snapshot, "loadgen_messages_sent_total");
+            long received = value(snapshot, "loadgen_messages_received_total");
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Summary after %d seconds: %d clients logged on, %d connect failures, %d disconnects%n",
+                    elapsed, value(snapshot, "loadgen_logons_total"), value(snapshot, "loadgen_connect_failures_total"),
+                    value(snapshot, "loadgen_disconnects_total")));
+            sb.append(String.format("  sent %d msgs (%d bytes), received %d msgs (%d bytes), %.0f msg/s in%n",
+                    sent, value(snapshot, "loadgen_bytes_out_total"), received, value(snapshot, "loadgen_bytes_in_total"),
+                    received / (double) Math.max(1, elapsed)));
+            for (MUSMetrics.Metric m : m_metrics.getMetrics()) {
+                if (m instanceof MUSMetrics.Histogram) {
+                    MUSMetrics.Histogram h = (MUSMetrics.Histogram) m;
+                    sb.append(String.format("  %-12s %8d rtt, p50 %d us, p95 %d us, p99 %d us, p99.9 %d us%n", h.getLabel("subject"), h.value(),
+                            h.percentile(0.5), h.percentile(0.95), h.percentile(0.99), h.percentile(0.999)));
+                } else if (m.name().equals("loadgen_errors_total")) {
+                    sb.append(String.format("  error %s: %d%n", m.getLabel("code"), m.value()));
+                }
+            }
+            System.out.print(sb);
+        }
+
+        private long value(Map<String, Long> snapshot, String key) {
+            Long v = snapshot.get(key);
+            return v != null ? v : 0;
+        }
+
+        private long delta(Map<String, Long> snapshot, String key) {
+            return value(snapshot, key) - value(lastSnapshot, key);
+        }
+    }
+}
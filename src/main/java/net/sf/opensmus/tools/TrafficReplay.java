@@ -0,0 +1,312 @@
+/*
+  Part of OpenSMUS Source Code.
+  OpenSMUS is licensed under a MIT License, compatible with both
+  open source (GPL or not) and commercial development.
+
+  Copyright (c) 2001-2008 Mauricio Piacentini <mauricio@tabuleiro.com>
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation
+  files (the "Software"), to deal in the Software without
+  restriction, including without limitation the rights to use,
+  copy, modify, merge, publish, distribute, sublicense, and/or sell
+  copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following
+  conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+  OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+  HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+  OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package net.sf.opensmus.tools;
+
+import net.sf.opensmus.MUSErrorCode;
+import net.sf.opensmus.MUSMessage;
+import net.sf.opensmus.MUSMetrics;
+import net.sf.opensmus.MUSTrafficCapture;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays a traffic capture (see TrafficCaptureFile) back into a server. Every captured
+ * connection gets its own connection and its messages are sent in the captured order,
+ * at the original pace or faster. Messages that follow a logon are held back until the
+ * server has answered it. The server must use the same EncryptionKey as the
+ * captured one, since the logon messages are sent as they were recorded.
+ * <BR>Usage: java -cp OpenSMUS.jar:dependencies/netty.jar net.sf.opensmus.tools.TrafficReplay capturefile [-option value]...
+ */
+public class TrafficReplay {
+
+    String m_file;
+    String m_host = "127.0.0.1";
+    int m_port = 1626;
+    double m_speed = 1; // 2 = twice as fast, 0 = as fast as possible
+    int m_linger = 2; // Seconds to wait for replies after the last record
+
+    private ClientSocketChannelFactory m_factory;
+    private InetSocketAddress m_address;
+    private final Map<Integer, Connection> m_connections = new HashMap<Integer, Connection>();
+    private final Map<Integer, String> m_names = new HashMap<Integer, String>();
+
+    final MUSMetrics m_metrics = new MUSMetrics();
+    private final MUSMetrics.Counter m_connects = m_metrics.counter("replay_connects_total");
+    private final MUSMetrics.Counter m_sent = m_metrics.counter("replay_messages_sent_total");
+    private final MUSMetrics.Counter m_bytesout = m_metrics.counter("replay_bytes_out_total");
+    private final MUSMetrics.Counter m_skipped = m_metrics.counter("replay_messages_skipped_total");
+    final MUSMetrics.Counter m_received = m_metrics.counter("replay_messages_received_total");
+    private final MUSMetrics.Histogram m_lag = m_metrics.latency("replay_lag_us");
+
+    private long m_connecttime = 0; // Nanoseconds spent connecting, the replay clock stops meanwhile
+
+    public static void main(String[] args) {
+
+        TrafficReplay replay = new TrafficReplay();
+        try {
+            replay.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: TrafficReplay capturefile [-host 127.0.0.1] [-port 1626] [-speed 1] [-linger 2]\n" +
+                    "A speed of 2 replays twice as fast as captured, 0 as fast as possible.");
+            System.exit(1);
+        }
+
+        try {
+            replay.run();
+        } catch (IOException e) {
+            System.err.println("Error reading " + replay.m_file + ": " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    void parseArguments(String[] args) {
+
+        if (args.length == 0 || args[0].startsWith("-"))
+            throw new IllegalArgumentException("No capture file given");
+        m_file = args[0];
+
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+            String opt = args[i];
+            String val = args[i + 1];
+            try {
+                if (opt.equals("-host")) m_host = val;
+                else if (opt.equals("-port")) m_port = Integer.parseInt(val);
+                else if (opt.equals("-speed")) m_speed = Double.parseDouble(val);
+                else if (opt.equals("-linger")) m_linger = Integer.parseInt(val);
+                else throw new IllegalArgumentException("Unknown option " + opt);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + opt + ": " + val);
+            }
+        }
+    }
+
+    void run() throws IOException {
+
+        m_address = new InetSocketAddress(m_host, m_port);
+        m_factory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+
+        System.out.println("Replaying " + m_file + " to " + m_address + (m_speed > 0 ? " at speed " + m_speed : " as fast as possible"));
+
+        long records = 0;
+        long start = System.nanoTime();
+        long first = -1; // Time of the first record, the replay starts right away
+        MUSTrafficCapture.Reader reader = new MUSTrafficCapture.Reader(new FileInputStream(m_file));
+        try {
+            MUSTrafficCapture.Record rec;
+            while ((rec = reader.next()) != null) {
+                records++;
+                if (first < 0) first = rec.time;
+                if (m_speed > 0) {
+                    // Wait until the record is due, then note how late we are
+                    long due = start + m_connecttime + (long) ((rec.time - first) * 1000 / m_speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    m_lag.record(Math.max(0, System.nanoTime() - due) / 1000);
+                }
+                replay(rec);
+            }
+        } finally {
+            reader.close();
+        }
+
+        try {
+            Thread.sleep(m_linger * 1000L);
+        } catch (InterruptedException e) {
+            // Close now
+        }
+        for (Connection c : m_connections.values()) {
+            c.channel.close().awaitUninterruptibly(1000);
+        }
+        m_factory.releaseExternalResources();
+
+        report(records, (System.nanoTime() - start) / 1000000);
+    }
+
+    private void replay(MUSTrafficCapture.Record rec) {
+
+        switch (rec.type) {
+            case MUSTrafficCapture.OPEN:
+                connect(rec.conn);
+                break;
+            case MUSTrafficCapture.NAME:
+                m_names.put(rec.conn, rec.text);
+                break;
+            case MUSTrafficCapture.MESSAGE:
+                Connection c = m_connections.get(rec.conn);
+                if (c == null) c = connect(rec.conn); // The capture started after this connection was opened
+                ChannelBuffer buf = ChannelBuffers.buffer(6 + rec.data.length);
+                buf.writeBytes(MUSMessage.m_header);
+                buf.writeInt(rec.data.length);
+                buf.writeBytes(rec.data);
+                c.send(buf);
+                break;
+            case MUSTrafficCapture.CLOSE:
+                Connection closed = m_connections.remove(rec.conn);
+                if (closed != null) closed.close();
+                break;
+        }
+    }
+
+    // Connects synchronously, so the following records of the connection keep their order
+    private Connection connect(int conn) {
+
+        Connection c = new Connection();
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("framer", new LengthFieldBasedFrameDecoder(16 * 1024 * 1024, 2, 4, 0, 6));
+        pipeline.addLast("handler", c);
+
+        long started = System.nanoTime();
+        c.channel = m_factory.newChannel(pipeline);
+        c.channel.getConfig().setOption("tcpNoDelay", true);
+        if (c.channel.connect(m_address).awaitUninterruptibly().isSuccess())
+            m_connects.inc();
+        else
+            System.err.println("Connect failed for captured connection " + conn);
+        m_connections.put(conn, c);
+        // Connecting can take longer than it did in the capture, don't let it squeeze the following messages together
+        m_connecttime += System.nanoTime() - started;
+        return c;
+    }
+
+    void logError(int errCode) {
+        m_metrics.counter("replay_errors_total", "code", MUSErrorCode.getName(errCode)).inc();
+    }
+
+    private void report(long records, long elapsed) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Replayed %d records in %.1f seconds: %d connections (%d users), %d msgs sent (%d bytes), %d msgs received%n",
+                records, elapsed / 1000.0, m_connects.value(), m_names.size(), m_sent.value(), m_bytesout.value(), m_received.value()));
+        if (m_skipped.value() > 0)
+            sb.append(String.format("  %d msgs not sent, the server had closed their connection%n", m_skipped.value()));
+        if (m_speed > 0)
+            sb.append(String.format("  behind schedule: p50 %d us, p99 %d us%n", m_lag.percentile(0.5), m_lag.percentile(0.99)));
+        for (MUSMetrics.Metric m : m_metrics.getMetrics()) {
+            if (m.name().equals("replay_errors_total"))
+                sb.append(String.format("  error %s: %d%n", m.getLabel("code"), m.value()));
+        }
+        System.out.print(sb);
+    }
+
+    /**
+     * One replayed connection. The first message is the logon, the server treats
+     * anything arriving before the logon reply as another logon attempt.
+     * So like the original client, the following messages wait for the reply.
+     */
+    private class Connection extends SimpleChannelUpstreamHandler {
+
+        Channel channel;
+        private boolean logonSent = false;
+        private List<ChannelBuffer> pending = new ArrayList<ChannelBuffer>(); // null once logged on
+        private boolean closing = false;
+
+        synchronized void send(ChannelBuffer buf) {
+            if (!logonSent) {
+                logonSent = true;
+                write(buf);
+            } else if (pending != null) {
+                pending.add(buf);
+            } else {
+                write(buf);
+            }
+        }
+
+        // The captured connection was closed. Wait for the queued messages if the logon reply is still due.
+        synchronized void close() {
+            if (pending == null || pending.isEmpty())
+                channel.close();
+            else
+                closing = true;
+        }
+
+        private void write(ChannelBuffer buf) {
+            if (channel.isConnected()) {
+                m_sent.inc();
+                m_bytesout.add(buf.readableBytes());
+                channel.write(buf);
+            } else {
+                m_skipped.inc(); // The server has closed the connection
+            }
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+
+            m_received.inc();
+            MUSMessage msg = new MUSMessage((ChannelBuffer) e.getMessage());
+            if (msg.m_errCode != 0) logError(msg.m_errCode);
+
+            if (msg.m_subject.toString().equals("Logon")) {
+                synchronized (this) {
+                    if (pending != null) {
+                        for (ChannelBuffer buf : pending) write(buf);
+                        pending = null;
+                        if (closing) channel.close();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            synchronized (this) {
+                if (pending != null) m_skipped.add(pending.size());
+                pending = null;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            e.getChannel().close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package net.sf.opensmus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+// ServerUser stand-ins for tests that do not need a connection
+public final class MockServerUser {
+
+	private static final Class<?>[] INTERFACES = new Class<?>[]{ServerUser.class};
+
+	private MockServerUser() {
+	}
+
+	// A user that only has a name
+	public static ServerUser named(String name) {
+		return recording(name, null);
+	}
+
+	// A user that adds the messages sent to it to the list, if the list is not null
+	public static ServerUser recording(final String name, final List<MUSMessage> received) {
+		return (ServerUser) Proxy.newProxyInstance(MockServerUser.class.getClassLoader(), INTERFACES, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("equals")) return proxy == args[0];
+				if (method.getName().equals("hashCode")) return name.hashCode();
+				if (method.getName().equals("toString")) return name;
+				if (method.getName().equals("name")) return name;
+				if (method.getName().equals("sendMessage") && received != null) {
+					synchronized (received) {
+						received.add((MUSMessage) args[0]);
+					}
+				}
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,24 @@
+package net.sf.opensmus;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSAttribute {
+
+	@Test
+	public void testTime() throws Exception {
+
+		String last = MUSAttribute.getTime().toString();
+		// Milliseconds padded to six digits, as clients have always received them
+		Assert.assertTrue(last.matches("\\d{4}/\\d{2}/\\d{2} \\d{2}:\\d{2}:\\d{2}\\.000\\d{3}"));
+		new java.text.SimpleDateFormat("yyyy/MM/dd HH:mm:ss").parse(last);
+
+		// Every call is later than the previous one, even within the same millisecond
+		for (int i = 0; i < 100; i++) {
+			String time = MUSAttribute.getTime().toString();
+			Assert.assertTrue(time.compareTo(last) > 0);
+			last = time;
+		}
+	}
+}
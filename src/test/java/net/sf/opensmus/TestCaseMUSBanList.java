@@ -0,0 +1,82 @@
+package net.sf.opensmus;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+public class TestCaseMUSBanList {
+
+	@Test
+	public void testEntries() throws Exception {
+
+		MUSBanList bans = new MUSBanList();
+		bans.add("Bob", 2000);
+		bans.add("10.1.0.0/16", 3000);
+		bans.add("192.168.0.7", 1000);
+		bans.add("2001:db8::/32", 3000);
+
+		Assert.assertEquals(2000, bans.getExpiry("BOB", 0));
+		Assert.assertEquals(0, bans.getExpiry("bob", 2000));
+		Assert.assertEquals(3000, bans.getExpiry("10.1.200.3", 0));
+		Assert.assertEquals(0, bans.getExpiry("10.2.0.1", 0));
+		Assert.assertTrue(bans.isBanned(InetAddress.getByName("192.168.0.7"), 500));
+		Assert.assertFalse(bans.isBanned(InetAddress.getByName("192.168.0.8"), 500));
+		Assert.assertTrue(bans.isBanned(InetAddress.getByName("2001:db8:1::5"), 0));
+		Assert.assertFalse(bans.isBanned(InetAddress.getByName("2001:db9::5"), 0));
+
+		// Names that look a bit like addresses stay names
+		Assert.assertNull(MUSBanList.parseAddress("1.2.3"));
+		Assert.assertNull(MUSBanList.parseAddress("1.2.3.256"));
+		Assert.assertNull(MUSBanList.parseAddress("BOB.SMITH.IS.HERE"));
+
+		// Expired entries are taken out in expiry order
+		Assert.assertEquals("[192.168.0.7]", bans.takeExpired(1000).toString());
+		Assert.assertFalse(bans.isBanned(InetAddress.getByName("192.168.0.7"), 0));
+		Assert.assertEquals("[BOB]", bans.takeExpired(2500).toString());
+		Assert.assertEquals(2, bans.size());
+
+		// Adding again replaces the expiry time
+		bans.add("10.1.0.0/16", 5000);
+		Assert.assertEquals("[2001:DB8::/32]", bans.takeExpired(3000).toString());
+		Assert.assertEquals(5000, bans.getExpiry("10.1.0.1", 4000));
+		Assert.assertTrue(bans.remove("10.1.0.0/16"));
+		Assert.assertEquals(0, bans.getExpiry("10.1.0.1", 0));
+	}
+
+	@Test
+	public void testAddressLiterals() throws Exception {
+
+		Assert.assertEquals(16, MUSBanList.parseAddress("2001:DB8::1").length);
+		Assert.assertEquals(16, MUSBanList.parseAddress("::1").length);
+		Assert.assertNotNull(MUSBanList.parseAddress("::FFFF:10.0.0.1"));
+
+		// Anything else with a colon is a name and never reaches a lookup
+		Assert.assertNull(MUSBanList.parseAddress("BOB:SMITH"));
+		Assert.assertNull(MUSBanList.parseAddress("LOCALHOST:1"));
+		Assert.assertNull(MUSBanList.parseAddress("FE80::1%ETH0"));
+		Assert.assertNull(MUSBanList.parseAddress(".:1"));
+		Assert.assertNull(MUSBanList.parseAddress("2001:DB8:::1"));
+	}
+
+	@Test
+	public void testPruning() throws Exception {
+
+		MUSBanList bans = new MUSBanList();
+		bans.add("10.1.0.0/16", 1000);
+		Assert.assertEquals(16, bans.getNodeCount());
+		bans.add("10.1.2.3", 2000);
+		bans.add("2001:db8::/32", 3000);
+		Assert.assertEquals(16 + 16 + 32, bans.getNodeCount());
+
+		// The path to a range that is still banned stays
+		bans.remove("10.1.0.0/16");
+		Assert.assertEquals(32 + 32, bans.getNodeCount());
+		Assert.assertEquals(2000, bans.getExpiry("10.1.2.3", 0));
+
+		bans.takeExpired(3000);
+		Assert.assertEquals(0, bans.getNodeCount());
+		Assert.assertEquals(0, bans.size());
+	}
+}
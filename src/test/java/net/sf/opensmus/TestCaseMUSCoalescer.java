@@ -0,0 +1,164 @@
+package net.sf.opensmus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseMUSCoalescer {
+
+	private MUSServer server;
+	private MUSGroup group;
+
+	@Before
+	public void setUp() {
+
+		server = new MUSServer(new MUSServerProperties());
+		group = new MUSGroup(new MUSMovie(server, "CoalesceTest"), "@Race");
+	}
+
+	@After
+	public void cleanup() {
+
+		if (group.m_coalescer != null)
+			group.m_coalescer.kill();
+		server.killServer();
+
+		File serverLogFile = new File(MUSServerProperties.DEFAULT_LOGFILENAME);
+		if (serverLogFile.exists())
+			serverLogFile.delete();
+	}
+
+	// The ticks are run by the tests, the scheduled one never comes
+	private MUSCoalescer coalesce(String setting) {
+
+		MUSCoalescer coalescer = MUSCoalescer.parse(group, setting);
+		coalescer.start(server);
+		group.m_coalescer = coalescer;
+		return coalescer;
+	}
+
+	private ServerUser join(String name, List<MUSMessage> received) throws MUSErrorCode {
+
+		ServerUser user = MockServerUser.recording(name, received);
+		group.addUser(user);
+		return user;
+	}
+
+	private MUSMessage message(ServerUser sender, String subject, int content, boolean udp) {
+
+		MUSMessage msg = new MUSMessage();
+		msg.m_subject = new MUSMsgHeaderString(subject);
+		msg.m_senderID = new MUSMsgHeaderString(sender.name());
+		msg.m_recptID = new MUSMsgHeaderStringList();
+		msg.m_recptID.addElement(new MUSMsgHeaderString("@Race"));
+		msg.m_msgContent = new LInteger(content);
+		msg.m_udp = udp;
+		return msg;
+	}
+
+	@Test
+	public void testParse() {
+
+		Assert.assertNull(MUSCoalescer.parse(null, "@Race:Position"));
+		Assert.assertNull(MUSCoalescer.parse(null, "@Race:Position:0"));
+		Assert.assertNull(MUSCoalescer.parse(null, "@Race:Position:50:Pack"));
+		Assert.assertEquals("@Race", MUSCoalescer.parseGroupName("@Race:Position:50:Bundle"));
+
+		MUSCoalescer coalescer = MUSCoalescer.parse(null, "@Race:Position, Heading:50");
+		Assert.assertTrue(coalescer.filters("position"));
+		Assert.assertTrue(coalescer.filters("Heading"));
+		Assert.assertFalse(coalescer.filters("Chat"));
+	}
+
+	@Test
+	public void testLatestValueWins() throws Exception {
+
+		MUSCoalescer coalescer = coalesce("@Race:Position:3600000");
+		List<MUSMessage> received = new ArrayList<MUSMessage>();
+		ServerUser a = join("a", received);
+		ServerUser b = join("b", new ArrayList<MUSMessage>());
+
+		Assert.assertFalse(coalescer.offer(a, message(a, "Position", 1, false)));
+		Assert.assertTrue(coalescer.offer(a, message(a, "Position", 2, false)));
+		Assert.assertTrue(coalescer.offer(a, message(a, "position", 3, false)));
+		Assert.assertFalse(coalescer.offer(b, message(b, "Position", 10, false)));
+		Assert.assertEquals(2, coalescer.getPendingCount());
+
+		// Nothing is sent before the tick
+		Assert.assertEquals(0, received.size());
+
+		coalescer.run();
+		Assert.assertEquals(0, coalescer.getPendingCount());
+		Assert.assertEquals(2, received.size());
+		for (MUSMessage msg : received) {
+			int expected = msg.m_senderID.toString().equals("a") ? 3 : 10;
+			Assert.assertEquals(expected, msg.m_msgContent.toInteger());
+		}
+
+		// An empty tick sends nothing
+		coalescer.run();
+		Assert.assertEquals(2, received.size());
+	}
+
+	@Test
+	public void testBundle() throws Exception {
+
+		MUSCoalescer coalescer = coalesce("@Race:Position,Emote:3600000:Bundle");
+		List<MUSMessage> received = new ArrayList<MUSMessage>();
+		ServerUser a = join("a", new ArrayList<MUSMessage>());
+		ServerUser b = join("b", new ArrayList<MUSMessage>());
+		join("c", received);
+
+		coalescer.offer(a, message(a, "Position", 1, true));
+		coalescer.offer(a, message(a, "Position", 2, true));
+		coalescer.offer(b, message(b, "Position", 3, true));
+		coalescer.run();
+
+		// One bundle per member and tick, holding [sender, subject, content] per message
+		Assert.assertEquals(1, received.size());
+		MUSMessage bundle = received.get(0);
+		Assert.assertEquals(MUSCoalescer.BUNDLE_SUBJECT, bundle.m_subject.toString());
+		Assert.assertEquals("System", bundle.m_senderID.toString());
+		Assert.assertTrue(bundle.m_udp);
+		LList items = (LList) bundle.m_msgContent;
+		Assert.assertEquals(2, items.count());
+		for (int i = 0; i < items.count(); i++) {
+			LList item = (LList) items.getElementAt(i);
+			Assert.assertEquals("Position", item.getElementAt(1).toString());
+			int expected = item.getElementAt(0).toString().equals("a") ? 2 : 3;
+			Assert.assertEquals(expected, item.getElementAt(2).toInteger());
+		}
+
+		// A bundle only goes by UDP if all of its messages came that way
+		coalescer.offer(a, message(a, "Position", 4, true));
+		coalescer.offer(b, message(b, "Emote", 5, false));
+		coalescer.run();
+		Assert.assertEquals(2, received.size());
+		Assert.assertFalse(received.get(1).m_udp);
+		Assert.assertEquals(2, ((LList) received.get(1).m_msgContent).count());
+	}
+
+	@Test
+	public void testLeavingSenderIsDropped() throws Exception {
+
+		MUSCoalescer coalescer = coalesce("@Race:Position:3600000");
+		List<MUSMessage> received = new ArrayList<MUSMessage>();
+		ServerUser a = join("a", new ArrayList<MUSMessage>());
+		ServerUser b = join("b", received);
+
+		coalescer.offer(a, message(a, "Position", 1, false));
+		coalescer.offer(b, message(b, "Position", 2, false));
+		group.removeUser(a);
+		Assert.assertEquals(1, coalescer.getPendingCount());
+
+		coalescer.run();
+		Assert.assertEquals(1, received.size());
+		Assert.assertEquals(2, received.get(0).m_msgContent.toInteger());
+	}
+}
@@ -0,0 +1,142 @@
+package net.sf.opensmus;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseMUSDBConnection {
+
+	private static int databases = 0;
+
+	private MUSServer server;
+	private MUSDBConnection db;
+
+	@Before
+	public void setUp() {
+
+		MUSServerProperties props = new MUSServerProperties();
+		props.m_props.setProperty("MUDatabaseURL", "jdbc:hsqldb:mem:TestCaseMUSDBConnection" + (++databases));
+		server = new MUSServer(props);
+		db = server.m_dbConn;
+		Assert.assertTrue(db.isEnabled());
+	}
+
+	@After
+	public void cleanup() {
+
+		server.killServer();
+
+		File serverLogFile = new File(MUSServerProperties.DEFAULT_LOGFILENAME);
+		if (serverLogFile.exists())
+			serverLogFile.delete();
+	}
+
+	private int createUser(String name) throws Exception {
+
+		Assert.assertTrue(db.createUser(name, "pw", "20"));
+		return db.getDBUser(name);
+	}
+
+	private LPropList setScore(int ownerid, MUSMessage reply, int score, LValue lastupdatetime) throws Exception {
+
+		LPropList attributes = new LPropList();
+		attributes.addElement(new LSymbol("score"), new LInteger(score));
+		LPropList content = new LPropList();
+		content.addElement(new LSymbol("attribute"), attributes);
+		if (lastupdatetime != null)
+			content.addElement(new LSymbol("lastUpdateTime"), lastupdatetime);
+		return (LPropList) db.handleAttributeMessage(ownerid, reply, "setAttribute", content, MockServerUser.named("bob"));
+	}
+
+	@Test
+	public void testConditionalSet() throws Exception {
+
+		Assert.assertTrue(db.declareAttribute("#score"));
+		int userid = createUser("bob");
+
+		MUSMessage reply = new MUSMessage();
+		LValue first = setScore(userid, reply, 1, null).getElement(new LSymbol("lastUpdateTime"));
+		Assert.assertEquals(first.toString(), db.getAttribute(userid, "lastUpdateTime").get().toString());
+
+		// The time returned by a set is the one a conditional set has to match
+		reply = new MUSMessage();
+		LPropList result = setScore(userid, reply, 2, first);
+		Assert.assertEquals(0, reply.m_errCode);
+		LValue second = result.getElement(new LSymbol("lastUpdateTime"));
+		Assert.assertFalse(first.toString().equals(second.toString()));
+		Assert.assertEquals(2, db.getAttribute(userid, "#score").get().toInteger());
+
+		// A stale time is refused and the current one reported
+		reply = new MUSMessage();
+		result = setScore(userid, reply, 3, first);
+		Assert.assertEquals(MUSErrorCode.MessageContainsErrorInfo, reply.m_errCode);
+		Assert.assertEquals(MUSErrorCode.DataConcurrencyError, result.getElement(new LSymbol("errorCode")).toInteger());
+		Assert.assertEquals(second.toString(), result.getElement(new LSymbol("lastUpdateTime")).toString());
+		Assert.assertEquals(2, db.getAttribute(userid, "#score").get().toInteger());
+	}
+
+	@Test
+	public void testBatchedReads() throws Exception {
+
+		Assert.assertTrue(db.declareAttribute("#score"));
+		Assert.assertTrue(db.declareAttribute("#team"));
+		int alice = createUser("alice");
+		int bob = createUser("bob");
+		setScore(alice, new MUSMessage(), 5, null);
+		db.setAttribute(bob, new MUSAttribute(new LSymbol("team"), new LString("red")));
+		db.flushAttributes(alice);
+		db.flushAttributes(bob);
+
+		// The rows read for several owners at once are the ones read one by one
+		int[] owners = new int[]{alice, bob, 999};
+		int[] attrids = new int[12];
+		for (int i = 0; i < attrids.length; i++)
+			attrids[i] = i + 1;
+		Map<Integer, Map<Integer, byte[]>> batch = db.readAttributeBytes(owners, attrids);
+		Map<Integer, Map<Integer, byte[]>> all = db.readAttributeBytes(owners, new int[0]);
+		Assert.assertFalse(batch.containsKey(999));
+		for (int ownerid : owners) {
+			for (int attrid : attrids) {
+				byte[] single = db.readAttributeBytes(ownerid, attrid);
+				Map<Integer, byte[]> values = batch.get(ownerid);
+				Assert.assertTrue(Arrays.equals(single, (values == null) ? null : values.get(attrid)));
+				values = all.get(ownerid);
+				Assert.assertTrue(Arrays.equals(single, (values == null) ? null : values.get(attrid)));
+			}
+		}
+
+		// getAttributes leaves out what getAttribute does not find
+		LList names = new LList();
+		names.addElement(new LSymbol("score"));
+		names.addElement(new LSymbol("team"));
+		names.addElement(new LSymbol("nope"));
+		for (int ownerid : new int[]{alice, bob}) {
+			LPropList values = db.getAttributes(ownerid, names);
+			int found = 0;
+			for (int e = 0; e < names.count(); e++) {
+				LSymbol name = (LSymbol) names.getElementAt(e);
+				try {
+					LValue single = db.getAttribute(ownerid, name.toString()).get();
+					Assert.assertEquals(single.toString(), values.getElement(name).toString());
+					found++;
+				} catch (AttributeNotFoundException anf) {
+					try {
+						values.getElement(name);
+						Assert.fail(name + " found by getAttributes only");
+					} catch (PropertyNotFoundException pnf) {
+						// Expected
+					}
+				}
+			}
+			Assert.assertEquals(found, values.count());
+		}
+		Assert.assertEquals(5, db.getAttributes(alice, names).getElement(new LSymbol("score")).toInteger());
+		Assert.assertEquals("red", db.getAttributes(bob, names).getElement(new LSymbol("team")).toString());
+	}
+}
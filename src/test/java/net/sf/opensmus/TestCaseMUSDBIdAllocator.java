@@ -0,0 +1,107 @@
+package net.sf.opensmus;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseMUSDBIdAllocator {
+
+	private MUSDBPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+
+		Class.forName("org.hsqldb.jdbcDriver");
+		pool = new MUSDBPool("jdbc:hsqldb:mem:TestCaseMUSDBIdAllocator", "sa", "", 2, 10);
+		MUSDBPool.PooledConnection pc = pool.take();
+		try {
+			Statement stat = pc.m_conn.createStatement();
+			stat.executeUpdate("CREATE TABLE IDTABLE(TABLENAME VARCHAR, MAXID INTEGER)");
+			stat.executeUpdate("INSERT INTO IDTABLE VALUES('GLOBALID',0)");
+			stat.close();
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	@After
+	public void cleanup() throws Exception {
+
+		MUSDBPool.PooledConnection pc = pool.take();
+		try {
+			Statement stat = pc.m_conn.createStatement();
+			stat.executeUpdate("DROP TABLE IDTABLE");
+			stat.close();
+		} finally {
+			pool.release(pc);
+		}
+		pool.close();
+	}
+
+	private int maxId() throws SQLException {
+
+		MUSDBPool.PooledConnection pc = pool.take();
+		try {
+			PreparedStatement prep = pc.prepare("SELECT MAXID FROM IDTABLE WHERE TABLENAME='GLOBALID'");
+			ResultSet result = prep.executeQuery();
+			result.next();
+			int maxid = result.getInt(1);
+			result.close();
+			return maxid;
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	@Test
+	public void testBlocks() throws Exception {
+
+		MUSDBIdAllocator ids = new MUSDBIdAllocator(pool, "GLOBALID", 3);
+		Assert.assertEquals(1, ids.next());
+		Assert.assertEquals(3, maxId());
+		Assert.assertEquals(2, ids.next());
+		Assert.assertEquals(3, ids.next());
+		Assert.assertEquals(3, maxId());
+
+		// The used up block is refilled with the next one
+		Assert.assertEquals(4, ids.next());
+		Assert.assertEquals(6, maxId());
+
+		// After a restart the ids left in the old block are skipped
+		MUSDBIdAllocator restarted = new MUSDBIdAllocator(pool, "GLOBALID", 3);
+		Assert.assertEquals(7, restarted.next());
+		Assert.assertEquals(5, ids.next());
+		Assert.assertEquals(6, ids.next());
+		Assert.assertEquals(10, ids.next());
+		Assert.assertEquals(12, maxId());
+	}
+
+	@Test
+	public void testSingleIds() throws Exception {
+
+		MUSDBIdAllocator ids = new MUSDBIdAllocator(pool, "GLOBALID", 0);
+		Assert.assertEquals(1, ids.next());
+		Assert.assertEquals(2, ids.next());
+		Assert.assertEquals(2, maxId());
+	}
+
+	@Test
+	public void testMissingCounter() throws Exception {
+
+		MUSDBIdAllocator ids = new MUSDBIdAllocator(pool, "NOSUCHID", 3);
+		try {
+			ids.next();
+			Assert.fail("Id handed out without a counter");
+		} catch (SQLException e) {
+			// Expected
+		}
+		Assert.assertEquals(0, maxId());
+	}
+}
@@ -0,0 +1,74 @@
+package net.sf.opensmus;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseMUSDBPool {
+
+	private MUSDBPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+
+		Class.forName("org.hsqldb.jdbcDriver");
+		pool = new MUSDBPool("jdbc:hsqldb:mem:TestCaseMUSDBPool", "sa", "", 1, 2);
+	}
+
+	@After
+	public void cleanup() {
+
+		pool.close();
+	}
+
+	@Test
+	public void testStatementCache() throws Exception {
+
+		MUSDBPool.PooledConnection pc = pool.take();
+		try {
+			PreparedStatement one = pc.prepare("CALL 1");
+			PreparedStatement two = pc.prepare("CALL 2");
+
+			// Hit, which also makes it the most recently used
+			Assert.assertSame(one, pc.prepare("CALL 1"));
+
+			// The least recently used statement is evicted and closed
+			PreparedStatement three = pc.prepare("CALL 3");
+			Assert.assertSame(one, pc.prepare("CALL 1"));
+			Assert.assertSame(three, pc.prepare("CALL 3"));
+			one.executeQuery().close();
+			try {
+				two.executeQuery();
+				Assert.fail("Evicted statement still open");
+			} catch (SQLException e) {
+				// Expected
+			}
+
+			// An evicted statement is prepared again
+			Assert.assertNotSame(two, pc.prepare("CALL 2"));
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	@Test
+	public void testNestedTake() throws Exception {
+
+		MUSDBPool.PooledConnection pc = pool.take();
+		try {
+			// The same thread gets its connection again, even though the pool has only one
+			MUSDBPool.PooledConnection nested = pool.take();
+			Assert.assertSame(pc, nested);
+			pool.release(nested);
+		} finally {
+			pool.release(pc);
+		}
+		Assert.assertSame(pc, pool.take());
+		pool.release(pc);
+	}
+}
@@ -0,0 +1,38 @@
+package net.sf.opensmus;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSDBValueIndex {
+
+	@Test
+	public void testSearches() throws Exception {
+
+		MUSDBValueIndex index = new MUSDBValueIndex(1, 8);
+		for (int id = 10; id < 16; id++) {
+			index.addMember(id);
+		}
+		index.set(10, new LInteger(500).getBytes());
+		index.set(11, new LInteger(200).getBytes());
+		index.set(12, new LString("Bob").getBytes());
+		index.set(13, new LInteger(500).getBytes());
+		index.set(14, new LFloat(500).getBytes());
+
+		Assert.assertEquals(6, index.size());
+		Assert.assertEquals("[10, 13]", index.findNumber(500).toString());
+		Assert.assertEquals("[10, 11, 13]", index.findRange(100, 500).toString());
+		Assert.assertEquals("[]", index.findRange(500, 100).toString());
+		Assert.assertEquals("[12]", index.findText("bOB").toString());
+
+		// Changing a value moves the record, removing it drops it from every search
+		index.set(10, new LInteger(100).getBytes());
+		Assert.assertEquals("[13]", index.findNumber(500).toString());
+		Assert.assertEquals("[10, 11]", index.findRange(0, 300).toString());
+		index.removeMember(11);
+		index.set(12, null);
+		Assert.assertEquals("[10]", index.findRange(0, 300).toString());
+		Assert.assertEquals("[]", index.findText("bob").toString());
+		Assert.assertEquals("[10, 12, 13, 14, 15]", index.members().toString());
+	}
+}
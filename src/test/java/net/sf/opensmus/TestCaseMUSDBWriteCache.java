@@ -0,0 +1,170 @@
+package net.sf.opensmus;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseMUSDBWriteCache {
+
+	// Stands in for the database: records the batches written and counts the reads
+	private static class RecordingDB extends MUSDBConnection {
+
+		final HashMap<Integer, Map<Integer, byte[]>> m_rows = new HashMap<Integer, Map<Integer, byte[]>>();
+		final List<Map<Integer, Map<Integer, byte[]>>> m_writes = new ArrayList<Map<Integer, Map<Integer, byte[]>>>();
+		int m_reads = 0;
+		boolean m_failing = false;
+
+		RecordingDB() {
+			super(null, false);
+		}
+
+		@Override
+		byte[] readAttributeBytes(int ownerid, int attrid) {
+			m_reads++;
+			Map<Integer, byte[]> values = m_rows.get(ownerid);
+			return (values == null) ? null : values.get(attrid);
+		}
+
+		@Override
+		void writeAttributes(Map<Integer, Map<Integer, byte[]>> owners) throws SQLException {
+			if (m_failing)
+				throw new SQLException("Database down");
+
+			m_writes.add(new LinkedHashMap<Integer, Map<Integer, byte[]>>(owners));
+			for (Map.Entry<Integer, Map<Integer, byte[]>> owner : owners.entrySet()) {
+				Map<Integer, byte[]> values = m_rows.get(owner.getKey());
+				if (values == null) {
+					values = new HashMap<Integer, byte[]>();
+					m_rows.put(owner.getKey(), values);
+				}
+				values.putAll(owner.getValue());
+			}
+		}
+	}
+
+	private MUSScheduler scheduler;
+	private RecordingDB db;
+	private MUSDBWriteCache cache;
+
+	@Before
+	public void setUp() {
+
+		scheduler = new MUSScheduler();
+		db = new RecordingDB();
+		cache = new MUSDBWriteCache(db);
+		// Started with an interval that never comes, so only the test flushes
+		cache.start(scheduler, 3600000);
+	}
+
+	@After
+	public void cleanup() {
+
+		scheduler.shutdown();
+	}
+
+	private static byte[] bytes(int value) {
+		return new byte[]{(byte) value};
+	}
+
+	@Test
+	public void testPutCoalesces() throws Exception {
+
+		cache.put(1, 10, bytes(1));
+		cache.put(1, 10, bytes(2));
+		cache.put(1, 11, bytes(3));
+		Assert.assertEquals(2, cache.pendingCount());
+		Assert.assertTrue(db.m_writes.isEmpty());
+
+		// Reads are served from the cache
+		Assert.assertTrue(Arrays.equals(bytes(2), cache.get(1, 10)));
+		Assert.assertEquals(0, db.m_reads);
+
+		cache.flush();
+		Assert.assertEquals(0, cache.pendingCount());
+		Assert.assertEquals(1, db.m_writes.size());
+		Map<Integer, byte[]> written = db.m_writes.get(0).get(1);
+		Assert.assertEquals(2, written.size());
+		Assert.assertTrue(Arrays.equals(bytes(2), written.get(10)));
+		Assert.assertTrue(Arrays.equals(bytes(3), written.get(11)));
+
+		// Nothing left to write
+		cache.flush();
+		Assert.assertEquals(1, db.m_writes.size());
+	}
+
+	@Test
+	public void testMissReadsOnce() throws Exception {
+
+		db.m_rows.put(5, new HashMap<Integer, byte[]>());
+		db.m_rows.get(5).put(10, bytes(7));
+
+		Assert.assertTrue(Arrays.equals(bytes(7), cache.get(5, 10)));
+		Assert.assertNull(cache.get(5, 11));
+		Assert.assertTrue(Arrays.equals(bytes(7), cache.get(5, 10)));
+		Assert.assertNull(cache.get(5, 11));
+		Assert.assertEquals(2, db.m_reads);
+	}
+
+	@Test
+	public void testFlushOrder() throws Exception {
+
+		cache.put(1, 12, bytes(1));
+		cache.put(1, 10, bytes(2));
+		cache.put(1, 11, bytes(3));
+		cache.put(1, 12, bytes(4));
+
+		// Values are written in the order they were first changed
+		cache.flush();
+		Assert.assertEquals(Arrays.asList(12, 10, 11), new ArrayList<Integer>(db.m_writes.get(0).get(1).keySet()));
+
+		// A failed write is retried on the next flush, but a newer value wins over the failed one
+		cache.put(1, 10, bytes(5));
+		cache.put(1, 11, bytes(6));
+		db.m_failing = true;
+		cache.flush();
+		Assert.assertEquals(2, cache.pendingCount());
+		cache.put(1, 11, bytes(7));
+
+		db.m_failing = false;
+		cache.flush();
+		Assert.assertEquals(0, cache.pendingCount());
+		Assert.assertEquals(2, db.m_writes.size());
+		Assert.assertTrue(Arrays.equals(bytes(5), db.m_rows.get(1).get(10)));
+		Assert.assertTrue(Arrays.equals(bytes(7), db.m_rows.get(1).get(11)));
+		Assert.assertTrue(Arrays.equals(bytes(4), db.m_rows.get(1).get(12)));
+	}
+
+	@Test
+	public void testFlushOwner() throws Exception {
+
+		cache.put(1, 10, bytes(1));
+		cache.put(2, 10, bytes(2));
+		cache.put(2, 11, bytes(3));
+
+		cache.flush(2);
+		Assert.assertEquals(1, db.m_writes.size());
+		Assert.assertEquals(1, db.m_writes.get(0).size());
+		Assert.assertEquals(2, db.m_writes.get(0).get(2).size());
+		Assert.assertEquals(1, cache.pendingCount());
+
+		// Owners without pending values are not written
+		cache.flush(2);
+		cache.flush(3);
+		Assert.assertEquals(1, db.m_writes.size());
+
+		cache.flush();
+		Assert.assertEquals(2, db.m_writes.size());
+		Assert.assertTrue(Arrays.equals(bytes(1), db.m_writes.get(1).get(1).get(10)));
+		Assert.assertEquals(0, cache.pendingCount());
+	}
+}
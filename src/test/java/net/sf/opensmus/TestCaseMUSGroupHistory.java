@@ -0,0 +1,57 @@
+package net.sf.opensmus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSGroupHistory {
+
+	private MUSMessage message(String subject, int content) {
+
+		MUSMessage msg = new MUSMessage();
+		msg.m_subject = new MUSMsgHeaderString(subject);
+		msg.m_senderID = new MUSMsgHeaderString("sender");
+		msg.m_recptID = new MUSMsgHeaderStringList();
+		msg.m_recptID.addElement(new MUSMsgHeaderString("@Chat1"));
+		msg.m_msgContent = new LInteger(content);
+		return msg;
+	}
+
+	@Test
+	public void testParse() {
+
+		Assert.assertNull(MUSGroupHistory.parse("@Chat:ChatMsg"));
+		Assert.assertNull(MUSGroupHistory.parse("@Chat:ChatMsg:0"));
+		Assert.assertTrue(MUSGroupHistory.parse("@Chat:*:10").filters("anything"));
+		Assert.assertFalse(MUSGroupHistory.parse("@Chat:ChatMsg,Emote:10").filters("Position"));
+
+		Assert.assertEquals("@Chat*", MUSGroupHistory.parseGroupName("@Chat*:*:10"));
+		Assert.assertTrue(MUSGroupHistory.matches("@Chat*", "@chat12"));
+		Assert.assertTrue(MUSGroupHistory.matches("@Chat", "@chat"));
+		Assert.assertFalse(MUSGroupHistory.matches("@Chat", "@chat12"));
+	}
+
+	@Test
+	public void testReplay() {
+
+		MUSGroupHistory history = MUSGroupHistory.parse("@Chat*:ChatMsg:3");
+		for (int i = 1; i <= 5; i++) {
+			history.add(message("ChatMsg", i));
+		}
+		Assert.assertEquals(3, history.size());
+
+		final List<MUSMessage> received = new ArrayList<MUSMessage>();
+		ServerUser user = MockServerUser.recording("reader", received);
+		history.replay(user);
+
+		// Only the last three, oldest first
+		Assert.assertEquals(3, received.size());
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals("ChatMsg", received.get(i).m_subject.toString());
+			Assert.assertEquals(i + 3, received.get(i).m_msgContent.toInteger());
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package net.sf.opensmus;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSGroupState {
+
+	@Test
+	public void testTree() throws Exception {
+
+		MUSGroupState state = new MUSGroupState(null, null);
+		state.set("players.bob.score", new LInteger(10));
+		state.set("door", new LString("open"));
+		Assert.assertEquals(10, state.get("players.bob.score").toInteger());
+
+		LPropList bob = new LPropList();
+		bob.addElement(new LSymbol("score"), new LInteger(20));
+		bob.addElement(new LSymbol("team"), new LString("red"));
+		state.set("players.bob", bob);
+		Assert.assertEquals("red", state.get("players.bob.team").toString());
+
+		Assert.assertTrue(state.remove("players.bob.team"));
+		Assert.assertFalse(state.remove("players.alice"));
+		Assert.assertNull(state.get("players.bob.team"));
+
+		LPropList snapshot = state.getSnapshot();
+		Assert.assertEquals(2, snapshot.count());
+		Assert.assertEquals("#players", snapshot.getPropAt(0).toString());
+		Assert.assertEquals("#door", snapshot.getPropAt(1).toString());
+	}
+
+	@Test
+	public void testDelta() {
+
+		MUSGroupState state = new MUSGroupState(null, null);
+		Assert.assertFalse(state.takeDelta(new LPropList()));
+
+		state.set("players.bob.x", new LInteger(1));
+		state.set("players.bob.y", new LInteger(2));
+		state.set("players.bob", new LPropList()); // Covers both changes above
+		state.set("players.bob.x", new LInteger(3)); // Already covered by players.bob
+		state.set("door", new LString("open"));
+		state.remove("door");
+
+		LPropList content = new LPropList();
+		Assert.assertTrue(state.takeDelta(content));
+		Assert.assertEquals(1, content.getElementAt(0).toInteger());
+		LPropList changes = (LPropList) content.getElementAt(1);
+		Assert.assertEquals(1, changes.count());
+		Assert.assertEquals("players.bob", changes.getPropAt(0).toString());
+		Assert.assertEquals(3, ((LPropList) changes.getElementAt(0)).getElementAt(0).toInteger());
+		LList deleted = (LList) content.getElementAt(2);
+		Assert.assertEquals(1, deleted.count());
+		Assert.assertEquals("door", deleted.getElementAt(0).toString());
+
+		Assert.assertFalse(state.takeDelta(new LPropList()));
+	}
+}
@@ -0,0 +1,119 @@
+package net.sf.opensmus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCaseMUSGroupSubscription {
+
+	private MUSServer server;
+	private MUSGroup group;
+
+	@Before
+	public void setUp() {
+
+		server = new MUSServer(new MUSServerProperties());
+		group = new MUSGroup(new MUSMovie(server, "SubscriptionTest"), "@Lobby");
+		group.setpersists(true);
+	}
+
+	@After
+	public void cleanup() {
+
+		server.killServer();
+
+		File serverLogFile = new File(MUSServerProperties.DEFAULT_LOGFILENAME);
+		if (serverLogFile.exists())
+			serverLogFile.delete();
+	}
+
+	private ServerUser join(String name, List<MUSMessage> received) throws MUSErrorCode {
+
+		ServerUser user = MockServerUser.recording(name, received);
+		group.addUser(user);
+		return user;
+	}
+
+	private void setAttribute(String name, int value) {
+
+		LPropList attributes = new LPropList();
+		attributes.addElement(new LSymbol(name), new LInteger(value));
+		LPropList content = new LPropList();
+		content.addElement(new LSymbol("attribute"), attributes);
+		group.srvcmd_handleAttributeMessage(new MUSMessage(), "setAttribute", content);
+	}
+
+	private void deleteAttribute(String name) {
+
+		LPropList content = new LPropList();
+		content.addElement(new LSymbol("attribute"), new LSymbol(name));
+		group.srvcmd_handleAttributeMessage(new MUSMessage(), "deleteAttribute", content);
+	}
+
+	@Test
+	public void testSubscribers() throws Exception {
+
+		List<MUSMessage> alice = new ArrayList<MUSMessage>();
+		List<MUSMessage> bob = new ArrayList<MUSMessage>();
+		ServerUser a = join("alice", alice);
+		join("bob", bob);
+
+		group.subscribeAttributes(a);
+		setAttribute("round", 1);
+
+		// Only subscribers get the change pushed
+		Assert.assertEquals(1, alice.size());
+		Assert.assertEquals(0, bob.size());
+		MUSMessage msg = alice.get(0);
+		Assert.assertEquals("AttributeChange", msg.m_subject.toString());
+		LPropList content = (LPropList) msg.m_msgContent;
+		Assert.assertEquals("@Lobby", content.getElement(new LSymbol("group")).toString());
+		Assert.assertEquals(1, ((LPropList) content.getElement(new LSymbol("attribute"))).getElement(new LSymbol("round")).toInteger());
+		int version = content.getElement(new LSymbol("version")).toInteger();
+
+		deleteAttribute("round");
+		Assert.assertEquals(2, alice.size());
+		content = (LPropList) alice.get(1).m_msgContent;
+		Assert.assertEquals("#round", ((LList) content.getElement(new LSymbol("deleted"))).getElementAt(0).toString());
+		Assert.assertTrue(content.getElement(new LSymbol("version")).toInteger() > version);
+
+		// Deleting a missing attribute changes nothing
+		deleteAttribute("round");
+		Assert.assertEquals(2, alice.size());
+
+		group.unsubscribeAttributes(a);
+		setAttribute("round", 2);
+		Assert.assertEquals(2, alice.size());
+	}
+
+	@Test
+	public void testMembersOnly() throws Exception {
+
+		List<MUSMessage> alice = new ArrayList<MUSMessage>();
+		List<MUSMessage> carol = new ArrayList<MUSMessage>();
+		ServerUser a = join("alice", alice);
+		join("bob", null);
+
+		try {
+			group.subscribeAttributes(MockServerUser.recording("carol", carol));
+			Assert.fail("Non member subscribed");
+		} catch (UserNotFoundException e) {
+			// Expected
+		}
+
+		// Leaving the group ends the subscription, joining again does not renew it
+		group.subscribeAttributes(a);
+		group.removeUser(a);
+		setAttribute("round", 1);
+		group.addUser(a);
+		setAttribute("round", 2);
+		Assert.assertEquals(0, alice.size());
+		Assert.assertEquals(0, carol.size());
+	}
+}
@@ -0,0 +1,64 @@
+package net.sf.opensmus;
+
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSInterestGrid {
+
+	@Test
+	public void testRadius() {
+
+		MUSInterestGrid grid = MUSInterestGrid.parse("@World:Position,Emote:100:30");
+		Assert.assertTrue(grid.filters("position"));
+		Assert.assertFalse(grid.filters("chat"));
+
+		grid.update(MockServerUser.named("a"), 0, 0, 0);
+		grid.update(MockServerUser.named("b"), 60, 60, 0);
+		ServerUser c = MockServerUser.named("c");
+		grid.update(c, 90, 0, 0);
+		ServerUser d = MockServerUser.named("d");
+		grid.update(d, 500, 500, 0);
+
+		List<ServerUser> near = grid.getUsersNear(10, 0, 0);
+		Assert.assertEquals(3, near.size());
+		Assert.assertFalse(near.contains(d));
+
+		// Moving out of range
+		grid.update(c, 300, 0, 0);
+		Assert.assertEquals(2, grid.getUsersNear(10, 0, 0).size());
+		grid.remove(c);
+		Assert.assertEquals(3, grid.size());
+	}
+
+	@Test
+	public void testNeighbourCells() {
+
+		MUSInterestGrid grid = MUSInterestGrid.parse("@Arena:Move:0:50");
+		grid.update(MockServerUser.named("a"), 10, 10, 0);
+		grid.update(MockServerUser.named("b"), 99, 99, 0);
+		grid.update(MockServerUser.named("c"), 101, 10, 0);
+		grid.update(MockServerUser.named("d"), 20, 10, 70);
+
+		// Cells 0 and 1 are neighbours, cell 2 is not. Depth counts once a position leaves the z = 0 layer.
+		Assert.assertEquals(3, grid.getUsersNear(10, 10, 0).size());
+	}
+
+	@Test
+	public void testExtractPosition() {
+
+		LList list = new LList();
+		list.addElement(new LPoint(new LInteger(5), new LFloat(2.5)));
+		double[] pos = MUSInterestGrid.extractPosition(list);
+		Assert.assertEquals(5.0, pos[0]);
+		Assert.assertEquals(2.5, pos[1]);
+
+		pos = MUSInterestGrid.extractPosition(new L3dVector(1, 2, 3));
+		Assert.assertEquals(3.0, pos[2]);
+
+		Assert.assertNull(MUSInterestGrid.extractPosition(new LString("hello")));
+		Assert.assertNull(MUSInterestGrid.parse("@World:Position"));
+	}
+}
@@ -0,0 +1,76 @@
+package net.sf.opensmus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestCaseMUSLogWriter {
+
+	private static final String LOGFILE = "testlog.txt";
+
+	@Test
+	public void testLinesAreWrittenInOrder() throws IOException {
+
+		MUSLogWriter writer = new MUSLogWriter(new File(LOGFILE), false, 1024, 0, 0);
+		writer.start();
+		for (int i = 0; i < 500; i++) {
+			Assert.assertTrue(writer.write("line " + i));
+		}
+		writer.kill();
+
+		BufferedReader in = new BufferedReader(new FileReader(LOGFILE));
+		for (int i = 0; i < 500; i++) {
+			Assert.assertEquals("line " + i, in.readLine());
+		}
+		Assert.assertNull(in.readLine());
+		in.close();
+	}
+
+	@Test
+	public void testFullBufferDropsLines() throws IOException {
+
+		// Writer thread not started, nothing is taken from the buffer
+		MUSLogWriter writer = new MUSLogWriter(new File(LOGFILE), false, 64, 0, 0);
+		for (int i = 0; i < 64; i++) {
+			Assert.assertTrue(writer.write("line " + i));
+		}
+		Assert.assertFalse(writer.write("dropped"));
+		Assert.assertEquals(1, writer.getDroppedCount());
+	}
+
+	@Test
+	public void testRotation() throws IOException {
+
+		MUSLogWriter writer = new MUSLogWriter(new File(LOGFILE), false, 1024, 100, 2);
+		writer.start();
+		for (int i = 0; i < 100; i++) {
+			writer.write("rotation test line " + i);
+		}
+		writer.kill();
+
+		Assert.assertTrue(new File(LOGFILE + ".1").exists());
+		Assert.assertTrue(new File(LOGFILE + ".2").exists());
+		Assert.assertFalse(new File(LOGFILE + ".3").exists());
+	}
+
+	@Test
+	public void testFormat() {
+
+		Assert.assertEquals("User Bob joined @Lobby", MUSLog.format("User {} joined {}", new Object[]{"Bob", "@Lobby"}));
+		Assert.assertEquals("No args {}", MUSLog.format("No args {}", new Object[0]));
+	}
+
+	@After
+	public void cleanup() {
+
+		new File(LOGFILE).delete();
+		new File(LOGFILE + ".1").delete();
+		new File(LOGFILE + ".2").delete();
+	}
+}
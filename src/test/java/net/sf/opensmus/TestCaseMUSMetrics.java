@@ -0,0 +1,74 @@
+package net.sf.opensmus;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSMetrics {
+
+	@Test
+	public void testCounterIsSharedPerSeries() {
+
+		MUSMetrics metrics = new MUSMetrics();
+		metrics.counter("messages", "movie", "Chat").inc();
+		metrics.counter("messages", "movie", "Chat").add(2);
+		metrics.counter("messages", "movie", "Lobby").inc();
+
+		Map<String, Long> snap = metrics.snapshot();
+		Assert.assertEquals(Long.valueOf(3), snap.get("messages{movie=\"Chat\"}"));
+		Assert.assertEquals(Long.valueOf(1), snap.get("messages{movie=\"Lobby\"}"));
+
+		metrics.removeLabel("movie", "Chat");
+		Assert.assertNull(metrics.snapshot().get("messages{movie=\"Chat\"}"));
+	}
+
+	@Test
+	public void testSeriesLimit() {
+
+		MUSMetrics metrics = new MUSMetrics();
+		for (int i = 0; i < MUSMetrics.MAX_SERIES_PER_NAME + 10; i++) {
+			metrics.counter("bytes", "subject", "s" + i).inc();
+		}
+		Assert.assertEquals(Long.valueOf(10), metrics.snapshot().get("bytes{subject=\"other\"}"));
+		Assert.assertEquals(MUSMetrics.MAX_SERIES_PER_NAME + 1, metrics.getMetrics().size());
+	}
+
+	@Test
+	public void testCounterFamily() {
+
+		MUSMetrics metrics = new MUSMetrics();
+		MUSMetrics.CounterFamily family = metrics.counterFamily("bytes", "subject");
+		Assert.assertSame(family.get("chat"), family.get("chat"));
+		Assert.assertSame(metrics.counter("bytes", "subject", "chat"), family.get("chat"));
+
+		for (int i = 0; i < MUSMetrics.MAX_SERIES_PER_NAME + 10; i++) {
+			family.get("s" + i).inc();
+		}
+		Assert.assertSame(family.get("s" + MUSMetrics.MAX_SERIES_PER_NAME), family.get("another"));
+		Assert.assertEquals(Long.valueOf(11), metrics.snapshot().get("bytes{subject=\"other\"}"));
+		Assert.assertEquals(MUSMetrics.MAX_SERIES_PER_NAME + 1, metrics.getMetrics().size());
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+
+		MUSMetrics.Histogram h = new MUSMetrics().histogram("latency", MUSMetrics.Histogram.exponentialBounds(1000));
+		for (int i = 1; i <= 100; i++) {
+			h.record(i);
+		}
+		Assert.assertEquals(100, h.value());
+		Assert.assertEquals(5050, h.getSum());
+		long p50 = h.percentile(0.5);
+		Assert.assertTrue("p50 was " + p50, p50 >= 20 && p50 <= 50);
+		Assert.assertEquals(100, h.percentile(1.0));
+	}
+
+	@Test
+	public void testErrorCodeNames() {
+
+		Assert.assertEquals("NoError", MUSErrorCode.getName(MUSErrorCode.NoError));
+		Assert.assertEquals("InvalidPassword", MUSErrorCode.getName(MUSErrorCode.InvalidPassword));
+	}
+}
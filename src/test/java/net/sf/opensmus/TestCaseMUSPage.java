@@ -0,0 +1,62 @@
+package net.sf.opensmus;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TestCaseMUSPage {
+
+	@Test
+	public void testFill() throws Exception {
+
+		List<String> names = Arrays.asList("a", "b", "c", "d", "e");
+
+		LList list = new LList();
+		Assert.assertEquals(2, new MUSPage(0, 2).fill(list, names));
+		Assert.assertEquals(2, list.count());
+
+		list = new LList();
+		Assert.assertEquals(4, new MUSPage(2, 2).fill(list, names));
+		Assert.assertEquals("c", list.getElementAt(0).toString());
+
+		list = new LList();
+		Assert.assertEquals(0, new MUSPage(4, 2).fill(list, names));
+		Assert.assertEquals(1, list.count());
+
+		// Pages are taken from the sorted names
+		list = new LList();
+		Assert.assertEquals(2, new MUSPage(0, 2).fill(list, Arrays.asList("d", "b", "e", "a", "c")));
+		Assert.assertEquals("a", list.getElementAt(0).toString());
+		Assert.assertEquals("b", list.getElementAt(1).toString());
+
+		// Limits are clamped
+		Assert.assertEquals(MUSPage.MAXLIMIT, new MUSPage(0, 50000).m_limit);
+		Assert.assertEquals(1, new MUSPage(-3, 0).m_limit);
+		Assert.assertEquals(0, new MUSPage(-3, 0).m_cursor);
+	}
+
+	@Test
+	public void testContents() throws Exception {
+
+		LPropList content = new LPropList();
+		Assert.assertFalse(MUSPage.isPaged(content));
+		Assert.assertFalse(MUSPage.isPaged(new LInteger(0)));
+
+		content.addElement(new LSymbol("limit"), new LInteger(10));
+		Assert.assertTrue(MUSPage.isPaged(content));
+		MUSPage page = MUSPage.fromContents(content);
+		Assert.assertEquals(0, page.m_cursor);
+		Assert.assertEquals(10, page.m_limit);
+
+		content.addElement(new LSymbol("cursor"), new LString("x"));
+		try {
+			MUSPage.fromContents(content);
+			Assert.fail();
+		} catch (MUSErrorCode err) {
+			Assert.assertEquals(MUSErrorCode.BadParameter, err.m_errCode);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package net.sf.opensmus;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestCaseMUSSQLExecutor {
+
+	@Test
+	public void testOrderPerUser() throws Exception {
+
+		MUSMetrics metrics = new MUSMetrics();
+		MUSSQLExecutor executor = new MUSSQLExecutor(metrics, 1000, 1000);
+		final List<Integer> alice = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> bob = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(200);
+
+		for (int i = 0; i < 100; i++) {
+			final int n = i;
+			Assert.assertTrue(executor.execute("alice", "executeQuery", new Runnable() {
+				public void run() {
+					alice.add(n);
+					done.countDown();
+				}
+			}));
+			Assert.assertTrue(executor.execute("bob", "executeUpdate", new Runnable() {
+				public void run() {
+					bob.add(n);
+					done.countDown();
+				}
+			}));
+		}
+
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(i, alice.get(i).intValue());
+			Assert.assertEquals(i, bob.get(i).intValue());
+		}
+		executor.kill();
+		Assert.assertEquals(0, executor.getQueued());
+		Assert.assertEquals(100, metrics.latency("opensmus_sql_execution_latency_us", "command", "executeQuery").value());
+	}
+
+	@Test
+	public void testQueueLimits() throws Exception {
+
+		MUSMetrics metrics = new MUSMetrics();
+		MUSSQLExecutor executor = new MUSSQLExecutor(metrics, 3, 2);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		Runnable wait = new Runnable() {
+			public void run() {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					// Done
+				}
+			}
+		};
+
+		Assert.assertTrue(executor.execute("alice", "executeQuery", wait));
+		Assert.assertTrue(executor.execute("alice", "executeQuery", wait));
+		// Per user limit
+		Assert.assertFalse(executor.execute("alice", "executeQuery", wait));
+		Assert.assertTrue(executor.execute("bob", "executeQuery", wait));
+		// Total limit
+		Assert.assertFalse(executor.execute("carol", "executeQuery", wait));
+		Assert.assertEquals(3, executor.getQueued());
+		Assert.assertEquals(2, metrics.counter("opensmus_sql_rejected_total").value());
+
+		blocked.countDown();
+		executor.kill();
+		Assert.assertEquals(0, executor.getQueued());
+	}
+}
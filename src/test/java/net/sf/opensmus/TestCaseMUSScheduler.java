@@ -0,0 +1,38 @@
+package net.sf.opensmus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestCaseMUSScheduler {
+
+	@Test
+	public void testScheduleAfterShutdown() throws Exception {
+
+		MUSScheduler scheduler = new MUSScheduler();
+		final CountDownLatch ran = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		};
+
+		scheduler.shutdown();
+
+		// Late teardown work is dropped instead of throwing at the caller
+		MUSScheduledTask once = scheduler.schedule("Late", task, 10);
+		MUSScheduledTask periodic = scheduler.scheduleWithFixedDelay("LatePeriodic", task, 10, 10);
+		MUSScheduledTask now = scheduler.execute("LateNow", task);
+		Assert.assertTrue(once.isDone());
+		Assert.assertTrue(periodic.isDone());
+		Assert.assertTrue(now.isDone());
+		once.cancel();
+
+		Assert.assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(0, scheduler.getPendingCount());
+		Assert.assertEquals(3, scheduler.getFinishedCount());
+	}
+}